@@ -19,9 +19,17 @@ public class Anchor {
 	// negative mass, so we won't be constraining this value at all.
 	private double m_mass;
 	
-	// A list of the rods to which this anchor serves as an endpoint.
+	// A list of the rods to which this anchor serves as an endpoint. Store
+	// views keep their rods in the store's RodGraph instead, and only use
+	// this list (created when needed) for rods to anchors outside the store.
 	private ArrayList<Rod> m_rods;
 	
+	// If this anchor is a view onto an AnchorStore, the store and the slot
+	// holding its location and mass. Free-standing anchors have no store and
+	// an id of -1, and keep their own location and mass above.
+	private AnchorStore m_store;
+	private int m_id;
+	
 	/**
 	 * Constructors
 	 */
@@ -32,13 +40,16 @@ public class Anchor {
 		m_loc = new Point();
 		m_mass = 0;
 		m_rods = new ArrayList<Rod>();
+		m_id = -1;
 	}
 	
-	// Copy constructor: create one anchor from another.
+	// Copy constructor: create one anchor from another. Copying a store view
+	// gives a free-standing anchor at the same location.
 	public Anchor(Anchor other) {
-		m_loc = other.m_loc;
-		m_mass = other.m_mass;
-		m_rods = new ArrayList<Rod>(other.m_rods);
+		m_loc = (other.m_store == null) ? other.m_loc : other.loc();
+		m_mass = other.mass();
+		m_rods = new ArrayList<Rod>(other.rods());
+		m_id = -1;
 	}
 	
 	// Standard constructor: create an anchor with specified location and
@@ -49,6 +60,7 @@ public class Anchor {
 		m_loc = loc;
 		m_mass = mass;
 		m_rods = new ArrayList<Rod>();
+		m_id = -1;
 	}
 	
 	// Standard constructor (given the point in spherical coordinates).
@@ -57,7 +69,7 @@ public class Anchor {
 		m_loc = new Point(theta, phi);
 		m_mass = mass;
 		m_rods = new ArrayList<Rod>();
-		
+		m_id = -1;
 	}
 	
 	// Standard constructor (given the point in rectangular coordinates).
@@ -66,6 +78,17 @@ public class Anchor {
 		m_loc = new Point(x, y, z);
 		m_mass = mass;
 		m_rods = new ArrayList<Rod>();
+		m_id = -1;
+	}
+	
+	// View constructor: an anchor whose location and mass live in a slot of
+	// an AnchorStore. Only the store creates these (see AnchorStore.anchor).
+	Anchor(AnchorStore store, int id) {
+		m_loc = null;
+		m_mass = 0;
+		m_rods = null;
+		m_store = store;
+		m_id = id;
 	}
 	
 	
@@ -73,39 +96,84 @@ public class Anchor {
 	 * Accessors
 	 */
 	
-	// Get the location of the anchor on the unit sphere.
+	// Get the location of the anchor on the unit sphere. For a store view
+	// this is a copy, so use translate() rather than rotating the point.
 	public Point loc() {
+		if (m_store != null) {
+			return m_store.loc(m_id);
+		}
 		return m_loc;
 	}
 	
 	public double theta() {
+		if (m_store != null) {
+			return m_store.theta(m_id);
+		}
 		return m_loc.theta();
 	}
 	
 	public double phi() {
+		if (m_store != null) {
+			return m_store.phi(m_id);
+		}
 		return m_loc.phi();
 	}
 	
 	public double x() {
+		if (m_store != null) {
+			return m_store.x(m_id);
+		}
 		return m_loc.x();
 	}
 	
 	public double y() {
+		if (m_store != null) {
+			return m_store.y(m_id);
+		}
 		return m_loc.y();
 	}
 	
 	public double z() {
+		if (m_store != null) {
+			return m_store.z(m_id);
+		}
 		return m_loc.z();
 	}
 	
 	// Get the mass of the anchor.
 	public double mass() {
+		if (m_store != null) {
+			return m_store.mass(m_id);
+		}
 		return m_mass;
 	}
 	
-	// Get the rods to which this anchor is connected.
+	// Get the store this anchor is a view onto, or null if it is free-standing.
+	public AnchorStore store() {
+		return m_store;
+	}
+	
+	// Get the id of this anchor in its store, or -1 if it is free-standing.
+	public int id() {
+		return m_id;
+	}
+	
+	// Get the rods to which this anchor is connected. For a store view this
+	// is a fresh copy, so changing it doesn't add or remove anything.
 	public ArrayList<Rod> rods() {
-		return m_rods;
+		if (m_store == null) {
+			return m_rods;
+		}
+		Rod[] graph = m_store.graph().at(m_id);
+		int extra = (m_rods == null) ? 0 : m_rods.size();
+		ArrayList<Rod> rods = new ArrayList<Rod>(graph.length + extra);
+		for (int i = 0; i < graph.length; i++) {
+			rods.add(graph[i]);
+		}
+		if (m_rods != null) {
+			rods.addAll(m_rods);
+		}
+		return rods;
 	}
 	
 	/**
@@ -114,33 +182,72 @@ public class Anchor {
 	
 	// Shifts the anchor around the unit sphere by the specified angles.
 	public void translate(double theta, double phi) {
+		if (m_store != null) {
+			m_store.translate(m_id, theta, phi);
+			return;
+		}
 		// And that's why we defined it for the point class.
 		m_loc.rotate(theta,  phi);
 	}
 	
+	// Turns the anchor rigidly about the centre of the sphere. To turn a
+	// whole structure, use AnchorStore.rotate() on its component().
+	public void rotate(Rotation r) {
+		if (m_store != null) {
+			m_store.rotate(new int[] { m_id }, r);
+			return;
+		}
+		m_loc.rotate(r);
+	}
+	
 	// Change the mass of the anchor.
 	public void resize(double mass) {
+		if (m_store != null) {
+			m_store.resize(m_id, mass);
+			return;
+		}
 		m_mass = mass;
 	}
 	
-	// Add a rod to the connectivity list.
+	// Add a rod to the connectivity list. If this anchor lives in a store, the
+	// rod goes into the store's RodGraph and the store's Connectivity tracker
+	// updates the extensibility of every rod affected.
 	public void add(Rod r) {
+		if (m_store != null && m_store.link(r)) {
+			return;
+		}
+		if (m_rods == null) {
+			m_rods = new ArrayList<Rod>();
+		}
 		m_rods.add(r);
 	}
 	
-	// Removes rod at index n from connectivity list.
+	// Removes rod at index n from connectivity list (in the order rods()
+	// lists them).
 	// Returns true if rod was removed, false if index is out of bounds.
 	public boolean remove(int n) {
-		if (n < 0 || n >= m_rods.size()) {
+		if (m_store == null) {
+			if (n < 0 || n >= m_rods.size()) {
+				return false;
+			}
+			m_rods.remove(n);
+			return true;
+		}
+		ArrayList<Rod> rods = rods();
+		if (n < 0 || n >= rods.size()) {
 			return false;
 		}
-		m_rods.remove(n);
-		return true;
+		return remove(rods.get(n));
 	}
 	
 	// Remove a rod from the connectivity list.
-	// Returns true if object is found, false otherwise.
+	// Returns true if object is found, false otherwise. A rod between two
+	// anchors of a store comes out of the store's graph, and so off both of
+	// its anchors at once.
 	public boolean remove(Rod r) {
-		return m_rods.remove(r);
+		if (m_store != null && m_store.unlink(r)) {
+			return true;
+		}
+		return m_rods != null && m_rods.remove(r);
 	}
 }
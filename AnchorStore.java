@@ -0,0 +1,559 @@
+package blackhole;
+
+import java.util.Arrays;
+
+/**
+ * Keeps every anchor in a structure in parallel primitive arrays, indexed by
+ * an int anchor id. A structure with hundreds of thousands of anchors then
+ * costs a handful of arrays instead of hundreds of thousands of Anchor, Point
+ * and ArrayList objects, and bulk loops can run straight over the arrays.
+ *
+ * Anchor objects handed out by anchor() are views onto a slot in the store,
+ * so the usual Anchor API (loc(), mass(), translate(), resize()) keeps
+ * working for code that wants objects.
+ *
+ * @author Rory
+ *
+ */
+public class AnchorStore {
+
+	/**
+	 * Anything that wants to hear about changes to the store, like an index
+	 * that has to keep up with anchors as they move. Only override what you
+	 * need.
+	 */
+	public interface Listener {
+		// Anchor id has just been added.
+		default void added(int id) {
+		}
+
+		// Anchor id has just moved.
+		default void moved(int id) {
+		}
+
+		// Anchor id's mass has just changed.
+		default void resized(int id) {
+		}
+
+		// Rod r has just been added to the graph (or taken out of it).
+		// Connectivity is already up to date by the time these are called.
+		default void linked(Rod r) {
+		}
+
+		default void unlinked(Rod r) {
+		}
+	}
+
+	// Capacity used by the default constructor.
+	private static final int DEFAULT_CAPACITY = 16;
+
+	// Number of anchors currently in the store.
+	private int m_size;
+
+	// Spherical coordinates of each anchor (same convention as Point).
+	private double[] m_theta;
+	private double[] m_phi;
+
+	// Mass of each anchor. Like Anchor, we don't constrain this at all.
+	private double[] m_mass;
+
+	// Cached rectangular coordinates of each anchor, kept in step with the
+	// angles so that reading them never costs any trig.
+	private double[] m_x;
+	private double[] m_y;
+	private double[] m_z;
+
+	// Anchors whose angles are behind their rectangular coordinates (see
+	// unitMoved()), and whether there are any.
+	private boolean[] m_stale;
+	private boolean m_anyStale;
+
+	// Anchor views, created the first time somebody asks for one. A view has
+	// to be unique per id since rods compare anchors by reference.
+	private Anchor[] m_views;
+
+	// The rods between our anchors, and the tracker that keeps their
+	// extensibility up to date.
+	private RodGraph m_graph;
+	private Connectivity m_connectivity;
+
+	// Everybody listening for changes.
+	private Listener[] m_listeners;
+
+	// Rotations that haven't been applied yet (see rotate()): which anchors
+	// each one turns (null for all of them) and how. Anything that reads or
+	// moves an anchor applies them first.
+	private int[][] m_turnIds;
+	private Rotation[] m_turns;
+	private int m_pending;
+
+	// The last component handed out by component(), and the graph version it
+	// was worked out for.
+	private int[] m_component;
+	private int m_componentVersion;
+
+	/**
+	 * Constructors
+	 */
+
+	// Default constructor: creates an empty store.
+	public AnchorStore() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	// Creates an empty store with room for the given number of anchors, so
+	// that loading a structure of known size never has to grow the arrays.
+	public AnchorStore(int capacity) {
+		if (capacity < 1) {
+			capacity = 1;
+		}
+		m_size = 0;
+		m_theta = new double[capacity];
+		m_phi = new double[capacity];
+		m_mass = new double[capacity];
+		m_x = new double[capacity];
+		m_y = new double[capacity];
+		m_z = new double[capacity];
+		m_stale = new boolean[capacity];
+		m_anyStale = false;
+		m_views = new Anchor[capacity];
+		m_graph = new RodGraph(this);
+		m_connectivity = new Connectivity(this);
+		m_listeners = new Listener[0];
+		m_turnIds = new int[4][];
+		m_turns = new Rotation[4];
+		m_pending = 0;
+		m_component = null;
+		m_componentVersion = -1;
+	}
+
+	/**
+	 * Accessors
+	 */
+
+	// Number of anchors in the store.
+	public int size() {
+		return m_size;
+	}
+
+	// Returns the Anchor view for the given id.
+	public Anchor anchor(int id) {
+		check(id);
+		Anchor a = m_views[id];
+		if (a == null) {
+			a = new Anchor(this, id);
+			m_views[id] = a;
+		}
+		return a;
+	}
+
+	// Returns the graph of rods between anchors of this store.
+	public RodGraph graph() {
+		return m_graph;
+	}
+
+	// Returns the tracker for the rods between anchors of this store.
+	public Connectivity connectivity() {
+		return m_connectivity;
+	}
+
+	// Returns a copy of the location of the given anchor. Changing the
+	// returned point does not move the anchor.
+	public Point loc(int id) {
+		check(id);
+		settle();
+		angles(id);
+		return new Point(m_theta[id], m_phi[id]);
+	}
+
+	public double theta(int id) {
+		check(id);
+		settle();
+		angles(id);
+		return m_theta[id];
+	}
+
+	public double phi(int id) {
+		check(id);
+		settle();
+		angles(id);
+		return m_phi[id];
+	}
+
+	public double x(int id) {
+		check(id);
+		if (m_pending > 0) {
+			settle();
+		}
+		return m_x[id];
+	}
+
+	public double y(int id) {
+		check(id);
+		if (m_pending > 0) {
+			settle();
+		}
+		return m_y[id];
+	}
+
+	public double z(int id) {
+		check(id);
+		if (m_pending > 0) {
+			settle();
+		}
+		return m_z[id];
+	}
+
+	public double mass(int id) {
+		check(id);
+		return m_mass[id];
+	}
+
+	// Returns the ids of every anchor joined to the given one by rods (itself
+	// included). Rotating these together moves the whole structure without
+	// bending any rod. The answer is shared, so don't change it.
+	public int[] component(int id) {
+		check(id);
+		if (m_component != null && m_componentVersion == m_graph.version() &&
+				m_connectivity.connected(id, m_component[0])) {
+			return m_component;
+		}
+		m_component = m_graph.component(id);
+		m_componentVersion = m_graph.version();
+		return m_component;
+	}
+
+	// Raw arrays for bulk loops. Only the first size() entries mean anything,
+	// and the arrays are replaced whenever the store grows, so don't hang on
+	// to them across calls to add().
+	public double[] thetas() {
+		settle();
+		angles();
+		return m_theta;
+	}
+
+	public double[] phis() {
+		settle();
+		angles();
+		return m_phi;
+	}
+
+	public double[] masses() {
+		return m_mass;
+	}
+
+	public double[] xs() {
+		settle();
+		return m_x;
+	}
+
+	public double[] ys() {
+		settle();
+		return m_y;
+	}
+
+	public double[] zs() {
+		settle();
+		return m_z;
+	}
+
+	/**
+	 * Mutators
+	 */
+
+	// Adds an anchor at the given spherical coordinates and returns its id.
+	public int add(double theta, double phi, double mass) {
+		// Rotations we owe the anchors we already have don't apply to this one.
+		settle();
+		if (m_size == m_theta.length) {
+			grow(m_size + 1);
+		}
+		int id = m_size++;
+		m_mass[id] = mass;
+		place(id, theta, phi);
+		for (int i = 0; i < m_listeners.length; i++) {
+			m_listeners[i].added(id);
+		}
+		return id;
+	}
+
+	// Adds an anchor at the given point and returns its id.
+	public int add(Point loc, double mass) {
+		return add(loc.theta(), loc.phi(), mass);
+	}
+
+	// Makes sure the store can hold the given number of anchors without
+	// growing again.
+	public void ensureCapacity(int capacity) {
+		if (capacity > m_theta.length) {
+			grow(capacity);
+		}
+	}
+
+	// Shifts the anchor around the unit sphere by the specified angles.
+	public void translate(int id, double theta, double phi) {
+		check(id);
+		settle();
+		angles(id);
+		place(id, m_theta[id] + theta, m_phi[id] + phi);
+		moved(id);
+	}
+
+	// Moves the anchor to the given spherical coordinates.
+	public void moveTo(int id, double theta, double phi) {
+		check(id);
+		settle();
+		place(id, theta, phi);
+		moved(id);
+	}
+
+	// Moves the anchor to the point on the unit sphere in the direction of
+	// the given rectangular coordinates.
+	public void moveTo(int id, double x, double y, double z) {
+		check(id);
+		settle();
+		m_x[id] = x;
+		m_y[id] = y;
+		m_z[id] = z;
+		unitMoved(id);
+	}
+
+	// Turns every anchor in the store rigidly. Nothing actually moves until
+	// somebody looks (or moves an anchor), and a run of rotations of the same
+	// anchors is composed into one, so spinning a structure a step at a time
+	// only costs one pass over it.
+	public void rotate(Rotation r) {
+		turn(null, r);
+	}
+
+	// Turns the given anchors rigidly, lazily like rotate(). Rods between
+	// these and other anchors will stretch, so to move a structure without
+	// bending it pass its component(); that array can be passed again and
+	// again without copying.
+	public void rotate(int[] ids, Rotation r) {
+		for (int i = 0; i < ids.length; i++) {
+			check(ids[i]);
+		}
+		turn((ids == m_component) ? ids : ids.clone(), r);
+	}
+
+	// Starts telling the given listener about changes.
+	public void addListener(Listener l) {
+		m_listeners = Arrays.copyOf(m_listeners, m_listeners.length + 1);
+		m_listeners[m_listeners.length - 1] = l;
+	}
+
+	// Stops telling the given listener about changes. Returns false if it
+	// wasn't listening.
+	public boolean removeListener(Listener l) {
+		for (int i = 0; i < m_listeners.length; i++) {
+			if (m_listeners[i] == l) {
+				Listener[] rest = new Listener[m_listeners.length - 1];
+				System.arraycopy(m_listeners, 0, rest, 0, i);
+				System.arraycopy(m_listeners, i + 1, rest, i, rest.length - i);
+				m_listeners = rest;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Change the mass of the anchor.
+	public void resize(int id, double mass) {
+		check(id);
+		m_mass[id] = mass;
+		for (int i = 0; i < m_listeners.length; i++) {
+			m_listeners[i].resized(id);
+		}
+	}
+
+	// Tidies up after somebody has written a new direction straight into the
+	// rectangular arrays (see xs()): scales it back onto the unit sphere and
+	// marks the angles as out of date. Used by bulk movers like Simulation,
+	// which only care about the rectangular side, so we leave the trig until
+	// somebody actually asks for an angle.
+	void unitMoved(int id) {
+		settle();
+		double x = m_x[id];
+		double y = m_y[id];
+		double z = m_z[id];
+		double r = Math.sqrt(x*x + y*y + z*z);
+		if (r == 0) {
+			// Same as Point: the origin goes to the north pole.
+			x = 0;
+			y = 0;
+			z = 1;
+		}
+		else {
+			x /= r;
+			y /= r;
+			z /= r;
+		}
+		m_x[id] = x;
+		m_y[id] = y;
+		m_z[id] = z;
+		m_stale[id] = true;
+		m_anyStale = true;
+		moved(id);
+	}
+
+	// Adds a rod between two of our anchors to the graph and updates
+	// extensibility. Returns whether the rod is (now) in our graph; rods with
+	// an end outside the store aren't. Called by Anchor.add().
+	boolean link(Rod r) {
+		if (m_graph.add(r)) {
+			m_connectivity.linked(r);
+			for (int i = 0; i < m_listeners.length; i++) {
+				m_listeners[i].linked(r);
+			}
+		}
+		return m_graph.contains(r);
+	}
+
+	// Takes a rod out of the graph and updates extensibility. Returns false if
+	// it wasn't in our graph. Called by Anchor.remove().
+	boolean unlink(Rod r) {
+		if (! m_graph.remove(r)) {
+			return false;
+		}
+		m_connectivity.unlinked(r);
+		for (int i = 0; i < m_listeners.length; i++) {
+			m_listeners[i].unlinked(r);
+		}
+		return true;
+	}
+
+	// Applies every rotation we've been putting off, then tells the listeners
+	// (who may well read the store, so everything has to be in place first).
+	// Listeners that keep their own copy of where anchors are (like
+	// SphereIndex) call this before answering anything.
+	void settle() {
+		if (m_pending == 0) {
+			return;
+		}
+		int n = m_pending;
+		m_pending = 0;
+		boolean all = false;
+		for (int k = 0; k < n; k++) {
+			int[] ids = m_turnIds[k];
+			if (ids == null) {
+				m_turns[k].apply(m_size, m_x, m_y, m_z);
+				Arrays.fill(m_stale, 0, m_size, true);
+				all = true;
+			}
+			else {
+				m_turns[k].apply(ids, ids.length, m_x, m_y, m_z);
+				for (int i = 0; i < ids.length; i++) {
+					m_stale[ids[i]] = true;
+				}
+			}
+		}
+		m_anyStale = true;
+		if (m_listeners.length > 0) {
+			if (all) {
+				for (int i = 0; i < m_size; i++) {
+					moved(i);
+				}
+			}
+			else {
+				for (int k = 0; k < n; k++) {
+					int[] ids = m_turnIds[k];
+					for (int i = 0; i < ids.length; i++) {
+						moved(ids[i]);
+					}
+				}
+			}
+		}
+		Arrays.fill(m_turnIds, 0, n, null);
+		Arrays.fill(m_turns, 0, n, null);
+	}
+
+	/**
+	 * Private methods.
+	 */
+
+	// Tells the listeners anchor id has moved.
+	private void moved(int id) {
+		for (int i = 0; i < m_listeners.length; i++) {
+			m_listeners[i].moved(id);
+		}
+	}
+
+	// Queues a rotation of the given anchors (null for all of them), folding
+	// it into the last one if that turns the same anchors.
+	private void turn(int[] ids, Rotation r) {
+		if (r.identity()) {
+			return;
+		}
+		if (m_pending > 0) {
+			int[] last = m_turnIds[m_pending - 1];
+			if (last == ids || (last != null && ids != null && Arrays.equals(last, ids))) {
+				m_turns[m_pending - 1] = m_turns[m_pending - 1].then(r);
+				return;
+			}
+		}
+		if (m_pending == m_turns.length) {
+			m_turns = Arrays.copyOf(m_turns, m_pending * 2);
+			m_turnIds = Arrays.copyOf(m_turnIds, m_pending * 2);
+		}
+		m_turnIds[m_pending] = ids;
+		m_turns[m_pending] = r;
+		m_pending++;
+	}
+
+	// Brings the angles of anchor id up to date with its rectangular
+	// coordinates, if they've fallen behind.
+	private void angles(int id) {
+		if (! m_stale[id]) {
+			return;
+		}
+		m_theta[id] = Geodesic.theta(m_z[id]);
+		m_phi[id] = Geodesic.phi(m_x[id], m_y[id]);
+		m_stale[id] = false;
+	}
+
+	// Brings every anchor's angles up to date.
+	private void angles() {
+		if (! m_anyStale) {
+			return;
+		}
+		for (int i = 0; i < m_size; i++) {
+			angles(i);
+		}
+		m_anyStale = false;
+	}
+
+	// Normalizes the angles and refreshes the cached rectangular coordinates.
+	private void place(int id, double theta, double phi) {
+		// Borrow Point's normalization so we only have one convention.
+		double t = Point.normalTheta(theta);
+		double p = Point.normalPhi(theta, phi);
+		double st = Math.sin(t);
+		m_theta[id] = t;
+		m_phi[id] = p;
+		m_stale[id] = false;
+		m_x[id] = Math.cos(p) * st;
+		m_y[id] = Math.sin(p) * st;
+		m_z[id] = Math.cos(t);
+	}
+
+	// Grows every array to hold at least the given number of anchors.
+	private void grow(int capacity) {
+		int n = Math.max(capacity, m_theta.length * 2);
+		m_theta = Arrays.copyOf(m_theta, n);
+		m_phi = Arrays.copyOf(m_phi, n);
+		m_mass = Arrays.copyOf(m_mass, n);
+		m_x = Arrays.copyOf(m_x, n);
+		m_y = Arrays.copyOf(m_y, n);
+		m_z = Arrays.copyOf(m_z, n);
+		m_stale = Arrays.copyOf(m_stale, n);
+		m_views = Arrays.copyOf(m_views, n);
+	}
+
+	// Makes sure an id refers to an anchor in the store.
+	private void check(int id) {
+		if (id < 0 || id >= m_size) {
+			throw new IndexOutOfBoundsException("No anchor with id " + id);
+		}
+	}
+}
@@ -0,0 +1,299 @@
+package blackhole;
+
+import java.util.Arrays;
+
+/**
+ * Remembers what every rod looks like on screen, so it only has to be worked
+ * out again when it changes.
+ *
+ * A rod is an arc of a great circle, which comes out on screen as a piece of
+ * an ellipse. We draw it as a polyline, cut finely enough that it's never
+ * more than a tolerance (half a pixel, by default) away from the true curve:
+ * each piece is halved until the middle of the arc lands that close to the
+ * middle of the straight line. Short and edge-on arcs come out as a line or
+ * two, and long ones get as many pieces as they need.
+ *
+ * The points (pixel x, y pairs) are kept in float arrays by rod id, along
+ * with where the rod's ends were when they were worked out. The slack is
+ * split in two: a rod is only redone when one of its ends has moved far
+ * enough to shift it on screen by more than half the slack, or the camera
+ * has moved enough to shift anything on the sphere by more than the other
+ * half (or its id has been reused for a different rod). Small moves are
+ * left to build up against where we last worked things out, and the two
+ * halves add up, so what's drawn is never further than the tolerance plus
+ * the slack from where the rod really is.
+ *
+ * @author Rory
+ *
+ */
+public class ArcCache {
+
+	// Default tolerance and slack, in pixels.
+	private static final double DEFAULT_TOLERANCE = 0.5;
+	private static final double DEFAULT_SLACK = 0.5;
+
+	// Most times a piece can be halved: up to 1024 pieces a rod.
+	private static final int MAX_DEPTH = 10;
+
+	// Arcs longer than this always get halved, however they look. A piece of
+	// an ellipse this short can't bend back on itself and hide its middle.
+	private static final double LONGEST = Math.PI / 4.0;
+
+	private final double m_tolerance;
+	private final double m_slack;
+
+	// The view everything was worked out for, and a count that goes up each
+	// time that changes enough to throw everything away.
+	private Camera m_camera;
+	private int m_width;
+	private int m_height;
+	private double m_radius;
+	private int m_epoch;
+
+	// For each rod id: its points and how many there are, the view they
+	// were worked out for, which anchors it joined and where they were.
+	private float[][] m_points;
+	private int[] m_count;
+	private int[] m_seen;
+	private int[] m_head;
+	private int[] m_tail;
+	private double[] m_ends;
+
+	// How many rods have been worked out (not just looked up) so far.
+	private long m_work;
+
+	// Scratch for projecting one point.
+	private final double[] m_p;
+
+	/**
+	 * Constructors
+	 */
+
+	// Default constructor: half a pixel of tolerance and slack.
+	public ArcCache() {
+		this(DEFAULT_TOLERANCE, DEFAULT_SLACK);
+	}
+
+	public ArcCache(double tolerance, double slack) {
+		if (tolerance <= 0 || slack < 0) {
+			throw new IllegalArgumentException("Bad tolerance or slack: " + tolerance + ", " + slack);
+		}
+		m_tolerance = tolerance;
+		m_slack = slack;
+		m_epoch = 0;
+		m_points = new float[0][];
+		m_count = new int[0];
+		m_seen = new int[0];
+		m_head = new int[0];
+		m_tail = new int[0];
+		m_ends = new double[0];
+		m_p = new double[3];
+	}
+
+	/**
+	 * Accessors
+	 */
+
+	// The points of the rod with the given id (x, y, x, y, ...), as of the
+	// last call to arc() for it. Only the first 2 * count(id) mean anything.
+	public float[] points(int id) {
+		return m_points[id];
+	}
+
+	public int count(int id) {
+		return m_count[id];
+	}
+
+	// Number of rods worked out from scratch so far.
+	public long work() {
+		return m_work;
+	}
+
+	/**
+	 * Mutators
+	 */
+
+	// Call before looking up any rods for a frame with the given camera and
+	// screen size. Forgets everything if the view has moved too far.
+	public void view(Camera camera, int width, int height) {
+		double r = camera.radius(width, height);
+		if (m_camera != null && camera != m_camera) {
+			// Turning moves nothing on the sphere further than the radius
+			// times the angle, and resizing moves it by at most how far the
+			// middle and the edge of the sphere move.
+			double angle = m_camera.orientation().inverse().then(camera.orientation()).angle();
+			double shift = 0.5 * (Math.abs(width - m_width) + Math.abs(height - m_height))
+					+ Math.abs(r - m_radius) + r * angle;
+			if (shift <= 0.5 * m_slack) {
+				return;
+			}
+		}
+		else if (m_camera != null && width == m_width && height == m_height) {
+			return;
+		}
+		m_camera = camera;
+		m_width = width;
+		m_height = height;
+		m_radius = r;
+		m_epoch++;
+	}
+
+	// Makes sure rod k of the scene is up to date, and returns its id. The
+	// points are then in points(id).
+	public int arc(Scene scene, int k) {
+		int id = scene.rodId(k);
+		if (id >= m_count.length) {
+			grow(Math.max(id + 1, 2 * m_count.length));
+		}
+		int a = scene.head(k);
+		int b = scene.tail(k);
+		double ax = scene.x(a), ay = scene.y(a), az = scene.z(a);
+		double bx = scene.x(b), by = scene.y(b), bz = scene.z(b);
+		int e = 6 * id;
+		if (m_seen[id] == m_epoch && m_head[id] == a && m_tail[id] == b) {
+			double[] p = m_ends;
+			double da = (ax - p[e]) * (ax - p[e]) + (ay - p[e + 1]) * (ay - p[e + 1]) + (az - p[e + 2]) * (az - p[e + 2]);
+			double db = (bx - p[e + 3]) * (bx - p[e + 3]) + (by - p[e + 4]) * (by - p[e + 4]) + (bz - p[e + 5]) * (bz - p[e + 5]);
+			// Nothing on screen moves further than the radius times the
+			// distance its point moved, and the camera may have left the
+			// radius up to half the slack bigger than it was.
+			double limit = 0.5 * m_slack / (m_radius + 0.5 * m_slack);
+			if (da <= limit * limit && db <= limit * limit) {
+				return id;
+			}
+		}
+		m_seen[id] = m_epoch;
+		m_head[id] = a;
+		m_tail[id] = b;
+		m_ends[e] = ax;
+		m_ends[e + 1] = ay;
+		m_ends[e + 2] = az;
+		m_ends[e + 3] = bx;
+		m_ends[e + 4] = by;
+		m_ends[e + 5] = bz;
+		tessellate(id, ax, ay, az, bx, by, bz);
+		m_work++;
+		return id;
+	}
+
+	/**
+	 * Private methods.
+	 */
+
+	// Works out the points for rod id, from a to b.
+	private void tessellate(int id, double ax, double ay, double az,
+			double bx, double by, double bz) {
+		m_count[id] = 0;
+		// The arc is a cos t + w sin t for t from 0 to its length, with w at
+		// right angles to a in the plane of the circle.
+		double d = ax*bx + ay*by + az*bz;
+		double wx = bx - d * ax;
+		double wy = by - d * ay;
+		double wz = bz - d * az;
+		double len = Math.sqrt(wx*wx + wy*wy + wz*wz);
+		double angle = Math.atan2(len, d);
+		if (len <= Geodesic.EPSILON) {
+			// The same point, or directly across (which has no one arc):
+			// just the two ends.
+			wx = wy = wz = 0;
+			angle = 0;
+		}
+		else {
+			wx /= len;
+			wy /= len;
+			wz /= len;
+		}
+
+		// Only the part on our side of the sphere. How far towards us the
+		// point at t is comes to A cos t + B sin t, or R cos(t - f), which is
+		// positive for t within a right angle of f.
+		m_camera.toward(m_p, 0);
+		double va = m_p[0] * ax + m_p[1] * ay + m_p[2] * az;
+		double vw = m_p[0] * wx + m_p[1] * wy + m_p[2] * wz;
+		double t0 = 0;
+		double t1 = angle;
+		if (vw != 0 || va < 0) {
+			double f = Math.atan2(vw, va);
+			// The arc is no more than half a circle, and so is the part we can
+			// see, so they overlap in one piece at most (give or take the
+			// ends just touching).
+			double lo = f - 0.5 * Math.PI;
+			if (lo + 2.0 * Math.PI <= angle) {
+				lo += 2.0 * Math.PI;
+			}
+			else if (lo + Math.PI < 0) {
+				lo += 2.0 * Math.PI;
+			}
+			t0 = Math.max(0, lo);
+			t1 = Math.min(angle, lo + Math.PI);
+			if (t0 > t1) {
+				return;
+			}
+		}
+		double sx = point(ax, ay, az, wx, wy, wz, t0);
+		double sy = m_p[1];
+		add(id, sx, sy);
+		double ex = point(ax, ay, az, wx, wy, wz, t1);
+		double ey = m_p[1];
+		if (t1 > t0) {
+			split(id, ax, ay, az, wx, wy, wz, t0, t1, sx, sy, ex, ey, 0);
+		}
+		add(id, ex, ey);
+	}
+
+	// Projects the point at t along the arc a cos t + w sin t into m_p, and
+	// returns its x.
+	private double point(double ax, double ay, double az, double wx, double wy, double wz,
+			double t) {
+		double c = Math.cos(t);
+		double s = Math.sin(t);
+		m_camera.project(ax * c + wx * s, ay * c + wy * s, az * c + wz * s, m_width, m_height, m_p, 0);
+		return m_p[0];
+	}
+
+	// Adds the points strictly between t0 and t1 (which land at s and e) to
+	// rod id's list, halving until the middle is close enough.
+	private void split(int id, double ax, double ay, double az, double wx, double wy, double wz,
+			double t0, double t1, double sx, double sy, double ex, double ey, int depth) {
+		if (depth >= MAX_DEPTH) {
+			return;
+		}
+		double t = 0.5 * (t0 + t1);
+		double mx = point(ax, ay, az, wx, wy, wz, t);
+		double my = m_p[1];
+		double dx = mx - 0.5 * (sx + ex);
+		double dy = my - 0.5 * (sy + ey);
+		if (t1 - t0 <= LONGEST && dx*dx + dy*dy <= m_tolerance * m_tolerance) {
+			return;
+		}
+		split(id, ax, ay, az, wx, wy, wz, t0, t, sx, sy, mx, my, depth + 1);
+		add(id, mx, my);
+		split(id, ax, ay, az, wx, wy, wz, t, t1, mx, my, ex, ey, depth + 1);
+	}
+
+	// Adds a point to rod id's list.
+	private void add(int id, double x, double y) {
+		float[] p = m_points[id];
+		int n = 2 * m_count[id];
+		if (p == null || p.length < n + 2) {
+			p = (p == null) ? new float[8] : Arrays.copyOf(p, 2 * p.length);
+			m_points[id] = p;
+		}
+		p[n] = (float) x;
+		p[n + 1] = (float) y;
+		m_count[id]++;
+	}
+
+	// Makes room for rods with ids up to n - 1.
+	private void grow(int n) {
+		int old = m_count.length;
+		m_points = Arrays.copyOf(m_points, n);
+		m_count = Arrays.copyOf(m_count, n);
+		m_seen = Arrays.copyOf(m_seen, n);
+		m_head = Arrays.copyOf(m_head, n);
+		m_tail = Arrays.copyOf(m_tail, n);
+		m_ends = Arrays.copyOf(m_ends, 6 * n);
+		// Nothing has been worked out for the new ones yet.
+		Arrays.fill(m_seen, old, n, -1);
+	}
+}
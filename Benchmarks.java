@@ -0,0 +1,446 @@
+package blackhole;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Times the hot paths, so we can see what they cost and notice when that
+ * gets worse.
+ *
+ * Each benchmark is an operation run over and over: making a Point,
+ * midpoint(), Rod.isExtensible(), finding a structure, a simulation step, and
+ * drawing a frame the way Display does. The ones that depend on a structure
+ * are run on chains, rings, meshes and random graphs of each size.
+ *
+ * solver/<topology>/<n>/p<k> is a step with the rods fixed by a
+ * ParallelConstraintSolver on a pool of k threads, for k = 1, 2, 4, ... up
+ * to the number of processors, to see how the solver scales. It's run on
+ * meshes, random graphs and graphs with hubs (a power law of rods per
+ * anchor). Hubs are where colouring costs: greedy colouring can take up to
+ * 2D - 1 colours when the busiest anchor has D rods, each colour is its own
+ * pass with a join at the end, and a hub of a few hundred rods means
+ * hundreds of passes each too small to split between threads.
+ *
+ * A benchmark is warmed up first (so the JIT has had its go), with the
+ * number of operations per batch doubled until a batch takes about a
+ * millisecond. Then batches are timed until the time's up, and after each
+ * batch a few more operations are timed one at a time. We report operations
+ * a second over the batches, the 50th, 90th and 99th percentiles of the
+ * operations timed one at a time, and how many bytes each operation
+ * allocated (if the JVM can tell us). Averaging over a batch would hide the
+ * odd slow operation, so the percentiles don't; what reading the clock costs
+ * is taken off each, but for operations of a few nanoseconds they're only as
+ * good as the clock.
+ *
+ * Usage:
+ *     Benchmarks [-quick] [-save file] [-compare file] [-threshold percent]
+ * -quick runs the smallest size only, for less time. -save writes the
+ * operations a second to a file, and -compare checks them against one,
+ * exiting with status 1 if anything has slowed down by more than the
+ * threshold (10% by default).
+ *
+ * @author Rory
+ *
+ */
+public class Benchmarks {
+
+	// Structure sizes, and how long to warm up and measure each benchmark
+	// for, in milliseconds.
+	private static final int[] SIZES = { 1000, 10000, 100000 };
+	private static final int[] QUICK_SIZES = { 1000 };
+	private static final long WARMUP = 500;
+	private static final long MEASURE = 2000;
+	private static final long QUICK_WARMUP = 100;
+	private static final long QUICK_MEASURE = 300;
+
+	// Operations timed one at a time after each batch.
+	private static final int SAMPLES = 16;
+
+	// How much slower (as a fraction) counts as a regression by default.
+	private static final double DEFAULT_THRESHOLD = 0.10;
+
+	// Shapes of structure.
+	public static final String[] TOPOLOGIES = { "chain", "ring", "mesh", "random" };
+
+	// Shapes the parallel solver is run on.
+	public static final String[] SOLVER_TOPOLOGIES = { "mesh", "random", "hubs" };
+
+	/**
+	 * A benchmark: run() is called with 0, 1, 2, ... and returns something
+	 * that depends on what it did, so the JIT can't throw the work away.
+	 */
+	public interface Case {
+		double run(int i);
+	}
+
+	/**
+	 * What a benchmark came to.
+	 */
+	public static final class Result {
+		public final String name;
+		public final long ops;
+		public final double opsPerSecond;
+		public final double p50;
+		public final double p90;
+		public final double p99;
+		public final double bytesPerOp;
+
+		Result(String name, long ops, double opsPerSecond, double p50, double p90, double p99, double bytesPerOp) {
+			this.name = name;
+			this.ops = ops;
+			this.opsPerSecond = opsPerSecond;
+			this.p50 = p50;
+			this.p90 = p90;
+			this.p99 = p99;
+			this.bytesPerOp = bytesPerOp;
+		}
+
+		// One line of the report. Times are in nanoseconds.
+		public String toString() {
+			return String.format("%-28s %14.1f %12.1f %12.1f %12.1f %10s", name, opsPerSecond, p50, p90, p99,
+					(bytesPerOp < 0) ? "?" : String.format("%.1f", bytesPerOp));
+		}
+	}
+
+	// Goes into every result, so nothing gets optimized out.
+	private static volatile double s_sink;
+
+	// How long to warm up and measure each benchmark for.
+	private final long m_warmup;
+	private final long m_measure;
+
+	/**
+	 * Constructors
+	 */
+
+	// Warms up and measures each benchmark for the given times, in
+	// milliseconds.
+	public Benchmarks(long warmup, long measure) {
+		m_warmup = warmup;
+		m_measure = measure;
+	}
+
+	/**
+	 * Benchmarking
+	 */
+
+	// Times one benchmark.
+	public Result measure(String name, Case c) {
+		// Warm up, finding a batch size that takes about a millisecond.
+		int batch = 1;
+		double sink = 0;
+		int i = 0;
+		long end = System.nanoTime() + m_warmup * 1000000L;
+		while (true) {
+			long t = System.nanoTime();
+			for (int k = 0; k < batch; k++) {
+				sink += c.run(i);
+				i = (i + 1) & Integer.MAX_VALUE;
+			}
+			long took = System.nanoTime() - t;
+			if (took < 1000000L && batch < (1 << 30)) {
+				batch *= 2;
+			}
+			else if (t + took >= end) {
+				break;
+			}
+		}
+
+		// Measure.
+		long clock = clockCost();
+		double[] single = new double[64 * SAMPLES];
+		int samples = 0;
+		int batches = 0;
+		long ops = 0;
+		long timed = 0;
+		long allocated = allocated();
+		long now = System.nanoTime();
+		end = now + m_measure * 1000000L;
+		while (now < end || batches == 0) {
+			long t = System.nanoTime();
+			for (int k = 0; k < batch; k++) {
+				sink += c.run(i);
+				i = (i + 1) & Integer.MAX_VALUE;
+			}
+			timed += System.nanoTime() - t;
+			ops += batch;
+			batches++;
+			if (samples + SAMPLES > single.length) {
+				single = Arrays.copyOf(single, 2 * single.length);
+			}
+			for (int k = 0; k < SAMPLES; k++) {
+				long t0 = System.nanoTime();
+				sink += c.run(i);
+				long t1 = System.nanoTime();
+				i = (i + 1) & Integer.MAX_VALUE;
+				single[samples++] = Math.max(0, t1 - t0 - clock);
+			}
+			now = System.nanoTime();
+		}
+		long after = allocated();
+		s_sink += sink;
+		Arrays.sort(single, 0, samples);
+		double bytes = (allocated < 0 || after < 0) ? -1 : (double) (after - allocated) / (ops + samples);
+		return new Result(name, ops, ops / (Math.max(1, timed) / 1.0e9),
+				percentile(single, samples, 0.50), percentile(single, samples, 0.90), percentile(single, samples, 0.99), bytes);
+	}
+
+	// Runs every benchmark at every size, printing results as they come.
+	public ArrayList<Result> runAll(int[] sizes) {
+		ArrayList<Result> results = new ArrayList<Result>();
+		System.out.println(String.format("%-28s %14s %12s %12s %12s %10s", "benchmark", "ops/s", "p50 ns", "p90 ns", "p99 ns", "B/op"));
+		for (int n : sizes) {
+			// Geometry doesn't care about the structure.
+			Random rand = new Random(n);
+			double[] theta = new double[n];
+			double[] phi = new double[n];
+			Point[] points = new Point[n];
+			for (int k = 0; k < n; k++) {
+				theta[k] = Math.acos(2.0 * rand.nextDouble() - 1.0);
+				phi[k] = 2.0 * Math.PI * rand.nextDouble();
+				points[k] = new Point(theta[k], phi[k]);
+			}
+			report(results, measure("point/" + n, i -> {
+				int k = i % n;
+				return new Point(theta[k], phi[k]).z();
+			}));
+			report(results, measure("midpoint/" + n, i -> {
+				int k = i % n;
+				return points[k].midpoint(points[(k + 1) % n]).z();
+			}));
+
+			for (String topology : TOPOLOGIES) {
+				String tag = topology + "/" + n;
+				AnchorStore store = structure(topology, n, n);
+				RodGraph graph = store.graph();
+				int m = graph.rodCount();
+				// Meshes come out a little smaller than asked for.
+				int size = store.size();
+				report(results, measure("isExtensible/" + tag, i -> {
+					return graph.rod(i % m).isExtensible() ? 1 : 0;
+				}));
+				report(results, measure("component/" + tag, i -> {
+					return graph.component(i % size).length;
+				}));
+				Simulation sim = new Simulation(store, 0.001);
+				for (int k = 0; k < size; k += 7) {
+					sim.setVelocity(k, 0.01, 0.02, 0.03);
+				}
+				report(results, measure("step/" + tag, i -> {
+					sim.step();
+					return sim.time();
+				}));
+
+				// What Display does for a frame: the render thread copies the
+				// store and draws it, taking turns with three scenes as
+				// RenderLoop does.
+				Scene[] scenes = { new Scene(), new Scene(), new Scene() };
+				Renderer renderer = new Renderer();
+				BufferedImage image = new BufferedImage(600, 600, BufferedImage.TYPE_INT_RGB);
+				Graphics2D g = image.createGraphics();
+				Camera camera = new Camera();
+				report(results, measure("paint/" + tag, i -> {
+					Scene scene = scenes[i % 3];
+					scene.capture(store);
+					renderer.draw(scene, camera, g, 600, 600);
+					return renderer.dots();
+				}));
+				g.dispose();
+			}
+
+			for (String topology : SOLVER_TOPOLOGIES) {
+				for (int k : poolSizes()) {
+					AnchorStore store = structure(topology, n, n);
+					ForkJoinPool pool = new ForkJoinPool(k);
+					Simulation sim = new Simulation(store, 0.001);
+					sim.setSolver(new ParallelConstraintSolver(pool));
+					for (int j = 0; j < store.size(); j += 7) {
+						sim.setVelocity(j, 0.01, 0.02, 0.03);
+					}
+					report(results, measure("solver/" + topology + "/" + n + "/p" + k, i -> {
+						sim.step();
+						return sim.time();
+					}));
+					pool.shutdown();
+				}
+			}
+		}
+		return results;
+	}
+
+	// Thread counts to run the solver with: powers of two up to the number
+	// of processors, and that.
+	public static int[] poolSizes() {
+		int cores = Runtime.getRuntime().availableProcessors();
+		int[] sizes = new int[0];
+		for (int k = 1; ; k *= 2) {
+			sizes = Arrays.copyOf(sizes, sizes.length + 1);
+			sizes[sizes.length - 1] = Math.min(k, cores);
+			if (k >= cores) {
+				return sizes;
+			}
+		}
+	}
+
+	/**
+	 * Structures
+	 */
+
+	// Builds about n anchors in the given shape (see Generator):
+	//     chain   a spiral from pole to pole, each anchor joined to the next
+	//     ring    the same, with the ends joined
+	//     mesh    a square-ish lattice, not braced
+	//     random  scattered anywhere, each wanting four rods
+	//     hubs    scattered anywhere, wanting two rods or more on a power law,
+	//             so a few want hundreds
+	public static AnchorStore structure(String topology, int n, long seed) {
+		if (topology.equals("chain") || topology.equals("ring")) {
+			return Generator.chain(n, topology.equals("ring"));
+		}
+		if (topology.equals("mesh")) {
+			int cols = (int) Math.ceil(Math.sqrt(n));
+			return Generator.lattice(Math.max(1, n / cols), cols, false);
+		}
+		if (topology.equals("random")) {
+			return Generator.random(n, Generator.Degrees.fixed(4), seed);
+		}
+		if (topology.equals("hubs")) {
+			return Generator.random(n, Generator.Degrees.powerLaw(2.2, 2, Math.max(2, n / 10)), seed);
+		}
+		throw new IllegalArgumentException("No such topology: " + topology);
+	}
+
+	/**
+	 * Baselines
+	 */
+
+	// Writes each result's operations a second to a file.
+	public static void save(ArrayList<Result> results, File file) throws IOException {
+		try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+			for (Result r : results) {
+				out.println(r.name + "\t" + r.opsPerSecond);
+			}
+		}
+	}
+
+	// Reads what save() wrote.
+	public static Map<String, Double> load(File file) throws IOException {
+		Map<String, Double> base = new LinkedHashMap<String, Double>();
+		try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				if (tab > 0) {
+					base.put(line.substring(0, tab), Double.parseDouble(line.substring(tab + 1)));
+				}
+			}
+		}
+		return base;
+	}
+
+	// The results that are more than threshold (a fraction) slower than the
+	// baseline, described. Ones the baseline doesn't have are left out.
+	public static ArrayList<String> regressions(Map<String, Double> base, ArrayList<Result> results, double threshold) {
+		ArrayList<String> slower = new ArrayList<String>();
+		for (Result r : results) {
+			Double was = base.get(r.name);
+			if (was != null && r.opsPerSecond < was * (1.0 - threshold)) {
+				slower.add(String.format("%s: %.1f ops/s, was %.1f (%.1f%% slower)", r.name, r.opsPerSecond, was,
+						100.0 * (1.0 - r.opsPerSecond / was)));
+			}
+		}
+		return slower;
+	}
+
+	public static void main(String[] args) throws IOException {
+		boolean quick = false;
+		File save = null;
+		File compare = null;
+		double threshold = DEFAULT_THRESHOLD;
+		for (int a = 0; a < args.length; a++) {
+			if (args[a].equals("-quick")) {
+				quick = true;
+			}
+			else if (args[a].equals("-save") && a + 1 < args.length) {
+				save = new File(args[++a]);
+			}
+			else if (args[a].equals("-compare") && a + 1 < args.length) {
+				compare = new File(args[++a]);
+			}
+			else if (args[a].equals("-threshold") && a + 1 < args.length) {
+				threshold = Double.parseDouble(args[++a]) / 100.0;
+			}
+			else {
+				System.err.println("Usage: Benchmarks [-quick] [-save file] [-compare file] [-threshold percent]");
+				System.exit(2);
+			}
+		}
+		Benchmarks b = quick ? new Benchmarks(QUICK_WARMUP, QUICK_MEASURE) : new Benchmarks(WARMUP, MEASURE);
+		ArrayList<Result> results = b.runAll(quick ? QUICK_SIZES : SIZES);
+		if (save != null) {
+			save(results, save);
+		}
+		if (compare != null) {
+			ArrayList<String> slower = regressions(load(compare), results, threshold);
+			for (String s : slower) {
+				System.out.println("REGRESSED " + s);
+			}
+			if (! slower.isEmpty()) {
+				System.exit(1);
+			}
+			System.out.println("No regressions against " + compare);
+		}
+	}
+
+	/**
+	 * Private methods.
+	 */
+
+	private static void report(ArrayList<Result> results, Result r) {
+		results.add(r);
+		System.out.println(r);
+	}
+
+	// The p-th fraction of the first count sorted values.
+	private static double percentile(double[] sorted, int count, double p) {
+		int k = (int) Math.ceil(p * count) - 1;
+		return sorted[Math.max(0, Math.min(count - 1, k))];
+	}
+
+	// What reading the clock twice costs, in nanoseconds: the least of a few
+	// goes, since anything more than that is something else getting in.
+	private static long clockCost() {
+		long least = Long.MAX_VALUE;
+		for (int k = 0; k < 1000; k++) {
+			long t0 = System.nanoTime();
+			long t1 = System.nanoTime();
+			least = Math.min(least, t1 - t0);
+		}
+		return least;
+	}
+
+	// Bytes this thread has allocated so far, or -1 if the JVM won't say.
+	private static long allocated() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) bean;
+			if (sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled()) {
+				return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+}
@@ -1,22 +1,98 @@
 package blackhole;
 
+import java.io.File;
+import java.io.IOException;
+
 import javax.swing.JFrame;
 
 public class BlackHole extends JFrame {
-	
-	public BlackHole() {
-		add(new Display());
+
+	// Time step for runs that don't come with one, and what the window runs
+	// if it isn't told.
+	private static final double DT = 0.01;
+	private static final String DEFAULT_INPUT = "random:1000";
+
+	// Opens a window showing the simulation as it runs.
+	public BlackHole(Simulation sim) {
+		add(new Display(sim));
 		setTitle("Black Hole Thingy");
 		setDefaultCloseOperation(EXIT_ON_CLOSE);
 		setSize(600, 600);
 		setLocationRelativeTo(null);
 		setVisible(true);
 	}
-	
-	public static void main(String[] args) {
-		
-		new BlackHole();
-		TestSuite t = new TestSuite();
-		t.testAll();
+
+	// With no arguments, opens the window on a random structure and runs the
+	// tests. With one, the input, opens the window on that instead. With
+	//     -headless dir input [width height frames every]
+	// writes a run of input out as PNG files in dir instead, without a
+	// window: that many frames (default 100) of width by height (default 600
+	// by 600), a frame every so many steps (default 1). The input is anything
+	// open() takes.
+	public static void main(String[] args) throws IOException {
+		if (args.length > 0 && args[0].equals("-headless")) {
+			if (args.length != 3 && args.length != 7) {
+				System.err.println("Usage: BlackHole -headless dir input [width height frames every]");
+				System.err.println("where input is a scene file, a checkpoint, or shape:anchors (e.g. dome:1000)");
+				System.exit(1);
+			}
+			int width = (args.length > 3) ? Integer.parseInt(args[3]) : 600;
+			int height = (args.length > 3) ? Integer.parseInt(args[4]) : 600;
+			int frames = (args.length > 3) ? Integer.parseInt(args[5]) : 100;
+			int every = (args.length > 3) ? Integer.parseInt(args[6]) : 1;
+			headless(open(args[2]), new File(args[1]), width, height, frames, every);
+			return;
+		}
+
+		new BlackHole(open((args.length > 0) ? args[0] : DEFAULT_INPUT));
+		if (args.length == 0) {
+			TestSuite t = new TestSuite();
+			t.testAll();
+		}
+	}
+
+	// Something to run: a scene file (see SceneFile) or a checkpoint (see
+	// Checkpointer), or shape:anchors for a structure made up on the spot
+	// (see Generator.shape()). Everything pulls on everything else, with
+	// the pull scaled down by the number of anchors so that big structures
+	// don't fly apart.
+	static Simulation open(String input) throws IOException {
+		File file = new File(input);
+		Simulation sim;
+		if (file.isFile()) {
+			if (Checkpointer.isCheckpoint(file)) {
+				sim = Checkpointer.restore(file);
+			}
+			else {
+				try (SceneFile in = new SceneFile(file)) {
+					sim = new Simulation(in.load(), DT);
+				}
+			}
+		}
+		else {
+			int colon = input.indexOf(':');
+			if (colon < 0) {
+				throw new IOException("No such file, and not shape:anchors: " + input);
+			}
+			int n;
+			try {
+				n = Integer.parseInt(input.substring(colon + 1));
+			}
+			catch (NumberFormatException e) {
+				throw new IOException("Bad anchor count in " + input, e);
+			}
+			sim = new Simulation(Generator.shape(input.substring(0, colon), n), DT);
+		}
+		sim.addForce(new Gravity(1.0 / Math.max(1, sim.store().size())));
+		return sim;
+	}
+
+	// Runs what the window would show, saving frames instead.
+	private static void headless(Simulation sim, File dir, int width, int height, int frames, int every) throws IOException {
+		FrameExporter out = new FrameExporter(dir, width, height);
+		long start = System.nanoTime();
+		out.record(sim, frames, every);
+		double seconds = (System.nanoTime() - start) / 1.0e9;
+		System.out.printf("Wrote %d frames to %s in %.2f s%n", out.written(), dir, seconds);
 	}
 }
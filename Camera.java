@@ -0,0 +1,114 @@
+package blackhole;
+
+/**
+ * Where we're looking at the sphere from.
+ *
+ * The view is straight down onto the sphere from far away (no perspective),
+ * so a point's place on the screen is just the first two of its coordinates
+ * once the sphere has been turned to face us, and the third says whether
+ * it's on the near side (positive) or the far side. The unturned camera
+ * looks down onto the north pole with the x-axis to the right.
+ *
+ * At a zoom of 1 the sphere fills half the smaller side of the screen (the
+ * oval Display has always drawn). Cameras are immutable; turn() and zoom()
+ * make new ones, so a renderer can tell the view has changed by comparing
+ * them.
+ *
+ * @author Rory
+ *
+ */
+public final class Camera {
+
+	// Sphere's radius as a fraction of the smaller side of the screen, at a
+	// zoom of 1.
+	private static final double SIZE = 0.25;
+
+	// How the sphere is turned to face us, its matrix, and the zoom.
+	private final Rotation m_orientation;
+	private final double[] m_m;
+	private final double m_zoom;
+
+	/**
+	 * Constructors
+	 */
+
+	// Default constructor: looking down onto the north pole.
+	public Camera() {
+		this(Rotation.IDENTITY, 1.0);
+	}
+
+	public Camera(Rotation orientation, double zoom) {
+		m_orientation = orientation;
+		m_m = new double[9];
+		orientation.matrix(m_m);
+		m_zoom = zoom;
+	}
+
+	// A camera looking straight down onto the given point.
+	public static Camera facing(Point p, double zoom) {
+		Rotation r = Rotation.between(p, new Point(0, 0, 1));
+		return new Camera(r, zoom);
+	}
+
+	/**
+	 * Accessors
+	 */
+
+	public Rotation orientation() {
+		return m_orientation;
+	}
+
+	public double zoom() {
+		return m_zoom;
+	}
+
+	// Radius of the sphere on a screen of the given size, in pixels.
+	public double radius(int width, int height) {
+		return SIZE * m_zoom * Math.min(width, height);
+	}
+
+	// Which way the viewer is from the centre of the sphere, in the sphere's
+	// own coordinates, into out at o. Points with a positive dot product
+	// with this are on the near side.
+	public void toward(double[] out, int o) {
+		// The third row of the matrix, as the inverse takes (0, 0, 1) back.
+		out[o] = m_m[6];
+		out[o + 1] = m_m[7];
+		out[o + 2] = m_m[8];
+	}
+
+	/**
+	 * Projection
+	 */
+
+	// Puts where (x, y, z) ends up on a screen of the given size into out at
+	// o: the pixel across, the pixel down, and how far it is towards us (in
+	// [-1, 1] for points on the sphere).
+	public void project(double x, double y, double z, int width, int height,
+			double[] out, int o) {
+		double r = radius(width, height);
+		double[] m = m_m;
+		out[o] = 0.5 * width + r * (m[0] * x + m[1] * y + m[2] * z);
+		out[o + 1] = 0.5 * height - r * (m[3] * x + m[4] * y + m[5] * z);
+		out[o + 2] = m[6] * x + m[7] * y + m[8] * z;
+	}
+
+	/**
+	 * Moving the camera
+	 */
+
+	// This camera with the sphere given a further turn.
+	public Camera turn(Rotation r) {
+		return new Camera(m_orientation.then(r), m_zoom);
+	}
+
+	// This camera, zoomed in (or out) by the given factor.
+	public Camera zoom(double factor) {
+		return new Camera(m_orientation, m_zoom * factor);
+	}
+
+	@Override
+	public String toString() {
+		return "Camera(" + m_orientation + ", " + m_zoom + ")";
+	}
+}
@@ -0,0 +1,401 @@
+package blackhole;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Saves everything a Simulation needs to carry on from where it is, without
+ * holding it up, and starts one again from a save.
+ *
+ * save() is called between steps. All it does there is copy the state into a
+ * spare snapshot (positions, velocities, masses, which anchors every rod
+ * joins, whether it's extensible and its rest length, and the step count,
+ * time and step length), which is a few array copies and takes less time
+ * than a step. The snapshot is then written out on a thread of our own while
+ * the simulation gets on with it. There are two snapshots, so one can be
+ * filled while the other is written. If both are busy (saves are coming
+ * faster than the disk can take them), save() skips this one rather than
+ * wait.
+ *
+ * A checkpoint is written to a temporary file next to the real one and then
+ * moved over it, so a crash part way through leaves the last checkpoint as
+ * it was.
+ *
+ * The file (little-endian) is:
+ *     magic "BHCP", version, anchors, rods, steps, time, dt, rigid (44 bytes)
+ *     anchors  x, y, z, mass, vx, vy, vz as doubles               (56 bytes each)
+ *     rods     head id, tail id, flags as ints, rest length       (20 bytes each)
+ * with rods numbered in order of id, without gaps, and the only flag being
+ * SceneFile.EXTENSIBLE.
+ *
+ * restore() builds the store in one go with the saved extensibility (see
+ * StructureBuilder), so no rod's extensibility has to be worked out again.
+ * Forces and the choice of solver aren't saved (they're code, not state), so
+ * they have to be added again to the restored simulation.
+ *
+ * @author Rory
+ *
+ */
+public class Checkpointer implements Closeable {
+
+	// Version written and the newest we can read.
+	public static final int VERSION = 1;
+
+	// "BHCP", and the sizes of the header and records.
+	private static final int MAGIC = 0x50434842;
+	private static final int HEADER = 44;
+	private static final int ANCHOR = 56;
+	private static final int ROD = 20;
+
+	// Snapshots free to fill, and the thread that writes them out.
+	private final Snapshot[] m_free;
+	private int m_freeCount;
+	private final ExecutorService m_writer;
+
+	// The last write we handed to the writer, so we can wait for it, and
+	// the first thing that went wrong writing one.
+	private Future<?> m_last;
+	private IOException m_failure;
+
+	// Checkpoints written, and skipped because both snapshots were busy.
+	private int m_saved;
+	private int m_skipped;
+
+	/**
+	 * Constructors
+	 */
+
+	public Checkpointer() {
+		m_free = new Snapshot[] { new Snapshot(), new Snapshot() };
+		m_freeCount = 2;
+		m_writer = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "Checkpointer");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Accessors
+	 */
+
+	// Checkpoints handed to the writer so far.
+	public synchronized int saved() {
+		return m_saved;
+	}
+
+	// Checkpoints skipped because the writer was behind.
+	public synchronized int skipped() {
+		return m_skipped;
+	}
+
+	/**
+	 * Mutators
+	 */
+
+	// Copies the simulation's state, and writes it to the given file in the
+	// background. Call between steps, on the thread running the simulation.
+	// Returns false (and saves nothing) if the last two haven't been
+	// written yet. Any problem writing an earlier one is thrown from here.
+	public boolean save(Simulation sim, File file) throws IOException {
+		// Before taking a snapshot, so a failure is thrown every time rather
+		// than holding on to one.
+		check();
+		Snapshot s;
+		synchronized (this) {
+			if (m_freeCount == 0) {
+				m_skipped++;
+				return false;
+			}
+			s = m_free[--m_freeCount];
+		}
+		try {
+			s.capture(sim);
+		}
+		catch (RuntimeException e) {
+			synchronized (this) {
+				m_free[m_freeCount++] = s;
+			}
+			throw e;
+		}
+		synchronized (this) {
+			m_saved++;
+			m_last = m_writer.submit(() -> {
+				try {
+					s.write(file);
+				}
+				catch (IOException e) {
+					synchronized (this) {
+						if (m_failure == null) {
+							m_failure = e;
+						}
+					}
+				}
+				finally {
+					synchronized (this) {
+						m_free[m_freeCount++] = s;
+					}
+				}
+			});
+		}
+		return true;
+	}
+
+	// Waits for every checkpoint handed over so far to be written. Throws
+	// the problem if one couldn't be.
+	public void await() throws IOException {
+		Future<?> last;
+		synchronized (this) {
+			last = m_last;
+		}
+		if (last != null) {
+			// The writer goes in order, so once the last one is done they all
+			// are.
+			try {
+				last.get();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted waiting for checkpoint", e);
+			}
+			catch (ExecutionException e) {
+				throw new IllegalStateException("Checkpoint writer failed", e.getCause());
+			}
+		}
+		check();
+	}
+
+	// Waits for any checkpoints still being written, and stops the writer.
+	public void close() throws IOException {
+		try {
+			await();
+		}
+		finally {
+			m_writer.shutdown();
+		}
+	}
+
+	// Whether the given file looks like a checkpoint (starts with the
+	// magic number), without reading any more of it.
+	public static boolean isCheckpoint(File file) throws IOException {
+		try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer b = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+			while (b.hasRemaining() && in.read(b) >= 0) {
+			}
+			return ! b.hasRemaining() && b.getInt(0) == MAGIC;
+		}
+	}
+
+	// Starts a simulation again from the given checkpoint.
+	public static Simulation restore(File file) throws IOException {
+		try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = in.size();
+			ByteBuffer b = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+			while (b.hasRemaining() && in.read(b) >= 0) {
+			}
+			if (b.hasRemaining() || b.getInt(0) != MAGIC) {
+				throw new IOException(file + " isn't a checkpoint");
+			}
+			int version = b.getInt(4);
+			if (version < 1 || version > VERSION) {
+				throw new IOException(file + " is version " + version + ", can only read up to " + VERSION);
+			}
+			int n = b.getInt(8);
+			int m = b.getInt(12);
+			long rodBase = HEADER + (long) ANCHOR * n;
+			if (n < 0 || m < 0 || size != rodBase + (long) ROD * m) {
+				throw new IOException(file + " is the wrong size for " + n + " anchors and " + m + " rods");
+			}
+			long steps = b.getLong(16);
+			double time = b.getDouble(24);
+			double dt = b.getDouble(32);
+			boolean rigid = b.getInt(40) != 0;
+
+			// The tables are mapped a piece at a time (see SceneFile), so a
+			// checkpoint can be bigger than 2GB.
+			ByteBuffer[] anchors = SceneFile.map(in, HEADER, n, ANCHOR);
+			ByteBuffer[] rods = SceneFile.map(in, rodBase, m, ROD);
+
+			// The structure, with the saved extensibility, then where
+			// everything is exactly (theta and phi would round).
+			StructureBuilder builder = new StructureBuilder(n, m);
+			for (int i = 0; i < n; i++) {
+				builder.anchor(0, 0, anchors[i >>> SceneFile.CHUNK_BITS].getDouble(SceneFile.offset(i, ANCHOR) + 24));
+			}
+			boolean[] extensible = new boolean[m];
+			for (int k = 0; k < m; k++) {
+				ByteBuffer r = rods[k >>> SceneFile.CHUNK_BITS];
+				int p = SceneFile.offset(k, ROD);
+				try {
+					builder.rod(r.getInt(p), r.getInt(p + 4));
+				}
+				catch (IndexOutOfBoundsException e) {
+					throw new IOException("Rod " + k + " is broken", e);
+				}
+				extensible[k] = (r.getInt(p + 8) & SceneFile.EXTENSIBLE) != 0;
+			}
+			AnchorStore store = builder.build(extensible);
+			for (int i = 0; i < n; i++) {
+				ByteBuffer a = anchors[i >>> SceneFile.CHUNK_BITS];
+				int p = SceneFile.offset(i, ANCHOR);
+				store.moveTo(i, a.getDouble(p), a.getDouble(p + 8), a.getDouble(p + 16));
+			}
+
+			// Then the motion.
+			Simulation sim = new Simulation(store, dt);
+			double[] vx = sim.vxs();
+			double[] vy = sim.vys();
+			double[] vz = sim.vzs();
+			for (int i = 0; i < n; i++) {
+				ByteBuffer a = anchors[i >>> SceneFile.CHUNK_BITS];
+				int p = SceneFile.offset(i, ANCHOR);
+				vx[i] = a.getDouble(p + 32);
+				vy[i] = a.getDouble(p + 40);
+				vz[i] = a.getDouble(p + 48);
+			}
+			double[] rest = sim.restLengths();
+			for (int k = 0; k < m; k++) {
+				rest[k] = rods[k >>> SceneFile.CHUNK_BITS].getDouble(SceneFile.offset(k, ROD) + 12);
+			}
+			sim.setRigid(rigid);
+			sim.resume(steps, time);
+			return sim;
+		}
+	}
+
+	/**
+	 * Private methods.
+	 */
+
+	// Throws the first problem writing a checkpoint, if there's been one.
+	private void check() throws IOException {
+		IOException e;
+		synchronized (this) {
+			e = m_failure;
+		}
+		if (e != null) {
+			throw new IOException("Couldn't write checkpoint", e);
+		}
+	}
+
+	// Everything a checkpoint holds, in arrays that are kept from one save to
+	// the next.
+	private static final class Snapshot {
+		int anchors;
+		int rods;
+		long steps;
+		double time;
+		double dt;
+		boolean rigid;
+		double[] x = new double[0];
+		double[] y = new double[0];
+		double[] z = new double[0];
+		double[] mass = new double[0];
+		double[] vx = new double[0];
+		double[] vy = new double[0];
+		double[] vz = new double[0];
+		int[] head = new int[0];
+		int[] tail = new int[0];
+		boolean[] extensible = new boolean[0];
+		double[] rest = new double[0];
+
+		// Copies the simulation's state.
+		void capture(Simulation sim) {
+			AnchorStore store = sim.store();
+			RodGraph graph = store.graph();
+			double[] restById = sim.restLengths();
+			int n = store.size();
+			int m = graph.size();
+			if (x.length < n) {
+				int cap = Math.max(n, 2 * x.length);
+				x = new double[cap];
+				y = new double[cap];
+				z = new double[cap];
+				mass = new double[cap];
+				vx = new double[cap];
+				vy = new double[cap];
+				vz = new double[cap];
+			}
+			if (head.length < m) {
+				int cap = Math.max(m, 2 * head.length);
+				head = new int[cap];
+				tail = new int[cap];
+				extensible = new boolean[cap];
+				rest = new double[cap];
+			}
+			System.arraycopy(store.xs(), 0, x, 0, n);
+			System.arraycopy(store.ys(), 0, y, 0, n);
+			System.arraycopy(store.zs(), 0, z, 0, n);
+			System.arraycopy(store.masses(), 0, mass, 0, n);
+			System.arraycopy(sim.vxs(), 0, vx, 0, n);
+			System.arraycopy(sim.vys(), 0, vy, 0, n);
+			System.arraycopy(sim.vzs(), 0, vz, 0, n);
+			int k = 0;
+			for (int id = 0; id < graph.rodCount(); id++) {
+				Rod r = graph.rod(id);
+				if (r == null) {
+					continue;
+				}
+				head[k] = r.head().id();
+				tail[k] = r.tail().id();
+				extensible[k] = r.extensible();
+				rest[k] = restById[id];
+				k++;
+			}
+			anchors = n;
+			rods = m;
+			steps = sim.steps();
+			time = sim.time();
+			dt = sim.dt();
+			rigid = sim.rigid();
+		}
+
+		// Writes it out to a temporary file, then moves that over file.
+		void write(File file) throws IOException {
+			File temp = new File(file.getPath() + ".tmp");
+			ByteBuffer buf = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+			try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE,
+					StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				buf.putInt(MAGIC).putInt(VERSION).putInt(anchors).putInt(rods)
+						.putLong(steps).putDouble(time).putDouble(dt).putInt(rigid ? 1 : 0);
+				for (int i = 0; i < anchors; i++) {
+					if (buf.remaining() < ANCHOR) {
+						flush(out, buf);
+					}
+					buf.putDouble(x[i]).putDouble(y[i]).putDouble(z[i]).putDouble(mass[i])
+							.putDouble(vx[i]).putDouble(vy[i]).putDouble(vz[i]);
+				}
+				for (int k = 0; k < rods; k++) {
+					if (buf.remaining() < ROD) {
+						flush(out, buf);
+					}
+					buf.putInt(head[k]).putInt(tail[k]).putInt(extensible[k] ? SceneFile.EXTENSIBLE : 0)
+							.putDouble(rest[k]);
+				}
+				flush(out, buf);
+				out.force(false);
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		}
+
+		private static void flush(FileChannel out, ByteBuffer buf) throws IOException {
+			buf.flip();
+			while (buf.hasRemaining()) {
+				out.write(buf);
+			}
+			buf.clear();
+		}
+	}
+}
@@ -0,0 +1,485 @@
+package blackhole;
+
+import java.util.Arrays;
+
+/**
+ * Groups a Scene's anchors into a tree of patches of the sphere, so a
+ * renderer can draw a whole patch as one blob once it's too small on screen
+ * to tell its anchors apart.
+ *
+ * The patches are the cells SphereIndex uses: the six faces of a cube, each
+ * split into four again and again down to LEVELS levels. Sorting the anchors
+ * by the id of their smallest cell puts every patch's anchors next to each
+ * other, and lines up each level's patches in order, so the tree is just a
+ * few flat arrays. Empty patches aren't kept, and patches with only one
+ * anchor aren't split any further, so there are never many more patches
+ * than anchors. Each patch knows how many
+ * anchors it holds, their mass, the direction of their middle, and a cap
+ * (about that direction) that they all fit in.
+ *
+ * Rods are filed with the patches too: each rod goes with the patch holding
+ * its head, at the deepest level whose cells are still about as big as the
+ * rod is long (or higher up, if the head's patches don't go that deep). Once a patch is drawn as a blob, the rods filed under it and
+ * everything below it are too short to see, so they needn't be looked at.
+ *
+ * Sorting every anchor is the expensive part, and from one frame to the
+ * next most anchors haven't left their cells. So once the anchors have
+ * moved, refit() keeps the patches as they are, with the same anchors and
+ * rods, and just works out their masses, middles, caps and reaches again
+ * from the bottom up. Caps are still worked out from where the anchors
+ * are, so they're right however far anchors stray from the cells they were
+ * filed in; they just get looser. Once some patch has spread over more
+ * than LOOSE times the size of its cell, refit() gives up, and it's time to
+ * build a new tree.
+ *
+ * @author Rory
+ *
+ */
+public class Clusters {
+
+	// Levels below the faces. Cells at the bottom are about 4e-4 radians
+	// across, which is less than a pixel until the sphere is thousands of
+	// pixels wide.
+	public static final int LEVELS = 12;
+
+	// Roughly how far across a face is, in radians. Rods filed at level l
+	// (past the faces) are no longer than this over 2^(l + 1).
+	private static final double FACE = Math.PI / 2.0;
+
+	// How many times the size of its cell a patch can spread over before
+	// refit() gives up (fresh patches are no bigger than their cells), and
+	// a spread (in radians) that's always fine, since it's only a few pixels
+	// even on a sphere a thousand pixels across.
+	private static final double LOOSE = 2.0;
+	private static final double SNUG = FACE / 256.0;
+
+	// Patches, level by level: level l holds patches m_base[l] up to
+	// m_base[l + 1] - 1 (level 0 is the faces). For each patch: its cell id
+	// at its level, where its anchors start in m_order and how many there
+	// are, their total mass, the unit direction of their middle, the cosine
+	// and sine of the angle of the cap around it, its children, and where
+	// the rods filed under it start in m_rods. A patch with just one anchor
+	// isn't split any further.
+	private int[] m_base;
+	private int m_patches;
+	private long[] m_key;
+	private int[] m_first;
+	private int[] m_count;
+	private double[] m_mass;
+	private double[] m_cx;
+	private double[] m_cy;
+	private double[] m_cz;
+	private double[] m_cos;
+	private double[] m_sin;
+	private int[] m_childStart;
+	private int[] m_childEnd;
+	private int[] m_rodStart;
+
+	// Longest rod filed under each patch or any patch below it.
+	private double[] m_reach;
+
+	// Anchors sorted by cell, and rods sorted by patch (as scene rod
+	// indices).
+	private int[] m_order;
+	private int[] m_rods;
+
+	// Which anchors and rods the tree was built from (see Scene.source()
+	// and Scene.layout()), and room for refit() to add up each patch's
+	// anchors.
+	private Object m_source;
+	private int m_layout;
+	private double[] m_sum;
+
+	/**
+	 * Constructors
+	 */
+
+	// Groups the scene as it is now. Doesn't keep hold of it.
+	public Clusters(Scene scene) {
+		build(scene);
+	}
+
+	/**
+	 * Accessors
+	 */
+
+	// Number of patches, and the ones at each level (0 to LEVELS).
+	public int count() {
+		return m_patches;
+	}
+
+	public int levelStart(int level) {
+		return m_base[level];
+	}
+
+	public int levelEnd(int level) {
+		return m_base[level + 1];
+	}
+
+	// Anchors in patch c, as a range of order(): from first(c), size(c) of
+	// them.
+	public int size(int c) {
+		return m_count[c];
+	}
+
+	public int first(int c) {
+		return m_first[c];
+	}
+
+	// The k-th anchor in cell order.
+	public int order(int k) {
+		return m_order[k];
+	}
+
+	public double mass(int c) {
+		return m_mass[c];
+	}
+
+	// Direction of the middle of patch c.
+	public double x(int c) {
+		return m_cx[c];
+	}
+
+	public double y(int c) {
+		return m_cy[c];
+	}
+
+	public double z(int c) {
+		return m_cz[c];
+	}
+
+	// Cosine and sine of the angle out from the middle of patch c that every
+	// anchor in it lies within.
+	public double capCos(int c) {
+		return m_cos[c];
+	}
+
+	public double capSin(int c) {
+		return m_sin[c];
+	}
+
+	// The children of patch c are childStart(c) to childEnd(c) - 1. Patches
+	// with one anchor, and those at the bottom level, don't have any.
+	public int childStart(int c) {
+		return m_childStart[c];
+	}
+
+	public int childEnd(int c) {
+		return m_childEnd[c];
+	}
+
+	// The rods filed under patch c are rod(rodStart(c)) to
+	// rod(rodEnd(c) - 1).
+	public int rodStart(int c) {
+		return m_rodStart[c];
+	}
+
+	public int rodEnd(int c) {
+		return m_rodStart[c + 1];
+	}
+
+	public int rod(int k) {
+		return m_rods[k];
+	}
+
+	// Length of the longest rod filed under patch c or anywhere below it (0
+	// if there aren't any). Everything drawn for the patch lies within this
+	// far of its cap.
+	public double reach(int c) {
+		return m_reach[c];
+	}
+
+	/**
+	 * Mutators
+	 */
+
+	// Brings the patches up to date with where the scene's anchors are now,
+	// without sorting them again. The scene (which needn't be the one the
+	// tree was built from) has to have the same anchors and rods as that
+	// one. Returns false if it doesn't,
+	// or if the patches have got too loose to be worth keeping; the tree is
+	// no good after that, and a new one should be built.
+	public boolean refit(Scene scene) {
+		if (! scene.sameLayout(m_source, m_layout, m_order.length) || scene.rodCount() != m_rods.length) {
+			return false;
+		}
+		double[] x = scene.xs();
+		double[] y = scene.ys();
+		double[] z = scene.zs();
+		if (m_sum == null || m_sum.length < 3 * m_patches) {
+			m_sum = new double[3 * m_patches];
+		}
+		double[] sum = m_sum;
+		boolean loose = false;
+
+		// Children always come after their parents, so going backwards we
+		// get to every patch after its children.
+		for (int l = LEVELS; l >= 0; l--) {
+			double tight = Math.cos(Math.min(Math.PI, Math.max(SNUG, LOOSE * FACE / (1 << l))));
+			for (int c = m_base[l + 1] - 1; c >= m_base[l]; c--) {
+				double mass = 0;
+				double sx = 0;
+				double sy = 0;
+				double sz = 0;
+				boolean leaf = (m_childStart[c] == m_childEnd[c]);
+				if (leaf) {
+					for (int k = m_first[c]; k < m_first[c] + m_count[c]; k++) {
+						int i = m_order[k];
+						mass += scene.mass(i);
+						sx += x[i];
+						sy += y[i];
+						sz += z[i];
+					}
+				}
+				else {
+					for (int d = m_childStart[c]; d < m_childEnd[c]; d++) {
+						mass += m_mass[d];
+						sx += sum[3 * d];
+						sy += sum[3 * d + 1];
+						sz += sum[3 * d + 2];
+					}
+				}
+				m_mass[c] = mass;
+				sum[3 * c] = sx;
+				sum[3 * c + 1] = sy;
+				sum[3 * c + 2] = sz;
+
+				// The middle, as in build(), and a cap around it: exactly
+				// around the anchors at the bottom, and around the children's
+				// caps above that (which may be a little bigger than it has
+				// to be). Caps are kept as cosines, as in build(), so adding
+				// angles is cos(a + b) = cos a cos b - sin a sin b, and past
+				// half way round (sin(a + b) < 0) it's the whole sphere.
+				double len = Math.sqrt(sx * sx + sy * sy + sz * sz);
+				double cos = -1;
+				if (len <= Geodesic.EPSILON) {
+					m_cx[c] = 0;
+					m_cy[c] = 0;
+					m_cz[c] = 1;
+				}
+				else {
+					double cx = sx / len;
+					double cy = sy / len;
+					double cz = sz / len;
+					m_cx[c] = cx;
+					m_cy[c] = cy;
+					m_cz[c] = cz;
+					cos = 1;
+					if (leaf) {
+						for (int k = m_first[c]; k < m_first[c] + m_count[c]; k++) {
+							int i = m_order[k];
+							cos = Math.min(cos, cx * x[i] + cy * y[i] + cz * z[i]);
+						}
+					}
+					else {
+						for (int d = m_childStart[c]; d < m_childEnd[c] && cos > -1; d++) {
+							double dc = Math.max(-1, Math.min(1, cx * m_cx[d] + cy * m_cy[d] + cz * m_cz[d]));
+							double ds = Math.sqrt(1 - dc * dc);
+							if (ds * m_cos[d] + dc * m_sin[d] < 0) {
+								cos = -1;
+							}
+							else {
+								cos = Math.min(cos, dc * m_cos[d] - ds * m_sin[d]);
+							}
+						}
+					}
+					cos = Math.max(-1, Math.min(1, cos));
+				}
+				m_cos[c] = cos;
+				m_sin[c] = Math.sqrt(1 - cos * cos);
+				loose |= cos < tight;
+
+				// And the longest rod under it, as the rods are now: the
+				// longest chord, turned into an arc once.
+				double chord = 0;
+				for (int k = m_rodStart[c]; k < m_rodStart[c + 1]; k++) {
+					int r = m_rods[k];
+					int a = scene.head(r);
+					int b = scene.tail(r);
+					double dx = x[b] - x[a];
+					double dy = y[b] - y[a];
+					double dz = z[b] - z[a];
+					chord = Math.max(chord, dx * dx + dy * dy + dz * dz);
+				}
+				double reach = (chord > 0) ? 2.0 * Math.asin(Math.min(1, 0.5 * Math.sqrt(chord))) : 0;
+				for (int d = m_childStart[c]; d < m_childEnd[c]; d++) {
+					reach = Math.max(reach, m_reach[d]);
+				}
+				m_reach[c] = reach;
+			}
+		}
+		return ! loose;
+	}
+
+	/**
+	 * Private methods.
+	 */
+
+	// Builds the whole tree.
+	private void build(Scene scene) {
+		int n = scene.anchorCount();
+		double[] x = scene.xs();
+		double[] y = scene.ys();
+		double[] z = scene.zs();
+
+		// Sort the anchors by cell, with the anchor's index in the low bits
+		// (cell ids at the bottom level take 3 + 2 LEVELS bits).
+		int[] fij = new int[3];
+		long[] keyed = new long[n];
+		for (int i = 0; i < n; i++) {
+			keyed[i] = (SphereIndex.cellId(x[i], y[i], z[i], LEVELS, fij) << 36) | i;
+		}
+		Arrays.sort(keyed);
+		m_order = new int[n];
+		long[] leaf = new long[n];
+		for (int k = 0; k < n; k++) {
+			m_order[k] = (int) (keyed[k] & ((1L << 36) - 1));
+			leaf[k] = keyed[k] >>> 36;
+		}
+
+		// Patch each anchor is in at the level before and the level we're
+		// on (-1 once it's on its own).
+		int[] above = new int[n];
+		int[] here = new int[n];
+		allocate(Math.max(16, 2 * n));
+		m_base = new int[LEVELS + 2];
+		m_patches = 0;
+		for (int l = 0; l <= LEVELS; l++) {
+			m_base[l] = m_patches;
+			if (l > 0 && m_base[l] == m_base[l - 1]) {
+				// Everything's on its own already.
+				continue;
+			}
+			int shift = 2 * (LEVELS - l);
+
+			// A new patch starts wherever the cell id (shifted down to this
+			// level) changes, except under patches that weren't split.
+			int c = -1;
+			for (int k = 0; k < n; k++) {
+				int up = (l == 0) ? 0 : above[k];
+				if (up < 0 || (l > 0 && m_count[up] == 1)) {
+					here[k] = -1;
+					continue;
+				}
+				long key = leaf[k] >>> shift;
+				if (c < 0 || key != m_key[c]) {
+					if (m_patches == m_key.length) {
+						allocate(2 * m_patches);
+					}
+					c = m_patches++;
+					m_key[c] = key;
+					m_first[c] = k;
+					if (l > 0) {
+						if (m_childEnd[up] == m_childStart[up]) {
+							m_childStart[up] = c;
+						}
+						m_childEnd[up] = c + 1;
+					}
+				}
+				here[k] = c;
+				int i = m_order[k];
+				m_count[c]++;
+				m_mass[c] += scene.mass(i);
+				m_cx[c] += x[i];
+				m_cy[c] += y[i];
+				m_cz[c] += z[i];
+			}
+
+			// Middles, then how far out from them the anchors go.
+			for (c = m_base[l]; c < m_patches; c++) {
+				double len = Math.sqrt(m_cx[c] * m_cx[c] + m_cy[c] * m_cy[c] + m_cz[c] * m_cz[c]);
+				if (len <= Geodesic.EPSILON) {
+					// Spread all the way round: no cap smaller than the sphere.
+					m_cx[c] = 0;
+					m_cy[c] = 0;
+					m_cz[c] = 1;
+					m_cos[c] = -1;
+					continue;
+				}
+				m_cx[c] /= len;
+				m_cy[c] /= len;
+				m_cz[c] /= len;
+				m_cos[c] = 1;
+			}
+			for (int k = 0; k < n; k++) {
+				c = here[k];
+				if (c >= 0) {
+					int i = m_order[k];
+					m_cos[c] = Math.min(m_cos[c], m_cx[c] * x[i] + m_cy[c] * y[i] + m_cz[c] * z[i]);
+				}
+			}
+			for (c = m_base[l]; c < m_patches; c++) {
+				double cos = Math.max(-1, Math.min(1, m_cos[c]));
+				m_cos[c] = cos;
+				m_sin[c] = Math.sqrt(1 - cos * cos);
+			}
+			int[] t = above;
+			above = here;
+			here = t;
+		}
+		m_base[LEVELS + 1] = m_patches;
+
+		file(scene, fij);
+		m_source = scene.source();
+		m_layout = scene.layout();
+	}
+
+	// Makes room for the given number of patches, keeping any we have.
+	private void allocate(int p) {
+		boolean fresh = (m_key == null);
+		m_key = fresh ? new long[p] : Arrays.copyOf(m_key, p);
+		m_first = fresh ? new int[p] : Arrays.copyOf(m_first, p);
+		m_count = fresh ? new int[p] : Arrays.copyOf(m_count, p);
+		m_mass = fresh ? new double[p] : Arrays.copyOf(m_mass, p);
+		m_cx = fresh ? new double[p] : Arrays.copyOf(m_cx, p);
+		m_cy = fresh ? new double[p] : Arrays.copyOf(m_cy, p);
+		m_cz = fresh ? new double[p] : Arrays.copyOf(m_cz, p);
+		m_cos = fresh ? new double[p] : Arrays.copyOf(m_cos, p);
+		m_sin = fresh ? new double[p] : Arrays.copyOf(m_sin, p);
+		m_childStart = fresh ? new int[p] : Arrays.copyOf(m_childStart, p);
+		m_childEnd = fresh ? new int[p] : Arrays.copyOf(m_childEnd, p);
+	}
+
+	// Files every rod under a patch.
+	private void file(Scene scene, int[] fij) {
+		int m = scene.rodCount();
+		int[] patch = new int[m];
+		m_rodStart = new int[m_patches + 1];
+		m_reach = new double[m_patches];
+		for (int k = 0; k < m; k++) {
+			int a = scene.head(k);
+			int b = scene.tail(k);
+			double ax = scene.x(a), ay = scene.y(a), az = scene.z(a);
+			double length = Geodesic.distance(ax, ay, az, scene.x(b), scene.y(b), scene.z(b));
+			// Deepest level whose cells are at least as big as the rod, or
+			// as far down as the head's patches go if that's not as deep.
+			int l = 0;
+			while (l < LEVELS && FACE / (2 << l) >= length) {
+				l++;
+			}
+			long key = SphereIndex.cellId(ax, ay, az, LEVELS, fij);
+			int c = Arrays.binarySearch(m_key, m_base[l], m_base[l + 1], key >>> (2 * (LEVELS - l)));
+			while (c < 0) {
+				l--;
+				c = Arrays.binarySearch(m_key, m_base[l], m_base[l + 1], key >>> (2 * (LEVELS - l)));
+			}
+			patch[k] = c;
+			m_rodStart[c + 1]++;
+			m_reach[c] = Math.max(m_reach[c], length);
+		}
+		// Children always come after their parents.
+		for (int c = m_patches - 1; c >= 0; c--) {
+			for (int d = m_childStart[c]; d < m_childEnd[c]; d++) {
+				m_reach[c] = Math.max(m_reach[c], m_reach[d]);
+			}
+		}
+		for (int c = 0; c < m_patches; c++) {
+			m_rodStart[c + 1] += m_rodStart[c];
+		}
+		int[] fill = Arrays.copyOf(m_rodStart, m_patches);
+		m_rods = new int[m];
+		for (int k = 0; k < m; k++) {
+			m_rods[fill[patch[k]]++] = k;
+		}
+	}
+}
@@ -0,0 +1,754 @@
+package blackhole;
+
+import java.util.Arrays;
+
+/**
+ * Keeps every rod's extensibility up to date as rods are added to and taken
+ * out of the anchors of an AnchorStore, looking at as little of the
+ * structure as it can.
+ *
+ * A rod is extensible when it is a bridge (nothing else joins its ends), so
+ * this is the classic online bridge-finding structure: a spanning forest of
+ * the structure whose nodes are the 2-edge-connected blobs of anchors. A
+ * union-find set tracks which anchors share a blob, and every anchor carries
+ * a label for the connected piece it's in. Every forest link is a bridge and
+ * every rod inside a blob is not. Each blob remembers the rod it hangs by
+ * and the anchor at the far end of it (rather than the blob there), so the
+ * forest still holds together when a blob is split up.
+ *
+ *     - Adding a rod between two pieces links them in the forest (re-rooting
+ *       the smaller piece), gives the smaller piece the larger one's label,
+ *       and the new rod is extensible.
+ *     - Adding a rod inside a piece closes a loop, so every blob on the forest
+ *       path between its ends collapses into one and the rods along that path
+ *       stop being extensible.
+ *     - Taking out an extensible rod leaves the blobs alone, but cuts the
+ *       forest link and splits the piece in two. We search out from both ends
+ *       at once, an anchor at a time each, until one side runs out. That's
+ *       the smaller side, and it's the only one relabelled.
+ *     - Taking out a braced rod leaves the piece in one piece, but its blob
+ *       may come apart. We look for bridges in that blob alone (Tarjan's
+ *       way), and if there are any, split it into the blobs that are left,
+ *       hung off each other in the forest by the new bridges.
+ *
+ * Adding costs amortized O(log n) or better. Taking a rod out costs time
+ * linear in the smaller half of a split piece, or in the blob it was in.
+ * That's not the polylogarithmic bound of a fully dynamic structure (Holm,
+ * de Lichtenberg and Thorup's), and a structure that's all one blob, such as
+ * a braced dome, pays for the whole blob every time a rod comes out of it.
+ * But it never looks beyond the blob or the piece a rod was in, which the
+ * common cases (pulling a strut out of a big braced blob of many, cutting a
+ * branch off a tree) keep small.
+ *
+ * Rods are known by their ids in the store's RodGraph, which is also what we
+ * walk when searching a piece or a blob.
+ *
+ * @author Rory
+ *
+ */
+public class Connectivity {
+
+	// The store whose anchors we are tracking.
+	private final AnchorStore m_store;
+
+	// Number of anchor ids we have room for in the per-anchor arrays.
+	private int m_n;
+
+	// For the representative of each blob, the anchor at the far end of the
+	// rod it hangs by in the spanning forest (-1 at a root), and that rod's
+	// id.
+	private int[] m_par;
+	private int[] m_parRod;
+
+	// Union-find parents for blobs (2-edge-connected components).
+	private int[] m_blob;
+
+	// Each anchor's piece, the number of anchors with each label, and the
+	// labels nothing has. There are never more pieces than anchors, so
+	// there's always a label to spare when a piece splits.
+	private int[] m_label;
+	private int[] m_labelSize;
+	private int[] m_freeLabels;
+	private int m_freeCount;
+
+	// Scratch space for merging paths and searching pieces and blobs.
+	private int[] m_visit;
+	private int m_visitStamp;
+	private int[] m_pathA;
+	private int[] m_pathB;
+	private int[] m_queueA;
+	private int[] m_queueB;
+
+	// Number of extensible rods.
+	private int m_bridges;
+
+	/**
+	 * Constructors
+	 */
+
+	// Creates an empty tracker for the given store. Only the store makes
+	// these (see AnchorStore.connectivity()).
+	Connectivity(AnchorStore store) {
+		m_store = store;
+		m_n = 0;
+		m_par = new int[0];
+		m_parRod = new int[0];
+		m_blob = new int[0];
+		m_label = new int[0];
+		m_labelSize = new int[0];
+		m_freeLabels = new int[0];
+		m_freeCount = 0;
+		m_visit = new int[0];
+		m_visitStamp = 0;
+		m_pathA = new int[16];
+		m_pathB = new int[16];
+		m_queueA = new int[0];
+		m_queueB = new int[0];
+		m_bridges = 0;
+	}
+
+	/**
+	 * Accessors
+	 */
+
+	// Number of extensible rods in the store.
+	public int extensibleCount() {
+		return m_bridges;
+	}
+
+	// Returns whether two anchors are joined by some chain of rods.
+	public boolean connected(int a, int b) {
+		if (a == b) {
+			return true;
+		}
+		ensure(Math.max(a, b) + 1);
+		return m_label[a] == m_label[b];
+	}
+
+	// Number of anchors joined to v by some chain of rods, v included.
+	public int pieceSize(int v) {
+		ensure(v + 1);
+		return m_labelSize[m_label[v]];
+	}
+
+	// Returns whether two anchors are joined by two paths that share no rod,
+	// i.e. whether they sit in the same rigid blob.
+	public boolean braced(int a, int b) {
+		if (a == b) {
+			return true;
+		}
+		ensure(Math.max(a, b) + 1);
+		return findBlob(a) == findBlob(b);
+	}
+
+	// Returns the anchor that stands for the rigid blob v sits in: two
+	// anchors are braced() exactly when they get the same answer. The answer
+	// can change as rods come and go.
+	public int blob(int v) {
+		ensure(v + 1);
+		return findBlob(v);
+	}
+
+	/**
+	 * Mutators
+	 */
+
+	// Works out the extensibility of a rod that has just been added to the
+	// store's graph, and updates any rods it braces. Called by
+	// AnchorStore.link().
+	void linked(Rod r) {
+		ensure(Math.max(r.head().id(), r.tail().id()) + 1);
+		insert(r);
+	}
+
+	// Fixes up the rods around a rod that has just been taken out of the
+	// store's graph (so it no longer has an id). Called by
+	// AnchorStore.unlink().
+	void unlinked(Rod r) {
+		int ha = r.head().id();
+		int hb = r.tail().id();
+		if (ha == hb) {
+			return;
+		}
+		if (! r.extensible()) {
+			unbrace(ha, hb);
+			return;
+		}
+
+		// The rod was the forest link between its ends' blobs. Whichever of
+		// them hung by it (the one whose rod is gone) is a root now.
+		m_bridges--;
+		int a = findBlob(ha);
+		int b = findBlob(hb);
+		int child = (m_parRod[a] >= 0 && m_store.graph().rod(m_parRod[a]) == null) ? a : b;
+		m_par[child] = -1;
+		m_parRod[child] = -1;
+		split(ha, hb);
+	}
+
+	// Loads a whole structure at once, given the ends of rods 0 to e - 1 by
+	// anchor id and whether each is extensible, as worked out by
+	// StructureBuilder. Rather than replaying insertions, this builds the
+	// blobs and the forest directly, in time linear in the structure. Only
+	// meant for a tracker that isn't tracking anything yet.
+	void seed(int[] head, int[] tail, boolean[] extensible, int e, int n) {
+		ensure(n);
+		m_bridges = 0;
+
+		// Blobs are what's left joined once the extensible rods are gone.
+		for (int i = 0; i < e; i++) {
+			if (extensible[i]) {
+				m_bridges++;
+				continue;
+			}
+			int a = findBlob(head[i]);
+			int b = findBlob(tail[i]);
+			if (a != b) {
+				m_blob[a] = b;
+			}
+		}
+
+		// The extensible rods join the blobs up into a forest. Lay them out
+		// by blob and hang each tree off whichever blob we reach first.
+		int[] off = new int[n + 1];
+		for (int i = 0; i < e; i++) {
+			if (extensible[i]) {
+				off[findBlob(head[i]) + 1]++;
+				off[findBlob(tail[i]) + 1]++;
+			}
+		}
+		for (int v = 0; v < n; v++) {
+			off[v + 1] += off[v];
+		}
+		int[] fill = Arrays.copyOf(off, n);
+		int[] adj = new int[off[n]];
+		for (int i = 0; i < e; i++) {
+			if (extensible[i]) {
+				adj[fill[findBlob(head[i])]++] = i;
+				adj[fill[findBlob(tail[i])]++] = i;
+			}
+		}
+
+		// Each tree is a piece, labelled by its root (for now, just on the
+		// blob representatives).
+		int stamp = ++m_visitStamp;
+		int[] queue = new int[n];
+		for (int root = 0; root < n; root++) {
+			if (m_blob[root] != root || m_visit[root] == stamp) {
+				continue;
+			}
+			m_visit[root] = stamp;
+			m_label[root] = root;
+			int qh = 0;
+			int qt = 0;
+			queue[qt++] = root;
+			while (qh < qt) {
+				int v = queue[qh++];
+				for (int k = off[v]; k < off[v + 1]; k++) {
+					int r = adj[k];
+					int near = head[r];
+					int w = findBlob(tail[r]);
+					if (w == v) {
+						near = tail[r];
+						w = findBlob(head[r]);
+					}
+					if (m_visit[w] == stamp) {
+						continue;
+					}
+					m_visit[w] = stamp;
+					m_par[w] = near;
+					m_parRod[w] = r;
+					m_label[w] = root;
+					queue[qt++] = w;
+				}
+			}
+		}
+
+		// Every anchor takes its blob's label, and the labels no piece ended
+		// up with are free.
+		Arrays.fill(m_labelSize, 0, n, 0);
+		for (int v = 0; v < n; v++) {
+			int l = m_label[findBlob(v)];
+			m_label[v] = l;
+			m_labelSize[l]++;
+		}
+		m_freeCount = 0;
+		for (int l = 0; l < n; l++) {
+			if (m_labelSize[l] == 0) {
+				m_freeLabels[m_freeCount++] = l;
+			}
+		}
+	}
+
+	/**
+	 * Private methods.
+	 */
+
+	// Adds a rod to the forest. Assumes its ends have been ensure()d.
+	private void insert(Rod r) {
+		int id = r.id();
+		int ha = r.head().id();
+		int hb = r.tail().id();
+		int a = findBlob(ha);
+		int b = findBlob(hb);
+
+		// Both ends already in one blob: the rod is braced.
+		if (a == b) {
+			r.setExtensible(false);
+			return;
+		}
+
+		int la = m_label[ha];
+		int lb = m_label[hb];
+		if (la != lb) {
+			// Two separate pieces: the rod is the only thing joining them.
+			// Hang the smaller piece off the larger one, and give it the
+			// larger one's label.
+			m_bridges++;
+			r.setExtensible(true);
+			if (m_labelSize[la] > m_labelSize[lb]) {
+				int t = a; a = b; b = t;
+				t = ha; ha = hb; hb = t;
+				t = la; la = lb; lb = t;
+			}
+			makeRoot(a);
+			m_par[a] = hb;
+			m_parRod[a] = id;
+			relabel(ha, la, lb);
+		}
+		else {
+			// Same piece: the rod closes a loop.
+			r.setExtensible(false);
+			mergePath(a, b);
+		}
+	}
+
+	// Re-roots the forest tree containing blob v so that v is its root.
+	private void makeRoot(int v) {
+		int childEnd = -1;
+		int childRod = -1;
+		while (v != -1) {
+			int up = m_par[v];
+			int rod = m_parRod[v];
+			m_par[v] = childEnd;
+			m_parRod[v] = childRod;
+			if (up == -1) {
+				break;
+			}
+			// The blob above hangs off this one from now on, by the same
+			// rod, from this blob's end of it.
+			childEnd = far(rod, up);
+			childRod = rod;
+			v = findBlob(up);
+		}
+	}
+
+	// Collapses every blob on the forest path between blobs a and b into one,
+	// marking the rods along the path as no longer extensible.
+	private void mergePath(int a, int b) {
+		int stamp = ++m_visitStamp;
+		int na = 0;
+		int nb = 0;
+		int lca = -1;
+
+		// Walk up from both ends in lock step until one walk steps onto a
+		// blob the other has already been through.
+		while (lca == -1) {
+			if (a != -1) {
+				a = findBlob(a);
+				m_pathA = push(m_pathA, na++, a);
+				if (m_visit[a] == stamp) {
+					lca = a;
+					break;
+				}
+				m_visit[a] = stamp;
+				a = m_par[a];
+			}
+			if (b != -1) {
+				b = findBlob(b);
+				m_pathB = push(m_pathB, nb++, b);
+				if (m_visit[b] == stamp) {
+					lca = b;
+					break;
+				}
+				m_visit[b] = stamp;
+				b = m_par[b];
+			}
+		}
+
+		collapse(m_pathA, na, lca);
+		collapse(m_pathB, nb, lca);
+	}
+
+	// Folds the blobs on a path (up to the meeting point) into lca.
+	private void collapse(int[] path, int n, int lca) {
+		for (int i = 0; i < n; i++) {
+			int v = path[i];
+			if (v == lca) {
+				break;
+			}
+			m_blob[v] = lca;
+			Rod r = m_store.graph().rod(m_parRod[v]);
+			r.setExtensible(false);
+			m_bridges--;
+		}
+	}
+
+	// Gives every anchor of the piece labelled from that anchor s is in the
+	// label to instead.
+	private void relabel(int s, int from, int to) {
+		int[] q = m_queueA;
+		int qt = 0;
+		int stamp = ++m_visitStamp;
+		m_visit[s] = stamp;
+		m_label[s] = to;
+		q[qt++] = s;
+		for (int qh = 0; qh < qt; qh++) {
+			int v = q[qh];
+			int before = qt;
+			qt = expand(v, stamp, from, -1, q, qt);
+			for (int k = before; k < qt; k++) {
+				m_label[q[k]] = to;
+			}
+		}
+		m_labelSize[to] += m_labelSize[from];
+		m_labelSize[from] = 0;
+		m_freeLabels[m_freeCount++] = from;
+	}
+
+	// Splits the piece anchors a and b were in, now that the rod between
+	// them has gone, giving whichever half is smaller a label of its own.
+	private void split(int a, int b) {
+		int label = m_label[a];
+		int sa = ++m_visitStamp;
+		int sb = ++m_visitStamp;
+		int[] qa = m_queueA;
+		int[] qb = m_queueB;
+		int ha = 0;
+		int ta = 0;
+		int hb = 0;
+		int tb = 0;
+		m_visit[a] = sa;
+		qa[ta++] = a;
+		m_visit[b] = sb;
+		qb[tb++] = b;
+
+		// A step on each side in turn, until one side has nowhere left to
+		// go. If the rod had been braced they'd meet, but it wasn't.
+		while (ha < ta && hb < tb) {
+			ta = expand(qa[ha++], sa, -1, -1, qa, ta);
+			if (ha < ta) {
+				tb = expand(qb[hb++], sb, -1, -1, qb, tb);
+			}
+		}
+		int[] q = (ha == ta) ? qa : qb;
+		int size = (ha == ta) ? ta : tb;
+		int fresh = m_freeLabels[--m_freeCount];
+		for (int k = 0; k < size; k++) {
+			m_label[q[k]] = fresh;
+		}
+		m_labelSize[fresh] = size;
+		m_labelSize[label] -= size;
+	}
+
+	// Works out the blobs left of the one anchors a and b were braced in,
+	// now that the rod between them has gone, and puts any new bridges
+	// between them into the forest.
+	private void unbrace(int a, int b) {
+		int blob = findBlob(a);
+		RodGraph g = m_store.graph();
+
+		// The blob's anchors. Taking one rod out of a blob can't disconnect
+		// it, so they're all reachable from a.
+		int[] q = m_queueA;
+		int count = 0;
+		int stamp = ++m_visitStamp;
+		m_visit[a] = stamp;
+		q[count++] = a;
+		for (int h = 0; h < count; h++) {
+			count = expand(q[h], stamp, -1, blob, q, count);
+		}
+
+		// Lay its rods out by anchor (numbering the anchors from 0 in the
+		// order we found them), each rod at both ends.
+		int[] index = m_queueB;
+		for (int k = 0; k < count; k++) {
+			index[q[k]] = k;
+		}
+		int[] off = new int[count + 1];
+		int[] ends = new int[4 * Math.max(1, count)];
+		int[] ids = new int[2 * Math.max(1, count)];
+		int rods = 0;
+		for (int k = 0; k < count; k++) {
+			int v = q[k];
+			int[] co = g.offsets();
+			int[] adj = g.rods();
+			int[] far = g.fars();
+			if (v < g.anchorCount()) {
+				for (int j = co[v]; j < co[v + 1]; j++) {
+					Rod r = g.rod(adj[j]);
+					if (r != null && r.head().id() == v && far[j] != v && findBlob(far[j]) == blob) {
+						if (2 * rods + 2 > ends.length) {
+							ends = Arrays.copyOf(ends, 2 * ends.length);
+							ids = Arrays.copyOf(ids, ends.length / 2);
+						}
+						ends[2 * rods] = k;
+						ends[2 * rods + 1] = index[far[j]];
+						ids[rods++] = adj[j];
+					}
+				}
+			}
+			for (int j = g.first(v); j != -1; j = g.next(j)) {
+				Rod r = g.rod(g.addedRod(j));
+				int w = g.addedFar(j);
+				if (r != null && r.head().id() == v && w != v && findBlob(w) == blob) {
+					if (2 * rods + 2 > ends.length) {
+						ends = Arrays.copyOf(ends, 2 * ends.length);
+						ids = Arrays.copyOf(ids, ends.length / 2);
+					}
+					ends[2 * rods] = k;
+					ends[2 * rods + 1] = index[w];
+					ids[rods++] = g.addedRod(j);
+				}
+			}
+		}
+		for (int i = 0; i < rods; i++) {
+			off[ends[2 * i] + 1]++;
+			off[ends[2 * i + 1] + 1]++;
+		}
+		for (int k = 0; k < count; k++) {
+			off[k + 1] += off[k];
+		}
+		int[] fill = Arrays.copyOf(off, count);
+		int[] inc = new int[2 * rods];
+		for (int i = 0; i < rods; i++) {
+			inc[fill[ends[2 * i]]++] = i;
+			inc[fill[ends[2 * i + 1]]++] = i;
+		}
+
+		// Tarjan: a depth-first search, where a rod to a child is a bridge
+		// if nothing below the child reaches back above it by another rod.
+		int[] order = new int[count];
+		int[] low = new int[count];
+		int[] up = new int[count];
+		int[] next = new int[count];
+		int[] stack = new int[count];
+		boolean[] bridge = new boolean[rods];
+		int bridges = 0;
+		int seen = 1;
+		order[0] = seen;
+		low[0] = seen;
+		up[0] = -1;
+		next[0] = off[0];
+		int top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			int v = stack[top - 1];
+			if (next[v] < off[v + 1]) {
+				int i = inc[next[v]++];
+				if (i == up[v]) {
+					continue;
+				}
+				int w = (ends[2 * i] == v) ? ends[2 * i + 1] : ends[2 * i];
+				if (order[w] == 0) {
+					order[w] = ++seen;
+					low[w] = seen;
+					up[w] = i;
+					next[w] = off[w];
+					stack[top++] = w;
+				}
+				else {
+					low[v] = Math.min(low[v], order[w]);
+				}
+				continue;
+			}
+			top--;
+			if (up[v] >= 0) {
+				int i = up[v];
+				int p = (ends[2 * i] == v) ? ends[2 * i + 1] : ends[2 * i];
+				low[p] = Math.min(low[p], low[v]);
+				if (low[v] > order[p]) {
+					bridge[i] = true;
+					bridges++;
+				}
+			}
+		}
+		if (bridges == 0) {
+			return;
+		}
+
+		// The blobs that are left are what's joined without the bridges.
+		// Number each after its first anchor, with every anchor pointing
+		// straight at that, and list each one's anchors together.
+		int parEnd = m_par[blob];
+		int parRod = m_parRod[blob];
+		int[] piece = new int[count];
+		Arrays.fill(piece, -1);
+		int[] members = new int[count];
+		int[] start = new int[count];
+		int[] end = new int[count];
+		int listed = 0;
+		for (int k0 = 0; k0 < count; k0++) {
+			if (piece[k0] >= 0) {
+				continue;
+			}
+			int rep = q[k0];
+			start[k0] = listed;
+			piece[k0] = k0;
+			members[listed++] = k0;
+			for (int h = start[k0]; h < listed; h++) {
+				int v = members[h];
+				m_blob[q[v]] = rep;
+				m_par[q[v]] = -1;
+				m_parRod[q[v]] = -1;
+				for (int j = off[v]; j < off[v + 1]; j++) {
+					int i = inc[j];
+					int w = (ends[2 * i] == v) ? ends[2 * i + 1] : ends[2 * i];
+					if (! bridge[i] && piece[w] < 0) {
+						piece[w] = k0;
+						members[listed++] = w;
+					}
+				}
+			}
+			end[k0] = listed;
+		}
+
+		// The one with the old blob's rod into the forest (or any, at a
+		// root) takes its place there, and the rest hang off it by the new
+		// bridges.
+		int topEnd = (parRod >= 0) ? far(parRod, parEnd) : a;
+		int first = piece[index[topEnd]];
+		m_par[q[first]] = parEnd;
+		m_parRod[q[first]] = parRod;
+		boolean[] hung = new boolean[count];
+		hung[first] = true;
+		int[] walk = new int[count];
+		int n = 0;
+		walk[n++] = first;
+		for (int h = 0; h < n; h++) {
+			int c = walk[h];
+			// Every anchor of blob c, looking for bridges out of it.
+			for (int m = start[c]; m < end[c]; m++) {
+				int k = members[m];
+				for (int j = off[k]; j < off[k + 1]; j++) {
+					int i = inc[j];
+					if (! bridge[i]) {
+						continue;
+					}
+					int w = (ends[2 * i] == k) ? ends[2 * i + 1] : ends[2 * i];
+					int d = piece[w];
+					if (hung[d]) {
+						continue;
+					}
+					hung[d] = true;
+					m_par[q[d]] = q[k];
+					m_parRod[q[d]] = ids[i];
+					g.rod(ids[i]).setExtensible(true);
+					m_bridges++;
+					walk[n++] = d;
+				}
+			}
+		}
+	}
+
+	// Adds the anchors next to v (by rods that are still there) that haven't
+	// got the given stamp to queue q from qt on, stamping them, and returns
+	// where the queue ends now. Only anchors with the given label, or in the
+	// given blob, are added, unless that's -1.
+	private int expand(int v, int stamp, int label, int blob, int[] q, int qt) {
+		RodGraph g = m_store.graph();
+		if (v < g.anchorCount()) {
+			int[] off = g.offsets();
+			int[] adj = g.rods();
+			int[] far = g.fars();
+			for (int k = off[v]; k < off[v + 1]; k++) {
+				if (! g.dead(k)) {
+					qt = enqueue(far[k], stamp, label, blob, q, qt);
+				}
+			}
+		}
+		for (int k = g.first(v); k != -1; k = g.next(k)) {
+			if (g.rod(g.addedRod(k)) != null) {
+				qt = enqueue(g.addedFar(k), stamp, label, blob, q, qt);
+			}
+		}
+		return qt;
+	}
+
+	// Step of expand(): anchor w is next to the one being expanded.
+	private int enqueue(int w, int stamp, int label, int blob, int[] q, int qt) {
+		if (m_visit[w] == stamp || (label >= 0 && m_label[w] != label) || (blob >= 0 && findBlob(w) != blob)) {
+			return qt;
+		}
+		m_visit[w] = stamp;
+		q[qt] = w;
+		return qt + 1;
+	}
+
+	// The end of rod id that isn't anchor v.
+	private int far(int id, int v) {
+		Rod r = m_store.graph().rod(id);
+		int h = r.head().id();
+		return (h == v) ? r.tail().id() : h;
+	}
+
+	// Puts anchor v back in a blob and piece of its own.
+	private void reset(int v) {
+		m_par[v] = -1;
+		m_parRod[v] = -1;
+		m_blob[v] = v;
+		m_label[v] = v;
+		m_labelSize[v] = 1;
+	}
+
+	// Union-find lookup for blobs, with path compression.
+	private int findBlob(int v) {
+		if (v < 0) {
+			return -1;
+		}
+		int root = v;
+		while (m_blob[root] != root) {
+			root = m_blob[root];
+		}
+		while (m_blob[v] != root) {
+			int next = m_blob[v];
+			m_blob[v] = root;
+			v = next;
+		}
+		return root;
+	}
+
+	// Makes room for anchor ids below n, each starting in a blob and piece of
+	// its own. Labels from n up have never been handed out, so new anchors
+	// can have their own ids as labels.
+	private void ensure(int n) {
+		if (n <= m_n) {
+			return;
+		}
+		if (n > m_par.length) {
+			int cap = Math.max(n, m_par.length * 2);
+			m_par = Arrays.copyOf(m_par, cap);
+			m_parRod = Arrays.copyOf(m_parRod, cap);
+			m_blob = Arrays.copyOf(m_blob, cap);
+			m_label = Arrays.copyOf(m_label, cap);
+			m_labelSize = Arrays.copyOf(m_labelSize, cap);
+			m_freeLabels = Arrays.copyOf(m_freeLabels, cap);
+			m_visit = Arrays.copyOf(m_visit, cap);
+			m_queueA = new int[cap];
+			m_queueB = new int[cap];
+		}
+		for (int v = m_n; v < n; v++) {
+			reset(v);
+		}
+		m_n = n;
+	}
+
+	// Stores v at index i of a path, growing the array if needed.
+	private static int[] push(int[] path, int i, int v) {
+		if (i == path.length) {
+			path = Arrays.copyOf(path, path.length * 2);
+		}
+		path[i] = v;
+		return path;
+	}
+}
@@ -0,0 +1,291 @@
+package blackhole;
+
+/**
+ * Keeps rods the right length while things move, the way SHAKE and RATTLE do
+ * in molecular dynamics.
+ *
+ * Each rod is an arc of a great circle with a fixed length. Rather than work
+ * with arcs directly we work with the chord between the two anchors, which
+ * has length 2 sin(L / 2) for an arc of length L and is a lot cheaper to
+ * measure. Anchors also have to stay on the unit sphere, which is one more
+ * constraint per anchor.
+ *
+ * positions() is handed where the anchors were at the start of the step and
+ * where they've drifted to since, and moves each one only along the
+ * directions its constraints had at the start of the step: along the chords
+ * of its rods, splitting each move according to the anchors' inverse
+ * masses, and along its own radius. Each pass goes through the rods one at
+ * a time, working out how far to push along the old chord for the new chord
+ * to be the right length (to first order), then puts every anchor back on
+ * the sphere along its old radius (exactly). Passes repeat until every rod
+ * is within tolerance or we run out of iterations. Fixing the directions at
+ * the start of the step, rather than following the chords as they turn, is
+ * what keeps the step time-reversible and symplectic, so energy wanders a
+ * little but doesn't drain away; projecting along the current chords does.
+ *
+ * velocities() is RATTLE's second half: the part of the ends' relative
+ * velocity along each chord (as it is now) is taken out, alternating with
+ * taking out each anchor's velocity off the sphere, so rods don't try to
+ * stretch and anchors don't try to leave.
+ *
+ * Everything works on flat arrays owned by the caller (see Simulation), and
+ * nothing is allocated along the way.
+ *
+ * @author Rory
+ *
+ */
+public class ConstraintSolver {
+
+	// Passes over the rods we'll make per call.
+	private int m_iterations;
+
+	// How far off (in chord length) a rod can be and still count as fixed.
+	private double m_tolerance;
+
+	// Largest error left by the last call to positions().
+	private double m_error;
+
+	/**
+	 * Constructors
+	 */
+
+	// Default constructor: a handful of passes, tight tolerance.
+	public ConstraintSolver() {
+		m_iterations = 4;
+		m_tolerance = 1.0e-10;
+		m_error = 0;
+	}
+
+	/**
+	 * Accessors
+	 */
+
+	public int iterations() {
+		return m_iterations;
+	}
+
+	public double tolerance() {
+		return m_tolerance;
+	}
+
+	// Largest chord length error left after the last call to positions().
+	public double error() {
+		return m_error;
+	}
+
+	/**
+	 * Mutators
+	 */
+
+	public void setIterations(int iterations) {
+		m_iterations = Math.max(1, iterations);
+	}
+
+	public void setTolerance(double tolerance) {
+		m_tolerance = tolerance;
+	}
+
+	// Tells the solver which rods it'll be asked to fix from now on (same
+	// arguments as positions()). Simulation calls this whenever the rods
+	// change (or the step does), so that solvers that want to plan ahead (see
+	// ParallelConstraintSolver) can.
+	public void prepare(int n, int[] head, int[] tail) {
+	}
+
+	// Moves anchors so that each of the first n rods (ends head[i], tail[i])
+	// has chord length chord[i], where x0, y0 and z0 are where the anchors
+	// were at the start of the step (which fixes the directions they're
+	// moved in) and x, y and z where they are now. w holds each anchor's
+	// inverse mass. The first anchors anchors (ids 0 up to anchors - 1) are
+	// the ones that get put back on the sphere after each pass.
+	public void positions(int n, int[] head, int[] tail, double[] chord, double[] w,
+			int anchors, double[] x0, double[] y0, double[] z0,
+			double[] x, double[] y, double[] z) {
+		m_error = 0;
+		for (int it = 0; it < m_iterations; it++) {
+			double worst = 0;
+			for (int i = 0; i < n; i++) {
+				double e = fix(head[i], tail[i], chord[i], w, x0, y0, z0, x, y, z);
+				if (e > worst) {
+					worst = e;
+				}
+			}
+			for (int i = 0; i < anchors; i++) {
+				settle(i, x0, y0, z0, x, y, z);
+			}
+			m_error = worst;
+			if (worst <= m_tolerance) {
+				break;
+			}
+		}
+	}
+
+	// Pulls the rods to length from where the anchors are now, along the
+	// chords as they are (so plain projection, not SHAKE).
+	public void positions(int n, int[] head, int[] tail, double[] chord, double[] w,
+			int anchors, double[] x, double[] y, double[] z) {
+		positions(n, head, tail, chord, w, anchors, x, y, z, x, y, z);
+	}
+
+	// Takes the stretching part out of the velocities of the ends of the
+	// first n rods, and the part off the sphere out of the velocities of the
+	// first anchors anchors.
+	public void velocities(int n, int[] head, int[] tail, double[] w, int anchors,
+			double[] x, double[] y, double[] z,
+			double[] vx, double[] vy, double[] vz) {
+		for (int it = 0; it < m_iterations; it++) {
+			double worst = 0;
+			for (int i = 0; i < n; i++) {
+				double e = brake(head[i], tail[i], w, x, y, z, vx, vy, vz);
+				if (e > worst) {
+					worst = e;
+				}
+			}
+			for (int i = 0; i < anchors; i++) {
+				tangent(i, x, y, z, vx, vy, vz);
+			}
+			if (worst <= m_tolerance) {
+				break;
+			}
+		}
+	}
+
+	// The same, leaving velocities off the sphere alone.
+	public void velocities(int n, int[] head, int[] tail, double[] w,
+			double[] x, double[] y, double[] z,
+			double[] vx, double[] vy, double[] vz) {
+		velocities(n, head, tail, w, 0, x, y, z, vx, vy, vz);
+	}
+
+	// Records the error left by positions(), for subclasses.
+	void setError(double error) {
+		m_error = error;
+	}
+
+	/**
+	 * Static helpers, shared with the parallel passes.
+	 */
+
+	// Corrects one rod from anchor a to anchor b towards chord length c,
+	// moving the ends along the chord they had at the start of the step (in
+	// x0, y0, z0). Returns how far off it was.
+	static double fix(int a, int b, double c, double[] w,
+			double[] x0, double[] y0, double[] z0,
+			double[] x, double[] y, double[] z) {
+		double wa = w[a];
+		double wb = w[b];
+		double wsum = wa + wb;
+		if (a == b || wsum == 0) {
+			return 0;
+		}
+		double dx = x[b] - x[a];
+		double dy = y[b] - y[a];
+		double dz = z[b] - z[a];
+		double len2 = dx*dx + dy*dy + dz*dz;
+		double err = Math.sqrt(len2) - c;
+		double sx = x0[b] - x0[a];
+		double sy = y0[b] - y0[a];
+		double sz = z0[b] - z0[a];
+		// If the rod has turned a long way from the old chord (more than 60
+		// degrees), pushing along that would barely change its length, and
+		// a push big enough to would throw the ends anywhere, so we push
+		// along the chord as it is instead.
+		double dot = dx * sx + dy * sy + dz * sz;
+		if (dot <= 0 || 4.0 * dot * dot < len2 * (sx*sx + sy*sy + sz*sz)) {
+			sx = dx;
+			sy = dy;
+			sz = dz;
+			dot = len2;
+		}
+		if (dot == 0) {
+			return Math.abs(err);
+		}
+		// How fast the squared length changes as we push.
+		double k = (len2 - c * c) / (2.0 * wsum * dot);
+		x[a] += wa * k * sx;
+		y[a] += wa * k * sy;
+		z[a] += wa * k * sz;
+		x[b] -= wb * k * sx;
+		y[b] -= wb * k * sy;
+		z[b] -= wb * k * sz;
+		return Math.abs(err);
+	}
+
+	// Removes the relative velocity of anchors a and b along their chord.
+	// Returns the speed removed.
+	static double brake(int a, int b, double[] w,
+			double[] x, double[] y, double[] z,
+			double[] vx, double[] vy, double[] vz) {
+		double wa = w[a];
+		double wb = w[b];
+		double wsum = wa + wb;
+		if (a == b || wsum == 0) {
+			return 0;
+		}
+		double dx = x[b] - x[a];
+		double dy = y[b] - y[a];
+		double dz = z[b] - z[a];
+		double len = Math.sqrt(dx*dx + dy*dy + dz*dz);
+		if (len == 0) {
+			return 0;
+		}
+		dx /= len;
+		dy /= len;
+		dz /= len;
+		double rel = (vx[b] - vx[a]) * dx + (vy[b] - vy[a]) * dy + (vz[b] - vz[a]) * dz;
+		double k = rel / wsum;
+		vx[a] += wa * k * dx;
+		vy[a] += wa * k * dy;
+		vz[a] += wa * k * dz;
+		vx[b] -= wb * k * dx;
+		vy[b] -= wb * k * dy;
+		vz[b] -= wb * k * dz;
+		return Math.abs(rel);
+	}
+
+	// Moves anchor i back onto the unit sphere along where it was at the
+	// start of the step (x0, y0, z0), exactly. Returns how far off it was.
+	static double settle(int i, double[] x0, double[] y0, double[] z0,
+			double[] x, double[] y, double[] z) {
+		double px = x0[i];
+		double py = y0[i];
+		double pz = z0[i];
+		double qx = x[i];
+		double qy = y[i];
+		double qz = z[i];
+		// |q + t p| = 1 is a quadratic in t; we want the root nearer 0.
+		double pp = px*px + py*py + pz*pz;
+		double qp = qx*px + qy*py + qz*pz;
+		double qq = qx*qx + qy*qy + qz*qz;
+		double disc = qp * qp - pp * (qq - 1.0);
+		if (pp == 0 || disc < 0 || qp <= 0) {
+			// Gone too far round to get back along the old radius.
+			normalize(i, x, y, z);
+			return Math.abs(Math.sqrt(qq) - 1.0);
+		}
+		double t = (1.0 - qq) / (qp + Math.sqrt(disc));
+		x[i] = qx + t * px;
+		y[i] = qy + t * py;
+		z[i] = qz + t * pz;
+		return Math.abs(Math.sqrt(qq) - 1.0);
+	}
+
+	// Drops the part of anchor i's velocity that points off the sphere.
+	static void tangent(int i, double[] x, double[] y, double[] z,
+			double[] vx, double[] vy, double[] vz) {
+		double d = vx[i] * x[i] + vy[i] * y[i] + vz[i] * z[i];
+		vx[i] -= d * x[i];
+		vy[i] -= d * y[i];
+		vz[i] -= d * z[i];
+	}
+
+	// Scales anchor i back onto the unit sphere.
+	static void normalize(int i, double[] x, double[] y, double[] z) {
+		double r = Math.sqrt(x[i]*x[i] + y[i]*y[i] + z[i]*z[i]);
+		if (r > 0) {
+			x[i] /= r;
+			y[i] /= r;
+			z[i] /= r;
+		}
+	}
+}
@@ -0,0 +1,673 @@
+package blackhole;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+/**
+ * Finds rods that cross each other.
+ *
+ * Rods are arcs of great circles, so two rods cross when their arcs meet
+ * anywhere other than at an anchor they share. Testing every pair of rods is
+ * quadratic, so we do it in two phases:
+ *     1) Broad phase: every rod fits in a ball around the midpoint of its arc
+ *        (a cap, seen from outside the sphere). Balls go into a hashed grid
+ *        of cubes, and only rods in the same or neighbouring cubes, whose
+ *        balls overlap, go on to
+ *     2) Narrow phase: an exact test of whether the two arcs cross, and if
+ *        they do, where.
+ * The grid has levels, each with cubes twice the size of the last, and each
+ * rod goes in the finest level whose cubes are at least as wide as its ball.
+ * Two balls that overlap are then always in neighbouring cubes of the
+ * coarser of their levels, so a rod only has to look at its own level and
+ * the (few, sparsely filled) levels above it, however long some rods are.
+ *
+ * The narrow phase decides everything by which side of one great circle
+ * the ends of the other arc are on. That's the sign of a 3x3 determinant,
+ * which for nearly touching arcs can come out as rounding noise, so when it's
+ * too close to call we work it out again exactly (doubles are exact binary
+ * fractions, so BigDecimal can multiply them out without any rounding).
+ * Arcs that just touch, or run along the same great circle and overlap,
+ * count as crossing.
+ *
+ * Call update() after each step (or whenever things have moved). Rods stay
+ * in the grid from one update to the next and only move between cubes when
+ * they've left theirs, and the grid is only rebuilt when rods are added or
+ * removed.
+ *
+ * @author Rory
+ *
+ */
+public class CrossingDetector {
+
+	// Determinants smaller than this (for unit vectors) are too close to
+	// call with doubles.
+	private static final double ROUNDING = 1.0e-14;
+
+	// The finest cubes are as wide as this share of the balls.
+	private static final double TYPICAL = 0.9;
+
+	// Smallest cube size that keeps each cube coordinate within 19 bits, and
+	// the most levels there can be.
+	private static final double MIN_SIZE = 2.0 / (1 << 18);
+	private static final int LEVELS = 20;
+
+	// The 13 neighbouring cubes that come after a cube, so each pair of
+	// neighbouring cubes is visited once, and all 27 cubes around a cube.
+	private static final int[][] NEIGHBOURS = neighbours(false);
+	private static final int[][] AROUND = neighbours(true);
+
+	// The store whose rods we check, and the graph version we last saw.
+	private final AnchorStore m_store;
+	private int m_version;
+
+	// Per rod id: its ends (-1 if there's no rod), the centre and radius of
+	// its ball, the key of its cube, and its neighbours in its cube's list.
+	private int m_rods;
+	private int[] m_head;
+	private int[] m_tail;
+	private double[] m_mx;
+	private double[] m_my;
+	private double[] m_mz;
+	private double[] m_radius;
+	private long[] m_key;
+	private int[] m_next;
+	private int[] m_prev;
+
+	// The grid: size of the finest cubes, how many rods are in each level,
+	// and an open addressing table from cube key to the first rod in the
+	// cube (or -1 for cubes that have been emptied).
+	private double m_size;
+	private final int[] m_levels;
+
+	// Occupied table slots sorted by level, and where each level starts.
+	private int[] m_order;
+	private final int[] m_levelStart;
+	private long[] m_keys;
+	private int[] m_first;
+	private int m_used;
+
+	// What the last update() found: pairs of rod ids, where they cross, and
+	// how many pairs of balls overlapped.
+	private int m_count;
+	private int[] m_a;
+	private int[] m_b;
+	private double[] m_cx;
+	private double[] m_cy;
+	private double[] m_cz;
+	private int m_candidates;
+
+	// Where the last call to cross() found a crossing.
+	private final double[] m_contact;
+
+	// Key for empty table slots.
+	private static final long EMPTY = Long.MIN_VALUE;
+
+	/**
+	 * Constructors
+	 */
+
+	// Creates a detector for the rods of the given store.
+	public CrossingDetector(AnchorStore store) {
+		m_store = store;
+		m_version = -1;
+		m_rods = 0;
+		m_head = new int[0];
+		m_tail = new int[0];
+		m_mx = m_my = m_mz = m_radius = new double[0];
+		m_key = new long[0];
+		m_next = new int[0];
+		m_prev = new int[0];
+		m_keys = new long[0];
+		m_first = new int[0];
+		m_levels = new int[LEVELS];
+		m_order = new int[0];
+		m_levelStart = new int[LEVELS + 1];
+		m_count = 0;
+		m_a = new int[16];
+		m_b = new int[16];
+		m_cx = new double[16];
+		m_cy = new double[16];
+		m_cz = new double[16];
+		m_contact = new double[3];
+	}
+
+	/**
+	 * Accessors
+	 */
+
+	// Number of crossings found by the last update().
+	public int count() {
+		return m_count;
+	}
+
+	// The two rods of the kth crossing (the first has the lower id).
+	public Rod first(int k) {
+		return m_store.graph().rod(m_a[check(k)]);
+	}
+
+	public Rod second(int k) {
+		return m_store.graph().rod(m_b[check(k)]);
+	}
+
+	// Where the kth crossing is.
+	public Point contact(int k) {
+		check(k);
+		return new Point(m_cx[k], m_cy[k], m_cz[k]);
+	}
+
+	// Number of pairs of rods the last update() had to test exactly.
+	public int candidates() {
+		return m_candidates;
+	}
+
+	/**
+	 * Mutators
+	 */
+
+	// Finds every crossing between the store's rods as they are now, and
+	// returns how many there are.
+	public int update() {
+		double[] x = m_store.xs();
+		double[] y = m_store.ys();
+		double[] z = m_store.zs();
+		if (m_store.graph().version() != m_version) {
+			rebuild(x, y, z);
+		}
+		else if (! refresh(x, y, z)) {
+			rebuild(x, y, z);
+		}
+
+		m_count = 0;
+		m_candidates = 0;
+
+		// Sort the cubes by level.
+		Arrays.fill(m_levelStart, 0);
+		for (int s = 0; s < m_keys.length; s++) {
+			if (m_keys[s] != EMPTY && m_first[s] >= 0) {
+				m_levelStart[level(m_keys[s]) + 1]++;
+			}
+		}
+		for (int l = 0; l < LEVELS; l++) {
+			m_levelStart[l + 1] += m_levelStart[l];
+		}
+		if (m_order.length < m_levelStart[LEVELS]) {
+			m_order = new int[m_keys.length];
+		}
+		int[] fill = Arrays.copyOf(m_levelStart, LEVELS);
+		for (int s = 0; s < m_keys.length; s++) {
+			if (m_keys[s] != EMPTY && m_first[s] >= 0) {
+				m_order[fill[level(m_keys[s])]++] = s;
+			}
+		}
+
+		// Pairs in the same cube, or neighbouring cubes of the same level.
+		for (int k = 0; k < m_levelStart[LEVELS]; k++) {
+			int s = m_order[k];
+			for (int i = m_first[s]; i >= 0; i = m_next[i]) {
+				for (int j = m_next[i]; j >= 0; j = m_next[j]) {
+					test(i, j, x, y, z);
+				}
+			}
+			for (int n = 0; n < NEIGHBOURS.length; n++) {
+				pairs(s, shift(m_keys[s], NEIGHBOURS[n], 0), x, y, z);
+			}
+		}
+
+		// Pairs across levels. We can either look up the cubes of the coarse
+		// level around every fine cube, or the fine cubes around every coarse
+		// rod; whichever takes fewer lookups.
+		for (int coarse = 1; coarse < LEVELS; coarse++) {
+			if (m_levels[coarse] == 0) {
+				continue;
+			}
+			for (int fine = 0; fine < coarse; fine++) {
+				int cubes = m_levelStart[fine + 1] - m_levelStart[fine];
+				if (cubes == 0) {
+					continue;
+				}
+				long reach = 2 * ((1L << (coarse - fine - 1)) + 1) + 1;
+				if (27L * cubes <= m_levels[coarse] * reach * reach * reach) {
+					for (int k = m_levelStart[fine]; k < m_levelStart[fine + 1]; k++) {
+						int s = m_order[k];
+						long above = shift(m_keys[s], null, coarse - fine);
+						for (int n = 0; n < AROUND.length; n++) {
+							pairs(s, shift(above, AROUND[n], 0), x, y, z);
+						}
+					}
+				}
+				else {
+					for (int k = m_levelStart[coarse]; k < m_levelStart[coarse + 1]; k++) {
+						for (int j = m_first[m_order[k]]; j >= 0; j = m_next[j]) {
+							around(j, fine, x, y, z);
+						}
+					}
+				}
+			}
+		}
+		return m_count;
+	}
+
+	/**
+	 * Static helpers.
+	 */
+
+	// Returns whether the arc from a to b crosses the arc from c to d (the
+	// short way round, in both cases). If it does and contact isn't null,
+	// contact gets the point where they meet.
+	public static boolean crosses(Point a, Point b, Point c, Point d, double[] contact) {
+		double[] p = { a.x(), b.x(), c.x(), d.x() };
+		double[] q = { a.y(), b.y(), c.y(), d.y() };
+		double[] r = { a.z(), b.z(), c.z(), d.z() };
+		double[] out = (contact == null) ? new double[3] : contact;
+		return cross(0, 1, 2, 3, p, q, r, out);
+	}
+
+	// Same as above, for the arcs between points a to b and c to d of the
+	// given coordinate arrays.
+	static boolean cross(int a, int b, int c, int d,
+			double[] x, double[] y, double[] z, double[] contact) {
+		// Which side of each great circle the other arc's ends are on.
+		int sc = orient(a, b, c, x, y, z);
+		int sd = orient(a, b, d, x, y, z);
+		if (sc * sd > 0) {
+			return false;
+		}
+		int sa = orient(c, d, a, x, y, z);
+		int sb = orient(c, d, b, x, y, z);
+		if (sa * sb > 0) {
+			return false;
+		}
+
+		if (sa == 0 && sb == 0 && sc == 0 && sd == 0) {
+			// All on one great circle: they cross if an end of one is on the
+			// other.
+			return within(c, a, b, x, y, z, contact)
+					|| within(d, a, b, x, y, z, contact)
+					|| within(a, c, d, x, y, z, contact)
+					|| within(b, c, d, x, y, z, contact);
+		}
+
+		// The great circles meet at two opposite points. Arc cd meets circle
+		// ab at one of them, at the mix of c and d weighted by how far each
+		// is from the circle, and arc ab meets circle cd at one of them the
+		// same way. The arcs cross if those are the same point.
+		double nx = y[a] * z[b] - z[a] * y[b];
+		double ny = z[a] * x[b] - x[a] * z[b];
+		double nz = x[a] * y[b] - y[a] * x[b];
+		double wc = Math.abs(nx * x[d] + ny * y[d] + nz * z[d]);
+		double wd = Math.abs(nx * x[c] + ny * y[c] + nz * z[c]);
+		double px = wc * x[c] + wd * x[d];
+		double py = wc * y[c] + wd * y[d];
+		double pz = wc * z[c] + wd * z[d];
+
+		double mx = y[c] * z[d] - z[c] * y[d];
+		double my = z[c] * x[d] - x[c] * z[d];
+		double mz = x[c] * y[d] - y[c] * x[d];
+		double wa = Math.abs(mx * x[b] + my * y[b] + mz * z[b]);
+		double wb = Math.abs(mx * x[a] + my * y[a] + mz * z[a]);
+		double qx = wa * x[a] + wb * x[b];
+		double qy = wa * y[a] + wb * y[b];
+		double qz = wa * z[a] + wb * z[b];
+
+		double lp = Math.sqrt(px*px + py*py + pz*pz);
+		double lq = Math.sqrt(qx*qx + qy*qy + qz*qz);
+		if (lp == 0 || lq == 0) {
+			// Only happens when an arc has no length (or is half the circle
+			// and so has no particular way round).
+			return false;
+		}
+		if (px * qx + py * qy + pz * qz <= 0) {
+			return false;
+		}
+		set(contact, px / lp + qx / lq, py / lp + qy / lq, pz / lp + qz / lq);
+		return true;
+	}
+
+	/**
+	 * Private methods.
+	 */
+
+	// Re-reads every rod from the graph and sorts them into a fresh grid.
+	private void rebuild(double[] x, double[] y, double[] z) {
+		RodGraph g = m_store.graph();
+		m_version = g.version();
+		m_rods = g.rodCount();
+		if (m_head.length < m_rods) {
+			int n = Math.max(m_rods, 2 * m_head.length);
+			m_head = new int[n];
+			m_tail = new int[n];
+			m_mx = new double[n];
+			m_my = new double[n];
+			m_mz = new double[n];
+			m_radius = new double[n];
+			m_key = new long[n];
+			m_next = new int[n];
+			m_prev = new int[n];
+		}
+		int live = 0;
+		for (int i = 0; i < m_rods; i++) {
+			Rod r = g.rod(i);
+			if (r == null) {
+				m_head[i] = -1;
+				m_tail[i] = -1;
+				continue;
+			}
+			m_head[i] = r.head().id();
+			m_tail[i] = r.tail().id();
+			ball(i, x, y, z);
+			live++;
+		}
+
+		// Size the finest cubes to take most balls.
+		double[] radii = new double[live];
+		int k = 0;
+		for (int i = 0; i < m_rods; i++) {
+			if (m_head[i] >= 0) {
+				radii[k++] = m_radius[i];
+			}
+		}
+		Arrays.sort(radii);
+		double typical = (live == 0) ? 0 : radii[(int) (TYPICAL * (live - 1))];
+		m_size = Math.min(4.0, Math.max(MIN_SIZE, 2 * typical));
+
+		int slots = Integer.highestOneBit(Math.max(16, 4 * live)) * 2;
+		m_keys = new long[slots];
+		Arrays.fill(m_keys, EMPTY);
+		m_first = new int[slots];
+		m_used = 0;
+		Arrays.fill(m_levels, 0);
+		for (int i = 0; i < m_rods; i++) {
+			if (m_head[i] >= 0) {
+				m_key[i] = key(i);
+				file(i);
+			}
+		}
+	}
+
+	// Updates each rod's ball, moving it to another cube if it's left its
+	// own. Returns false if the table has filled up with emptied cubes and
+	// should be rebuilt.
+	private boolean refresh(double[] x, double[] y, double[] z) {
+		for (int i = 0; i < m_rods; i++) {
+			if (m_head[i] < 0) {
+				continue;
+			}
+			ball(i, x, y, z);
+			long key = key(i);
+			if (key != m_key[i]) {
+				unfile(i);
+				m_key[i] = key;
+				file(i);
+			}
+		}
+		return 4 * m_used <= 3 * m_keys.length;
+	}
+
+	// Works out the ball around rod i: centred on the midpoint of its arc,
+	// out to its ends.
+	private void ball(int i, double[] x, double[] y, double[] z) {
+		int a = m_head[i];
+		int b = m_tail[i];
+		double sx = x[a] + x[b];
+		double sy = y[a] + y[b];
+		double sz = z[a] + z[b];
+		double len = Math.sqrt(sx*sx + sy*sy + sz*sz);
+		if (len < 1.0e-9) {
+			// Ends (nearly) opposite: the arc could be anywhere, so the ball
+			// is the whole sphere.
+			m_mx[i] = 0;
+			m_my[i] = 0;
+			m_mz[i] = 0;
+			m_radius[i] = 1;
+			return;
+		}
+		sx /= len;
+		sy /= len;
+		sz /= len;
+		double dx = x[a] - sx;
+		double dy = y[a] - sy;
+		double dz = z[a] - sz;
+		m_mx[i] = sx;
+		m_my[i] = sy;
+		m_mz[i] = sz;
+		m_radius[i] = Math.sqrt(dx*dx + dy*dy + dz*dz);
+	}
+
+	// Tests rods i and j, and records them if they cross.
+	private void test(int i, int j, double[] x, double[] y, double[] z) {
+		int a = m_head[i];
+		int b = m_tail[i];
+		int c = m_head[j];
+		int d = m_tail[j];
+		// Rods meeting at an anchor aren't crossing.
+		if (a == c || a == d || b == c || b == d) {
+			return;
+		}
+		double dx = m_mx[i] - m_mx[j];
+		double dy = m_my[i] - m_my[j];
+		double dz = m_mz[i] - m_mz[j];
+		double r = m_radius[i] + m_radius[j];
+		if (dx*dx + dy*dy + dz*dz > r * r) {
+			return;
+		}
+		m_candidates++;
+		if (! cross(a, b, c, d, x, y, z, m_contact)) {
+			return;
+		}
+		if (m_count == m_a.length) {
+			int n = 2 * m_count;
+			m_a = Arrays.copyOf(m_a, n);
+			m_b = Arrays.copyOf(m_b, n);
+			m_cx = Arrays.copyOf(m_cx, n);
+			m_cy = Arrays.copyOf(m_cy, n);
+			m_cz = Arrays.copyOf(m_cz, n);
+		}
+		m_a[m_count] = Math.min(i, j);
+		m_b[m_count] = Math.max(i, j);
+		m_cx[m_count] = m_contact[0];
+		m_cy[m_count] = m_contact[1];
+		m_cz[m_count] = m_contact[2];
+		m_count++;
+	}
+
+	// The key of the cube rod i's ball is centred in, in the finest level
+	// whose cubes are at least as wide as the ball. Keys hold the level, then
+	// 19 bits for each coordinate.
+	private long key(int i) {
+		double size = m_size;
+		int level = 0;
+		while (2 * m_radius[i] > size && level < LEVELS - 1) {
+			size *= 2;
+			level++;
+		}
+		long cx = (long) Math.floor((m_mx[i] + 1) / size);
+		long cy = (long) Math.floor((m_my[i] + 1) / size);
+		long cz = (long) Math.floor((m_mz[i] + 1) / size);
+		return ((long) level << 57) | (cx << 38) | (cy << 19) | cz;
+	}
+
+	// The level of the given key.
+	private static int level(long key) {
+		return (int) (key >>> 57);
+	}
+
+	// The key of the cube up levels above the given one, offset by d (if
+	// there is one), or EMPTY if that's off the grid.
+	private static long shift(long key, int[] d, int up) {
+		long cx = ((key >>> 38) & 0x7ffff) >> up;
+		long cy = ((key >>> 19) & 0x7ffff) >> up;
+		long cz = (key & 0x7ffff) >> up;
+		if (d != null) {
+			cx += d[0];
+			cy += d[1];
+			cz += d[2];
+		}
+		if (cx < 0 || cy < 0 || cz < 0) {
+			return EMPTY;
+		}
+		return ((long) (level(key) + up) << 57) | (cx << 38) | (cy << 19) | cz;
+	}
+
+	// Tests rod j against every rod in the cubes of the given (finer) level
+	// that its ball could reach.
+	private void around(int j, int level, double[] x, double[] y, double[] z) {
+		double size = m_size * (1 << level);
+		int reach = (int) Math.ceil(m_radius[j] / size + 0.5);
+		long cx = (long) Math.floor((m_mx[j] + 1) / size);
+		long cy = (long) Math.floor((m_my[j] + 1) / size);
+		long cz = (long) Math.floor((m_mz[j] + 1) / size);
+		for (long a = Math.max(0, cx - reach); a <= cx + reach; a++) {
+			for (long b = Math.max(0, cy - reach); b <= cy + reach; b++) {
+				for (long c = Math.max(0, cz - reach); c <= cz + reach; c++) {
+					int t = find(((long) level << 57) | (a << 38) | (b << 19) | c);
+					if (t < 0) {
+						continue;
+					}
+					for (int i = m_first[t]; i >= 0; i = m_next[i]) {
+						test(i, j, x, y, z);
+					}
+				}
+			}
+		}
+	}
+
+	// Tests every rod in slot s against every rod in the cube with the given
+	// key.
+	private void pairs(int s, long key, double[] x, double[] y, double[] z) {
+		int t = find(key);
+		if (t < 0 || m_first[t] < 0) {
+			return;
+		}
+		for (int i = m_first[s]; i >= 0; i = m_next[i]) {
+			for (int j = m_first[t]; j >= 0; j = m_next[j]) {
+				test(i, j, x, y, z);
+			}
+		}
+	}
+
+	// Puts rod i in its cube.
+	private void file(int i) {
+		long key = m_key[i];
+		m_levels[level(key)]++;
+		int s = slot(key);
+		if (m_keys[s] == EMPTY) {
+			m_keys[s] = key;
+			m_first[s] = -1;
+			m_used++;
+		}
+		int first = m_first[s];
+		m_next[i] = first;
+		m_prev[i] = -1;
+		if (first >= 0) {
+			m_prev[first] = i;
+		}
+		m_first[s] = i;
+	}
+
+	// Takes rod i out of its cube. Emptied cubes keep their slot in the table
+	// until the next rebuild.
+	private void unfile(int i) {
+		m_levels[level(m_key[i])]--;
+		int next = m_next[i];
+		int prev = m_prev[i];
+		if (prev >= 0) {
+			m_next[prev] = next;
+		}
+		else {
+			m_first[find(m_key[i])] = next;
+		}
+		if (next >= 0) {
+			m_prev[next] = prev;
+		}
+	}
+
+	// The table slot for the given key: the one holding it, or the empty one
+	// it would go in.
+	private int slot(long key) {
+		int mask = m_keys.length - 1;
+		long h = key * 0x9e3779b97f4a7c15L;
+		int s = (int) (h >>> 40) & mask;
+		while (m_keys[s] != EMPTY && m_keys[s] != key) {
+			s = (s + 1) & mask;
+		}
+		return s;
+	}
+
+	// The table slot holding the given key, or -1.
+	private int find(long key) {
+		if (key == EMPTY) {
+			return -1;
+		}
+		int s = slot(key);
+		return (m_keys[s] == key) ? s : -1;
+	}
+
+	// Makes sure k names a crossing from the last update().
+	private int check(int k) {
+		if (k < 0 || k >= m_count) {
+			throw new IndexOutOfBoundsException("No crossing " + k);
+		}
+		return k;
+	}
+
+	// Which side of the great circle through points a and b point c is on:
+	// the sign of the determinant of a, b and c, exactly.
+	private static int orient(int a, int b, int c, double[] x, double[] y, double[] z) {
+		double det = x[a] * (y[b] * z[c] - z[b] * y[c])
+				+ y[a] * (z[b] * x[c] - x[b] * z[c])
+				+ z[a] * (x[b] * y[c] - y[b] * x[c]);
+		if (det > ROUNDING) {
+			return 1;
+		}
+		if (det < -ROUNDING) {
+			return -1;
+		}
+		BigDecimal ax = new BigDecimal(x[a]), ay = new BigDecimal(y[a]), az = new BigDecimal(z[a]);
+		BigDecimal bx = new BigDecimal(x[b]), by = new BigDecimal(y[b]), bz = new BigDecimal(z[b]);
+		BigDecimal cx = new BigDecimal(x[c]), cy = new BigDecimal(y[c]), cz = new BigDecimal(z[c]);
+		BigDecimal exact = ax.multiply(by.multiply(cz).subtract(bz.multiply(cy)))
+				.add(ay.multiply(bz.multiply(cx).subtract(bx.multiply(cz))))
+				.add(az.multiply(bx.multiply(cy).subtract(by.multiply(cx))));
+		return exact.signum();
+	}
+
+	// Whether point p, on the same great circle as a and b, is on the arc
+	// between them. If it is, contact gets p.
+	private static boolean within(int p, int a, int b, double[] x, double[] y, double[] z,
+			double[] contact) {
+		// On the arc means no further from either end than they are from
+		// each other.
+		double ab = x[a] * x[b] + y[a] * y[b] + z[a] * z[b];
+		double pa = x[p] * x[a] + y[p] * y[a] + z[p] * z[a];
+		double pb = x[p] * x[b] + y[p] * y[b] + z[p] * z[b];
+		if (pa >= ab && pb >= ab) {
+			set(contact, x[p], y[p], z[p]);
+			return true;
+		}
+		return false;
+	}
+
+	// Puts the unit vector along (x, y, z) in contact.
+	private static void set(double[] contact, double x, double y, double z) {
+		double len = Math.sqrt(x*x + y*y + z*z);
+		contact[0] = x / len;
+		contact[1] = y / len;
+		contact[2] = z / len;
+	}
+
+	// The 13 offsets that come after (0, 0, 0), or all 27 offsets.
+	private static int[][] neighbours(boolean all) {
+		int[][] n = new int[all ? 27 : 13][];
+		int k = 0;
+		for (int dx = -1; dx <= 1; dx++) {
+			for (int dy = -1; dy <= 1; dy++) {
+				for (int dz = -1; dz <= 1; dz++) {
+					if (all || dx > 0 || (dx == 0 && dy > 0) || (dx == 0 && dy == 0 && dz > 0)) {
+						n[k++] = new int[] { dx, dy, dz };
+					}
+				}
+			}
+		}
+		return n;
+	}
+}
@@ -2,23 +2,126 @@ package blackhole;
 
 import java.awt.Color;
 import java.awt.Graphics;
-import java.awt.Graphics2D;
-import java.awt.Toolkit;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
 
 import javax.swing.JPanel;
 
+// Shows whatever its RenderLoop last drew. The drawing happens on the loop's
+// own thread, so all painting does here is blit the finished frame. Given a
+// Simulation, it also runs that on a thread of its own, in step with the
+// clock, capturing the store for the loop after every step.
 public class Display extends JPanel {
 
+	private final RenderLoop m_loop;
+
+	// What we're running (null if nothing), and the thread running it.
+	private final Simulation m_sim;
+	private Thread m_stepper;
+	private volatile boolean m_stepping;
+
 	public Display() {
+		this(new RenderLoop(), null);
+	}
+
+	public Display(Simulation sim) {
+		this(new RenderLoop(), sim);
+	}
+
+	public Display(RenderLoop loop, Simulation sim) {
+		m_loop = loop;
+		m_sim = sim;
 		setFocusable(true);
 		setBackground(Color.BLACK);
 		setDoubleBuffered(true);
+
+		// Frames are drawn at whatever size we are, and we repaint whenever
+		// there's a new one.
+		m_loop.setListener(this::repaint);
+		addComponentListener(new ComponentAdapter() {
+			@Override
+			public void componentResized(ComponentEvent e) {
+				m_loop.setSize(getWidth(), getHeight());
+			}
+		});
+	}
+
+	public RenderLoop loop() {
+		return m_loop;
+	}
+
+	public Simulation simulation() {
+		return m_sim;
 	}
-	
+
+	// Starts drawing, and running the simulation if there is one. Called when
+	// we go on screen.
+	public synchronized void start() {
+		m_loop.start();
+		if (m_sim == null || m_stepper != null) {
+			return;
+		}
+		m_stepping = true;
+		m_stepper = new Thread(this::run, "Simulation");
+		m_stepper.setDaemon(true);
+		m_stepper.start();
+	}
+
+	// Stops the simulation (after the step it's on) and the drawing.
+	public synchronized void stop() {
+		if (m_stepper != null) {
+			m_stepping = false;
+			try {
+				m_stepper.join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			m_stepper = null;
+		}
+		m_loop.stop();
+	}
+
+	@Override
+	public void addNotify() {
+		super.addNotify();
+		m_loop.setSize(getWidth(), getHeight());
+		start();
+	}
+
+	@Override
+	public void removeNotify() {
+		stop();
+		super.removeNotify();
+	}
+
 	public void paint(Graphics g) {
 		super.paint(g);
-		g.setColor(Color.DARK_GRAY);
-		g.fillOval(150,150,300,300);
-		g.dispose();
+		m_loop.show(g);
+	}
+
+	// The simulation thread, which owns the store while it's going: a step
+	// every dt seconds (or as often as it can, if a step takes longer), and
+	// a capture after each.
+	private void run() {
+		m_loop.capture(m_sim.store());
+		long next = System.nanoTime();
+		while (m_stepping) {
+			m_sim.step();
+			m_loop.capture(m_sim.store());
+			next += (long) (m_sim.dt() * 1.0e9);
+			long wait = next - System.nanoTime();
+			if (wait > 0) {
+				try {
+					Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+			}
+			else {
+				next = System.nanoTime();
+			}
+		}
 	}
 }
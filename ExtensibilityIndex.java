@@ -0,0 +1,260 @@
+package blackhole;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+
+/**
+ * Works out which rods in a structure are extensible, all at once.
+ *
+ * A rod is extensible exactly when no other path joins its head and tail,
+ * which in graph terms makes it a bridge. Rather than asking every rod to
+ * search the structure (see Rod.isExtensible), we find every bridge in one
+ * pass with Tarjan's low-link trick: number the anchors in depth-first order,
+ * and a tree rod is a bridge if nothing below it reaches back above it. The
+ * search keeps its own stack, so long chains can't overflow the call stack,
+ * and the whole thing is linear in the number of anchors and rods.
+ *
+ * @author Rory
+ *
+ */
+public class ExtensibilityIndex {
+
+	// The rods we analysed, in the order we were given them.
+	private final Rod[] m_rods;
+
+	// Whether each rod (same index as m_rods) is extensible.
+	private final boolean[] m_extensible;
+
+	// Number of extensible rods.
+	private int m_count;
+
+	/**
+	 * Constructors
+	 */
+
+	// Analyses the given rods. Any anchors they share are treated as joints,
+	// and anchors outside the collection are ignored, so pass every rod in
+	// the structure (see forStructure()).
+	public ExtensibilityIndex(Collection<Rod> rods) {
+		m_rods = rods.toArray(new Rod[rods.size()]);
+		m_extensible = new boolean[m_rods.length];
+		m_count = 0;
+		analyse();
+	}
+
+	// Analyses every rod in the given store, straight off its RodGraph. Rod
+	// ids are the indices here; ids that aren't in use have a null rod().
+	public ExtensibilityIndex(AnchorStore store) {
+		RodGraph g = store.graph();
+		g.compact();
+		m_rods = new Rod[g.rodCount()];
+		for (int i = 0; i < m_rods.length; i++) {
+			m_rods[i] = g.rod(i);
+		}
+		m_extensible = new boolean[m_rods.length];
+		m_count = 0;
+		bridges(g.anchorCount(), g.offsets(), g.rods(), g.fars(), m_extensible);
+		for (int i = 0; i < m_rods.length; i++) {
+			if (m_extensible[i]) {
+				m_count++;
+			}
+		}
+	}
+
+	// Analyses the whole structure the given anchor belongs to.
+	public static ExtensibilityIndex forStructure(Anchor anchor) {
+		return new ExtensibilityIndex(structure(anchor));
+	}
+
+	/**
+	 * Accessors
+	 */
+
+	// Number of rods in the index.
+	public int size() {
+		return m_rods.length;
+	}
+
+	// Returns the rod at the given index.
+	public Rod rod(int i) {
+		return m_rods[i];
+	}
+
+	// Returns whether the rod at the given index is extensible.
+	public boolean extensible(int i) {
+		return m_extensible[i];
+	}
+
+	// Number of extensible rods in the structure.
+	public int count() {
+		return m_count;
+	}
+
+	/**
+	 * Mutators
+	 */
+
+	// Stores the results in the rods themselves, so that Rod.extensible() is
+	// up to date.
+	public void apply() {
+		for (int i = 0; i < m_rods.length; i++) {
+			if (m_rods[i] != null) {
+				m_rods[i].setExtensible(m_extensible[i]);
+			}
+		}
+	}
+
+	/**
+	 * Static helpers.
+	 */
+
+	// Collects every rod reachable from the given anchor.
+	public static ArrayList<Rod> structure(Anchor anchor) {
+		ArrayList<Rod> rods = new ArrayList<Rod>();
+		IdentityHashMap<Object, Boolean> seen = new IdentityHashMap<Object, Boolean>();
+		ArrayDeque<Anchor> stack = new ArrayDeque<Anchor>();
+		seen.put(anchor, Boolean.TRUE);
+		stack.push(anchor);
+		while (! stack.isEmpty()) {
+			Anchor a = stack.pop();
+			ArrayList<Rod> attached = a.rods();
+			int size = attached.size();
+			for (int i = 0; i < size; i++) {
+				Rod r = attached.get(i);
+				if (seen.put(r, Boolean.TRUE) != null) {
+					continue;
+				}
+				rods.add(r);
+				Anchor other = (a == r.tail()) ? r.head() : r.tail();
+				if (seen.put(other, Boolean.TRUE) == null) {
+					stack.push(other);
+				}
+			}
+		}
+		return rods;
+	}
+
+	/**
+	 * Private methods.
+	 */
+
+	// Finds the bridges among m_rods.
+	private void analyse() {
+		int e = m_rods.length;
+
+		// Number the anchors and record each rod's endpoints by number.
+		IdentityHashMap<Anchor, Integer> ids = new IdentityHashMap<Anchor, Integer>();
+		int[] head = new int[e];
+		int[] tail = new int[e];
+		for (int i = 0; i < e; i++) {
+			head[i] = number(ids, m_rods[i].head());
+			tail[i] = number(ids, m_rods[i].tail());
+		}
+		int n = ids.size();
+
+		// Lay the adjacency out in flat arrays: the rods at anchor v are
+		// adj[off[v]] up to adj[off[v + 1]], and the anchor at the far end of
+		// each is in far[].
+		int[] off = new int[n + 1];
+		for (int i = 0; i < e; i++) {
+			off[head[i] + 1]++;
+			off[tail[i] + 1]++;
+		}
+		for (int v = 0; v < n; v++) {
+			off[v + 1] += off[v];
+		}
+		int[] fill = Arrays.copyOf(off, n);
+		int[] adj = new int[2 * e];
+		int[] far = new int[2 * e];
+		for (int i = 0; i < e; i++) {
+			adj[fill[head[i]]] = i;
+			far[fill[head[i]]++] = tail[i];
+			adj[fill[tail[i]]] = i;
+			far[fill[tail[i]]++] = head[i];
+		}
+
+		bridges(n, off, adj, far, m_extensible);
+		for (int i = 0; i < e; i++) {
+			if (m_extensible[i]) {
+				m_count++;
+			}
+		}
+	}
+
+	// Marks bridge[r] for every rod r that is a bridge of the graph laid out
+	// in off/adj/far (see analyse(), or RodGraph, which uses the same
+	// layout).
+	static void bridges(int n, int[] off, int[] adj, int[] far, boolean[] bridge) {
+		// Depth-first discovery order of each anchor (-1 if not seen yet),
+		// the lowest discovery order reachable from below it, the rod we came
+		// in on, and how far through its rods we've got.
+		int[] disc = new int[n];
+		int[] low = new int[n];
+		int[] in = new int[n];
+		int[] next = new int[n];
+		int[] stack = new int[n];
+		Arrays.fill(disc, -1);
+		int time = 0;
+
+		for (int s = 0; s < n; s++) {
+			if (disc[s] != -1) {
+				continue;
+			}
+			int sp = 0;
+			stack[sp++] = s;
+			disc[s] = low[s] = time++;
+			in[s] = -1;
+			next[s] = off[s];
+
+			while (sp > 0) {
+				int v = stack[sp - 1];
+				if (next[v] < off[v + 1]) {
+					int k = next[v]++;
+					int r = adj[k];
+					int w = far[k];
+					// Don't go straight back along the rod we came in on (but
+					// a second rod between the same anchors is fair game).
+					if (r == in[v]) {
+						continue;
+					}
+					if (disc[w] == -1) {
+						disc[w] = low[w] = time++;
+						in[w] = r;
+						next[w] = off[w];
+						stack[sp++] = w;
+					}
+					else if (disc[w] < low[v]) {
+						low[v] = disc[w];
+					}
+				}
+				else {
+					// Done with v, so hand its low-link up to its parent.
+					sp--;
+					if (sp > 0) {
+						int u = stack[sp - 1];
+						if (low[v] < low[u]) {
+							low[u] = low[v];
+						}
+						if (low[v] > disc[u]) {
+							bridge[in[v]] = true;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	// Returns the number of the given anchor, handing out the next one if it
+	// hasn't got one yet.
+	private static int number(IdentityHashMap<Anchor, Integer> ids, Anchor a) {
+		Integer id = ids.get(a);
+		if (id == null) {
+			id = ids.size();
+			ids.put(a, id);
+		}
+		return id;
+	}
+}
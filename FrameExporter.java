@@ -0,0 +1,329 @@
+package blackhole;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Writes a run out as numbered PNG files, without a window.
+ *
+ * Saving a frame takes three stages, each on its own thread(s) so that none
+ * holds up the others:
+ *     1) submit(), on whichever thread owns the store, copies it into a Scene
+ *        (see RenderLoop for why).
+ *     2) A render thread draws the scene into an image.
+ *     3) A pool of encoders compresses the images into PNG files, which is
+ *        by far the slowest part, so there are as many as there are cores.
+ * The stages pass scenes and images along through fixed pools, so nothing is
+ * allocated once it's going, and if the encoders fall behind, submit()
+ * waits for one to be free rather than piling up frames in memory. As long
+ * as they keep up, how fast frames come out only depends on how fast the
+ * simulation goes.
+ *
+ * Frames are numbered in the order they were submitted, whatever order the
+ * encoders finish them in. The first thing to go wrong, drawing a frame or
+ * writing it, is thrown from the next submit() and from finish(). Once
+ * something has gone wrong nothing more is drawn, but the render thread
+ * keeps handing scenes back, so neither of those ever waits forever.
+ *
+ * @author Rory
+ *
+ */
+public class FrameExporter {
+
+	// What files are called, given the frame number.
+	private static final String DEFAULT_PATTERN = "frame%06d.png";
+
+	// Where, how big, and seen from where.
+	private final File m_dir;
+	private final int m_width;
+	private final int m_height;
+	private String m_pattern;
+	private volatile Camera m_camera;
+
+	// Scenes and images not in use, and the scenes waiting to be drawn.
+	private final BlockingQueue<Scene> m_scenes;
+	private final BlockingQueue<BufferedImage> m_images;
+	private final BlockingQueue<Job> m_jobs;
+
+	// The render thread and the encoders.
+	private final Thread m_render;
+	private final ThreadPoolExecutor m_encoders;
+
+	// Frames handed in, and written out. The first failure, if any.
+	private int m_submitted;
+	private final AtomicInteger m_written;
+	private volatile Throwable m_failure;
+	private boolean m_finished;
+
+	/**
+	 * Constructors
+	 */
+
+	// Writes width by height frames into dir, with an encoder per core.
+	public FrameExporter(File dir, int width, int height) {
+		this(dir, width, height, Runtime.getRuntime().availableProcessors());
+	}
+
+	public FrameExporter(File dir, int width, int height, int encoders) {
+		if (width <= 0 || height <= 0 || encoders <= 0) {
+			throw new IllegalArgumentException("Bad size or encoder count: " + width + "x" + height + ", " + encoders);
+		}
+		if (! dir.isDirectory() && ! dir.mkdirs()) {
+			throw new IllegalArgumentException("Can't make directory " + dir);
+		}
+		m_dir = dir;
+		m_width = width;
+		m_height = height;
+		m_pattern = DEFAULT_PATTERN;
+		m_camera = new Camera();
+
+		// Enough images to keep every encoder busy while the next ones are
+		// drawn, and enough scenes to keep the renderer busy while the next
+		// one is captured.
+		int images = 2 * encoders;
+		m_images = new ArrayBlockingQueue<BufferedImage>(images);
+		for (int i = 0; i < images; i++) {
+			m_images.add(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB));
+		}
+		m_scenes = new ArrayBlockingQueue<Scene>(2);
+		m_jobs = new ArrayBlockingQueue<Job>(3);
+		m_scenes.add(new Scene());
+		m_scenes.add(new Scene());
+
+		m_encoders = new ThreadPoolExecutor(encoders, encoders, 0, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(images), r -> {
+					Thread t = new Thread(r, "FrameExporter encoder");
+					t.setDaemon(true);
+					return t;
+				});
+		m_written = new AtomicInteger();
+		m_render = new Thread(this::render, "FrameExporter renderer");
+		m_render.setDaemon(true);
+		m_render.start();
+	}
+
+	/**
+	 * Accessors
+	 */
+
+	public File directory() {
+		return m_dir;
+	}
+
+	// Frames handed in so far.
+	public int submitted() {
+		return m_submitted;
+	}
+
+	// Frames written to disk so far.
+	public int written() {
+		return m_written.get();
+	}
+
+	// The file frame k goes in.
+	public File file(int k) {
+		return new File(m_dir, String.format(m_pattern, k));
+	}
+
+	/**
+	 * Mutators
+	 */
+
+	// Camera for frames submitted from now on.
+	public void setCamera(Camera camera) {
+		m_camera = camera;
+	}
+
+	// Sets what files are called: a format string with one integer in it,
+	// the frame number.
+	public void setPattern(String pattern) {
+		m_pattern = pattern;
+	}
+
+	// Hands in the store as it is now, as the next frame. Waits if the
+	// frames before it haven't got far enough along yet.
+	public void submit(AnchorStore store) throws IOException {
+		if (m_finished) {
+			throw new IllegalStateException("Exporter already finished");
+		}
+		check();
+		Scene scene = take(m_scenes);
+		scene.capture(store);
+		put(m_jobs, new Job(scene, m_camera, m_submitted++));
+	}
+
+	// Runs the simulation for the given number of frames, a frame every so
+	// many steps (plus one of how it starts), and waits for them all to be
+	// written.
+	public void record(Simulation sim, int frames, int every) throws IOException {
+		for (int k = 0; k < frames; k++) {
+			if (k > 0) {
+				for (int s = 0; s < every; s++) {
+					sim.step();
+				}
+			}
+			submit(sim.store());
+		}
+		finish();
+	}
+
+	// Waits for every frame to be written, then shuts everything down.
+	public void finish() throws IOException {
+		if (! m_finished) {
+			m_finished = true;
+			put(m_jobs, Job.DONE);
+			try {
+				m_render.join();
+				m_encoders.shutdown();
+				m_encoders.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted waiting for frames", e);
+			}
+		}
+		check();
+	}
+
+	/**
+	 * Private methods.
+	 */
+
+	// The render thread: draws each scene as it comes, and hands the image
+	// to an encoder.
+	private void render() {
+		Renderer renderer = new Renderer();
+		Scene scene = null;
+		BufferedImage image = null;
+		try {
+			while (true) {
+				Job job = take(m_jobs);
+				if (job == Job.DONE) {
+					return;
+				}
+				scene = job.scene;
+				image = take(m_images);
+				Graphics2D g = image.createGraphics();
+				try {
+					renderer.draw(scene, job.camera, g, m_width, m_height);
+				}
+				finally {
+					g.dispose();
+				}
+				put(m_scenes, scene);
+				scene = null;
+				BufferedImage done = image;
+				int k = job.frame;
+				m_encoders.execute(() -> encode(done, k));
+				image = null;
+			}
+		}
+		catch (Throwable e) {
+			fail(e);
+		}
+
+		// Something's gone wrong, so nothing more is drawn. Hand back what
+		// we were holding, and every scene that comes after, until finish().
+		if (scene != null) {
+			m_scenes.offer(scene);
+		}
+		if (image != null) {
+			m_images.offer(image);
+		}
+		while (true) {
+			Job job;
+			try {
+				job = m_jobs.take();
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			if (job == Job.DONE) {
+				return;
+			}
+			m_scenes.offer(job.scene);
+		}
+	}
+
+	// An encoder: writes the image out, and hands it back.
+	private void encode(BufferedImage image, int k) {
+		try {
+			if (m_failure == null) {
+				if (! ImageIO.write(image, "png", file(k))) {
+					throw new IOException("No PNG writer");
+				}
+				m_written.incrementAndGet();
+			}
+		}
+		catch (Throwable e) {
+			fail(e);
+		}
+		finally {
+			put(m_images, image);
+		}
+	}
+
+	// Keeps the first failure.
+	private synchronized void fail(Throwable e) {
+		if (m_failure == null) {
+			m_failure = e;
+		}
+	}
+
+	// Throws the first failure, if there's been one.
+	private void check() throws IOException {
+		Throwable e = m_failure;
+		if (e instanceof IOException) {
+			throw new IOException("Couldn't write frame", e);
+		}
+		if (e != null) {
+			throw new IOException("Couldn't draw frame", e);
+		}
+	}
+
+	// Takes from (and puts into) a queue, waiting as long as it takes.
+	private static <T> T take(BlockingQueue<T> q) {
+		try {
+			return q.take();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted", e);
+		}
+	}
+
+	private static <T> void put(BlockingQueue<T> q, T item) {
+		try {
+			q.put(item);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted", e);
+		}
+	}
+
+	// A scene on its way to being drawn, with the camera to draw it with and
+	// its frame number.
+	private static final class Job {
+		static final Job DONE = new Job(null, null, -1);
+
+		final Scene scene;
+		final Camera camera;
+		final int frame;
+
+		Job(Scene scene, Camera camera, int frame) {
+			this.scene = scene;
+			this.camera = camera;
+			this.frame = frame;
+		}
+	}
+}
@@ -0,0 +1,391 @@
+package blackhole;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Makes big structures to order, for testing how things hold up as they get
+ * bigger.
+ *
+ * Everything is built with a StructureBuilder, so even millions of anchors
+ * and rods go together in one pass, and anything random takes a seed, so the
+ * same arguments always give the same structure. What there is:
+ *     dome     a geodesic sphere: an icosahedron with each face cut into
+ *              frequency^2 triangles, 10 f^2 + 2 anchors and 30 f^2 rods,
+ *              braced all over
+ *     lattice  a grid of latitude and longitude, round each row and down
+ *              each column, with diagonals if it should be braced
+ *     chain    a spiral from pole to pole, each anchor joined to the next
+ *              (and the ends joined, for a ring)
+ *     tree     each anchor hung off a random earlier one, a short step away,
+ *              with a limit on how many children each can have
+ *     random   anchors scattered anywhere, each wanting a number of rods
+ *              drawn from a Degrees, paired off at random
+ *
+ * @author Rory
+ *
+ */
+public class Generator {
+
+	/**
+	 * How many rods each anchor of a random graph wants. There are a few
+	 * ready-made ones below.
+	 */
+	public interface Degrees {
+		int next(Random rand);
+
+		// Always k.
+		static Degrees fixed(int k) {
+			return rand -> k;
+		}
+
+		// Poisson with the given mean, as in a classic random graph.
+		static Degrees poisson(double mean) {
+			double limit = Math.exp(-mean);
+			return rand -> {
+				int k = 0;
+				double p = rand.nextDouble();
+				while (p > limit) {
+					p *= rand.nextDouble();
+					k++;
+				}
+				return k;
+			};
+		}
+
+		// P(k) going as k^-exponent from min to max, so a few anchors have
+		// far more rods than the rest.
+		static Degrees powerLaw(double exponent, int min, int max) {
+			double a = Math.pow(min, 1.0 - exponent);
+			double b = Math.pow(max + 1, 1.0 - exponent);
+			return rand -> {
+				double u = rand.nextDouble();
+				int k = (int) Math.pow(a + u * (b - a), 1.0 / (1.0 - exponent));
+				return Math.max(min, Math.min(max, k));
+			};
+		}
+	}
+
+	// The corners of an icosahedron (before normalizing), and its faces.
+	private static final double GOLDEN = 0.5 * (1.0 + Math.sqrt(5.0));
+	private static final double[][] CORNERS = {
+		{ -1, GOLDEN, 0 }, { 1, GOLDEN, 0 }, { -1, -GOLDEN, 0 }, { 1, -GOLDEN, 0 },
+		{ 0, -1, GOLDEN }, { 0, 1, GOLDEN }, { 0, -1, -GOLDEN }, { 0, 1, -GOLDEN },
+		{ GOLDEN, 0, -1 }, { GOLDEN, 0, 1 }, { -GOLDEN, 0, -1 }, { -GOLDEN, 0, 1 },
+	};
+	private static final int[][] FACES = {
+		{ 0, 11, 5 }, { 0, 5, 1 }, { 0, 1, 7 }, { 0, 7, 10 }, { 0, 10, 11 },
+		{ 1, 5, 9 }, { 5, 11, 4 }, { 11, 10, 2 }, { 10, 7, 6 }, { 7, 1, 8 },
+		{ 3, 9, 4 }, { 3, 4, 2 }, { 3, 2, 6 }, { 3, 6, 8 }, { 3, 8, 9 },
+		{ 4, 9, 5 }, { 2, 4, 11 }, { 6, 2, 10 }, { 8, 6, 7 }, { 9, 8, 1 },
+	};
+
+	/**
+	 * Structures
+	 */
+
+	// A geodesic dome of the given frequency (at least 1).
+	public static AnchorStore dome(int frequency) {
+		int f = frequency;
+		if (f < 1) {
+			throw new IllegalArgumentException("Frequency must be at least 1: " + f);
+		}
+		// The icosahedron's edges, numbered, with the lower corner first.
+		int[][] edge = new int[12][12];
+		int[] ends = new int[60];
+		int edges = 0;
+		for (int[] face : FACES) {
+			for (int s = 0; s < 3; s++) {
+				int u = Math.min(face[s], face[(s + 1) % 3]);
+				int v = Math.max(face[s], face[(s + 1) % 3]);
+				if (edge[u][v] == 0) {
+					ends[2 * edges] = u;
+					ends[2 * edges + 1] = v;
+					edge[u][v] = ++edges;
+				}
+			}
+		}
+
+		// Anchors: the corners, then the points along each edge, then the
+		// points inside each face, each made from how much of each corner
+		// goes into it.
+		if (30L * f * f > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Frequency too high: " + f);
+		}
+		StructureBuilder b = new StructureBuilder(10 * f * f + 2, 30 * f * f);
+		for (int c = 0; c < 12; c++) {
+			mix(b, c, f, 0, 0, 0, 0);
+		}
+		for (int e = 0; e < edges; e++) {
+			for (int s = 1; s < f; s++) {
+				mix(b, ends[2 * e], f - s, ends[2 * e + 1], s, 0, 0);
+			}
+		}
+		int inside = (f - 1) * (f - 2) / 2;
+		int base = 12 + edges * (f - 1);
+		for (int[] face : FACES) {
+			for (int i = 1; i < f; i++) {
+				for (int j = 1; i + j < f; j++) {
+					mix(b, face[0], i, face[1], j, face[2], f - i - j);
+				}
+			}
+		}
+
+		// Rods: along the icosahedron's edges, then the rest of each face's
+		// triangles (leaving out the sides, which are the edges).
+		for (int e = 0; e < edges; e++) {
+			int prev = ends[2 * e];
+			for (int s = 1; s <= f; s++) {
+				int next = (s == f) ? ends[2 * e + 1] : 12 + e * (f - 1) + s - 1;
+				b.rod(prev, next);
+				prev = next;
+			}
+		}
+		int[] w = new int[3];
+		for (int t = 0; t < FACES.length; t++) {
+			int[] face = FACES[t];
+			int first = base + t * inside;
+			// Each point joins the ones one step towards corner 1 and corner
+			// 2 (taking from corner 0), and one step from corner 1 to 2.
+			for (int i = 0; i <= f; i++) {
+				for (int j = 0; i + j <= f; j++) {
+					int k = f - i - j;
+					int p = point(face, edge, f, first, i, j, k, w);
+					if (i > 0) {
+						link(b, face, edge, f, first, i, j, k, i - 1, j + 1, k, p, w);
+						link(b, face, edge, f, first, i, j, k, i - 1, j, k + 1, p, w);
+					}
+					if (j > 0) {
+						link(b, face, edge, f, first, i, j, k, i, j - 1, k + 1, p, w);
+					}
+				}
+			}
+		}
+		return b.build();
+	}
+
+	// A grid of rows by cols anchors, between (but not on) the poles, joined
+	// round each row and down each column, and across each square if braced.
+	public static AnchorStore lattice(int rows, int cols, boolean braced) {
+		if (rows < 1 || cols < 1) {
+			throw new IllegalArgumentException("Bad lattice: " + rows + " by " + cols);
+		}
+		int n = rows * cols;
+		StructureBuilder b = new StructureBuilder(n, (braced ? 3 : 2) * n);
+		for (int k = 0; k < n; k++) {
+			b.anchor(Math.PI * (k / cols + 0.5) / rows, 2.0 * Math.PI * (k % cols) / cols, 1);
+		}
+		for (int k = 0; k < n; k++) {
+			int right = (k % cols == cols - 1) ? k - cols + 1 : k + 1;
+			if (right != k) {
+				b.rod(k, right);
+			}
+			if (k + cols < n) {
+				b.rod(k, k + cols);
+				if (braced && right != k) {
+					b.rod(k, right + cols);
+				}
+			}
+		}
+		return b.build();
+	}
+
+	// A spiral of n anchors, each joined to the next, and the last to the
+	// first if it's a ring.
+	public static AnchorStore chain(int n, boolean ring) {
+		StructureBuilder b = new StructureBuilder(n, n);
+		double turns = Math.sqrt(n);
+		for (int k = 0; k < n; k++) {
+			b.anchor(Math.PI * (k + 0.5) / n, 2.0 * Math.PI * turns * k / n, 1);
+		}
+		for (int k = 0; k + 1 < n; k++) {
+			b.rod(k, k + 1);
+		}
+		if (ring && n > 2) {
+			b.rod(n - 1, 0);
+		}
+		return b.build();
+	}
+
+	// A tree of n anchors, each a step (in radians) away from its parent in a
+	// random direction, and no anchor with more than branching children.
+	public static AnchorStore tree(int n, int branching, double step, long seed) {
+		if (branching < 1) {
+			throw new IllegalArgumentException("Branching must be at least 1: " + branching);
+		}
+		Random rand = new Random(seed);
+		StructureBuilder b = new StructureBuilder(n, n);
+		double[] x = new double[n];
+		double[] y = new double[n];
+		double[] z = new double[n];
+		// Anchors that can still take a child, in a list we pick from at
+		// random (swapping out the ones that fill up).
+		int[] open = new int[n];
+		int[] children = new int[n];
+		int opened = 0;
+		double cs = Math.cos(step);
+		double sn = Math.sin(step);
+		for (int k = 0; k < n; k++) {
+			int parent = -1;
+			if (k == 0) {
+				x[0] = 0;
+				y[0] = 0;
+				z[0] = 1;
+			}
+			else {
+				int slot = rand.nextInt(opened);
+				parent = open[slot];
+				if (++children[parent] == branching) {
+					open[slot] = open[--opened];
+				}
+				// A random direction along the sphere at the parent.
+				double px = x[parent], py = y[parent], pz = z[parent];
+				double ux, uy, uz;
+				if (Math.abs(pz) < 0.9) {
+					ux = -py; uy = px; uz = 0;
+				}
+				else {
+					ux = 0; uy = -pz; uz = py;
+				}
+				double len = Math.sqrt(ux*ux + uy*uy + uz*uz);
+				ux /= len; uy /= len; uz /= len;
+				double vx = py * uz - pz * uy;
+				double vy = pz * ux - px * uz;
+				double vz = px * uy - py * ux;
+				double a = 2.0 * Math.PI * rand.nextDouble();
+				double dx = Math.cos(a) * ux + Math.sin(a) * vx;
+				double dy = Math.cos(a) * uy + Math.sin(a) * vy;
+				double dz = Math.cos(a) * uz + Math.sin(a) * vz;
+				x[k] = px * cs + dx * sn;
+				y[k] = py * cs + dy * sn;
+				z[k] = pz * cs + dz * sn;
+			}
+			b.anchor(new Point(x[k], y[k], z[k]), 1);
+			if (k > 0) {
+				b.rod(parent, k);
+			}
+			open[opened++] = k;
+		}
+		return b.build();
+	}
+
+	// n anchors scattered evenly over the sphere, each wanting a number of
+	// rods drawn from degrees. The wanted rods are paired off at random, and
+	// any pair that would join an anchor to itself, or join two anchors
+	// twice, is dropped, so anchors can end up with a few less.
+	public static AnchorStore random(int n, Degrees degrees, long seed) {
+		Random rand = new Random(seed);
+		StructureBuilder b = new StructureBuilder(n, 0);
+		for (int k = 0; k < n; k++) {
+			b.anchor(Math.acos(2.0 * rand.nextDouble() - 1.0), 2.0 * Math.PI * rand.nextDouble(), 1);
+		}
+		// One stub per rod an anchor wants.
+		int[] stubs = new int[Math.max(16, 2 * n)];
+		int count = 0;
+		for (int k = 0; k < n; k++) {
+			int d = Math.max(0, degrees.next(rand));
+			if (count + d > stubs.length) {
+				stubs = Arrays.copyOf(stubs, Math.max(count + d, 2 * stubs.length));
+			}
+			for (int s = 0; s < d; s++) {
+				stubs[count++] = k;
+			}
+		}
+		for (int s = count - 1; s > 0; s--) {
+			int t = rand.nextInt(s + 1);
+			int swap = stubs[s];
+			stubs[s] = stubs[t];
+			stubs[t] = swap;
+		}
+		long[] pairs = new long[count / 2];
+		int m = 0;
+		for (int s = 0; s + 1 < count; s += 2) {
+			int u = Math.min(stubs[s], stubs[s + 1]);
+			int v = Math.max(stubs[s], stubs[s + 1]);
+			if (u != v) {
+				pairs[m++] = ((long) u << 32) | v;
+			}
+		}
+		Arrays.sort(pairs, 0, m);
+		for (int p = 0; p < m; p++) {
+			if (p == 0 || pairs[p] != pairs[p - 1]) {
+				b.rod((int) (pairs[p] >>> 32), (int) pairs[p]);
+			}
+		}
+		return b.build();
+	}
+
+	// A structure of the given shape (dome, lattice, chain, ring, tree or
+	// random) with about n anchors, for when the shape is picked by name.
+	// Lattices are braced, trees branch three ways a short step at a time,
+	// and random graphs have four rod ends per anchor on average.
+	public static AnchorStore shape(String shape, int n) {
+		if (n < 1) {
+			throw new IllegalArgumentException("Need at least one anchor: " + n);
+		}
+		switch (shape) {
+		case "dome":
+			return dome(Math.max(1, (int) Math.round(Math.sqrt((n - 2) / 10.0))));
+		case "lattice":
+			int side = Math.max(1, (int) Math.round(Math.sqrt(n)));
+			return lattice(side, side, true);
+		case "chain":
+			return chain(n, false);
+		case "ring":
+			return chain(n, true);
+		case "tree":
+			return tree(n, 3, 0.002, n);
+		case "random":
+			return random(n, Degrees.poisson(4), n);
+		default:
+			throw new IllegalArgumentException("No such shape: " + shape);
+		}
+	}
+
+	/**
+	 * Private methods.
+	 */
+
+	// Adds the anchor made of i of corner a, j of b and k of c.
+	private static void mix(StructureBuilder sb, int a, int i, int b, int j, int c, int k) {
+		double x = i * CORNERS[a][0] + j * CORNERS[b][0] + k * CORNERS[c][0];
+		double y = i * CORNERS[a][1] + j * CORNERS[b][1] + k * CORNERS[c][1];
+		double z = i * CORNERS[a][2] + j * CORNERS[b][2] + k * CORNERS[c][2];
+		sb.anchor(new Point(x, y, z), 1);
+	}
+
+	// The id of the point of a dome face with i, j and k of its corners.
+	// Points on the sides belong to the icosahedron's edges, and the corners
+	// to the corners.
+	private static int point(int[] face, int[][] edge, int f, int first, int i, int j, int k, int[] w) {
+		w[0] = i;
+		w[1] = j;
+		w[2] = k;
+		int zeros = ((i == 0) ? 1 : 0) + ((j == 0) ? 1 : 0) + ((k == 0) ? 1 : 0);
+		if (zeros == 2) {
+			return face[(i == f) ? 0 : (j == f) ? 1 : 2];
+		}
+		if (zeros == 1) {
+			// On the side between the two corners it has some of.
+			int s = (i == 0) ? 1 : 0;
+			int t = (k == 0) ? 1 : 2;
+			int u = Math.min(face[s], face[t]);
+			int v = Math.max(face[s], face[t]);
+			int along = (face[s] == v) ? w[s] : w[t];
+			return 12 + (edge[u][v] - 1) * (f - 1) + along - 1;
+		}
+		// Inside: numbered row by row, as they were added.
+		int before = (i - 1) * (f - 2) - (i - 1) * (i - 2) / 2;
+		return first + before + j - 1;
+	}
+
+	// Joins point p (i, j, k) to the point (i2, j2, k2) of the same face,
+	// unless both are on the same side (the edges have those already).
+	private static void link(StructureBuilder b, int[] face, int[][] edge, int f, int first,
+			int i, int j, int k, int i2, int j2, int k2, int p, int[] w) {
+		if ((i == 0 && i2 == 0) || (j == 0 && j2 == 0) || (k == 0 && k2 == 0)) {
+			return;
+		}
+		b.rod(p, point(face, edge, f, first, i2, j2, k2, w));
+	}
+}
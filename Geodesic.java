@@ -0,0 +1,237 @@
+package blackhole;
+
+/**
+ * Geometry on the unit sphere, without the garbage.
+ *
+ * Point is handy but every answer it gives is a new object, which adds up
+ * quickly when you're doing it for every anchor on every step. These do the
+ * same sums on plain doubles: points go in as (x, y, z) and come out in a
+ * caller's array at a given offset, so one scratch array can be reused
+ * forever. The batch versions work down structure-of-arrays coordinates like
+ * AnchorStore's, in loops simple enough for the JIT to unroll (and, where it
+ * can, vectorize).
+ *
+ * Angles follow Point's convention: theta in [0, pi] down from the north pole
+ * and phi in [0, 2 pi) round from the x-axis. Bearings are measured from north
+ * towards east (increasing phi).
+ *
+ * @author Rory
+ *
+ */
+public final class Geodesic {
+
+	// Anything closer to zero than this is zero, as far as picking a
+	// direction goes (same as TestSuite's tolerance).
+	public static final double EPSILON = 0.0000000005;
+
+	private static final double TWO_PI = 2.0 * Math.PI;
+
+	// Nothing to make.
+	private Geodesic() {
+	}
+
+	/**
+	 * Conversions
+	 */
+
+	// Theta of the point with the given z. Rounding can push z a hair outside
+	// [-1, 1], which acos won't take.
+	public static double theta(double z) {
+		return Math.acos(Math.max(-1.0, Math.min(1.0, z)));
+	}
+
+	// Phi of the point with the given x and y, in [0, 2 pi). Adding 0.0 turns
+	// any -0.0 into a plain 0 so atan2 doesn't hand us pi at the poles.
+	public static double phi(double x, double y) {
+		double p = Math.atan2(y + 0.0, x + 0.0);
+		return (p < 0) ? p + TWO_PI : p;
+	}
+
+	// Puts (theta, phi) of the unit vector (x, y, z) into out at o.
+	public static void toPolar(double x, double y, double z, double[] out, int o) {
+		out[o] = theta(z);
+		out[o + 1] = phi(x, y);
+	}
+
+	// Puts the unit vector at (theta, phi) into out at o. The angles don't
+	// need to be in range.
+	public static void toCartesian(double theta, double phi, double[] out, int o) {
+		double st = Math.sin(theta);
+		out[o] = Math.cos(phi) * st;
+		out[o + 1] = Math.sin(phi) * st;
+		out[o + 2] = Math.cos(theta);
+	}
+
+	/**
+	 * Measurements
+	 */
+
+	// Great-circle distance between a and b. atan2 stays accurate for points
+	// that are very close together or nearly opposite, where acos of the dot
+	// product doesn't.
+	public static double distance(double ax, double ay, double az,
+			double bx, double by, double bz) {
+		double cx = ay * bz - az * by;
+		double cy = az * bx - ax * bz;
+		double cz = ax * by - ay * bx;
+		return Math.atan2(Math.sqrt(cx*cx + cy*cy + cz*cz), ax*bx + ay*by + az*bz);
+	}
+
+	// Direction to set off in from a to get to b along a great circle: 0 is
+	// north, pi/2 east. At the poles (where north isn't anywhere) it is 0.
+	public static double bearing(double ax, double ay, double az,
+			double bx, double by, double bz) {
+		// East at a is (-ay, ax, 0) and north is (-az ax, -az ay, ax^2 + ay^2),
+		// both scaled by the same amount, which atan2 doesn't care about.
+		double east = ax * by - ay * bx;
+		double north = bz * (ax*ax + ay*ay) - az * (ax*bx + ay*by);
+		double b = Math.atan2(east, north);
+		return (b < 0) ? b + TWO_PI : b;
+	}
+
+	/**
+	 * Constructions. These return false (and leave out alone) when the answer
+	 * isn't defined, so the caller can decide what to do about it.
+	 */
+
+	// Puts the midpoint of the arc from a to b into out at o. Points directly
+	// across from one another have a whole circle of midpoints, so that's
+	// false.
+	public static boolean midpoint(double ax, double ay, double az,
+			double bx, double by, double bz, double[] out, int o) {
+		double x = (ax + bx) / 2.0;
+		double y = (ay + by) / 2.0;
+		double z = (az + bz) / 2.0;
+		if (Math.abs(x) <= EPSILON && Math.abs(y) <= EPSILON && Math.abs(z) <= EPSILON) {
+			return false;
+		}
+		double len = Math.sqrt(x*x + y*y + z*z);
+		out[o] = x / len;
+		out[o + 1] = y / len;
+		out[o + 2] = z / len;
+		return true;
+	}
+
+	// Puts the point a fraction t of the way along the arc from a to b into
+	// out at o (t outside [0, 1] carries on round the same circle). Like
+	// midpoint(), opposite points don't have an arc.
+	public static boolean slerp(double ax, double ay, double az,
+			double bx, double by, double bz, double t, double[] out, int o) {
+		double d = ax*bx + ay*by + az*bz;
+		// Take b apart into a bit along a and a bit (w) at right angles to it.
+		double wx = bx - d * ax;
+		double wy = by - d * ay;
+		double wz = bz - d * az;
+		double sin = Math.sqrt(wx*wx + wy*wy + wz*wz);
+		if (sin <= EPSILON) {
+			if (d < 0) {
+				return false;
+			}
+			// The same point, near enough.
+			out[o] = ax;
+			out[o + 1] = ay;
+			out[o + 2] = az;
+			return true;
+		}
+		double angle = t * Math.atan2(sin, d);
+		double c = Math.cos(angle);
+		double s = Math.sin(angle) / sin;
+		out[o] = ax * c + wx * s;
+		out[o + 1] = ay * c + wy * s;
+		out[o + 2] = az * c + wz * s;
+		return true;
+	}
+
+	// Puts p turned by angle (right-handed) about the unit axis u into out at
+	// o. Rodrigues' formula.
+	public static void rotate(double ux, double uy, double uz, double angle,
+			double px, double py, double pz, double[] out, int o) {
+		double c = Math.cos(angle);
+		double s = Math.sin(angle);
+		double k = (ux*px + uy*py + uz*pz) * (1.0 - c);
+		out[o] = px * c + (uy * pz - uz * py) * s + ux * k;
+		out[o + 1] = py * c + (uz * px - ux * pz) * s + uy * k;
+		out[o + 2] = pz * c + (ux * py - uy * px) * s + uz * k;
+	}
+
+	/**
+	 * Batch versions, over the first n entries of structure-of-arrays
+	 * coordinates. Outputs may be the same arrays as inputs.
+	 */
+
+	public static void toPolar(int n, double[] x, double[] y, double[] z,
+			double[] theta, double[] phi) {
+		for (int i = 0; i < n; i++) {
+			double t = theta(z[i]);
+			phi[i] = phi(x[i], y[i]);
+			theta[i] = t;
+		}
+	}
+
+	public static void toCartesian(int n, double[] theta, double[] phi,
+			double[] x, double[] y, double[] z) {
+		for (int i = 0; i < n; i++) {
+			double t = theta[i];
+			double p = phi[i];
+			double st = Math.sin(t);
+			x[i] = Math.cos(p) * st;
+			y[i] = Math.sin(p) * st;
+			z[i] = Math.cos(t);
+		}
+	}
+
+	// Turns every point by angle about the unit axis u, in place. The sine
+	// and cosine are only worked out once, so this is just multiply-adds.
+	public static void rotate(int n, double ux, double uy, double uz, double angle,
+			double[] x, double[] y, double[] z) {
+		double c = Math.cos(angle);
+		double s = Math.sin(angle);
+		double d = 1.0 - c;
+		for (int i = 0; i < n; i++) {
+			double px = x[i];
+			double py = y[i];
+			double pz = z[i];
+			double k = (ux*px + uy*py + uz*pz) * d;
+			x[i] = px * c + (uy * pz - uz * py) * s + ux * k;
+			y[i] = py * c + (uz * px - ux * pz) * s + uy * k;
+			z[i] = pz * c + (ux * py - uy * px) * s + uz * k;
+		}
+	}
+
+	// Great-circle lengths of n rods, from the anchors at head[i] and tail[i],
+	// into out.
+	public static void distances(int n, int[] head, int[] tail,
+			double[] x, double[] y, double[] z, double[] out) {
+		for (int i = 0; i < n; i++) {
+			int a = head[i];
+			int b = tail[i];
+			out[i] = distance(x[a], y[a], z[a], x[b], y[b], z[b]);
+		}
+	}
+
+	// Midpoints of n rods into (mx, my, mz). Rods with opposite ends get
+	// (0, 0, 0), since there's no one answer for them. Returns how many of
+	// those there were.
+	public static int midpoints(int n, int[] head, int[] tail,
+			double[] x, double[] y, double[] z,
+			double[] mx, double[] my, double[] mz) {
+		int opposite = 0;
+		for (int i = 0; i < n; i++) {
+			int a = head[i];
+			int b = tail[i];
+			double sx = (x[a] + x[b]) / 2.0;
+			double sy = (y[a] + y[b]) / 2.0;
+			double sz = (z[a] + z[b]) / 2.0;
+			if (Math.abs(sx) <= EPSILON && Math.abs(sy) <= EPSILON && Math.abs(sz) <= EPSILON) {
+				mx[i] = my[i] = mz[i] = 0;
+				opposite++;
+				continue;
+			}
+			double len = Math.sqrt(sx*sx + sy*sy + sz*sz);
+			mx[i] = sx / len;
+			my[i] = sy / len;
+			mz[i] = sz / len;
+		}
+		return opposite;
+	}
+}
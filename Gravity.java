@@ -0,0 +1,581 @@
+package blackhole;
+
+import java.util.Arrays;
+
+/**
+ * Pulls every anchor towards every other one, according to their masses.
+ *
+ * Two anchors i and j at x_i and x_j feel
+ *     G m_i m_j (x_j - x_i) / (|x_j - x_i|^2 + e^2)^(3/2)
+ * where e softens the pull between anchors that are right on top of each
+ * other. Masses can be negative (see Anchor), so a pair whose masses have
+ * the same sign pulls together and a pair of opposite signs pushes apart.
+ * Mass-less anchors neither pull nor get pulled.
+ *
+ * Summing over every pair is quadratic, so we use Barnes and Hut's trick
+ * instead: group the anchors into a hierarchy of cells, and when a cell is
+ * small compared to how far away it is, treat everything in it as one lump
+ * at its centre of mass. The cells are the faces of an icosahedron pushed
+ * out onto the sphere, each split into four smaller triangles (by joining
+ * the midpoints of its sides) as long as it holds more than a few anchors.
+ * A cell counts as far away when its radius is less than the opening angle
+ * times its distance; smaller angles are more accurate and slower, and an
+ * opening angle of 0 gives back the exact sum.
+ *
+ * Positive and negative masses in a cell are lumped separately, each with
+ * its own centre. Lumped together they could cancel out and leave a centre
+ * of mass anywhere at all.
+ *
+ * The cells are rebuilt from scratch on every call, which is O(n log n) like
+ * the sum itself, and reuse their arrays from one call to the next.
+ *
+ * @author Rory
+ *
+ */
+public class Gravity implements Simulation.Force {
+
+	// Cells holding more anchors than this get split.
+	private static final int LEAF_SIZE = 8;
+
+	// Cells this deep don't get split, however many anchors they hold (they
+	// can only be that full if anchors are nearly on top of each other).
+	private static final int MAX_DEPTH = 24;
+
+	// The corners of the icosahedron, and its faces as triples of corners.
+	private static final double[][] CORNERS = corners();
+	private static final int[][] FACES = faces(CORNERS);
+
+	// Strength of the pull (the gravitational constant), opening angle, and
+	// softening distance.
+	private double m_strength;
+	private double m_opening;
+	private double m_softening;
+
+	// The cells. Cell c covers anchors m_perm[m_lo[c]] up to m_perm[m_hi[c]],
+	// and its children (if it has any) are cells m_child[c] up to
+	// m_child[c] + 3, or m_child[c] is -1. The first 20 cells are the faces
+	// of the icosahedron. Each cell has a centre and a radius (as chords),
+	// and the total mass and mass-weighted centre of its positive and its
+	// negative anchors.
+	private int m_cells;
+	private int[] m_lo;
+	private int[] m_hi;
+	private int[] m_child;
+	private double[] m_cx;
+	private double[] m_cy;
+	private double[] m_cz;
+	private double[] m_radius;
+	private double[] m_pos;
+	private double[] m_px;
+	private double[] m_py;
+	private double[] m_pz;
+	private double[] m_neg;
+	private double[] m_nx;
+	private double[] m_ny;
+	private double[] m_nz;
+
+	// Anchor ids, sorted so that every cell's anchors are together, with
+	// room (and counts) to sort them into children.
+	private int[] m_perm;
+	private int[] m_spare;
+	private byte[] m_which;
+	private final int[] m_count;
+
+	// The stack of cells still to visit, and the corners and midpoints of
+	// the cells being split at each depth.
+	private int[] m_stack;
+	private final double[][] m_corners;
+	private final double[][] m_midpoints;
+
+	/**
+	 * Constructors
+	 */
+
+	// Default constructor: unit strength, opening angle of 0.5, and a little
+	// softening.
+	public Gravity() {
+		this(1.0);
+	}
+
+	// Creates a field with the given strength.
+	public Gravity(double strength) {
+		m_strength = strength;
+		m_opening = 0.5;
+		m_softening = 1.0e-3;
+		m_cells = 0;
+		m_lo = new int[0];
+		m_hi = new int[0];
+		m_child = new int[0];
+		m_cx = m_cy = m_cz = m_radius = new double[0];
+		m_pos = m_px = m_py = m_pz = new double[0];
+		m_neg = m_nx = m_ny = m_nz = new double[0];
+		m_perm = new int[0];
+		m_spare = new int[0];
+		m_which = new byte[0];
+		m_count = new int[5];
+		m_stack = new int[64];
+		m_corners = new double[MAX_DEPTH + 1][9];
+		m_midpoints = new double[MAX_DEPTH][9];
+	}
+
+	/**
+	 * Accessors
+	 */
+
+	public double strength() {
+		return m_strength;
+	}
+
+	public double opening() {
+		return m_opening;
+	}
+
+	public double softening() {
+		return m_softening;
+	}
+
+	// Number of cells built by the last call to accumulate().
+	public int cells() {
+		return m_cells;
+	}
+
+	/**
+	 * Mutators
+	 */
+
+	public void setStrength(double strength) {
+		m_strength = strength;
+	}
+
+	// Sets the opening angle: 0 sums every pair exactly, and around 0.5 to 1
+	// is the usual trade-off.
+	public void setOpening(double opening) {
+		m_opening = Math.max(0, opening);
+	}
+
+	public void setSoftening(double softening) {
+		m_softening = softening;
+	}
+
+	// Adds the pull on every anchor in the store into fx, fy and fz.
+	@Override
+	public void accumulate(AnchorStore store, double[] fx, double[] fy, double[] fz) {
+		int n = store.size();
+		double[] x = store.xs();
+		double[] y = store.ys();
+		double[] z = store.zs();
+		double[] mass = store.masses();
+		build(n, x, y, z, mass);
+
+		double eps2 = m_softening * m_softening;
+		double open2 = m_opening * m_opening;
+		// Go through the anchors cell by cell, so that neighbours, which
+		// visit much the same cells, follow each other.
+		for (int p = 0; p < n; p++) {
+			int i = m_perm[p];
+			double mi = mass[i];
+			if (mi == 0) {
+				continue;
+			}
+			double xi = x[i];
+			double yi = y[i];
+			double zi = z[i];
+			double ax = 0;
+			double ay = 0;
+			double az = 0;
+
+			int sp = 0;
+			for (int c = 0; c < FACES.length; c++) {
+				if (m_hi[c] > m_lo[c]) {
+					m_stack[sp++] = c;
+				}
+			}
+			while (sp > 0) {
+				int c = m_stack[--sp];
+				double dx = m_cx[c] - xi;
+				double dy = m_cy[c] - yi;
+				double dz = m_cz[c] - zi;
+				double d2 = dx*dx + dy*dy + dz*dz;
+				double r = m_radius[c];
+				if (r * r < open2 * d2 && r * r < d2) {
+					// Far enough away (and not around anchor i) to lump
+					// together.
+					if (m_pos[c] != 0) {
+						double px = m_px[c] - xi;
+						double py = m_py[c] - yi;
+						double pz = m_pz[c] - zi;
+						double k = m_pos[c] * inverseCube(px*px + py*py + pz*pz + eps2);
+						ax += k * px;
+						ay += k * py;
+						az += k * pz;
+					}
+					if (m_neg[c] != 0) {
+						double qx = m_nx[c] - xi;
+						double qy = m_ny[c] - yi;
+						double qz = m_nz[c] - zi;
+						double k = m_neg[c] * inverseCube(qx*qx + qy*qy + qz*qz + eps2);
+						ax += k * qx;
+						ay += k * qy;
+						az += k * qz;
+					}
+				}
+				else if (m_child[c] < 0) {
+					// Too close, and nothing smaller to look at: add up each
+					// anchor in the cell.
+					for (int k = m_lo[c]; k < m_hi[c]; k++) {
+						int j = m_perm[k];
+						double mj = mass[j];
+						if (j == i || mj == 0) {
+							continue;
+						}
+						double jx = x[j] - xi;
+						double jy = y[j] - yi;
+						double jz = z[j] - zi;
+						double f = mj * inverseCube(jx*jx + jy*jy + jz*jz + eps2);
+						ax += f * jx;
+						ay += f * jy;
+						az += f * jz;
+					}
+				}
+				else {
+					if (sp + 4 > m_stack.length) {
+						m_stack = Arrays.copyOf(m_stack, m_stack.length * 2);
+					}
+					for (int k = m_child[c]; k < m_child[c] + 4; k++) {
+						if (m_hi[k] > m_lo[k]) {
+							m_stack[sp++] = k;
+						}
+					}
+				}
+			}
+
+			double g = m_strength * mi;
+			fx[i] += g * ax;
+			fy[i] += g * ay;
+			fz[i] += g * az;
+		}
+	}
+
+	/**
+	 * Private methods.
+	 */
+
+	// Returns 1 / d^3 for d^2 = d2.
+	private static double inverseCube(double d2) {
+		double inv = 1.0 / Math.sqrt(d2);
+		return inv * inv * inv;
+	}
+
+	// Sorts the first n anchors into cells and totals up each cell's masses.
+	private void build(int n, double[] x, double[] y, double[] z, double[] mass) {
+		if (m_perm.length < n) {
+			m_perm = new int[n];
+			m_spare = new int[n];
+			m_which = new byte[n];
+		}
+
+		// Drop each anchor into the face it's over: on a regular solid,
+		// that's the face whose centre it's closest to.
+		int faces = FACES.length;
+		int[] count = new int[faces + 1];
+		for (int i = 0; i < n; i++) {
+			int best = 0;
+			double most = Double.NEGATIVE_INFINITY;
+			for (int f = 0; f < faces; f++) {
+				double d = FACE_X[f] * x[i] + FACE_Y[f] * y[i] + FACE_Z[f] * z[i];
+				if (d > most) {
+					most = d;
+					best = f;
+				}
+			}
+			m_which[i] = (byte) best;
+			count[best + 1]++;
+		}
+		for (int f = 0; f < faces; f++) {
+			count[f + 1] += count[f];
+		}
+		m_cells = 0;
+		ensure(faces);
+		for (int f = 0; f < faces; f++) {
+			m_lo[f] = count[f];
+			m_hi[f] = count[f + 1];
+		}
+		for (int i = 0; i < n; i++) {
+			m_perm[count[m_which[i]]++] = i;
+		}
+		m_cells = faces;
+
+		for (int f = 0; f < faces; f++) {
+			double[] v = m_corners[0];
+			for (int k = 0; k < 3; k++) {
+				double[] corner = CORNERS[FACES[f][k]];
+				v[3 * k] = corner[0];
+				v[3 * k + 1] = corner[1];
+				v[3 * k + 2] = corner[2];
+			}
+			split(f, 0, x, y, z, mass);
+		}
+	}
+
+	// Works out the shape and masses of cell c, whose corners are in
+	// m_corners[depth], splitting it up first if it's too full.
+	private void split(int c, int depth, double[] x, double[] y, double[] z, double[] mass) {
+		double[] v = m_corners[depth];
+		int lo = m_lo[c];
+		int hi = m_hi[c];
+
+		// The centre, and the radius that takes in all three corners (and so
+		// everything between them).
+		double cx = v[0] + v[3] + v[6];
+		double cy = v[1] + v[4] + v[7];
+		double cz = v[2] + v[5] + v[8];
+		double len = Math.sqrt(cx*cx + cy*cy + cz*cz);
+		cx /= len;
+		cy /= len;
+		cz /= len;
+		double r2 = 0;
+		for (int k = 0; k < 9; k += 3) {
+			double dx = v[k] - cx;
+			double dy = v[k + 1] - cy;
+			double dz = v[k + 2] - cz;
+			r2 = Math.max(r2, dx*dx + dy*dy + dz*dz);
+		}
+		m_cx[c] = cx;
+		m_cy[c] = cy;
+		m_cz[c] = cz;
+		m_radius[c] = Math.sqrt(r2);
+		m_child[c] = -1;
+
+		if (hi - lo <= LEAF_SIZE || depth == MAX_DEPTH) {
+			total(c, x, y, z, mass);
+			return;
+		}
+
+		// Corners A, B, C and the midpoints of AB, BC and CA, pushed out onto
+		// the sphere. The children are the corner triangles at A, B and C,
+		// and the one in the middle.
+		double[] m = m_midpoints[depth];
+		midpoint(v, 0, 3, m, 0);
+		midpoint(v, 3, 6, m, 3);
+		midpoint(v, 6, 0, m, 6);
+
+		// Each corner triangle is cut off by the plane through the origin
+		// and two midpoints; anchors on the corner's side of it go there.
+		int[] count = m_count;
+		Arrays.fill(count, 0);
+		for (int k = lo; k < hi; k++) {
+			int i = m_perm[k];
+			int which = 3;
+			if (side(m, 0, 6, v, 0, x[i], y[i], z[i])) {
+				which = 0;
+			}
+			else if (side(m, 3, 0, v, 3, x[i], y[i], z[i])) {
+				which = 1;
+			}
+			else if (side(m, 6, 3, v, 6, x[i], y[i], z[i])) {
+				which = 2;
+			}
+			m_which[i] = (byte) which;
+			count[which + 1]++;
+		}
+		for (int k = 0; k < 4; k++) {
+			count[k + 1] += count[k];
+		}
+		for (int k = lo; k < hi; k++) {
+			int i = m_perm[k];
+			m_spare[lo + count[m_which[i]]++] = i;
+		}
+		System.arraycopy(m_spare, lo, m_perm, lo, hi - lo);
+
+		int first = m_cells;
+		ensure(first + 4);
+		m_cells += 4;
+		m_child[c] = first;
+		int start = lo;
+		for (int k = 0; k < 4; k++) {
+			m_lo[first + k] = start;
+			m_hi[first + k] = lo + count[k];
+			start = m_hi[first + k];
+		}
+
+		double[] u = m_corners[depth + 1];
+		int[][] children = { { -1, 0, 2 }, { 0, -2, 1 }, { 2, 1, -3 }, { 0, 1, 2 } };
+		for (int k = 0; k < 4; k++) {
+			for (int j = 0; j < 3; j++) {
+				int s = children[k][j];
+				double[] from = (s < 0) ? v : m;
+				int at = (s < 0) ? 3 * (-s - 1) : 3 * s;
+				u[3 * j] = from[at];
+				u[3 * j + 1] = from[at + 1];
+				u[3 * j + 2] = from[at + 2];
+			}
+			split(first + k, depth + 1, x, y, z, mass);
+		}
+
+		// Add up the children.
+		double pos = 0, px = 0, py = 0, pz = 0;
+		double neg = 0, nx = 0, ny = 0, nz = 0;
+		for (int k = first; k < first + 4; k++) {
+			pos += m_pos[k];
+			px += m_pos[k] * m_px[k];
+			py += m_pos[k] * m_py[k];
+			pz += m_pos[k] * m_pz[k];
+			neg += m_neg[k];
+			nx += m_neg[k] * m_nx[k];
+			ny += m_neg[k] * m_ny[k];
+			nz += m_neg[k] * m_nz[k];
+		}
+		store(c, pos, px, py, pz, neg, nx, ny, nz);
+	}
+
+	// Totals up the masses of the anchors in cell c directly.
+	private void total(int c, double[] x, double[] y, double[] z, double[] mass) {
+		double pos = 0, px = 0, py = 0, pz = 0;
+		double neg = 0, nx = 0, ny = 0, nz = 0;
+		for (int k = m_lo[c]; k < m_hi[c]; k++) {
+			int i = m_perm[k];
+			double mi = mass[i];
+			if (mi > 0) {
+				pos += mi;
+				px += mi * x[i];
+				py += mi * y[i];
+				pz += mi * z[i];
+			}
+			else if (mi < 0) {
+				neg += mi;
+				nx += mi * x[i];
+				ny += mi * y[i];
+				nz += mi * z[i];
+			}
+		}
+		store(c, pos, px, py, pz, neg, nx, ny, nz);
+	}
+
+	// Records cell c's masses, given their mass-weighted positions.
+	private void store(int c, double pos, double px, double py, double pz,
+			double neg, double nx, double ny, double nz) {
+		m_pos[c] = pos;
+		m_neg[c] = neg;
+		if (pos != 0) {
+			m_px[c] = px / pos;
+			m_py[c] = py / pos;
+			m_pz[c] = pz / pos;
+		}
+		if (neg != 0) {
+			m_nx[c] = nx / neg;
+			m_ny[c] = ny / neg;
+			m_nz[c] = nz / neg;
+		}
+	}
+
+	// Puts the midpoint of the points at a and b in v, pushed out onto the
+	// sphere, into m at c.
+	private static void midpoint(double[] v, int a, int b, double[] m, int c) {
+		double x = v[a] + v[b];
+		double y = v[a + 1] + v[b + 1];
+		double z = v[a + 2] + v[b + 2];
+		double len = Math.sqrt(x*x + y*y + z*z);
+		m[c] = x / len;
+		m[c + 1] = y / len;
+		m[c + 2] = z / len;
+	}
+
+	// Whether (x, y, z) is on the same side as corner v[at] of the plane
+	// through the origin and the midpoints m[a] and m[b].
+	private static boolean side(double[] m, int a, int b, double[] v, int at,
+			double x, double y, double z) {
+		double nx = m[a + 1] * m[b + 2] - m[a + 2] * m[b + 1];
+		double ny = m[a + 2] * m[b] - m[a] * m[b + 2];
+		double nz = m[a] * m[b + 1] - m[a + 1] * m[b];
+		double corner = nx * v[at] + ny * v[at + 1] + nz * v[at + 2];
+		double point = nx * x + ny * y + nz * z;
+		return (corner > 0) ? point >= 0 : point <= 0;
+	}
+
+	// Makes room for at least size cells.
+	private void ensure(int size) {
+		if (size <= m_lo.length) {
+			return;
+		}
+		int capacity = Math.max(size, m_lo.length * 2);
+		m_lo = Arrays.copyOf(m_lo, capacity);
+		m_hi = Arrays.copyOf(m_hi, capacity);
+		m_child = Arrays.copyOf(m_child, capacity);
+		m_cx = Arrays.copyOf(m_cx, capacity);
+		m_cy = Arrays.copyOf(m_cy, capacity);
+		m_cz = Arrays.copyOf(m_cz, capacity);
+		m_radius = Arrays.copyOf(m_radius, capacity);
+		m_pos = Arrays.copyOf(m_pos, capacity);
+		m_px = Arrays.copyOf(m_px, capacity);
+		m_py = Arrays.copyOf(m_py, capacity);
+		m_pz = Arrays.copyOf(m_pz, capacity);
+		m_neg = Arrays.copyOf(m_neg, capacity);
+		m_nx = Arrays.copyOf(m_nx, capacity);
+		m_ny = Arrays.copyOf(m_ny, capacity);
+		m_nz = Arrays.copyOf(m_nz, capacity);
+	}
+
+	/**
+	 * The icosahedron.
+	 */
+
+	// Centres of the faces, for finding which face an anchor is over.
+	private static final double[] FACE_X = new double[FACES.length];
+	private static final double[] FACE_Y = new double[FACES.length];
+	private static final double[] FACE_Z = new double[FACES.length];
+	static {
+		for (int f = 0; f < FACES.length; f++) {
+			for (int k = 0; k < 3; k++) {
+				FACE_X[f] += CORNERS[FACES[f][k]][0];
+				FACE_Y[f] += CORNERS[FACES[f][k]][1];
+				FACE_Z[f] += CORNERS[FACES[f][k]][2];
+			}
+		}
+	}
+
+	// The twelve corners, (0, +-1, +-g) and its rotations for the golden
+	// ratio g, on the unit sphere.
+	private static double[][] corners() {
+		double g = (1 + Math.sqrt(5)) / 2;
+		double len = Math.sqrt(1 + g * g);
+		double[][] corners = new double[12][];
+		int k = 0;
+		for (int s = -1; s <= 1; s += 2) {
+			for (int t = -1; t <= 1; t += 2) {
+				corners[k++] = new double[] { 0, s / len, t * g / len };
+				corners[k++] = new double[] { s / len, t * g / len, 0 };
+				corners[k++] = new double[] { t * g / len, 0, s / len };
+			}
+		}
+		return corners;
+	}
+
+	// The twenty faces: every three corners that are all an edge apart.
+	private static int[][] faces(double[][] corners) {
+		double edge = Double.POSITIVE_INFINITY;
+		for (int j = 1; j < corners.length; j++) {
+			edge = Math.min(edge, chord(corners[0], corners[j]));
+		}
+		int[][] faces = new int[20][];
+		int f = 0;
+		for (int a = 0; a < corners.length; a++) {
+			for (int b = a + 1; b < corners.length; b++) {
+				for (int c = b + 1; c < corners.length; c++) {
+					if (chord(corners[a], corners[b]) < edge * 1.01
+							&& chord(corners[b], corners[c]) < edge * 1.01
+							&& chord(corners[a], corners[c]) < edge * 1.01) {
+						faces[f++] = new int[] { a, b, c };
+					}
+				}
+			}
+		}
+		return faces;
+	}
+
+	private static double chord(double[] a, double[] b) {
+		double dx = a[0] - b[0];
+		double dy = a[1] - b[1];
+		double dz = a[2] - b[2];
+		return Math.sqrt(dx*dx + dy*dy + dz*dz);
+	}
+}
@@ -0,0 +1,472 @@
+package blackhole;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the total mass, centre of mass and moment of inertia of every
+ * connected structure in an AnchorStore up to date as it changes.
+ *
+ * Walking a structure's anchors every time somebody asks is linear in its
+ * size. Instead each structure keeps running sums: its mass, its first
+ * moment (sum of m p) and its second moment (sum of m p p^T). Everything
+ * else comes out of those in a few multiplies. The cache listens to the
+ * store, and keeps its own copy of each anchor's mass and position, so
+ * when one anchor is resized or moved it can take the old contribution
+ * out of its structure's sums and put the new one in.
+ *
+ * Structures are kept in a union-find, so a rod joining two of them just
+ * adds one's sums into the other's. A rod coming out can split a structure
+ * in two. By then Connectivity has worked out which half is smaller, so we
+ * walk just that half, file it under a structure of its own and take its
+ * sums out of the old one, which the larger half keeps. That costs time
+ * linear in the smaller half, same as Connectivity. Slots the moved anchors
+ * leave behind are picked up again when we run out.
+ *
+ * Structures put together all at once by StructureBuilder don't tell the
+ * store rod by rod, so make the cache after build(). refresh() starts over.
+ *
+ * @author Rory
+ *
+ */
+public class MassProperties {
+
+	// The store we're watching, and the listener we've given it.
+	private final AnchorStore m_store;
+	private final Tracker m_tracker;
+
+	// Number of anchors we know about, and for each one: the structure it
+	// was filed under (follow m_parent to get to the structure itself), and
+	// its mass and position last time we looked.
+	private int m_anchors;
+	private int[] m_slot;
+	private double[] m_mass;
+	private double[] m_x;
+	private double[] m_y;
+	private double[] m_z;
+
+	// Marks and a queue for walking the smaller half of a split.
+	private int[] m_visit;
+	private int[] m_queue;
+
+	// The structures, as a union-find. A slot that is its own parent is a
+	// structure, with a number of anchors, total mass, first moment (x, y, z)
+	// and second moment (xx, yy, zz, xy, xz, yz). Unused slots are chained
+	// through m_parent from m_free.
+	private int[] m_parent;
+	private int[] m_size;
+	private double[] m_total;
+	private double[] m_first;
+	private double[] m_second;
+	private int m_free;
+	private int m_count;
+
+	// Marks for the slots still in use, when we're looking for ones to reuse.
+	private int[] m_seen;
+	private int m_stamp;
+
+	/**
+	 * Constructors
+	 */
+
+	// Sums up the store's structures as they are now, and keeps them summed.
+	public MassProperties(AnchorStore store) {
+		m_store = store;
+		m_tracker = new Tracker();
+		refresh();
+		store.addListener(m_tracker);
+	}
+
+	/**
+	 * Accessors
+	 */
+
+	public AnchorStore store() {
+		return m_store;
+	}
+
+	// Number of separate structures (lone anchors count).
+	public int count() {
+		return m_count;
+	}
+
+	// Which structure the given anchor is part of. Two anchors are joined if
+	// and only if these are the same, but a structure's number can change
+	// whenever a rod comes or goes.
+	public int component(int id) {
+		check(id);
+		return find(m_slot[id]);
+	}
+
+	// Number of anchors in the given anchor's structure.
+	public int size(int id) {
+		return m_size[component(id)];
+	}
+
+	// Total mass of the given anchor's structure.
+	public double mass(int id) {
+		return m_total[component(id)];
+	}
+
+	// Puts the centre of mass of the given anchor's structure (somewhere
+	// inside the sphere) into out at o. Returns false, and leaves out alone,
+	// if the structure weighs nothing.
+	public boolean centre(int id, double[] out, int o) {
+		int c = component(id);
+		double m = m_total[c];
+		if (m == 0) {
+			return false;
+		}
+		out[o] = m_first[3 * c] / m;
+		out[o + 1] = m_first[3 * c + 1] / m;
+		out[o + 2] = m_first[3 * c + 2] / m;
+		return true;
+	}
+
+	// Puts the moment of inertia of the given anchor's structure about the
+	// centre of the sphere (which is what it turns about, see RigidBodies)
+	// into out, a row at a time.
+	public void inertia(int id, double[] out) {
+		int c = component(id);
+		int k = 6 * c;
+		double[] t = m_second;
+		// sum m (|p|^2 - p p^T)
+		double trace = t[k] + t[k + 1] + t[k + 2];
+		out[0] = trace - t[k];
+		out[4] = trace - t[k + 1];
+		out[8] = trace - t[k + 2];
+		out[1] = out[3] = -t[k + 3];
+		out[2] = out[6] = -t[k + 4];
+		out[5] = out[7] = -t[k + 5];
+	}
+
+	// Puts the moment of inertia of the given anchor's structure about its
+	// own centre of mass into out, a row at a time. Same as inertia() for
+	// structures that weigh nothing.
+	public void centralInertia(int id, double[] out) {
+		inertia(id, out);
+		int c = find(m_slot[id]);
+		double m = m_total[c];
+		if (m == 0) {
+			return;
+		}
+		// Parallel axis theorem, backwards: take off m (|c|^2 - c c^T).
+		double cx = m_first[3 * c] / m;
+		double cy = m_first[3 * c + 1] / m;
+		double cz = m_first[3 * c + 2] / m;
+		double cc = cx*cx + cy*cy + cz*cz;
+		out[0] -= m * (cc - cx * cx);
+		out[4] -= m * (cc - cy * cy);
+		out[8] -= m * (cc - cz * cz);
+		out[1] += m * cx * cy;
+		out[3] += m * cx * cy;
+		out[2] += m * cx * cz;
+		out[6] += m * cx * cz;
+		out[5] += m * cy * cz;
+		out[7] += m * cy * cz;
+	}
+
+	/**
+	 * Mutators
+	 */
+
+	// Forgets everything and sums up every structure from scratch.
+	public void refresh() {
+		m_store.settle();
+		int n = m_store.size();
+		m_anchors = 0;
+		m_slot = new int[0];
+		m_mass = new double[0];
+		m_x = new double[0];
+		m_y = new double[0];
+		m_z = new double[0];
+		m_visit = new int[0];
+		m_queue = new int[0];
+		m_parent = new int[0];
+		m_size = new int[0];
+		m_total = new double[0];
+		m_first = new double[0];
+		m_second = new double[0];
+		m_seen = new int[0];
+		m_stamp = 0;
+		m_free = -1;
+		m_count = 0;
+		grow(n);
+		growSlots(n);
+		for (int i = 0; i < n; i++) {
+			insert(i);
+		}
+		RodGraph g = m_store.graph();
+		for (int id = 0; id < g.rodCount(); id++) {
+			Rod r = g.rod(id);
+			if (r != null) {
+				join(r.head().id(), r.tail().id());
+			}
+		}
+	}
+
+	// Stops listening to the store. The cache is out of date from then on.
+	public void detach() {
+		m_store.removeListener(m_tracker);
+	}
+
+	/**
+	 * Private methods.
+	 */
+
+	// Structure filed under the given slot, squashing the path on the way.
+	private int find(int s) {
+		int root = s;
+		while (m_parent[root] != root) {
+			root = m_parent[root];
+		}
+		while (m_parent[s] != root) {
+			int next = m_parent[s];
+			m_parent[s] = root;
+			s = next;
+		}
+		return root;
+	}
+
+	// Starts keeping track of a new anchor, on its own.
+	private void insert(int id) {
+		if (id >= m_slot.length) {
+			grow(Math.max(id + 1, 2 * m_slot.length));
+		}
+		int s = slot();
+		m_anchors = Math.max(m_anchors, id + 1);
+		m_slot[id] = s;
+		look(id);
+		add(id, s, 1);
+	}
+
+	// The rod between a and b has come in.
+	private void join(int a, int b) {
+		int ra = find(m_slot[a]);
+		int rb = find(m_slot[b]);
+		if (ra == rb) {
+			return;
+		}
+		// Smaller under bigger keeps the paths short.
+		if (m_size[ra] > m_size[rb]) {
+			int t = ra;
+			ra = rb;
+			rb = t;
+		}
+		m_parent[ra] = rb;
+		m_size[rb] += m_size[ra];
+		m_total[rb] += m_total[ra];
+		for (int k = 0; k < 3; k++) {
+			m_first[3 * rb + k] += m_first[3 * ra + k];
+		}
+		for (int k = 0; k < 6; k++) {
+			m_second[6 * rb + k] += m_second[6 * ra + k];
+		}
+		m_count--;
+	}
+
+	// The rod between a and b has gone. If they're still joined some other
+	// way nothing has changed; otherwise their structure has come in two,
+	// and the smaller half moves out.
+	private void split(int a, int b) {
+		Connectivity c = m_store.connectivity();
+		if (c.connected(a, b)) {
+			return;
+		}
+		int from = (c.pieceSize(a) <= c.pieceSize(b)) ? a : b;
+		int old = find(m_slot[from]);
+		int n = walk(from);
+		int s = slot();
+		for (int i = 0; i < n; i++) {
+			int id = m_queue[i];
+			add(id, old, -1);
+			m_slot[id] = s;
+			add(id, s, 1);
+		}
+		m_size[s] = n;
+		m_size[old] -= n;
+	}
+
+	// Puts every anchor joined to anchor v (v included) into m_queue, and
+	// returns how many there are.
+	private int walk(int v) {
+		RodGraph g = m_store.graph();
+		int[] off = g.offsets();
+		int[] far = g.fars();
+		int stamp = ++m_stamp;
+		int n = 0;
+		m_visit[v] = stamp;
+		m_queue[n++] = v;
+		for (int h = 0; h < n; h++) {
+			int u = m_queue[h];
+			if (u < g.anchorCount()) {
+				for (int k = off[u]; k < off[u + 1]; k++) {
+					if (! g.dead(k)) {
+						n = visit(far[k], stamp, n);
+					}
+				}
+			}
+			for (int k = g.first(u); k != -1; k = g.next(k)) {
+				if (g.rod(g.addedRod(k)) != null) {
+					n = visit(g.addedFar(k), stamp, n);
+				}
+			}
+		}
+		return n;
+	}
+
+	// Step of walk(): queues anchor w unless it's already been seen.
+	private int visit(int w, int stamp, int n) {
+		if (m_visit[w] != stamp) {
+			m_visit[w] = stamp;
+			m_queue[n++] = w;
+		}
+		return n;
+	}
+
+	// Takes a new, empty structure off the free list.
+	private int slot() {
+		if (m_free == -1) {
+			reclaim();
+		}
+		int s = m_free;
+		m_free = m_parent[s];
+		m_parent[s] = s;
+		m_size[s] = 1;
+		m_total[s] = 0;
+		Arrays.fill(m_first, 3 * s, 3 * s + 3, 0);
+		Arrays.fill(m_second, 6 * s, 6 * s + 6, 0);
+		m_count++;
+		return s;
+	}
+
+	// Adds (sign 1) or takes away (sign -1) anchor id's contribution, as of
+	// the last look(), to structure c's sums.
+	private void add(int id, int c, double sign) {
+		double m = sign * m_mass[id];
+		double x = m_x[id];
+		double y = m_y[id];
+		double z = m_z[id];
+		m_total[c] += m;
+		int k = 3 * c;
+		m_first[k] += m * x;
+		m_first[k + 1] += m * y;
+		m_first[k + 2] += m * z;
+		k = 6 * c;
+		m_second[k] += m * x * x;
+		m_second[k + 1] += m * y * y;
+		m_second[k + 2] += m * z * z;
+		m_second[k + 3] += m * x * y;
+		m_second[k + 4] += m * x * z;
+		m_second[k + 5] += m * y * z;
+	}
+
+	// Copies anchor id's mass and position out of the store.
+	private void look(int id) {
+		m_mass[id] = m_store.mass(id);
+		m_x[id] = m_store.x(id);
+		m_y[id] = m_store.y(id);
+		m_z[id] = m_store.z(id);
+	}
+
+	// Anchor id has changed somehow: swap its old contribution for its new.
+	// Reading the store can set off rotations it has put off (and so more
+	// calls to this), so get those out of the way first.
+	private void update(int id) {
+		m_store.settle();
+		int c = find(m_slot[id]);
+		add(id, c, -1);
+		look(id);
+		add(id, c, 1);
+	}
+
+	// Out of slots. When the smaller half of a split moves out, the slots it
+	// was filed under partway up the tree stay where they are, whether or
+	// not anything still leads through them. So file every anchor straight
+	// under its structure and hand back every slot that isn't one. If that
+	// doesn't free up half of them, make room for twice as many, so this
+	// only happens once in a while.
+	private void reclaim() {
+		int stamp = ++m_stamp;
+		for (int id = 0; id < m_anchors; id++) {
+			int s = find(m_slot[id]);
+			m_slot[id] = s;
+			m_seen[s] = stamp;
+		}
+		int n = m_parent.length;
+		int spare = 0;
+		for (int s = n - 1; s >= 0; s--) {
+			if (m_seen[s] != stamp) {
+				m_parent[s] = m_free;
+				m_free = s;
+				spare++;
+			}
+		}
+		if (spare < n / 2 + 1) {
+			growSlots(Math.max(2 * n, 16));
+		}
+	}
+
+	// Grows the per-anchor arrays to hold n anchors.
+	private void grow(int n) {
+		m_slot = Arrays.copyOf(m_slot, n);
+		m_mass = Arrays.copyOf(m_mass, n);
+		m_x = Arrays.copyOf(m_x, n);
+		m_y = Arrays.copyOf(m_y, n);
+		m_z = Arrays.copyOf(m_z, n);
+		m_visit = Arrays.copyOf(m_visit, n);
+		m_queue = Arrays.copyOf(m_queue, n);
+	}
+
+	// Grows the per-slot arrays to hold n structures, and puts the new slots
+	// on the free list.
+	private void growSlots(int n) {
+		int old = m_parent.length;
+		m_parent = Arrays.copyOf(m_parent, n);
+		m_size = Arrays.copyOf(m_size, n);
+		m_total = Arrays.copyOf(m_total, n);
+		m_first = Arrays.copyOf(m_first, 3 * n);
+		m_second = Arrays.copyOf(m_second, 6 * n);
+		m_seen = Arrays.copyOf(m_seen, n);
+		for (int s = n - 1; s >= old; s--) {
+			m_parent[s] = m_free;
+			m_free = s;
+		}
+	}
+
+	// Makes sure an id refers to an anchor we know about, and that any
+	// rotations the store has put off have been taken into account.
+	private void check(int id) {
+		m_store.settle();
+		if (id < 0 || id >= m_anchors) {
+			throw new IndexOutOfBoundsException("No anchor with id " + id);
+		}
+	}
+
+	// What the store tells us.
+	private final class Tracker implements AnchorStore.Listener {
+		@Override
+		public void added(int id) {
+			insert(id);
+		}
+
+		@Override
+		public void moved(int id) {
+			update(id);
+		}
+
+		@Override
+		public void resized(int id) {
+			update(id);
+		}
+
+		@Override
+		public void linked(Rod r) {
+			join(r.head().id(), r.tail().id());
+		}
+
+		@Override
+		public void unlinked(Rod r) {
+			split(r.head().id(), r.tail().id());
+		}
+	}
+}
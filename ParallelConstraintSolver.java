@@ -0,0 +1,392 @@
+package blackhole;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A ConstraintSolver that spreads each pass over every core.
+ *
+ * Fixing one rod moves both of its anchors, so two rods that share an anchor
+ * can't be fixed at the same time. We colour the rods so that no two rods of
+ * the same colour share an anchor (greedily, which needs at most twice as
+ * many colours as the busiest anchor has rods), and then fix one colour at a
+ * time, splitting each colour into chunks for a ForkJoin pool. Within a
+ * colour the order doesn't matter, so the result is the same no matter how
+ * many threads run it. Even on one thread the colouring helps: rods next to
+ * each other in a colour don't wait on each other's results.
+ *
+ * Colours are passes, so this suits structures where every anchor has a
+ * handful of rods. A hub with D rods needs at least D colours, and greedy
+ * colouring can take up to 2D - 1. With a power law of rods per anchor,
+ * where a few anchors have hundreds, most of those passes hold a handful of
+ * rods each, and waiting between them is all the threads do (see the solver
+ * benchmarks in Benchmarks).
+ *
+ * The colouring is worked out in prepare() and reused until the rods change.
+ *
+ * @author Rory
+ *
+ */
+public class ParallelConstraintSolver extends ConstraintSolver {
+
+	// What a chunk does.
+	private static final int FIX = 0;
+	private static final int BRAKE = 1;
+	private static final int SETTLE = 2;
+	private static final int TANGENT = 3;
+
+	// Rods (or anchors) per chunk, below which splitting isn't worth it.
+	private static final int DEFAULT_GRAIN = 4096;
+
+	// The pool we run chunks on.
+	private final ForkJoinPool m_pool;
+	private int m_grain;
+
+	// The colouring: each rod's colour, rod indices sorted by colour, where
+	// each colour starts in that order, and the chunks for each colour.
+	private int m_rods;
+	private int[] m_head;
+	private int[] m_tail;
+	private int[] m_color;
+	private int[] m_order;
+	private int[] m_classes;
+	private int m_colors;
+	private Chunk[][] m_chunks;
+
+	// Chunks for putting anchors back on the sphere, and how many anchors
+	// they cover.
+	private Chunk[] m_anchorChunks;
+	private int m_anchors;
+
+	// The arrays the current pass works on.
+	private double[] m_chord;
+	private double[] m_w;
+	private double[] m_x0;
+	private double[] m_y0;
+	private double[] m_z0;
+	private double[] m_x;
+	private double[] m_y;
+	private double[] m_z;
+	private double[] m_vx;
+	private double[] m_vy;
+	private double[] m_vz;
+
+	/**
+	 * Constructors
+	 */
+
+	// Default constructor: runs on the common ForkJoin pool.
+	public ParallelConstraintSolver() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	// Creates a solver that runs on the given pool.
+	public ParallelConstraintSolver(ForkJoinPool pool) {
+		m_pool = pool;
+		m_grain = DEFAULT_GRAIN;
+		m_rods = -1;
+		m_color = new int[0];
+		m_order = new int[0];
+		m_classes = new int[1];
+		m_colors = 0;
+		m_chunks = new Chunk[0][];
+		m_anchorChunks = new Chunk[0];
+		m_anchors = -1;
+	}
+
+	/**
+	 * Accessors
+	 */
+
+	// Number of colours the rods needed.
+	public int colors() {
+		return m_colors;
+	}
+
+	// Colour of the rod at index i (as passed to prepare()).
+	public int color(int i) {
+		return m_color[i];
+	}
+
+	public int grain() {
+		return m_grain;
+	}
+
+	/**
+	 * Mutators
+	 */
+
+	// Sets the chunk size. Smaller chunks balance better but cost more to
+	// hand out.
+	public void setGrain(int grain) {
+		m_grain = Math.max(1, grain);
+		m_rods = -1;
+		m_anchors = -1;
+	}
+
+	// Colours the rods.
+	@Override
+	public void prepare(int n, int[] head, int[] tail) {
+		m_rods = n;
+		m_head = head;
+		m_tail = tail;
+
+		// Lay the rods out by anchor so we can see each rod's neighbours.
+		int anchors = 0;
+		for (int i = 0; i < n; i++) {
+			anchors = Math.max(anchors, Math.max(head[i], tail[i]) + 1);
+		}
+		int[] off = new int[anchors + 1];
+		for (int i = 0; i < n; i++) {
+			off[head[i] + 1]++;
+			off[tail[i] + 1]++;
+		}
+		for (int v = 0; v < anchors; v++) {
+			off[v + 1] += off[v];
+		}
+		int[] fill = Arrays.copyOf(off, anchors);
+		int[] adj = new int[2 * n];
+		for (int i = 0; i < n; i++) {
+			adj[fill[head[i]]++] = i;
+			adj[fill[tail[i]]++] = i;
+		}
+
+		// Give each rod the lowest colour none of its neighbours has yet.
+		int[] color = new int[n];
+		Arrays.fill(color, -1);
+		int[] seen = new int[16];
+		Arrays.fill(seen, -1);
+		m_colors = 0;
+		for (int i = 0; i < n; i++) {
+			for (int end = 0; end < 2; end++) {
+				int v = (end == 0) ? head[i] : tail[i];
+				for (int k = off[v]; k < off[v + 1]; k++) {
+					int c = color[adj[k]];
+					if (c >= 0) {
+						seen[c] = i;
+					}
+				}
+			}
+			int c = 0;
+			while (c < seen.length && seen[c] == i) {
+				c++;
+			}
+			if (c == seen.length) {
+				seen = Arrays.copyOf(seen, seen.length * 2);
+				Arrays.fill(seen, c, seen.length, -1);
+			}
+			color[i] = c;
+			m_colors = Math.max(m_colors, c + 1);
+		}
+		m_color = color;
+
+		// Sort the rods by colour, keeping their order within a colour.
+		m_classes = new int[m_colors + 1];
+		for (int i = 0; i < n; i++) {
+			m_classes[color[i] + 1]++;
+		}
+		for (int c = 0; c < m_colors; c++) {
+			m_classes[c + 1] += m_classes[c];
+		}
+		fill = Arrays.copyOf(m_classes, m_colors);
+		m_order = new int[n];
+		for (int i = 0; i < n; i++) {
+			m_order[fill[color[i]]++] = i;
+		}
+
+		m_chunks = new Chunk[m_colors][];
+		for (int c = 0; c < m_colors; c++) {
+			m_chunks[c] = split(m_classes[c], m_classes[c + 1]);
+		}
+	}
+
+	@Override
+	public void positions(int n, int[] head, int[] tail, double[] chord, double[] w,
+			int anchors, double[] x0, double[] y0, double[] z0,
+			double[] x, double[] y, double[] z) {
+		ready(n, head, tail, anchors);
+		m_chord = chord;
+		m_w = w;
+		m_x0 = x0;
+		m_y0 = y0;
+		m_z0 = z0;
+		m_x = x;
+		m_y = y;
+		m_z = z;
+		setError(0);
+		for (int it = 0; it < iterations(); it++) {
+			double worst = 0;
+			for (int c = 0; c < m_colors; c++) {
+				worst = Math.max(worst, run(m_chunks[c], FIX));
+			}
+			run(m_anchorChunks, SETTLE);
+			setError(worst);
+			if (worst <= tolerance()) {
+				break;
+			}
+		}
+		m_chord = null;
+		m_w = null;
+		m_x0 = m_y0 = m_z0 = null;
+		m_x = m_y = m_z = null;
+	}
+
+	@Override
+	public void velocities(int n, int[] head, int[] tail, double[] w, int anchors,
+			double[] x, double[] y, double[] z,
+			double[] vx, double[] vy, double[] vz) {
+		ready(n, head, tail, (anchors > 0) ? anchors : -1);
+		m_w = w;
+		m_x = x;
+		m_y = y;
+		m_z = z;
+		m_vx = vx;
+		m_vy = vy;
+		m_vz = vz;
+		for (int it = 0; it < iterations(); it++) {
+			double worst = 0;
+			for (int c = 0; c < m_colors; c++) {
+				worst = Math.max(worst, run(m_chunks[c], BRAKE));
+			}
+			if (anchors > 0) {
+				run(m_anchorChunks, TANGENT);
+			}
+			if (worst <= tolerance()) {
+				break;
+			}
+		}
+		m_w = null;
+		m_x = m_y = m_z = null;
+		m_vx = m_vy = m_vz = null;
+	}
+
+	/**
+	 * Private methods.
+	 */
+
+	// Makes sure the colouring matches the rods we've been handed and the
+	// anchor chunks cover the anchors.
+	private void ready(int n, int[] head, int[] tail, int anchors) {
+		if (n != m_rods || head != m_head || tail != m_tail) {
+			prepare(n, head, tail);
+		}
+		if (anchors != m_anchors && anchors >= 0) {
+			m_anchors = anchors;
+			m_anchorChunks = split(0, anchors);
+		}
+	}
+
+	// Runs a set of chunks, in parallel if there's more than one and more
+	// than one thread to run them on. Returns the worst error any of them saw.
+	private double run(Chunk[] chunks, int kind) {
+		if (chunks.length == 1 || m_pool.getParallelism() == 1) {
+			double worst = 0;
+			for (int i = 0; i < chunks.length; i++) {
+				chunks[i].work(kind);
+				worst = Math.max(worst, chunks[i].m_worst);
+			}
+			return worst;
+		}
+		for (int i = 0; i < chunks.length; i++) {
+			chunks[i].reinitialize();
+			chunks[i].m_kind = kind;
+		}
+		if (ForkJoinTask.inForkJoinPool()) {
+			ForkJoinTask.invokeAll(chunks);
+		}
+		else {
+			m_pool.invoke(new Batch(chunks));
+		}
+		double worst = 0;
+		for (int i = 0; i < chunks.length; i++) {
+			worst = Math.max(worst, chunks[i].m_worst);
+		}
+		return worst;
+	}
+
+	// Splits positions from up to to into chunks of about m_grain.
+	private Chunk[] split(int from, int to) {
+		int count = Math.max(1, (to - from + m_grain - 1) / m_grain);
+		Chunk[] chunks = new Chunk[count];
+		for (int i = 0; i < count; i++) {
+			int a = from + (int) ((long) (to - from) * i / count);
+			int b = from + (int) ((long) (to - from) * (i + 1) / count);
+			chunks[i] = new Chunk(a, b);
+		}
+		return chunks;
+	}
+
+	// A run of rods (positions in m_order) or anchors to work through.
+	private final class Chunk extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int m_from;
+		private final int m_to;
+		private int m_kind;
+		private double m_worst;
+
+		Chunk(int from, int to) {
+			m_from = from;
+			m_to = to;
+		}
+
+		@Override
+		protected void compute() {
+			work(m_kind);
+		}
+
+		void work(int kind) {
+			double worst = 0;
+			int[] order = m_order;
+			int[] head = m_head;
+			int[] tail = m_tail;
+			if (kind == FIX) {
+				for (int k = m_from; k < m_to; k++) {
+					int i = order[k];
+					double e = fix(head[i], tail[i], m_chord[i], m_w, m_x0, m_y0, m_z0, m_x, m_y, m_z);
+					if (e > worst) {
+						worst = e;
+					}
+				}
+			}
+			else if (kind == BRAKE) {
+				for (int k = m_from; k < m_to; k++) {
+					int i = order[k];
+					double e = brake(head[i], tail[i], m_w, m_x, m_y, m_z, m_vx, m_vy, m_vz);
+					if (e > worst) {
+						worst = e;
+					}
+				}
+			}
+			else if (kind == SETTLE) {
+				for (int i = m_from; i < m_to; i++) {
+					settle(i, m_x0, m_y0, m_z0, m_x, m_y, m_z);
+				}
+			}
+			else {
+				for (int i = m_from; i < m_to; i++) {
+					tangent(i, m_x, m_y, m_z, m_vx, m_vy, m_vz);
+				}
+			}
+			m_worst = worst;
+		}
+	}
+
+	// Runs a set of chunks from outside the pool.
+	private static final class Batch extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Chunk[] m_chunks;
+
+		Batch(Chunk[] chunks) {
+			m_chunks = chunks;
+		}
+
+		@Override
+		protected void compute() {
+			invokeAll(m_chunks);
+		}
+	}
+}
@@ -15,11 +15,18 @@ public class Point {
 	 *       lie along the x-axis in equivalent rectangular coordinates.
 	 */
 
-	// I'm going to store everything as polar coordinates unless a huge amount
-	// of conversions to rectangular form are required, at which point it may
-	// make more sense to keep tabs on both.
+	// Everything used to be stored as polar coordinates only, but reading the
+	// rectangular coordinates turned out to be the hot path (rods compare
+	// endpoints, the display projects them), so we keep tabs on both. The
+	// angles and the unit vector are always updated together, which makes
+	// x(), y() and z() plain field reads.
 	private double m_theta;
 	private double m_phi;
+	private double m_x;
+	private double m_y;
+	private double m_z;
+
+	private static final double TWO_PI = 2.0 * Math.PI;
 
 	/**
 	 * Constructors:
@@ -33,14 +40,19 @@ public class Point {
 	public Point() {
 		m_theta = 0;
 		m_phi = 0;
+		m_x = 0;
+		m_y = 0;
+		m_z = 1;
 	}
 	
-	// Copy constructor, copies given point into this one.
+	// Copy constructor, copies given point into this one. The other point is
+	// already normalized, so there's nothing to recompute.
 	public Point(Point other) {
-		m_theta = other.theta();
-		m_phi = other.phi();
-		
-		validate();
+		m_theta = other.m_theta;
+		m_phi = other.m_phi;
+		m_x = other.m_x;
+		m_y = other.m_y;
+		m_z = other.m_z;
 	}
 
 	// Polar coordinate constructor.
@@ -69,43 +81,17 @@ public class Point {
 		y = y / radius;
 		z = z / radius;
 
+		// We already have the unit vector, so keep it rather than rebuilding
+		// it from the angles.
+		m_x = x;
+		m_y = y;
+		m_z = z;
+
 		// http://en.wikipedia.org/wiki/Spherical_coordinate_system#Coordinate_system_conversions
-		m_theta = Math.acos(z);
-		
-		// We could run into a couple problems with phi when x = 0.
-		if (Double.compare(x, 0) == 0) {
-			switch (Double.compare(y, 0)) {
-				// If x is 0 and y is negative, we are at phi = -pi/2
-				case -1: m_phi = 3.0 * Math.PI / 2.0; break;
-				// If both x and y are 0, we are at a pole, and it makes sense
-				// to set phi to 0.
-				case 0: m_phi = 0; break;
-				// If x is 0 and y is positive, we are at phi = pi/2
-				case 1: m_phi = Math.PI / 2.0; break;
-				default: break;
-			}
-		}
-		else {
-			double tx = Math.tan(x);
-			double ty = Math.tan(y);
-			// Quadrant 1
-			if (tx > 0 && ty > 0) {
-				m_phi = Math.atan(y/x);
-			}
-			// Quadrant 2
-			else if (tx > 0 && ty < 0) {
-				m_phi = Math.atan(y/x) + Math.PI / 2.0;
-			}
-			// Quadrant 3
-			else if (tx < 0 && ty < 0) {
-				m_phi = Math.atan(y/x) + Math.PI;
-			}
-			// Quadrant 4
-			else
-			{
-				m_phi = Math.atan(y/x) + 3.0 * Math.PI / 2.0;
-			}
-		}
+		// atan2 sorts out the quadrants (and x = 0) for us. At the poles x and
+		// y are both 0 and phi comes back as 0, which is what we want.
+		m_theta = Geodesic.theta(z);
+		m_phi = Geodesic.phi(x, y);
 	}
 
 	/**
@@ -121,17 +107,17 @@ public class Point {
 		return m_theta;
 	}
 
-	// Accessors for rectangular coordinates (see above wikipedia page).
+	// Accessors for rectangular coordinates (cached, see refresh() below).
 	public double x() {
-		return Math.cos(m_phi) * Math.sin(m_theta);
+		return m_x;
 	}
 
 	public double y() {
-		return Math.sin(m_phi) * Math.sin(m_theta);
+		return m_y;
 	}
 
 	public double z() {
-		return Math.cos(m_theta);
+		return m_z;
 	}
 	
 	public void display() {
@@ -148,16 +134,9 @@ public class Point {
 	// Returns the midpoint of this point and a second point.
 	public Point midpoint(Point p) {
 		
-		TestSuite t = new TestSuite();
-		
-		double x_avg = (x() + p.x()) / 2.0;
-		double y_avg = (y() + p.y()) / 2.0;
-		double z_avg = (z() + p.z()) / 2.0;
-		
 		// If points are directly across from one another...
-		if (t.feq(x_avg, 0) &&
-		    t.feq(y_avg, 0) &&
-		    t.feq(z_avg, 0)) {
+		double[] m = new double[3];
+		if (! Geodesic.midpoint(m_x, m_y, m_z, p.m_x, p.m_y, p.m_z, m, 0)) {
 			
 			// I guess, average the polar coordinate values and return that.
 			double theta_avg = (m_theta + p.theta()) / 2.0;
@@ -165,8 +144,10 @@ public class Point {
 			return new Point(theta_avg, phi_avg);
 		}
 		
-		// The point constructor normalizes these values for us.
-		return new Point(x_avg, y_avg, z_avg);
+		// Already on the sphere, so skip the normalizing constructor.
+		Point mid = new Point();
+		mid.set(m[0], m[1], m[2]);
+		return mid;
 	}
 
 	/**
@@ -181,6 +162,61 @@ public class Point {
 		validate();
 	}
 
+	// Turns the point rigidly (unlike the above, which just bumps the angles
+	// and so stretches anything drawn between points).
+	public void rotate(Rotation r) {
+		double[] v = new double[3];
+		r.apply(m_x, m_y, m_z, v, 0);
+		double len = Math.sqrt(v[0]*v[0] + v[1]*v[1] + v[2]*v[2]);
+		set(v[0] / len, v[1] / len, v[2] / len);
+	}
+
+	/**
+	 * Normalization helpers, shared with AnchorStore so that both agree on
+	 * what a valid pair of angles looks like. These run in constant time no
+	 * matter how far out of range the angles are.
+	 */
+
+	// Returns the equivalent of theta in [0, pi]. If theta is negative it is
+	// inverted, and anything past pi is wrapped back by multiples of 2 pi
+	// (then inverted again if that overshot).
+	static double normalTheta(double theta) {
+		if (theta < 0) {
+			theta = -theta;
+		}
+		if (theta > Math.PI) {
+			theta -= TWO_PI * Math.ceil((theta - Math.PI) / TWO_PI);
+		}
+		if (theta < 0) {
+			theta = -theta;
+		}
+		return theta;
+	}
+
+	// Returns the equivalent of phi in [0, 2 pi] for the given (possibly out of
+	// range) theta. Every time normalTheta() inverts theta we end up on the
+	// other side of the pole, which adds pi to phi.
+	static double normalPhi(double theta, double phi) {
+		if (theta < 0) {
+			theta = -theta;
+			phi += Math.PI;
+		}
+		if (theta > Math.PI) {
+			theta -= TWO_PI * Math.ceil((theta - Math.PI) / TWO_PI);
+		}
+		if (theta < 0) {
+			phi += Math.PI;
+		}
+		
+		if (phi < 0) {
+			phi += TWO_PI * Math.ceil(-phi / TWO_PI);
+		}
+		else if (phi > TWO_PI) {
+			phi -= TWO_PI * Math.ceil((phi - TWO_PI) / TWO_PI);
+		}
+		return phi;
+	}
+
 	/**
 	 * Private methods.
 	 */
@@ -189,33 +225,27 @@ public class Point {
 	// Currently this code corrects the values to their equivalents
 	// in the appropriate range, without throwing any errors.
 	private void validate() {
+		// Phi depends on the original theta, so it has to go first.
+		m_phi = normalPhi(m_theta, m_phi);
+		m_theta = normalTheta(m_theta);
 		
-		// If we are given a negative theta value, invert it and add
-		// pi to phi.
-		if (Double.compare(m_theta, 0) == -1) {
-			m_theta *= -1.0;
-			m_phi += Math.PI;
-		}
-		// If a theta is given that is greater than pi, scale it back.
-		while (Double.compare(m_theta,  Math.PI) == 1) {
-			m_theta -= (2.0 * Math.PI);
-		}
-		// This may have made a previously positive value negative, so
-		// check again.
-		if (Double.compare(m_theta, 0) == -1) {
-			m_theta *= -1.0;
-			m_phi += Math.PI;
-		}
+		refresh();
+	}
 
-		// If we are given a negative phi value, rotate by positive 2 pi
-		// until it is in the proper range.
-		while (Double.compare(m_phi, 0) == -1) {
-			m_phi += (2.0 * Math.PI);
-		}
-		// If we are given a phi value over 2 pi, rotate by negative 2 pi
-		// until it is in the proper range.
-		while (Double.compare(m_phi, 2.0 * Math.PI) == 1) {
-			m_phi -= (2.0 * Math.PI);
-		}
+	// Sets the unit vector (already normalized) and the angles to match.
+	private void set(double x, double y, double z) {
+		m_x = x;
+		m_y = y;
+		m_z = z;
+		m_theta = Geodesic.theta(z);
+		m_phi = Geodesic.phi(x, y);
+	}
+
+	// Recompute the cached unit vector from the angles.
+	private void refresh() {
+		double st = Math.sin(m_theta);
+		m_x = Math.cos(m_phi) * st;
+		m_y = Math.sin(m_phi) * st;
+		m_z = Math.cos(m_theta);
 	}
 }
@@ -0,0 +1,281 @@
+package blackhole;
+
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+/**
+ * Draws frames on a thread of its own, so nothing that produces them (a
+ * Simulation, say) or shows them (Display) has to wait for the drawing.
+ *
+ * Whoever owns the store calls capture() when there's something new to
+ * show, which copies it into a Scene (see Scene for why). Scenes are triple
+ * buffered: capture() fills a spare one and swaps it with the latest, and
+ * the render thread swaps the latest for the one it's done with, so neither
+ * side waits on the other for longer than it takes to swap two references.
+ * A capture the renderer hasn't got round to yet is simply replaced by the
+ * next one.
+ *
+ * Frames are drawn into the back of two images and then swapped to the
+ * front, where show() can blit them. Drawing waits until there's a new scene
+ * (or camera, or size) to draw, and never starts more than the given number
+ * of frames a second.
+ *
+ * @author Rory
+ *
+ */
+public class RenderLoop {
+
+	// Frame rate the default constructor caps us at.
+	private static final int DEFAULT_RATE = 60;
+
+	// What we draw with, and the thread we draw on (null when stopped).
+	private final Renderer m_renderer;
+	private Thread m_thread;
+	private volatile boolean m_running;
+
+	// Shortest time between frames, in nanoseconds.
+	private final long m_period;
+
+	// Guards everything below it down to the images: the scenes (spare is
+	// capture()'s to fill, latest is the newest full one, drawing is the
+	// render thread's), whether latest is newer than drawing, whether there's
+	// anything new to draw at all, the camera and the size of the frames.
+	private final Object m_lock;
+	private Scene m_spare;
+	private Scene m_latest;
+	private Scene m_drawing;
+	private boolean m_captured;
+	private boolean m_fresh;
+	private Camera m_camera;
+	private int m_width;
+	private int m_height;
+
+	// The frame on show and the one being drawn, guarded by m_frameLock so a
+	// frame isn't drawn over while it's being blitted.
+	private final Object m_frameLock;
+	private BufferedImage m_front;
+	private BufferedImage m_back;
+	private long m_frames;
+
+	// Told (on the render thread) whenever a new frame is ready.
+	private volatile Runnable m_listener;
+
+	/**
+	 * Constructors
+	 */
+
+	// Default constructor: capped at 60 frames a second.
+	public RenderLoop() {
+		this(DEFAULT_RATE);
+	}
+
+	public RenderLoop(int rate) {
+		if (rate <= 0) {
+			throw new IllegalArgumentException("Frame rate must be positive: " + rate);
+		}
+		m_renderer = new Renderer();
+		m_period = 1000000000L / rate;
+		m_lock = new Object();
+		m_spare = new Scene();
+		m_latest = new Scene();
+		m_drawing = new Scene();
+		m_fresh = true;
+		m_camera = new Camera();
+		m_width = 1;
+		m_height = 1;
+		m_frameLock = new Object();
+	}
+
+	/**
+	 * Accessors
+	 */
+
+	public Camera camera() {
+		synchronized (m_lock) {
+			return m_camera;
+		}
+	}
+
+	public boolean running() {
+		return m_running;
+	}
+
+	// Number of frames drawn so far.
+	public long frames() {
+		synchronized (m_frameLock) {
+			return m_frames;
+		}
+	}
+
+	// Blits the latest finished frame onto g at (0, 0). Returns false (and
+	// draws nothing) if there isn't one yet.
+	public boolean show(Graphics g) {
+		synchronized (m_frameLock) {
+			if (m_front == null) {
+				return false;
+			}
+			g.drawImage(m_front, 0, 0, null);
+			return true;
+		}
+	}
+
+	/**
+	 * Mutators
+	 */
+
+	// Copies the store for the next frame. Call from the thread that changes
+	// the store, whenever it's in a state worth showing (e.g. after each
+	// Simulation step).
+	public void capture(AnchorStore store) {
+		Scene s;
+		synchronized (m_lock) {
+			s = m_spare;
+			m_spare = null;
+		}
+		// Only one capture at a time gets a scene to fill; anyone else has to
+		// wait for the next frame.
+		if (s == null) {
+			return;
+		}
+		s.capture(store);
+		synchronized (m_lock) {
+			m_spare = m_latest;
+			m_latest = s;
+			m_captured = true;
+			m_fresh = true;
+			m_lock.notifyAll();
+		}
+	}
+
+	public void setCamera(Camera camera) {
+		synchronized (m_lock) {
+			m_camera = camera;
+			m_fresh = true;
+			m_lock.notifyAll();
+		}
+	}
+
+	// Size of the frames to draw, in pixels.
+	public void setSize(int width, int height) {
+		synchronized (m_lock) {
+			if (width == m_width && height == m_height) {
+				return;
+			}
+			m_width = Math.max(1, width);
+			m_height = Math.max(1, height);
+			m_fresh = true;
+			m_lock.notifyAll();
+		}
+	}
+
+	public void setListener(Runnable listener) {
+		m_listener = listener;
+	}
+
+	// Starts the render thread (if it isn't already going).
+	public synchronized void start() {
+		if (m_thread != null) {
+			return;
+		}
+		m_running = true;
+		m_thread = new Thread(this::run, "RenderLoop");
+		m_thread.setDaemon(true);
+		m_thread.start();
+	}
+
+	// Stops the render thread and waits for it to finish its frame.
+	public synchronized void stop() {
+		if (m_thread == null) {
+			return;
+		}
+		m_running = false;
+		synchronized (m_lock) {
+			m_lock.notifyAll();
+		}
+		try {
+			m_thread.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		m_thread = null;
+	}
+
+	/**
+	 * Private methods.
+	 */
+
+	// The render thread.
+	private void run() {
+		long next = System.nanoTime();
+		while (m_running) {
+			Camera camera;
+			int width;
+			int height;
+			synchronized (m_lock) {
+				while (m_running && ! m_fresh) {
+					try {
+						m_lock.wait();
+					}
+					catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (! m_running) {
+					return;
+				}
+				if (m_captured) {
+					Scene done = m_drawing;
+					m_drawing = m_latest;
+					m_latest = done;
+					m_captured = false;
+				}
+				m_fresh = false;
+				camera = m_camera;
+				width = m_width;
+				height = m_height;
+			}
+			draw(camera, width, height);
+
+			// Hold off until the next frame is due.
+			next += m_period;
+			long wait = next - System.nanoTime();
+			if (wait > 0) {
+				try {
+					Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+			}
+			else {
+				next = System.nanoTime();
+			}
+		}
+	}
+
+	// Draws the scene we've got into the back image and swaps it forward.
+	private void draw(Camera camera, int width, int height) {
+		BufferedImage back = m_back;
+		if (back == null || back.getWidth() != width || back.getHeight() != height) {
+			back = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		}
+		Graphics2D g = back.createGraphics();
+		try {
+			m_renderer.draw(m_drawing, camera, g, width, height);
+		}
+		finally {
+			g.dispose();
+		}
+		synchronized (m_frameLock) {
+			m_back = m_front;
+			m_front = back;
+			m_frames++;
+		}
+		Runnable listener = m_listener;
+		if (listener != null) {
+			listener.run();
+		}
+	}
+}
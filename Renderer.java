@@ -0,0 +1,240 @@
+package blackhole;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.util.Arrays;
+
+/**
+ * Draws a Scene, as seen by a Camera, onto a Graphics2D.
+ *
+ * The sphere is a disc, rods are polylines along their great-circle arcs
+ * (cut up by an ArcCache, which keeps them between frames), and anchors are
+ * dots. Rods that can stretch are drawn in a different colour to braced ones.
+ *
+ * Only the side of the sphere facing us is drawn. Anything whose dot product
+ * with the direction we're looking from is negative is round the back, and
+ * rods that go over the edge are cut off there (see ArcCache).
+ *
+ * Rather than going through every anchor and rod, we walk down the scene's
+ * Clusters from the faces. Patches that are round the back are skipped
+ * whole, and once a patch (with the rods filed under it) is no more than a
+ * couple of pixels across it is drawn as a single dot, and nothing under it
+ * is looked at. So how long a frame takes depends on
+ * how many pixels there are to fill rather than how many anchors there are.
+ * The grouping is built when there are different anchors or rods to draw,
+ * and otherwise just refitted to where they've moved (see Clusters.refit()),
+ * until it's got too loose and has to be built again.
+ *
+ * A Renderer keeps its scratch space between frames, so it should only be
+ * used by one thread (RenderLoop has its own).
+ *
+ * @author Rory
+ *
+ */
+public class Renderer {
+
+	// Colours for the sphere, rods (braced and extensible) and anchors.
+	private static final Color SPHERE = Color.DARK_GRAY;
+	private static final Color BRACED = new Color(200, 200, 200);
+	private static final Color EXTENSIBLE = new Color(255, 160, 40);
+	private static final Color ANCHOR = Color.WHITE;
+
+	// Size of an anchor's dot, in pixels.
+	private static final int DOT = 3;
+
+	// Patches no wider than this (in pixels, the size of a dot) are drawn as
+	// one dot.
+	private static final double BLOB = 3.0;
+
+	// What the rods look like on screen.
+	private final ArcCache m_arcs;
+
+	// The grouping of the last scene we drew, and which scene (and version
+	// of it) that was. The grouping carries over to other scenes with the
+	// same anchors and rods, so it doesn't matter that RenderLoop and
+	// FrameExporter hand us a different one most frames.
+	private Clusters m_clusters;
+	private Scene m_scene;
+	private int m_version;
+
+	// Patches still to look at, one rod's polyline, and a projected point.
+	private int[] m_stack;
+	private int[] m_px;
+	private int[] m_py;
+	private final double[] m_p;
+
+	// What the last frame came to: dots drawn, rods drawn, and patches
+	// looked at. And how many times we've had to build the grouping.
+	private int m_dots;
+	private int m_rods;
+	private int m_visited;
+	private int m_builds;
+
+	/**
+	 * Constructors
+	 */
+
+	public Renderer() {
+		m_arcs = new ArcCache();
+		m_stack = new int[64];
+		m_px = new int[16];
+		m_py = new int[16];
+		m_p = new double[3];
+	}
+
+	/**
+	 * Accessors
+	 */
+
+	public ArcCache arcs() {
+		return m_arcs;
+	}
+
+	// Dots (anchors or whole patches) drawn in the last frame.
+	public int dots() {
+		return m_dots;
+	}
+
+	// Rods drawn in the last frame.
+	public int rods() {
+		return m_rods;
+	}
+
+	// Patches looked at in the last frame.
+	public int visited() {
+		return m_visited;
+	}
+
+	// Times the grouping has been built from scratch, rather than refitted.
+	public int builds() {
+		return m_builds;
+	}
+
+	/**
+	 * Drawing
+	 */
+
+	// Draws the whole picture (background included) onto a width by height
+	// area of g.
+	public void draw(Scene scene, Camera camera, Graphics2D g, int width, int height) {
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g.setColor(Color.BLACK);
+		g.fillRect(0, 0, width, height);
+		double radius = camera.radius(width, height);
+		int r = (int) Math.round(radius);
+		g.setColor(SPHERE);
+		g.fillOval(width / 2 - r, height / 2 - r, 2 * r, 2 * r);
+
+		if (m_clusters == null || ((scene != m_scene || scene.version() != m_version) && ! m_clusters.refit(scene))) {
+			m_clusters = new Clusters(scene);
+			m_builds++;
+		}
+		m_scene = scene;
+		m_version = scene.version();
+		Clusters c = m_clusters;
+		m_arcs.view(camera, width, height);
+		m_dots = 0;
+		m_rods = 0;
+		m_visited = 0;
+		camera.toward(m_p, 0);
+		double vx = m_p[0];
+		double vy = m_p[1];
+		double vz = m_p[2];
+
+		// Rods first, so the anchors go on top of them.
+		for (int pass = 0; pass < 2; pass++) {
+			boolean rods = (pass == 0);
+			int top = 0;
+			for (int p = c.levelEnd(0) - 1; p >= c.levelStart(0); p--) {
+				m_stack[top++] = p;
+			}
+			while (top > 0) {
+				int p = m_stack[--top];
+				if (rods) {
+					m_visited++;
+				}
+				// Everything here (rods included) is within the cap made
+				// bigger by how far the rods reach. We can skip it if even
+				// the nearest edge of that is round the back, and draw one
+				// dot for it if it's too small to see into.
+				double d = vx * c.x(p) + vy * c.y(p) + vz * c.z(p);
+				double angle = Math.atan2(c.capSin(p), c.capCos(p)) + c.reach(p);
+				if (angle < 0.5 * Math.PI && Math.acos(Math.max(-1, Math.min(1, d))) - angle > 0.5 * Math.PI) {
+					continue;
+				}
+				double across = 2.0 * radius * ((angle < 0.5 * Math.PI) ? Math.sin(angle) : 1.0);
+				if (across <= BLOB) {
+					if (! rods && d >= 0) {
+						dot(g, camera, width, height, c.x(p), c.y(p), c.z(p));
+					}
+					continue;
+				}
+				if (rods) {
+					for (int k = c.rodStart(p); k < c.rodEnd(p); k++) {
+						rod(scene, g, c.rod(k), vx, vy, vz);
+					}
+				}
+				if (c.childStart(p) == c.childEnd(p)) {
+					// As far down as it goes, and still too big for one dot.
+					for (int k = c.first(p); ! rods && k < c.first(p) + c.size(p); k++) {
+						int i = c.order(k);
+						if (vx * scene.x(i) + vy * scene.y(i) + vz * scene.z(i) >= 0) {
+							dot(g, camera, width, height, scene.x(i), scene.y(i), scene.z(i));
+						}
+					}
+					continue;
+				}
+				int n = c.childEnd(p) - c.childStart(p);
+				if (top + n > m_stack.length) {
+					m_stack = Arrays.copyOf(m_stack, 2 * (top + n));
+				}
+				for (int q = c.childEnd(p) - 1; q >= c.childStart(p); q--) {
+					m_stack[top++] = q;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Private methods.
+	 */
+
+	// Draws a dot at (x, y, z).
+	private void dot(Graphics2D g, Camera camera, int width, int height,
+			double x, double y, double z) {
+		camera.project(x, y, z, width, height, m_p, 0);
+		int sx = (int) Math.round(m_p[0]);
+		int sy = (int) Math.round(m_p[1]);
+		g.setColor(ANCHOR);
+		g.fillRect(sx - DOT / 2, sy - DOT / 2, DOT, DOT);
+		m_dots++;
+	}
+
+	// Draws rod k, unless both its ends are round the back.
+	private void rod(Scene scene, Graphics2D g, int k, double vx, double vy, double vz) {
+		int a = scene.head(k);
+		int b = scene.tail(k);
+		if (vx * scene.x(a) + vy * scene.y(a) + vz * scene.z(a) < 0
+				&& vx * scene.x(b) + vy * scene.y(b) + vz * scene.z(b) < 0) {
+			return;
+		}
+		int id = m_arcs.arc(scene, k);
+		float[] points = m_arcs.points(id);
+		int count = m_arcs.count(id);
+		if (count < 2) {
+			return;
+		}
+		if (m_px.length < count) {
+			m_px = new int[2 * count];
+			m_py = new int[2 * count];
+		}
+		for (int s = 0; s < count; s++) {
+			m_px[s] = Math.round(points[2 * s]);
+			m_py[s] = Math.round(points[2 * s + 1]);
+		}
+		g.setColor(scene.extensible(k) ? EXTENSIBLE : BRACED);
+		g.drawPolyline(m_px, m_py, count);
+		m_rods++;
+	}
+}
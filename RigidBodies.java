@@ -0,0 +1,323 @@
+package blackhole;
+
+import java.util.Arrays;
+
+/**
+ * Splits the anchors of a store into rigid bodies.
+ *
+ * Anchors joined by two paths that share no rod (braced, see Connectivity)
+ * can't move relative to each other without bending something, so a whole
+ * blob of them moves as one rigid body: all it can do on the sphere is turn
+ * about the centre. Simulating it that way (see Simulation.setRigid()) only
+ * needs three numbers per body instead of three per anchor, and the rods
+ * inside the body don't need fixing at all. Only the extensible rods between
+ * bodies (and lone anchors) are left for the ConstraintSolver.
+ *
+ * Each body keeps where its anchors were (its local coordinates) when it was
+ * found, plus how far it has turned since, as a unit quaternion. The body's
+ * mass and its moment of inertia about the centre of the sphere are summed up
+ * once, in local coordinates, and turned along with it.
+ *
+ * The split is worked out again (from wherever the anchors are then) whenever
+ * the store's graph or size changes.
+ *
+ * @author Rory
+ *
+ */
+public class RigidBodies {
+
+	// The store we're splitting up.
+	private final AnchorStore m_store;
+
+	// Graph version and number of anchors the split was worked out for.
+	private int m_version;
+	private int m_anchors;
+
+	// Body of each anchor (-1 for anchors that aren't braced to any other),
+	// and where each anchor sits in its body's own frame.
+	private int[] m_body;
+	private double[] m_lx;
+	private double[] m_ly;
+	private double[] m_lz;
+
+	// The bodies: where each one's anchors start in m_members, their total
+	// mass, moment of inertia in local coordinates (xx, yy, zz, xy, xz, yz)
+	// and orientation (w, x, y, z).
+	private int m_count;
+	private int[] m_start;
+	private int[] m_members;
+	private double[] m_mass;
+	private double[] m_inertia;
+	private double[] m_q;
+
+	// Scratch space for a rotation matrix and an inertia matrix.
+	private final double[] m_r;
+	private final double[] m_a;
+
+	/**
+	 * Constructors
+	 */
+
+	// Splits up the given store as it is now.
+	public RigidBodies(AnchorStore store) {
+		m_store = store;
+		m_version = -1;
+		m_anchors = -1;
+		m_body = new int[0];
+		m_lx = new double[0];
+		m_ly = new double[0];
+		m_lz = new double[0];
+		m_count = 0;
+		m_start = new int[1];
+		m_members = new int[0];
+		m_mass = new double[0];
+		m_inertia = new double[0];
+		m_q = new double[0];
+		m_r = new double[9];
+		m_a = new double[9];
+		update();
+	}
+
+	/**
+	 * Accessors
+	 */
+
+	public AnchorStore store() {
+		return m_store;
+	}
+
+	// Number of bodies.
+	public int count() {
+		return m_count;
+	}
+
+	// Body the given anchor is part of, or -1 if it moves on its own.
+	public int body(int id) {
+		return (id < m_anchors) ? m_body[id] : -1;
+	}
+
+	// Number of anchors in body b, and the k-th of them.
+	public int size(int b) {
+		return m_start[b + 1] - m_start[b];
+	}
+
+	public int member(int b, int k) {
+		return m_members[m_start[b] + k];
+	}
+
+	// Number of anchors that are part of some body.
+	public int anchorCount() {
+		return m_start[m_count];
+	}
+
+	// Total mass of body b (anchors without a sensible mass count as 1, like
+	// they do in Simulation).
+	public double mass(int b) {
+		return m_mass[b];
+	}
+
+	// How far body b has turned since it was found.
+	public Rotation orientation(int b) {
+		return Rotation.quaternion(m_q[4 * b], m_q[4 * b + 1], m_q[4 * b + 2], m_q[4 * b + 3]);
+	}
+
+	// Puts body b's moment of inertia about the centre of the sphere, as it
+	// is turned now, into out (a row at a time).
+	public void inertia(int b, double[] out) {
+		matrix(b, m_r);
+		double[] r = m_r;
+		int i = 6 * b;
+		double xx = m_inertia[i], yy = m_inertia[i + 1], zz = m_inertia[i + 2];
+		double xy = m_inertia[i + 3], xz = m_inertia[i + 4], yz = m_inertia[i + 5];
+		// R I R^T, a row of R I at a time.
+		for (int row = 0; row < 3; row++) {
+			double r0 = r[3 * row], r1 = r[3 * row + 1], r2 = r[3 * row + 2];
+			double c0 = r0 * xx + r1 * xy + r2 * xz;
+			double c1 = r0 * xy + r1 * yy + r2 * yz;
+			double c2 = r0 * xz + r1 * yz + r2 * zz;
+			for (int col = 0; col < 3; col++) {
+				out[3 * row + col] = c0 * r[3 * col] + c1 * r[3 * col + 1] + c2 * r[3 * col + 2];
+			}
+		}
+	}
+
+	// Puts the inverse of body b's moment of inertia (as it is turned now)
+	// into out at o, a row at a time. Turning the body by the inverse times
+	// an angular impulse is how it responds to a push.
+	public void invert(int b, double[] out, int o) {
+		double[] i = m_a;
+		inertia(b, i);
+		// Cofactors of a symmetric matrix.
+		double c00 = i[4] * i[8] - i[5] * i[7];
+		double c01 = i[5] * i[6] - i[3] * i[8];
+		double c02 = i[3] * i[7] - i[4] * i[6];
+		double c11 = i[0] * i[8] - i[2] * i[6];
+		double c12 = i[2] * i[3] - i[0] * i[5];
+		double c22 = i[0] * i[4] - i[1] * i[3];
+		double det = i[0] * c00 + i[1] * c01 + i[2] * c02;
+		if (det == 0) {
+			Arrays.fill(out, o, o + 9, 0);
+			return;
+		}
+		out[o] = c00 / det;
+		out[o + 1] = out[o + 3] = c01 / det;
+		out[o + 2] = out[o + 6] = c02 / det;
+		out[o + 4] = c11 / det;
+		out[o + 5] = out[o + 7] = c12 / det;
+		out[o + 8] = c22 / det;
+	}
+
+	// Puts where anchor i (which has to be part of body b) is, as the body is
+	// turned now, into out at o. Cheaper than place() when only a few anchors
+	// matter.
+	public void where(int b, int i, double[] out, int o) {
+		matrix(b, m_r);
+		double[] r = m_r;
+		double px = m_lx[i], py = m_ly[i], pz = m_lz[i];
+		out[o] = r[0] * px + r[1] * py + r[2] * pz;
+		out[o + 1] = r[3] * px + r[4] * py + r[5] * pz;
+		out[o + 2] = r[6] * px + r[7] * py + r[8] * pz;
+	}
+
+	/**
+	 * Mutators
+	 */
+
+	// Works the bodies out again if the store has changed shape since last
+	// time. Returns whether it did.
+	public boolean update() {
+		RodGraph g = m_store.graph();
+		int n = m_store.size();
+		if (g.version() == m_version && n == m_anchors) {
+			return false;
+		}
+		m_version = g.version();
+		m_anchors = n;
+		Connectivity c = m_store.connectivity();
+
+		// Count the anchors in each blob, by its representative.
+		int[] rep = new int[n];
+		int[] size = new int[n];
+		for (int i = 0; i < n; i++) {
+			rep[i] = c.blob(i);
+			size[rep[i]]++;
+		}
+
+		// Number the blobs with more than one anchor, and lay out their
+		// members.
+		int[] number = new int[n];
+		m_count = 0;
+		for (int i = 0; i < n; i++) {
+			number[i] = (size[i] > 1) ? m_count++ : -1;
+		}
+		m_start = new int[m_count + 1];
+		m_body = new int[n];
+		for (int i = 0; i < n; i++) {
+			int b = number[rep[i]];
+			m_body[i] = b;
+			if (b >= 0) {
+				m_start[b + 1]++;
+			}
+		}
+		for (int b = 0; b < m_count; b++) {
+			m_start[b + 1] += m_start[b];
+		}
+		int[] fill = Arrays.copyOf(m_start, m_count);
+		m_members = new int[m_start[m_count]];
+		for (int i = 0; i < n; i++) {
+			if (m_body[i] >= 0) {
+				m_members[fill[m_body[i]]++] = i;
+			}
+		}
+
+		// Everything starts out unturned, where it is now.
+		double[] x = m_store.xs();
+		double[] y = m_store.ys();
+		double[] z = m_store.zs();
+		double[] masses = m_store.masses();
+		m_lx = Arrays.copyOf(x, n);
+		m_ly = Arrays.copyOf(y, n);
+		m_lz = Arrays.copyOf(z, n);
+		m_mass = new double[m_count];
+		m_inertia = new double[6 * m_count];
+		m_q = new double[4 * m_count];
+		for (int b = 0; b < m_count; b++) {
+			m_q[4 * b] = 1;
+			int k = 6 * b;
+			for (int j = m_start[b]; j < m_start[b + 1]; j++) {
+				int i = m_members[j];
+				double m = (masses[i] > 0) ? masses[i] : 1.0;
+				double px = x[i], py = y[i], pz = z[i];
+				m_mass[b] += m;
+				// m (|p|^2 - p p^T), and |p| is 1.
+				m_inertia[k] += m * (1 - px * px);
+				m_inertia[k + 1] += m * (1 - py * py);
+				m_inertia[k + 2] += m * (1 - pz * pz);
+				m_inertia[k + 3] -= m * px * py;
+				m_inertia[k + 4] -= m * px * pz;
+				m_inertia[k + 5] -= m * py * pz;
+			}
+		}
+		return true;
+	}
+
+	// Turns body b by the rotation vector (rx, ry, rz): about that axis, by
+	// its length.
+	public void turn(int b, double rx, double ry, double rz) {
+		double angle = Math.sqrt(rx*rx + ry*ry + rz*rz);
+		if (angle == 0) {
+			return;
+		}
+		double s = Math.sin(0.5 * angle) / angle;
+		premultiply(b, Math.cos(0.5 * angle), rx * s, ry * s, rz * s);
+	}
+
+	// Puts the anchors of body b where its orientation says they are, in the
+	// given coordinate arrays.
+	public void place(int b, double[] x, double[] y, double[] z) {
+		matrix(b, m_r);
+		double[] r = m_r;
+		for (int j = m_start[b]; j < m_start[b + 1]; j++) {
+			int i = m_members[j];
+			double px = m_lx[i], py = m_ly[i], pz = m_lz[i];
+			x[i] = r[0] * px + r[1] * py + r[2] * pz;
+			y[i] = r[3] * px + r[4] * py + r[5] * pz;
+			z[i] = r[6] * px + r[7] * py + r[8] * pz;
+		}
+	}
+
+	/**
+	 * Private methods.
+	 */
+
+	// Puts the rotation matrix for body b's orientation into r.
+	private void matrix(int b, double[] r) {
+		int k = 4 * b;
+		double w = m_q[k], x = m_q[k + 1], y = m_q[k + 2], z = m_q[k + 3];
+		r[0] = 1 - 2 * (y*y + z*z);
+		r[1] = 2 * (x*y - w*z);
+		r[2] = 2 * (x*z + w*y);
+		r[3] = 2 * (x*y + w*z);
+		r[4] = 1 - 2 * (x*x + z*z);
+		r[5] = 2 * (y*z - w*x);
+		r[6] = 2 * (x*z - w*y);
+		r[7] = 2 * (y*z + w*x);
+		r[8] = 1 - 2 * (x*x + y*y);
+	}
+
+	// Sets body b's orientation to (w, x, y, z) times it, scaled back to
+	// length one.
+	private void premultiply(int b, double w, double x, double y, double z) {
+		int k = 4 * b;
+		double qw = m_q[k], qx = m_q[k + 1], qy = m_q[k + 2], qz = m_q[k + 3];
+		double nw = w * qw - x * qx - y * qy - z * qz;
+		double nx = w * qx + x * qw + y * qz - z * qy;
+		double ny = w * qy - x * qz + y * qw + z * qx;
+		double nz = w * qz + x * qy - y * qx + z * qw;
+		double len = Math.sqrt(nw*nw + nx*nx + ny*ny + nz*nz);
+		m_q[k] = nw / len;
+		m_q[k + 1] = nx / len;
+		m_q[k + 2] = ny / len;
+		m_q[k + 3] = nz / len;
+	}
+}
@@ -1,6 +1,10 @@
 package blackhole;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
 
 /**
  * "Straight" lines with two endpoints. Rods are not really straight lines
@@ -21,6 +25,10 @@ public class Rod {
 	// A rod is extensible if and only if its head is not tail-side.
 	private boolean m_extensible;
 	
+	// Id of the rod within its store's Connectivity tracker, or -1 if the rod
+	// isn't tracked (e.g. its anchors are free-standing).
+	private int m_id = -1;
+	
 	/**
 	 * Constructors
 	 */
@@ -49,7 +57,7 @@ public class Rod {
 		
 		// Rather than copy the other rod's extensibility, we'll check to make
 		// sure the situation hasn't changed.
-		m_extensible = isExtensible();
+		check();
 	}
 	
 	// Standard constructor: create a rod given two endpoints.
@@ -76,7 +84,16 @@ public class Rod {
 		m_tail.add(this);
 		
 		// Check to see if the rod is extensible.
-		m_extensible = isExtensible();
+		check();
+	}
+	
+	// Bulk constructor: a rod whose extensibility has already been worked
+	// out. Doesn't touch the endpoints' connectivity lists, so the caller
+	// (StructureBuilder) has to put it in the store's graph.
+	Rod(Anchor head, Anchor tail, boolean extensible) {
+		m_head = head;
+		m_tail = tail;
+		m_extensible = extensible;
 	}
 	
 	// Constructor given an endpoint, and a vector + a mass
@@ -90,17 +107,25 @@ public class Rod {
 		
 		// Copy head anchor.
 		m_head = head;
-		// Create tail anchor.
-		m_tail = new Anchor(head.loc().theta() + theta,
-						    head.loc().phi() + phi,
-						    mass);
+		// Create tail anchor (in the same store as the head, if it has one).
+		AnchorStore store = head.store();
+		if (store != null) {
+			m_tail = store.anchor(store.add(head.theta() + theta,
+			                                head.phi() + phi,
+			                                mass));
+		}
+		else {
+			m_tail = new Anchor(head.loc().theta() + theta,
+							    head.loc().phi() + phi,
+							    mass);
+		}
 
 		// Add this rod to the endpoints' connectivity.
 		m_head.add(this);
 		m_tail.add(this);
 		
 		// Check to see if the rod is extensible.
-		m_extensible = isExtensible();
+		check();
 	}
 	
 	/**
@@ -118,16 +143,31 @@ public class Rod {
 	}
 	
 	// Returns whether or not the rod is extensible.
-	// DOES NOT check the result, only returns the stored value.
+	// DOES NOT check the result, only returns the stored value. For rods
+	// between anchors of an AnchorStore the stored value is kept up to date as
+	// rods come and go; otherwise it is only as fresh as the last check.
 	public boolean extensible() {
 		return m_extensible;
 	}
 	
+	// Returns the id of the rod in its store, or -1 if it isn't in one.
+	public int id() {
+		return m_id;
+	}
+	
 	// If the isExtensible function is called without any arguments, then this
-	// is the rod we are testing, so call the recursive isExtensible() function
-	// with an empty list argument, and the head and tail anchors as the 
-	// anchors we are testing connectivity to.
+	// is the rod we are testing, so search from its tail for its head with an
+	// empty list of checked anchors.
+	//
+	// This walks the whole connected structure, so asking it of every rod is
+	// quadratic. To sort out every rod in a structure at once, use
+	// ExtensibilityIndex instead.
 	public boolean isExtensible() {
+		// Rods in a store can search the store's graph without building any
+		// lists along the way.
+		if (m_id >= 0) {
+			return ! m_head.store().graph().joined(m_head.id(), m_tail.id(), m_id);
+		}
 		return isExtensible(m_head, m_tail, new ArrayList<Anchor>());
 	}
 	
@@ -141,13 +181,19 @@ public class Rod {
 	// 2) Let L be a list of anchors (the argument to this function) which have
 	//    already been checked. Initially this list is empty.
 	// 3) If T = H, return FALSE.
-	// 4) Otherwise, add T to L.
-	// 5) For each rod R' attached to T other than R.
+	// 4) Otherwise, add T to L and to a stack S of anchors to look at.
+	// 5) While S is not empty, pop an anchor A' and for each rod R' attached
+	//    to it other than R:
 	//        - Let A be the anchor on the other end of R'
+	//        - If A = H, return FALSE.
 	//        - If A is already contained in L, skip it.
-	//        - Run this algorithm with A as the new tail anchor.
-	// 6) If we get back to T without any other anchor returning false, then
-	//    we can safely say that the rod is extensible and return TRUE.
+	//        - Otherwise add A to L and push it onto S.
+	// 6) If we run out of anchors without reaching H, then we can safely say
+	//    that the rod is extensible and return TRUE.
+	//
+	// This used to recurse once per anchor, which overflowed the stack on long
+	// chains. The explicit stack and the identity set (rather than searching L
+	// every time) keep it linear in the size of the structure.
 	public boolean isExtensible(Anchor head, Anchor tail, ArrayList<Anchor> anchors) {
 		
 		// If the head and tail anchors are one and the same, then the
@@ -156,34 +202,43 @@ public class Rod {
 			return false;
 		}
 		
+		Set<Anchor> checked = Collections.newSetFromMap(new IdentityHashMap<Anchor, Boolean>());
+		checked.addAll(anchors);
+		ArrayDeque<Anchor> stack = new ArrayDeque<Anchor>();
+		
 		// Add the tail node to the list of anchors we've checked.
-		anchors.add(tail);
+		if (checked.add(tail)) {
+			anchors.add(tail);
+		}
+		stack.push(tail);
 		
-		// For each rod attached to the tail node:
-		ArrayList<Rod> tailrods = tail.rods();
-		int size = tailrods.size();
-		for (int i = 0; i < size; i++) {
-			Rod r = tailrods.get(i);
-			// If we are looking at the rod between H and T, or we have found
-			// a rod connected to an anchor already in L, we can skip it.
-			if (this == r || anchors.contains(r)) {
-				continue;
-			}
+		while (! stack.isEmpty()) {
+			Anchor t = stack.pop();
 			
-			// Get the anchor at the other end of the rod (which could be the
-			// rod's head or tail).
-			Anchor a;
-			if (tail == r.tail()) {
-				a = r.head();
-			}
-			else {
-				a = r.head();
-			}
-			
-			// See if the rod's other end is connected to H through some anchor
-			// we haven' checked yet.
-			if (! isExtensible(head, a, anchors)) {
-				return false;
+			// For each rod attached to the anchor:
+			ArrayList<Rod> rods = t.rods();
+			int size = rods.size();
+			for (int i = 0; i < size; i++) {
+				Rod r = rods.get(i);
+				// We're looking for a path that doesn't use this rod.
+				if (this == r) {
+					continue;
+				}
+				
+				// Get the anchor at the other end of the rod (which could be
+				// the rod's head or tail).
+				Anchor a = (t == r.tail()) ? r.head() : r.tail();
+				
+				// If we made it back to the head some other way, the rod
+				// can't be extended.
+				if (a == head) {
+					return false;
+				}
+				
+				if (checked.add(a)) {
+					anchors.add(a);
+					stack.push(a);
+				}
 			}
 		}
 		
@@ -191,9 +246,46 @@ public class Rod {
 		// true.
 		return true;
 	}
-	
+
+	// Returns whether this rod passes through the other one. Rods that share
+	// an anchor meet there, but that doesn't count. To check every rod in a
+	// structure, use CrossingDetector instead.
+	public boolean crosses(Rod other) {
+		if (m_head == other.m_head || m_head == other.m_tail ||
+			m_tail == other.m_head || m_tail == other.m_tail) {
+			return false;
+		}
+		return CrossingDetector.crosses(m_head.loc(), m_tail.loc(),
+				other.m_head.loc(), other.m_tail.loc(), null);
+	}
+
 	/**
 	 * Mutators
 	 */
 	
+	// Overwrites the stored extensibility. Used by the structure-wide
+	// analyses (see ExtensibilityIndex) which work it out for every rod at
+	// once.
+	void setExtensible(boolean extensible) {
+		m_extensible = extensible;
+	}
+	
+	// Sets the id of the rod. Only RodGraph hands these out.
+	void setId(int id) {
+		m_id = id;
+	}
+	
+	/**
+	 * Private methods.
+	 */
+	
+	// Works out the extensibility of a newly attached rod. If both ends are in
+	// a store, Anchor.add() has already linked the rod into the store's
+	// graph, and its Connectivity tracker has set the flag (and fixed up any rods
+	// this one braces). Otherwise we have to go looking.
+	private void check() {
+		if (m_id < 0) {
+			m_extensible = isExtensible();
+		}
+	}
 }
@@ -0,0 +1,475 @@
+package blackhole;
+
+import java.util.Arrays;
+
+/**
+ * Which rods meet at which anchors, for every rod between anchors of an
+ * AnchorStore, kept in flat int arrays rather than an ArrayList per anchor.
+ *
+ * The bulk of the graph is in compressed sparse row form: the rods at anchor
+ * v are rods()[offsets()[v]] up to rods()[offsets()[v + 1]], and fars() holds
+ * the anchor at the other end of each. Edits don't touch those arrays. Added
+ * rods go on a small per-anchor overlay list and removed rods are just marked
+ * dead, and once enough edits pile up the whole thing is compacted back into
+ * plain CSR form.
+ *
+ * Traversals that want to run straight over the arrays should call compact()
+ * first, after which the overlay is empty and nothing is dead. The arrays are
+ * replaced by every compaction, so don't hang on to them across edits.
+ *
+ * This is also where rods get their ids (see Rod.id()). An id is only handed
+ * out again after the rod that had it has been compacted away.
+ *
+ * @author Rory
+ *
+ */
+public class RodGraph {
+
+	// Edits we'll put up with before compacting, as a fraction of the rods in
+	// the compacted part (with a floor so small graphs don't thrash).
+	private static final int MIN_EDITS = 64;
+
+	// The store whose anchors the rods join.
+	private final AnchorStore m_store;
+
+	// Number of anchors covered by m_off.
+	private int m_n;
+
+	// Compacted part: offsets by anchor, then rod ids and far anchors.
+	private int[] m_off;
+	private int[] m_adj;
+	private int[] m_far;
+
+	// Overlay: for each anchor the first added entry (-1 if none), and for each
+	// entry the next one, the rod and the far anchor.
+	private int[] m_first;
+	private int[] m_next;
+	private int[] m_addRod;
+	private int[] m_addFar;
+	private int m_added;
+
+	// Live number of rods at each anchor (counting both ends of a loop).
+	private int[] m_degree;
+
+	// Rods by id, whether each id has been removed since the last compaction,
+	// and ids that can be handed out again.
+	private Rod[] m_rods;
+	private boolean[] m_dead;
+	private int m_rodCount;
+	private int m_live;
+	private int m_deadCount;
+	private int[] m_free;
+	private int m_freeCount;
+
+	// Bumped on every change to the graph, so that anything that caches a
+	// view of it (e.g. Simulation) can tell when to look again.
+	private int m_version;
+
+	// Scratch space for searches.
+	private int[] m_mark;
+	private int m_stamp;
+	private int[] m_stack;
+
+	/**
+	 * Constructors
+	 */
+
+	// Creates an empty graph for the given store. Only the store makes these
+	// (see AnchorStore.graph()).
+	RodGraph(AnchorStore store) {
+		m_store = store;
+		m_n = 0;
+		m_off = new int[1];
+		m_adj = new int[0];
+		m_far = new int[0];
+		m_first = new int[0];
+		m_next = new int[16];
+		m_addRod = new int[16];
+		m_addFar = new int[16];
+		m_added = 0;
+		m_degree = new int[0];
+		m_rods = new Rod[16];
+		m_dead = new boolean[16];
+		m_rodCount = 0;
+		m_live = 0;
+		m_deadCount = 0;
+		m_free = new int[16];
+		m_freeCount = 0;
+		m_mark = new int[0];
+		m_stamp = 0;
+		m_stack = new int[0];
+		m_version = 0;
+	}
+
+	/**
+	 * Accessors
+	 */
+
+	// One more than the highest rod id handed out so far. Some ids below this
+	// may be unused, in which case rod() returns null for them.
+	public int rodCount() {
+		return m_rodCount;
+	}
+
+	// Number of rods in the graph.
+	public int size() {
+		return m_live;
+	}
+
+	// Returns the rod with the given id, or null if there isn't one.
+	public Rod rod(int id) {
+		return (id < 0 || id >= m_rodCount || m_dead[id]) ? null : m_rods[id];
+	}
+
+	// Returns whether the given rod is in this graph.
+	public boolean contains(Rod r) {
+		if (r == null) {
+			return false;
+		}
+		int id = r.id();
+		return id >= 0 && id < m_rodCount && ! m_dead[id] && m_rods[id] == r;
+	}
+
+	// Number of rods at the given anchor.
+	public int degree(int v) {
+		return (v < m_n) ? m_degree[v] : 0;
+	}
+
+	// Changes every time a rod is added or removed (or the graph compacted).
+	public int version() {
+		return m_version;
+	}
+
+	// Whether there are edits that haven't been compacted yet.
+	public boolean dirty() {
+		return m_added > 0 || m_deadCount > 0;
+	}
+
+	// The compacted arrays (see the class comment). Only the whole story once
+	// compact() has been called. Anchors past the end of offsets() have no
+	// compacted rods.
+	public int[] offsets() {
+		return m_off;
+	}
+
+	public int[] rods() {
+		return m_adj;
+	}
+
+	public int[] fars() {
+		return m_far;
+	}
+
+	// Number of anchors covered by offsets() (which has one more entry).
+	public int anchorCount() {
+		return m_n;
+	}
+
+	// Overlay walk, for code that can't wait for a compaction: first(v) is the
+	// first added entry at v, next(k) the one after entry k (-1 at the end),
+	// and addedRod(k)/addedFar(k) what entry k holds. Entries for rods that
+	// have since been removed are still there; check rod() before use.
+	public int first(int v) {
+		return (v < m_n) ? m_first[v] : -1;
+	}
+
+	public int next(int k) {
+		return m_next[k];
+	}
+
+	public int addedRod(int k) {
+		return m_addRod[k];
+	}
+
+	public int addedFar(int k) {
+		return m_addFar[k];
+	}
+
+	// Whether the given entry of the compacted arrays is a rod that has been
+	// removed since.
+	public boolean dead(int k) {
+		return m_dead[m_adj[k]];
+	}
+
+	// Copies the rods at anchor v into a fresh array.
+	public Rod[] at(int v) {
+		Rod[] out = new Rod[degree(v)];
+		int i = 0;
+		if (v < m_n) {
+			for (int k = m_off[v]; k < m_off[v + 1]; k++) {
+				if (! m_dead[m_adj[k]]) {
+					out[i++] = m_rods[m_adj[k]];
+				}
+			}
+			for (int k = m_first[v]; k != -1; k = m_next[k]) {
+				if (! m_dead[m_addRod[k]]) {
+					out[i++] = m_rods[m_addRod[k]];
+				}
+			}
+		}
+		return out;
+	}
+
+	// Returns whether anchors a and b are joined by some chain of rods that
+	// doesn't use the rod with id skip (pass -1 to use any rod).
+	public boolean joined(int a, int b, int skip) {
+		if (a == b) {
+			return true;
+		}
+		ensure(Math.max(a, b) + 1);
+		int stamp = ++m_stamp;
+		int sp = 0;
+		m_mark[a] = stamp;
+		m_stack[sp++] = a;
+		while (sp > 0) {
+			int v = m_stack[--sp];
+			for (int k = m_off[v]; k < m_off[v + 1]; k++) {
+				int r = m_adj[k];
+				if (r == skip || m_dead[r]) {
+					continue;
+				}
+				int w = m_far[k];
+				if (w == b) {
+					return true;
+				}
+				if (m_mark[w] != stamp) {
+					m_mark[w] = stamp;
+					m_stack[sp++] = w;
+				}
+			}
+			for (int k = m_first[v]; k != -1; k = m_next[k]) {
+				int r = m_addRod[k];
+				if (r == skip || m_dead[r]) {
+					continue;
+				}
+				int w = m_addFar[k];
+				if (w == b) {
+					return true;
+				}
+				if (m_mark[w] != stamp) {
+					m_mark[w] = stamp;
+					m_stack[sp++] = w;
+				}
+			}
+		}
+		return false;
+	}
+
+	// Returns the ids of every anchor joined to v by some chain of rods,
+	// starting with v itself.
+	public int[] component(int v) {
+		ensure(v + 1);
+		int stamp = ++m_stamp;
+		int count = 0;
+		m_mark[v] = stamp;
+		m_stack[count++] = v;
+		// The stack doubles as the answer: everything below 'done' has been
+		// looked at.
+		for (int done = 0; done < count; done++) {
+			int u = m_stack[done];
+			for (int k = m_off[u]; k < m_off[u + 1]; k++) {
+				int w = m_far[k];
+				if (! m_dead[m_adj[k]] && m_mark[w] != stamp) {
+					m_mark[w] = stamp;
+					m_stack[count++] = w;
+				}
+			}
+			for (int k = m_first[u]; k != -1; k = m_next[k]) {
+				int w = m_addFar[k];
+				if (! m_dead[m_addRod[k]] && m_mark[w] != stamp) {
+					m_mark[w] = stamp;
+					m_stack[count++] = w;
+				}
+			}
+		}
+		return Arrays.copyOf(m_stack, count);
+	}
+
+	/**
+	 * Mutators
+	 */
+
+	// Adds a rod to the graph and gives it an id. Returns false (and does
+	// nothing) if the rod is already in a graph, or if either end isn't an
+	// anchor of this store.
+	boolean add(Rod r) {
+		if (r.id() >= 0 || r.head().store() != m_store || r.tail().store() != m_store) {
+			return false;
+		}
+		int h = r.head().id();
+		int t = r.tail().id();
+		ensure(Math.max(h, t) + 1);
+
+		int id;
+		if (m_freeCount > 0) {
+			id = m_free[--m_freeCount];
+		}
+		else {
+			if (m_rodCount == m_rods.length) {
+				m_rods = Arrays.copyOf(m_rods, m_rodCount * 2);
+				m_dead = Arrays.copyOf(m_dead, m_rodCount * 2);
+			}
+			id = m_rodCount++;
+		}
+		m_rods[id] = r;
+		m_dead[id] = false;
+		r.setId(id);
+		m_live++;
+
+		overlay(h, id, t);
+		overlay(t, id, h);
+		m_degree[h]++;
+		m_degree[t]++;
+		m_version++;
+
+		if (m_added > Math.max(MIN_EDITS, m_adj.length / 2)) {
+			compact();
+		}
+		return true;
+	}
+
+	// Takes a rod out of the graph. Returns false if it wasn't in it.
+	boolean remove(Rod r) {
+		if (! contains(r)) {
+			return false;
+		}
+		int id = r.id();
+		m_dead[id] = true;
+		m_deadCount++;
+		m_live--;
+		r.setId(-1);
+		m_degree[r.head().id()]--;
+		m_degree[r.tail().id()]--;
+		m_version++;
+
+		if (m_deadCount > Math.max(MIN_EDITS, m_adj.length / 4)) {
+			compact();
+		}
+		return true;
+	}
+
+	// Loads a whole graph at once from arrays laid out as in the class
+	// comment, with rod i having id i. The arrays become ours. Only meant for
+	// a graph that is still empty (see StructureBuilder).
+	void load(Rod[] rods, int e, int n, int[] off, int[] adj, int[] far) {
+		m_n = n;
+		m_off = off;
+		m_adj = adj;
+		m_far = far;
+		m_first = new int[n];
+		Arrays.fill(m_first, -1);
+		m_added = 0;
+		m_degree = new int[n];
+		for (int v = 0; v < n; v++) {
+			m_degree[v] = off[v + 1] - off[v];
+		}
+		m_rods = Arrays.copyOf(rods, Math.max(e, 16));
+		m_dead = new boolean[m_rods.length];
+		for (int i = 0; i < e; i++) {
+			rods[i].setId(i);
+		}
+		m_rodCount = e;
+		m_live = e;
+		m_deadCount = 0;
+		m_freeCount = 0;
+		m_mark = new int[n];
+		m_stack = new int[n];
+		m_version++;
+	}
+
+	// Folds the overlay into the compacted arrays and drops removed rods, so
+	// that offsets()/rods()/fars() describe the whole graph. Ids of removed
+	// rods become available again. Cheap if nothing has changed.
+	public void compact() {
+		int n = Math.max(m_n, m_store.size());
+		ensure(n);
+		if (! dirty()) {
+			return;
+		}
+
+		int[] off = new int[n + 1];
+		for (int v = 0; v < n; v++) {
+			off[v + 1] = off[v] + m_degree[v];
+		}
+		int[] adj = new int[off[n]];
+		int[] far = new int[off[n]];
+		for (int v = 0; v < n; v++) {
+			int j = off[v];
+			for (int k = m_off[v]; k < m_off[v + 1]; k++) {
+				if (! m_dead[m_adj[k]]) {
+					adj[j] = m_adj[k];
+					far[j++] = m_far[k];
+				}
+			}
+			for (int k = m_first[v]; k != -1; k = m_next[k]) {
+				if (! m_dead[m_addRod[k]]) {
+					adj[j] = m_addRod[k];
+					far[j++] = m_addFar[k];
+				}
+			}
+			m_first[v] = -1;
+		}
+		m_off = off;
+		m_adj = adj;
+		m_far = far;
+		m_added = 0;
+
+		// Now nothing refers to the dead ids, so they can be reused.
+		for (int id = 0; id < m_rodCount; id++) {
+			if (m_dead[id]) {
+				m_dead[id] = false;
+				m_rods[id] = null;
+				if (m_freeCount == m_free.length) {
+					m_free = Arrays.copyOf(m_free, m_freeCount * 2);
+				}
+				m_free[m_freeCount++] = id;
+			}
+		}
+		m_deadCount = 0;
+		m_version++;
+	}
+
+	/**
+	 * Private methods.
+	 */
+
+	// Adds an overlay entry at anchor v for rod id, leading to anchor w.
+	private void overlay(int v, int id, int w) {
+		if (m_added == m_next.length) {
+			int cap = m_added * 2;
+			m_next = Arrays.copyOf(m_next, cap);
+			m_addRod = Arrays.copyOf(m_addRod, cap);
+			m_addFar = Arrays.copyOf(m_addFar, cap);
+		}
+		int k = m_added++;
+		m_next[k] = m_first[v];
+		m_addRod[k] = id;
+		m_addFar[k] = w;
+		m_first[v] = k;
+	}
+
+	// Makes room for anchor ids below n.
+	private void ensure(int n) {
+		if (n <= m_n) {
+			return;
+		}
+		if (n > m_first.length) {
+			int cap = Math.max(n, m_first.length * 2);
+			m_first = Arrays.copyOf(m_first, cap);
+			m_degree = Arrays.copyOf(m_degree, cap);
+			m_mark = Arrays.copyOf(m_mark, cap);
+			m_stack = Arrays.copyOf(m_stack, cap);
+		}
+		// New anchors have no compacted rods: repeat the last offset.
+		if (n + 1 > m_off.length) {
+			int last = m_off[m_n];
+			m_off = Arrays.copyOf(m_off, Math.max(n + 1, m_off.length * 2));
+			Arrays.fill(m_off, m_n + 1, m_off.length, last);
+		}
+		for (int v = m_n; v < n; v++) {
+			m_first[v] = -1;
+			m_degree[v] = 0;
+		}
+		m_n = n;
+	}
+}
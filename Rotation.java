@@ -0,0 +1,220 @@
+package blackhole;
+
+/**
+ * A rigid rotation of the sphere, kept as a unit quaternion.
+ *
+ * Point.rotate() just adds to the angles, which drags things towards and
+ * away from the poles and bends whatever it moves. A Rotation turns every
+ * point the same way about the same axis, so every rod keeps its length, and
+ * two of them compose into one. Applying one to a lot of points only costs
+ * the nine multiply-adds of its matrix per point (see apply()).
+ *
+ * Rotations are immutable; then() and inverse() make new ones.
+ *
+ * @author Rory
+ *
+ */
+public final class Rotation {
+
+	// The rotation that doesn't.
+	public static final Rotation IDENTITY = new Rotation();
+
+	// The quaternion w + xi + yj + zk, always of length one.
+	private final double m_w;
+	private final double m_x;
+	private final double m_y;
+	private final double m_z;
+
+	/**
+	 * Constructors
+	 */
+
+	// Default constructor: the identity.
+	public Rotation() {
+		m_w = 1;
+		m_x = 0;
+		m_y = 0;
+		m_z = 0;
+	}
+
+	// Turns by angle (right-handed) about the axis through the given point.
+	public Rotation(Point axis, double angle) {
+		this(Math.cos(0.5 * angle), axis.x() * Math.sin(0.5 * angle),
+				axis.y() * Math.sin(0.5 * angle), axis.z() * Math.sin(0.5 * angle));
+	}
+
+	// Straight from a quaternion, which is scaled to length one.
+	private Rotation(double w, double x, double y, double z) {
+		double len = Math.sqrt(w*w + x*x + y*y + z*z);
+		m_w = w / len;
+		m_x = x / len;
+		m_y = y / len;
+		m_z = z / len;
+	}
+
+	// Turns by angle (right-handed) about the axis (ux, uy, uz), which doesn't
+	// have to be a unit vector. A zero axis gives the identity.
+	public static Rotation about(double ux, double uy, double uz, double angle) {
+		double len = Math.sqrt(ux*ux + uy*uy + uz*uz);
+		if (len == 0) {
+			return IDENTITY;
+		}
+		double s = Math.sin(0.5 * angle) / len;
+		return new Rotation(Math.cos(0.5 * angle), ux * s, uy * s, uz * s);
+	}
+
+	// The rotation with the given quaternion (scaled to length one).
+	public static Rotation quaternion(double w, double x, double y, double z) {
+		return new Rotation(w, x, y, z);
+	}
+
+	// The shortest rotation that takes a to b. Opposite points can be swapped
+	// by turning half way round any axis at right angles to them; we pick one.
+	public static Rotation between(Point a, Point b) {
+		double ax = a.x();
+		double ay = a.y();
+		double az = a.z();
+		double bx = b.x();
+		double by = b.y();
+		double bz = b.z();
+		double d = ax*bx + ay*by + az*bz;
+		if (d < -1.0 + 1.0e-12) {
+			// Cross a with whichever axis it is furthest from.
+			if (Math.abs(ax) < 0.5) {
+				return about(0, -az, ay, Math.PI);
+			}
+			return about(az, 0, -ax, Math.PI);
+		}
+		// Half way between the identity and the double rotation (1 + d) + a x b.
+		return new Rotation(1.0 + d, ay * bz - az * by, az * bx - ax * bz, ax * by - ay * bx);
+	}
+
+	/**
+	 * Accessors
+	 */
+
+	public double w() {
+		return m_w;
+	}
+
+	public double x() {
+		return m_x;
+	}
+
+	public double y() {
+		return m_y;
+	}
+
+	public double z() {
+		return m_z;
+	}
+
+	// How far it turns, in [0, pi].
+	public double angle() {
+		double s = Math.sqrt(m_x*m_x + m_y*m_y + m_z*m_z);
+		return 2.0 * Math.atan2(s, Math.abs(m_w));
+	}
+
+	// Whether this turns nothing at all.
+	public boolean identity() {
+		return m_x == 0 && m_y == 0 && m_z == 0;
+	}
+
+	// Puts the matrix of the rotation into out, a row at a time.
+	public void matrix(double[] out) {
+		double w = m_w;
+		double x = m_x;
+		double y = m_y;
+		double z = m_z;
+		out[0] = 1 - 2 * (y*y + z*z);
+		out[1] = 2 * (x*y - w*z);
+		out[2] = 2 * (x*z + w*y);
+		out[3] = 2 * (x*y + w*z);
+		out[4] = 1 - 2 * (x*x + z*z);
+		out[5] = 2 * (y*z - w*x);
+		out[6] = 2 * (x*z - w*y);
+		out[7] = 2 * (y*z + w*x);
+		out[8] = 1 - 2 * (x*x + y*y);
+	}
+
+	/**
+	 * Composition
+	 */
+
+	// This rotation followed by next.
+	public Rotation then(Rotation next) {
+		double w = next.m_w, x = next.m_x, y = next.m_y, z = next.m_z;
+		return new Rotation(
+				w * m_w - x * m_x - y * m_y - z * m_z,
+				w * m_x + x * m_w + y * m_z - z * m_y,
+				w * m_y - x * m_z + y * m_w + z * m_x,
+				w * m_z + x * m_y - y * m_x + z * m_w);
+	}
+
+	// The rotation that undoes this one.
+	public Rotation inverse() {
+		return new Rotation(m_w, -m_x, -m_y, -m_z);
+	}
+
+	/**
+	 * Application
+	 */
+
+	// Returns a rotated copy of p.
+	public Point apply(Point p) {
+		double[] v = new double[3];
+		apply(p.x(), p.y(), p.z(), v, 0);
+		return new Point(v[0], v[1], v[2]);
+	}
+
+	// Puts (x, y, z) rotated into out at o.
+	public void apply(double x, double y, double z, double[] out, int o) {
+		// v + 2w (q x v) + 2 q x (q x v), with q the vector part.
+		double tx = 2 * (m_y * z - m_z * y);
+		double ty = 2 * (m_z * x - m_x * z);
+		double tz = 2 * (m_x * y - m_y * x);
+		out[o] = x + m_w * tx + (m_y * tz - m_z * ty);
+		out[o + 1] = y + m_w * ty + (m_z * tx - m_x * tz);
+		out[o + 2] = z + m_w * tz + (m_x * ty - m_y * tx);
+	}
+
+	// Rotates the first n points of structure-of-arrays coordinates in place.
+	public void apply(int n, double[] x, double[] y, double[] z) {
+		double[] m = new double[9];
+		matrix(m);
+		double m0 = m[0], m1 = m[1], m2 = m[2];
+		double m3 = m[3], m4 = m[4], m5 = m[5];
+		double m6 = m[6], m7 = m[7], m8 = m[8];
+		for (int i = 0; i < n; i++) {
+			double px = x[i];
+			double py = y[i];
+			double pz = z[i];
+			x[i] = m0 * px + m1 * py + m2 * pz;
+			y[i] = m3 * px + m4 * py + m5 * pz;
+			z[i] = m6 * px + m7 * py + m8 * pz;
+		}
+	}
+
+	// Rotates the points at the first n of the given indices in place.
+	public void apply(int[] ids, int n, double[] x, double[] y, double[] z) {
+		double[] m = new double[9];
+		matrix(m);
+		double m0 = m[0], m1 = m[1], m2 = m[2];
+		double m3 = m[3], m4 = m[4], m5 = m[5];
+		double m6 = m[6], m7 = m[7], m8 = m[8];
+		for (int k = 0; k < n; k++) {
+			int i = ids[k];
+			double px = x[i];
+			double py = y[i];
+			double pz = z[i];
+			x[i] = m0 * px + m1 * py + m2 * pz;
+			y[i] = m3 * px + m4 * py + m5 * pz;
+			z[i] = m6 * px + m7 * py + m8 * pz;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Rotation(" + m_w + ", " + m_x + ", " + m_y + ", " + m_z + ")";
+	}
+}
@@ -0,0 +1,136 @@
+package blackhole;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.function.IntFunction;
+
+/**
+ * Times the key operations on each kind of Generator structure as it grows,
+ * to see how they scale.
+ *
+ * For each shape, at sizes going up by ten from a thousand anchors to the
+ * largest asked for (a million by default), we time:
+ *     build      making the structure (extensibility and all)
+ *     step       one Simulation step
+ *     component  finding the structure an anchor's in
+ *     clusters   grouping it for drawing
+ *     frame      copying it and drawing a 600 by 600 frame
+ * Each is the best of a few runs (fewer for the slow ones). Next to each
+ * time is how it grew against the size before, as a power of the size: 1 is
+ * linear, 2 is quadratic. Once an operation takes longer than LIMIT it isn't
+ * tried on anything bigger.
+ *
+ * Usage:
+ *     ScalingReport [largest size]
+ *
+ * @author Rory
+ *
+ */
+public class ScalingReport {
+
+	// Operations slower than this (in seconds) aren't tried at bigger sizes,
+	// and a run of repeats stops once it has taken this long in all.
+	private static final double LIMIT = 5.0;
+	private static final double BUDGET = 1.0;
+	private static final int REPEATS = 5;
+
+	// Goes into every result, so nothing gets optimized out.
+	private static volatile double s_sink;
+
+	// What's timed.
+	private static final String[] OPERATIONS = { "build", "step", "component", "clusters", "frame" };
+
+	// Shapes (see Generator.shape()).
+	private static final String[] SHAPES = { "dome", "lattice", "chain", "tree", "random" };
+
+	public static void main(String[] args) {
+		int largest = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+		for (String shape : SHAPES) {
+			IntFunction<AnchorStore> make = maker(shape);
+			System.out.println(shape);
+			System.out.println(String.format("%10s %10s  %s", "anchors", "rods", "seconds for each (growth)"));
+			double[] last = new double[OPERATIONS.length];
+			int lastSize = 0;
+			boolean[] stopped = new boolean[OPERATIONS.length];
+			for (int n = 1000; n <= largest; n *= 10) {
+				// Made once to warm up and to time what comes after, then
+				// again to time making it.
+				AnchorStore store = make.apply(n);
+				int size = store.size();
+				double[] took = new double[OPERATIONS.length];
+				for (int op = 0; op < OPERATIONS.length; op++) {
+					took[op] = stopped[op] ? -1 : time(op, make, n, store);
+					stopped[op] |= took[op] > LIMIT;
+				}
+				StringBuilder line = new StringBuilder();
+				for (int op = 0; op < OPERATIONS.length; op++) {
+					String growth = "";
+					if (lastSize > 0 && took[op] > 0 && last[op] > 0) {
+						growth = String.format(" (%.2f)", Math.log(took[op] / last[op]) / Math.log((double) size / lastSize));
+					}
+					line.append(String.format("  %s %s%s", OPERATIONS[op],
+							(took[op] < 0) ? "-" : String.format("%.4f", took[op]), growth));
+				}
+				System.out.println(String.format("%10d %10d", size, store.graph().size()) + line);
+				last = took;
+				lastSize = size;
+			}
+			System.out.println();
+		}
+	}
+
+	/**
+	 * Private methods.
+	 */
+
+	// Makes structures of about n anchors of the given shape.
+	private static IntFunction<AnchorStore> maker(String shape) {
+		return n -> Generator.shape(shape, n);
+	}
+
+	// Best time, in seconds, of a few runs of the given operation.
+	private static double time(int op, IntFunction<AnchorStore> make, int n, AnchorStore store) {
+		Simulation sim = (op == 1) ? new Simulation(store, 0.001) : null;
+		// Frames take turns with three scenes, as RenderLoop does.
+		Scene[] scenes = { new Scene(), new Scene(), new Scene() };
+		Scene scene = scenes[0];
+		if (op == 3) {
+			scene.capture(store);
+		}
+		Renderer renderer = (op == 4) ? new Renderer() : null;
+		BufferedImage image = (op == 4) ? new BufferedImage(600, 600, BufferedImage.TYPE_INT_RGB) : null;
+		double best = Double.MAX_VALUE;
+		double total = 0;
+		double sink = 0;
+		for (int r = 0; r < REPEATS && total < BUDGET; r++) {
+			long start = System.nanoTime();
+			switch (op) {
+			case 0:
+				sink += make.apply(n).size();
+				break;
+			case 1:
+				sim.step();
+				break;
+			case 2:
+				sink += store.graph().component(r % store.size()).length;
+				break;
+			case 3:
+				sink += new Clusters(scene).count();
+				break;
+			default:
+				Graphics2D g = image.createGraphics();
+				scene = scenes[r % 3];
+				scene.capture(store);
+				renderer.draw(scene, new Camera(), g, 600, 600);
+				g.dispose();
+				sink += renderer.dots();
+				break;
+			}
+			double took = (System.nanoTime() - start) / 1.0e9;
+			best = Math.min(best, took);
+			total += took;
+		}
+		s_sink += sink;
+		return best;
+	}
+}
@@ -0,0 +1,191 @@
+package blackhole;
+
+import java.util.Arrays;
+
+/**
+ * A copy of what there is to draw: where every anchor was, how heavy it was,
+ * and which anchors each rod joined, at one moment.
+ *
+ * The store isn't safe to read while something else is changing it, so the
+ * thread that owns it copies it into one of these (see RenderLoop.capture())
+ * and the renderer works from the copy on its own time. Copying is just a
+ * few array copies, far cheaper than drawing. A Scene reuses its arrays, so
+ * capturing the same store over and over allocates nothing once it has room.
+ *
+ * @author Rory
+ *
+ */
+public final class Scene {
+
+	// The anchors: where they were and their masses.
+	private int m_anchors;
+	private double[] m_x;
+	private double[] m_y;
+	private double[] m_z;
+	private double[] m_mass;
+
+	// The rods: their ids in the store's graph, the anchors at either end,
+	// and whether each could stretch.
+	private int m_rods;
+	private int[] m_id;
+	private int[] m_head;
+	private int[] m_tail;
+	private boolean[] m_extensible;
+
+	// Goes up every capture, so whatever has been worked out from a scene
+	// can tell when it's out of date.
+	private int m_version;
+
+	// The graph the rods came from and its version then (see
+	// RodGraph.version()), which only changes when rods come or go, not when
+	// they move. Two scenes captured from the same graph at the same version
+	// with the same number of anchors have the same anchors and rods, so
+	// things worked out from which anchors and rods there are can be carried
+	// from one scene to another (RenderLoop and FrameExporter take turns
+	// with several).
+	private RodGraph m_source;
+	private int m_layout;
+
+	/**
+	 * Constructors
+	 */
+
+	// Default constructor: nothing to draw.
+	public Scene() {
+		m_x = new double[0];
+		m_y = new double[0];
+		m_z = new double[0];
+		m_mass = new double[0];
+		m_id = new int[0];
+		m_head = new int[0];
+		m_tail = new int[0];
+		m_extensible = new boolean[0];
+	}
+
+	/**
+	 * Accessors
+	 */
+
+	public int anchorCount() {
+		return m_anchors;
+	}
+
+	public double x(int i) {
+		return m_x[i];
+	}
+
+	public double y(int i) {
+		return m_y[i];
+	}
+
+	public double z(int i) {
+		return m_z[i];
+	}
+
+	public double mass(int i) {
+		return m_mass[i];
+	}
+
+	// The coordinate arrays themselves, for looping over. Only the first
+	// anchorCount() entries mean anything.
+	public double[] xs() {
+		return m_x;
+	}
+
+	public double[] ys() {
+		return m_y;
+	}
+
+	public double[] zs() {
+		return m_z;
+	}
+
+	public int rodCount() {
+		return m_rods;
+	}
+
+	// The k-th rod's id in the store's graph (ids can have gaps; k can't).
+	public int rodId(int k) {
+		return m_id[k];
+	}
+
+	public int head(int k) {
+		return m_head[k];
+	}
+
+	public int tail(int k) {
+		return m_tail[k];
+	}
+
+	public boolean extensible(int k) {
+		return m_extensible[k];
+	}
+
+	public int version() {
+		return m_version;
+	}
+
+	// Where the rods came from, and the version of that, as above. The
+	// graph is only for comparing: it belongs to whoever's changing the
+	// store, so don't read it.
+	public Object source() {
+		return m_source;
+	}
+
+	public int layout() {
+		return m_layout;
+	}
+
+	// Whether this scene has the same anchors and rods as the one a key was
+	// taken from (with source(), layout() and anchorCount()).
+	public boolean sameLayout(Object source, int layout, int anchors) {
+		return m_source == source && m_layout == layout && m_anchors == anchors;
+	}
+
+	/**
+	 * Mutators
+	 */
+
+	// Copies the store as it is now. Call from whichever thread is changing
+	// it.
+	public void capture(AnchorStore store) {
+		int n = store.size();
+		if (m_x.length < n) {
+			int c = Math.max(n, 2 * m_x.length);
+			m_x = new double[c];
+			m_y = new double[c];
+			m_z = new double[c];
+			m_mass = new double[c];
+		}
+		System.arraycopy(store.xs(), 0, m_x, 0, n);
+		System.arraycopy(store.ys(), 0, m_y, 0, n);
+		System.arraycopy(store.zs(), 0, m_z, 0, n);
+		System.arraycopy(store.masses(), 0, m_mass, 0, n);
+		m_anchors = n;
+
+		RodGraph g = store.graph();
+		if (m_id.length < g.size()) {
+			int c = Math.max(g.size(), 2 * m_id.length);
+			m_id = Arrays.copyOf(m_id, c);
+			m_head = Arrays.copyOf(m_head, c);
+			m_tail = Arrays.copyOf(m_tail, c);
+			m_extensible = Arrays.copyOf(m_extensible, c);
+		}
+		int k = 0;
+		for (int id = 0; id < g.rodCount(); id++) {
+			Rod r = g.rod(id);
+			if (r == null) {
+				continue;
+			}
+			m_id[k] = id;
+			m_head[k] = r.head().id();
+			m_tail[k] = r.tail().id();
+			m_extensible[k] = r.extensible();
+			k++;
+		}
+		m_rods = k;
+		m_source = g;
+		m_layout = g.version();
+		m_version++;
+	}
+}
@@ -0,0 +1,275 @@
+package blackhole;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A structure saved to disk, in a binary format that can be opened without
+ * reading it.
+ *
+ * The file is a header followed by two tables of fixed-width records, all
+ * little-endian:
+ *     header   magic "BHSF", version, anchor count, rod count   (16 bytes)
+ *     anchors  theta, phi, mass as doubles                      (24 bytes each)
+ *     rods     head id, tail id, flags as ints                  (12 bytes each)
+ * Anchor ids are record numbers. Rods are numbered in the order they were
+ * written, which is the order of their ids in the store, without any gaps.
+ * The only flag is EXTENSIBLE, which is the rod's extensibility as it was
+ * when it was saved, so loading never has to work it out again.
+ *
+ * Opening a file maps it into memory rather than reading it, so it takes the
+ * same (tiny) time however big the file is, and the records are read straight
+ * out of the mapping by theta(), head() and so on, with only the pages
+ * actually looked at being read off the disk. Mappings can't be bigger than
+ * 2GB, so each table is mapped in pieces of CHUNK records.
+ *
+ * load() copies the whole thing into a new store, anchors and rods at once,
+ * using the saved extensibility instead of working it out (see
+ * StructureBuilder).
+ *
+ * @author Rory
+ *
+ */
+public class SceneFile implements Closeable {
+
+	// The version this writes, and the newest it can read.
+	public static final int VERSION = 1;
+
+	// Rod flags.
+	public static final int EXTENSIBLE = 1;
+
+	// "BHSF", and the sizes of the header and records.
+	private static final int MAGIC = 0x46534842;
+	private static final int HEADER = 16;
+	private static final int ANCHOR = 24;
+	private static final int ROD = 12;
+
+	// Records per mapped piece (2^25, or 768MB of anchors at most).
+	static final int CHUNK_BITS = 25;
+	private static final int CHUNK = 1 << CHUNK_BITS;
+
+	// Records written at a time when saving.
+	private static final int BATCH = 4096;
+
+	private final FileChannel m_channel;
+	private final int m_version;
+	private final int m_anchors;
+	private final int m_rods;
+
+	// The tables, a piece at a time.
+	private final ByteBuffer[] m_anchorChunks;
+	private final ByteBuffer[] m_rodChunks;
+
+	// Whether close() has been called.
+	private boolean m_closed;
+
+	/**
+	 * Constructors
+	 */
+
+	// Opens (maps) the given file.
+	public SceneFile(File file) throws IOException {
+		m_channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+			while (header.hasRemaining() && m_channel.read(header) >= 0) {
+			}
+			if (header.hasRemaining() || header.getInt(0) != MAGIC) {
+				throw new IOException(file + " isn't a scene file");
+			}
+			m_version = header.getInt(4);
+			m_anchors = header.getInt(8);
+			m_rods = header.getInt(12);
+			if (m_version < 1 || m_version > VERSION) {
+				throw new IOException(file + " is version " + m_version + ", can only read up to " + VERSION);
+			}
+			long rodBase = HEADER + (long) ANCHOR * m_anchors;
+			long length = rodBase + (long) ROD * m_rods;
+			if (m_anchors < 0 || m_rods < 0 || m_channel.size() < length) {
+				throw new IOException(file + " is cut short: " + m_channel.size() + " of " + length + " bytes");
+			}
+			m_anchorChunks = map(HEADER, m_anchors, ANCHOR);
+			m_rodChunks = map(rodBase, m_rods, ROD);
+		}
+		catch (IOException | RuntimeException e) {
+			m_channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Accessors
+	 */
+
+	public int version() {
+		return m_version;
+	}
+
+	public int anchorCount() {
+		return m_anchors;
+	}
+
+	public int rodCount() {
+		return m_rods;
+	}
+
+	// Anchor i's record.
+	public double theta(int i) {
+		return anchors(i).getDouble(ANCHOR * (i & (CHUNK - 1)));
+	}
+
+	public double phi(int i) {
+		return anchors(i).getDouble(ANCHOR * (i & (CHUNK - 1)) + 8);
+	}
+
+	public double mass(int i) {
+		return anchors(i).getDouble(ANCHOR * (i & (CHUNK - 1)) + 16);
+	}
+
+	// Rod k's record.
+	public int head(int k) {
+		return rods(k).getInt(ROD * (k & (CHUNK - 1)));
+	}
+
+	public int tail(int k) {
+		return rods(k).getInt(ROD * (k & (CHUNK - 1)) + 4);
+	}
+
+	public int flags(int k) {
+		return rods(k).getInt(ROD * (k & (CHUNK - 1)) + 8);
+	}
+
+	public boolean extensible(int k) {
+		return (flags(k) & EXTENSIBLE) != 0;
+	}
+
+	// Builds a new store holding everything in the file.
+	public AnchorStore load() throws IOException {
+		checkOpen();
+		StructureBuilder b = new StructureBuilder(m_anchors, m_rods);
+		for (int i = 0; i < m_anchors; i++) {
+			b.anchor(theta(i), phi(i), mass(i));
+		}
+		boolean[] extensible = new boolean[m_rods];
+		for (int k = 0; k < m_rods; k++) {
+			int flags = flags(k);
+			try {
+				b.rod(head(k), tail(k));
+			}
+			catch (IndexOutOfBoundsException e) {
+				throw new IOException("Rod " + k + " is broken", e);
+			}
+			extensible[k] = (flags & EXTENSIBLE) != 0;
+		}
+		return b.build(extensible);
+	}
+
+	/**
+	 * Mutators
+	 */
+
+	// Lets go of the file. The records can't be read after this.
+	public void close() throws IOException {
+		m_closed = true;
+		m_channel.close();
+		for (int c = 0; c < m_anchorChunks.length; c++) {
+			m_anchorChunks[c] = null;
+		}
+		for (int c = 0; c < m_rodChunks.length; c++) {
+			m_rodChunks[c] = null;
+		}
+	}
+
+	// Saves the store to the given file, replacing whatever was there.
+	public static void write(AnchorStore store, File file) throws IOException {
+		RodGraph graph = store.graph();
+		int n = store.size();
+		ByteBuffer buf = ByteBuffer.allocateDirect(BATCH * ANCHOR).order(ByteOrder.LITTLE_ENDIAN);
+		try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			buf.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(graph.size());
+			for (int i = 0; i < n; i++) {
+				if (buf.remaining() < ANCHOR) {
+					flush(out, buf);
+				}
+				buf.putDouble(store.theta(i)).putDouble(store.phi(i)).putDouble(store.mass(i));
+			}
+			for (int id = 0; id < graph.rodCount(); id++) {
+				Rod r = graph.rod(id);
+				if (r == null) {
+					continue;
+				}
+				if (buf.remaining() < ROD) {
+					flush(out, buf);
+				}
+				buf.putInt(r.head().id()).putInt(r.tail().id()).putInt(r.extensible() ? EXTENSIBLE : 0);
+			}
+			flush(out, buf);
+		}
+	}
+
+	/**
+	 * Private methods.
+	 */
+
+	// The piece holding anchor i (or rod k).
+	private ByteBuffer anchors(int i) {
+		checkOpen();
+		if (i < 0 || i >= m_anchors) {
+			throw new IndexOutOfBoundsException("No anchor with id " + i);
+		}
+		return m_anchorChunks[i >>> CHUNK_BITS];
+	}
+
+	private ByteBuffer rods(int k) {
+		checkOpen();
+		if (k < 0 || k >= m_rods) {
+			throw new IndexOutOfBoundsException("No rod " + k);
+		}
+		return m_rodChunks[k >>> CHUNK_BITS];
+	}
+
+	private void checkOpen() {
+		if (m_closed) {
+			throw new IllegalStateException("closed");
+		}
+	}
+
+	// Maps count records of the given size from base on, CHUNK at a time.
+	private ByteBuffer[] map(long base, int count, int size) throws IOException {
+		return map(m_channel, base, count, size);
+	}
+
+	// The same for any file of fixed-width records (Checkpointer uses it
+	// too). Records up to 64 bytes fit CHUNK to a piece. Record i is then
+	// at offset(i, size) in chunks[i >>> CHUNK_BITS].
+	static ByteBuffer[] map(FileChannel channel, long base, int count, int size) throws IOException {
+		ByteBuffer[] chunks = new ByteBuffer[(count + CHUNK - 1) >>> CHUNK_BITS];
+		for (int c = 0; c < chunks.length; c++) {
+			long records = Math.min(CHUNK, count - ((long) c << CHUNK_BITS));
+			MappedByteBuffer m = channel.map(FileChannel.MapMode.READ_ONLY,
+					base + ((long) c << CHUNK_BITS) * size, records * size);
+			chunks[c] = m.order(ByteOrder.LITTLE_ENDIAN);
+		}
+		return chunks;
+	}
+
+	static int offset(int i, int size) {
+		return size * (i & (CHUNK - 1));
+	}
+
+	// Writes out everything in buf and empties it.
+	private static void flush(FileChannel out, ByteBuffer buf) throws IOException {
+		buf.flip();
+		while (buf.hasRemaining()) {
+			out.write(buf);
+		}
+		buf.clear();
+	}
+}
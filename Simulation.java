@@ -0,0 +1,846 @@
+package blackhole;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Moves the anchors of an AnchorStore forward in time.
+ *
+ * Each step is velocity Verlet, adapted to the sphere:
+ *     1) Kick: add half a step's worth of acceleration to every velocity.
+ *     2) Drift: slide every anchor along the great circle its velocity
+ *        points along, for one step. This keeps anchors exactly on the unit
+ *        sphere, and carries the velocity along with it.
+ *     3) Fix rods: pull anchors back so that every rod has the arc length it
+ *        started with, moving them only along the rods and radii as they
+ *        were at the start of the step (see ConstraintSolver), and fold the
+ *        correction into the velocities.
+ *     4) Kick: work out the forces at the new positions and add the other
+ *        half step of acceleration.
+ *     5) Take any stretching out of the velocities along the rods, and
+ *        anything off the sphere.
+ * This is the SHAKE/RATTLE scheme molecular dynamics uses for bond lengths.
+ * Once the solver has converged it's symplectic, so energy wanders but
+ * doesn't drift away over long runs; stopped short (too few iterations for
+ * how fast the rods are turning) it leaks a little energy every step.
+ *
+ * Velocities (tangent to the sphere) and forces are kept in primitive arrays
+ * by anchor id, alongside the store's own arrays, and a step allocates
+ * nothing unless anchors or rods have been added since the last one.
+ *
+ * Anchors can have zero or negative mass (see Anchor), which doesn't leave us
+ * anything sensible to divide by, so those move as if they had unit mass.
+ *
+ * With setRigid(true), braced blobs of anchors move as rigid bodies (see
+ * RigidBodies): each body is kicked by the torque on it and drifts by turning
+ * about the centre. Rods inside a body don't need fixing, which leaves the
+ * extensible rods between bodies and lone anchors. Those are fixed here
+ * rather than by the ConstraintSolver (though with its iterations and
+ * tolerance), since pulling on a body turns it rather than just moving the
+ * one anchor. They're pulled along the rods as they are now, not as they
+ * were at the start of the step, so this is plain projection rather than
+ * SHAKE, and leaks a little energy. The anchors' velocities are kept up to
+ * date with their bodies', so everything that reads them carries on working.
+ *
+ * @author Rory
+ *
+ */
+public class Simulation {
+
+	/**
+	 * Anything that pushes anchors around. Adds its force on each anchor into
+	 * fx, fy and fz (indexed by anchor id). Forces don't have to be tangent to
+	 * the sphere; the simulation ignores the part that isn't.
+	 */
+	public interface Force {
+		void accumulate(AnchorStore store, double[] fx, double[] fy, double[] fz);
+	}
+
+	// The anchors we're moving.
+	private final AnchorStore m_store;
+
+	// Length of a step.
+	private double m_dt;
+
+	// Steps taken so far, and the simulated time that adds up to.
+	private long m_steps;
+	private double m_time;
+
+	// Velocity, force and inverse mass of each anchor, where each anchor was
+	// at the start of the step, and where it was before the rods were fixed.
+	private int m_n;
+	private double[] m_vx;
+	private double[] m_vy;
+	private double[] m_vz;
+	private double[] m_fx;
+	private double[] m_fy;
+	private double[] m_fz;
+	private double[] m_w;
+	private double[] m_sx;
+	private double[] m_sy;
+	private double[] m_sz;
+	private double[] m_qx;
+	private double[] m_qy;
+	private double[] m_qz;
+	private boolean m_forcesValid;
+
+	// The rods, flattened: ends and chord length of each. Rest lengths are
+	// kept by rod id, along with the rod they were measured for.
+	private int m_rods;
+	private int[] m_head;
+	private int[] m_tail;
+	private double[] m_chord;
+	private double[] m_rest;
+	private Rod[] m_restRod;
+	private int m_graphVersion;
+
+	// Rigid bodies, or null if every anchor moves on its own. For each body:
+	// angular momentum and angular velocity (x, y, z each), the angular
+	// impulse fixing the rods gave it this step, and its inverse moment of
+	// inertia (nine each). Plus whether the momenta are up to date with the anchors'
+	// velocities, and scratch space for the ends of a rod.
+	private RigidBodies m_bodies;
+	private double[] m_momentum;
+	private double[] m_spin;
+	private double[] m_turned;
+	private double[] m_inverse;
+	private boolean m_spinValid;
+	private final double[] m_ends;
+
+	// Everything pushing the anchors around, and the rod fixer.
+	private final ArrayList<Force> m_forces;
+	private ConstraintSolver m_solver;
+
+	/**
+	 * Constructors
+	 */
+
+	// Creates a simulation of the given store with the given step length.
+	// Everything starts at rest, and every rod keeps the length it has now.
+	public Simulation(AnchorStore store, double dt) {
+		m_store = store;
+		m_dt = dt;
+		m_steps = 0;
+		m_time = 0;
+		m_n = 0;
+		m_vx = new double[0];
+		m_vy = new double[0];
+		m_vz = new double[0];
+		m_fx = new double[0];
+		m_fy = new double[0];
+		m_fz = new double[0];
+		m_w = new double[0];
+		m_sx = new double[0];
+		m_sy = new double[0];
+		m_sz = new double[0];
+		m_qx = new double[0];
+		m_qy = new double[0];
+		m_qz = new double[0];
+		m_forcesValid = false;
+		m_rods = 0;
+		m_head = new int[0];
+		m_tail = new int[0];
+		m_chord = new double[0];
+		m_rest = new double[0];
+		m_restRod = new Rod[0];
+		m_graphVersion = -1;
+		m_bodies = null;
+		m_momentum = new double[0];
+		m_spin = new double[0];
+		m_turned = new double[0];
+		m_inverse = new double[0];
+		m_spinValid = false;
+		m_ends = new double[18];
+		m_forces = new ArrayList<Force>();
+		m_solver = new ConstraintSolver();
+		sync();
+	}
+
+	/**
+	 * Accessors
+	 */
+
+	public AnchorStore store() {
+		return m_store;
+	}
+
+	public double dt() {
+		return m_dt;
+	}
+
+	public long steps() {
+		return m_steps;
+	}
+
+	public double time() {
+		return m_time;
+	}
+
+	public ConstraintSolver solver() {
+		return m_solver;
+	}
+
+	// Whether braced anchors move as rigid bodies.
+	public boolean rigid() {
+		return m_bodies != null;
+	}
+
+	// The rigid bodies being moved, or null if there aren't any.
+	public RigidBodies bodies() {
+		sync();
+		return m_bodies;
+	}
+
+	// Velocity of the given anchor.
+	public double vx(int id) {
+		return m_vx[id];
+	}
+
+	public double vy(int id) {
+		return m_vy[id];
+	}
+
+	public double vz(int id) {
+		return m_vz[id];
+	}
+
+	// Raw velocity arrays, by anchor id. Replaced when anchors are added.
+	public double[] vxs() {
+		return m_vx;
+	}
+
+	public double[] vys() {
+		return m_vy;
+	}
+
+	public double[] vzs() {
+		return m_vz;
+	}
+
+	// The arc length the simulation holds the given rod to.
+	public double restLength(Rod r) {
+		sync();
+		return m_rest[r.id()];
+	}
+
+	// Rest lengths by rod id (see restLength()), for saving or setting them
+	// all at once. Ids without a rod don't mean anything. After changing
+	// them, call resume().
+	double[] restLengths() {
+		sync();
+		return m_rest;
+	}
+
+	// Total kinetic energy, using the same masses the integrator does.
+	public double kineticEnergy() {
+		sync();
+		double e = 0;
+		for (int i = 0; i < m_n; i++) {
+			double v2 = m_vx[i]*m_vx[i] + m_vy[i]*m_vy[i] + m_vz[i]*m_vz[i];
+			e += 0.5 * v2 / m_w[i];
+		}
+		return e;
+	}
+
+	/**
+	 * Mutators
+	 */
+
+	public void setDt(double dt) {
+		m_dt = dt;
+	}
+
+	// Moves braced anchors as rigid bodies (or stops doing so). The bodies
+	// keep the shape they have when they are found, so rods inside them keep
+	// the lengths they have then, whatever their rest lengths say.
+	public void setRigid(boolean rigid) {
+		if (rigid == (m_bodies != null)) {
+			return;
+		}
+		m_bodies = rigid ? new RigidBodies(m_store) : null;
+		m_spinValid = false;
+		m_graphVersion = -1;
+	}
+
+	// Swaps in a different rod fixer (e.g. a parallel one).
+	public void setSolver(ConstraintSolver solver) {
+		m_solver = solver;
+		m_graphVersion = -1;
+	}
+
+	// Adds something that pushes the anchors around.
+	public void addForce(Force f) {
+		m_forces.add(f);
+		m_forcesValid = false;
+	}
+
+	public boolean removeForce(Force f) {
+		m_forcesValid = false;
+		return m_forces.remove(f);
+	}
+
+	// Sets the velocity of an anchor. Only the part tangent to the sphere
+	// counts.
+	public void setVelocity(int id, double vx, double vy, double vz) {
+		sync();
+		m_vx[id] = vx;
+		m_vy[id] = vy;
+		m_vz[id] = vz;
+		tangent(id);
+		m_spinValid = false;
+	}
+
+	// Holds a rod to a new arc length from the next step on (extensible rods
+	// can be extended without breaking anything).
+	public void setRestLength(Rod r, double length) {
+		sync();
+		m_rest[r.id()] = length;
+		m_graphVersion = -1;
+	}
+
+	// Tells the simulation that anchors have been moved or resized from
+	// outside since the last step.
+	public void touched() {
+		m_forcesValid = false;
+		m_graphVersion = -1;
+		if (m_bodies != null) {
+			// The bodies have to start again from wherever the anchors are now.
+			m_bodies = new RigidBodies(m_store);
+			m_spinValid = false;
+		}
+	}
+
+	// Picks up where a checkpoint left off: sets the step count and time, and
+	// works everything that comes from the velocities and rest lengths out
+	// again from the next step on.
+	void resume(long steps, double time) {
+		m_steps = steps;
+		m_time = time;
+		m_forcesValid = false;
+		m_spinValid = false;
+		m_graphVersion = -1;
+	}
+
+	// Advances the simulation by the given number of steps.
+	public void run(int steps) {
+		for (int i = 0; i < steps; i++) {
+			step();
+		}
+	}
+
+	// Advances the simulation by one step.
+	public void step() {
+		sync();
+		if (! m_forcesValid) {
+			forces();
+		}
+		int n = m_n;
+		double dt = m_dt;
+		double[] x = m_store.xs();
+		double[] y = m_store.ys();
+		double[] z = m_store.zs();
+
+		RigidBodies bodies = m_bodies;
+		if (bodies != null && ! m_spinValid) {
+			spins(x, y, z);
+		}
+
+		// 1) and 2): half kick, then drift along great circles (or turn about
+		// the centre, for bodies), remembering where everything started.
+		kick(0.5 * dt);
+		if (m_rods > 0) {
+			System.arraycopy(x, 0, m_sx, 0, n);
+			System.arraycopy(y, 0, m_sy, 0, n);
+			System.arraycopy(z, 0, m_sz, 0, n);
+		}
+		for (int i = 0; i < n; i++) {
+			if (bodies != null && bodies.body(i) >= 0) {
+				continue;
+			}
+			double vx = m_vx[i];
+			double vy = m_vy[i];
+			double vz = m_vz[i];
+			double speed = Math.sqrt(vx*vx + vy*vy + vz*vz);
+			if (speed > 0) {
+				double ux = vx / speed;
+				double uy = vy / speed;
+				double uz = vz / speed;
+				double c = Math.cos(speed * dt);
+				double s = Math.sin(speed * dt);
+				double px = x[i];
+				double py = y[i];
+				double pz = z[i];
+				x[i] = px * c + ux * s;
+				y[i] = py * c + uy * s;
+				z[i] = pz * c + uz * s;
+				m_vx[i] = (ux * c - px * s) * speed;
+				m_vy[i] = (uy * c - py * s) * speed;
+				m_vz[i] = (uz * c - pz * s) * speed;
+			}
+			m_qx[i] = x[i];
+			m_qy[i] = y[i];
+			m_qz[i] = z[i];
+		}
+		if (bodies != null) {
+			for (int b = 0; b < bodies.count(); b++) {
+				int k = 3 * b;
+				bodies.turn(b, m_spin[k] * dt, m_spin[k + 1] * dt, m_spin[k + 2] * dt);
+				bodies.place(b, x, y, z);
+			}
+		}
+
+		// 3) Fix the rods, and move the velocities by however far that moved
+		// each anchor (or turned each body).
+		if (m_rods > 0) {
+			if (bodies == null) {
+				m_solver.positions(m_rods, m_head, m_tail, m_chord, m_w, n, m_sx, m_sy, m_sz, x, y, z);
+			}
+			else {
+				fixBridges(x, y, z, dt);
+			}
+			for (int i = 0; i < n; i++) {
+				if (bodies != null && bodies.body(i) >= 0) {
+					continue;
+				}
+				m_vx[i] += (x[i] - m_qx[i]) / dt;
+				m_vy[i] += (y[i] - m_qy[i]) / dt;
+				m_vz[i] += (z[i] - m_qz[i]) / dt;
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			m_store.unitMoved(i);
+		}
+
+		// 4) and 5): forces at the new positions, second half kick, then
+		// take the stretch out of the velocities.
+		forces();
+		kick(0.5 * dt);
+		if (m_rods > 0) {
+			if (bodies == null) {
+				m_solver.velocities(m_rods, m_head, m_tail, m_w, n, x, y, z, m_vx, m_vy, m_vz);
+			}
+			else {
+				brakeBridges(x, y, z);
+				for (int i = 0; i < n; i++) {
+					tangent(i);
+				}
+			}
+		}
+
+		m_steps++;
+		m_time += dt;
+	}
+
+	/**
+	 * Private methods.
+	 */
+
+	// Adds h worth of acceleration to every velocity, tangent to the sphere.
+	private void kick(double h) {
+		RigidBodies bodies = m_bodies;
+		if (bodies != null) {
+			double[] x = m_store.xs();
+			double[] y = m_store.ys();
+			double[] z = m_store.zs();
+			for (int b = 0; b < bodies.count(); b++) {
+				// Torque about the centre: the sum of p x F.
+				double tx = 0, ty = 0, tz = 0;
+				for (int k = 0; k < bodies.size(b); k++) {
+					int i = bodies.member(b, k);
+					tx += y[i] * m_fz[i] - z[i] * m_fy[i];
+					ty += z[i] * m_fx[i] - x[i] * m_fz[i];
+					tz += x[i] * m_fy[i] - y[i] * m_fx[i];
+				}
+				int k = 3 * b;
+				m_momentum[k] += tx * h;
+				m_momentum[k + 1] += ty * h;
+				m_momentum[k + 2] += tz * h;
+				spin(b, x, y, z);
+			}
+		}
+		for (int i = 0; i < m_n; i++) {
+			if (bodies != null && bodies.body(i) >= 0) {
+				continue;
+			}
+			double w = m_w[i] * h;
+			m_vx[i] += m_fx[i] * w;
+			m_vy[i] += m_fy[i] * w;
+			m_vz[i] += m_fz[i] * w;
+			tangent(i);
+		}
+	}
+
+	// Works out each body's angular momentum from its anchors' velocities
+	// (which may have been set one at a time), then brings the velocities
+	// into line with how the body actually turns.
+	private void spins(double[] x, double[] y, double[] z) {
+		RigidBodies bodies = m_bodies;
+		for (int b = 0; b < bodies.count(); b++) {
+			double lx = 0, ly = 0, lz = 0;
+			for (int k = 0; k < bodies.size(b); k++) {
+				int i = bodies.member(b, k);
+				double m = 1.0 / m_w[i];
+				lx += m * (y[i] * m_vz[i] - z[i] * m_vy[i]);
+				ly += m * (z[i] * m_vx[i] - x[i] * m_vz[i]);
+				lz += m * (x[i] * m_vy[i] - y[i] * m_vx[i]);
+			}
+			int k = 3 * b;
+			m_momentum[k] = lx;
+			m_momentum[k + 1] = ly;
+			m_momentum[k + 2] = lz;
+			spin(b, x, y, z);
+		}
+		m_spinValid = true;
+	}
+
+	// Works out body b's angular velocity from its angular momentum, and sets
+	// its anchors' velocities to match (omega x p).
+	private void spin(int b, double[] x, double[] y, double[] z) {
+		int k = 3 * b;
+		int m = 9 * b;
+		m_bodies.invert(b, m_inverse, m);
+		double lx = m_momentum[k], ly = m_momentum[k + 1], lz = m_momentum[k + 2];
+		double[] inv = m_inverse;
+		m_spin[k] = inv[m] * lx + inv[m + 1] * ly + inv[m + 2] * lz;
+		m_spin[k + 1] = inv[m + 3] * lx + inv[m + 4] * ly + inv[m + 5] * lz;
+		m_spin[k + 2] = inv[m + 6] * lx + inv[m + 7] * ly + inv[m + 8] * lz;
+		velocities(b, x, y, z);
+	}
+
+	// Works out body b's angular momentum from its angular velocity, and sets
+	// its anchors' velocities to match.
+	private void momentum(int b, double[] x, double[] y, double[] z) {
+		int k = 3 * b;
+		double ox = m_spin[k], oy = m_spin[k + 1], oz = m_spin[k + 2];
+		double[] inertia = m_ends;
+		m_bodies.inertia(b, inertia);
+		m_momentum[k] = inertia[0] * ox + inertia[1] * oy + inertia[2] * oz;
+		m_momentum[k + 1] = inertia[3] * ox + inertia[4] * oy + inertia[5] * oz;
+		m_momentum[k + 2] = inertia[6] * ox + inertia[7] * oy + inertia[8] * oz;
+		velocities(b, x, y, z);
+	}
+
+	// Sets the velocities of body b's anchors to omega x p.
+	private void velocities(int b, double[] x, double[] y, double[] z) {
+		int k = 3 * b;
+		double ox = m_spin[k], oy = m_spin[k + 1], oz = m_spin[k + 2];
+		RigidBodies bodies = m_bodies;
+		for (int j = 0; j < bodies.size(b); j++) {
+			int i = bodies.member(b, j);
+			m_vx[i] = oy * z[i] - oz * y[i];
+			m_vy[i] = oz * x[i] - ox * z[i];
+			m_vz[i] = ox * y[i] - oy * x[i];
+		}
+	}
+
+	// Step 3) with bodies: pulls every rod (all of which run between bodies
+	// and lone anchors) to the right chord length. A lone anchor moves by its
+	// inverse mass times the push, like in ConstraintSolver.fix(); a body
+	// turns by its inverse inertia times the twist the push gives it about
+	// the centre. Then the bodies' anchors are put in place and the twists
+	// added to their momentum.
+	private void fixBridges(double[] x, double[] y, double[] z, double dt) {
+		RigidBodies bodies = m_bodies;
+		int count = bodies.count();
+		for (int b = 0; b < count; b++) {
+			bodies.invert(b, m_inverse, 9 * b);
+		}
+		Arrays.fill(m_turned, 0, 3 * count, 0);
+		double[] e = m_ends;
+		for (int pass = 0; pass < m_solver.iterations(); pass++) {
+			double worst = 0;
+			for (int r = 0; r < m_rods; r++) {
+				int a = m_head[r];
+				int b = m_tail[r];
+				int ba = end(a, x, y, z, e, 0);
+				int bb = end(b, x, y, z, e, 3);
+				double dx = e[3] - e[0];
+				double dy = e[4] - e[1];
+				double dz = e[5] - e[2];
+				double len = Math.sqrt(dx*dx + dy*dy + dz*dz);
+				if (len == 0) {
+					continue;
+				}
+				double err = len - m_chord[r];
+				worst = Math.max(worst, Math.abs(err));
+				dx /= len;
+				dy /= len;
+				dz /= len;
+				double wa = response(a, ba, dx, dy, dz, e, 0, 6);
+				double wb = response(b, bb, dx, dy, dz, e, 3, 12);
+				if (wa + wb == 0) {
+					continue;
+				}
+				double k = err / (wa + wb);
+				push(a, ba, k, dx, dy, dz, e, 6, x, y, z);
+				push(b, bb, -k, dx, dy, dz, e, 12, x, y, z);
+			}
+			for (int r = 0; r < m_rods; r++) {
+				ConstraintSolver.normalize(m_head[r], x, y, z);
+				ConstraintSolver.normalize(m_tail[r], x, y, z);
+			}
+			if (worst <= m_solver.tolerance()) {
+				break;
+			}
+		}
+		for (int b = 0; b < count; b++) {
+			bodies.place(b, x, y, z);
+			int k = 3 * b;
+			m_momentum[k] += m_turned[k] / dt;
+			m_momentum[k + 1] += m_turned[k + 1] / dt;
+			m_momentum[k + 2] += m_turned[k + 2] / dt;
+			spin(b, x, y, z);
+		}
+	}
+
+	// Step 5) with bodies: takes the stretch out of the velocities along
+	// every rod, turning bodies the same way fixBridges() does.
+	private void brakeBridges(double[] x, double[] y, double[] z) {
+		RigidBodies bodies = m_bodies;
+		int count = bodies.count();
+		for (int b = 0; b < count; b++) {
+			bodies.invert(b, m_inverse, 9 * b);
+		}
+		double[] e = m_ends;
+		for (int pass = 0; pass < m_solver.iterations(); pass++) {
+			double worst = 0;
+			for (int r = 0; r < m_rods; r++) {
+				int a = m_head[r];
+				int b = m_tail[r];
+				double dx = x[b] - x[a];
+				double dy = y[b] - y[a];
+				double dz = z[b] - z[a];
+				double len = Math.sqrt(dx*dx + dy*dy + dz*dz);
+				if (len == 0) {
+					continue;
+				}
+				dx /= len;
+				dy /= len;
+				dz /= len;
+				int ba = bodies.body(a);
+				int bb = bodies.body(b);
+				e[0] = x[a]; e[1] = y[a]; e[2] = z[a];
+				e[3] = x[b]; e[4] = y[b]; e[5] = z[b];
+				double rel = (speed(b, bb, x, y, z, dx, dy, dz) - speed(a, ba, x, y, z, dx, dy, dz));
+				worst = Math.max(worst, Math.abs(rel));
+				double wa = response(a, ba, dx, dy, dz, e, 0, 6);
+				double wb = response(b, bb, dx, dy, dz, e, 3, 12);
+				if (wa + wb == 0) {
+					continue;
+				}
+				double k = rel / (wa + wb);
+				if (ba < 0) {
+					m_vx[a] += m_w[a] * k * dx;
+					m_vy[a] += m_w[a] * k * dy;
+					m_vz[a] += m_w[a] * k * dz;
+				}
+				else {
+					m_spin[3 * ba] += k * e[6];
+					m_spin[3 * ba + 1] += k * e[7];
+					m_spin[3 * ba + 2] += k * e[8];
+				}
+				if (bb < 0) {
+					m_vx[b] -= m_w[b] * k * dx;
+					m_vy[b] -= m_w[b] * k * dy;
+					m_vz[b] -= m_w[b] * k * dz;
+				}
+				else {
+					m_spin[3 * bb] -= k * e[12];
+					m_spin[3 * bb + 1] -= k * e[13];
+					m_spin[3 * bb + 2] -= k * e[14];
+				}
+			}
+			if (worst <= m_solver.tolerance()) {
+				break;
+			}
+		}
+		for (int b = 0; b < count; b++) {
+			momentum(b, x, y, z);
+		}
+	}
+
+	// Puts where anchor i is into e at o (asking its body, if it has one,
+	// since the body may have turned since it was last placed). Returns the
+	// anchor's body.
+	private int end(int i, double[] x, double[] y, double[] z, double[] e, int o) {
+		int b = m_bodies.body(i);
+		if (b >= 0) {
+			m_bodies.where(b, i, e, o);
+		}
+		else {
+			e[o] = x[i];
+			e[o + 1] = y[i];
+			e[o + 2] = z[i];
+		}
+		return b;
+	}
+
+	// How far anchor i (at e[o]) gives per unit push along (dx, dy, dz): its
+	// inverse mass, or for an anchor of body b, how far the body turns it.
+	// For a body, also leaves the turn per unit push in e at t, and the twist
+	// in e at t + 3.
+	private double response(int i, int b, double dx, double dy, double dz,
+			double[] e, int o, int t) {
+		if (b < 0) {
+			return m_w[i];
+		}
+		// The twist p x d, and the turn the inverse inertia makes of it.
+		double px = e[o], py = e[o + 1], pz = e[o + 2];
+		double cx = py * dz - pz * dy;
+		double cy = pz * dx - px * dz;
+		double cz = px * dy - py * dx;
+		double[] inv = m_inverse;
+		int m = 9 * b;
+		double tx = inv[m] * cx + inv[m + 1] * cy + inv[m + 2] * cz;
+		double ty = inv[m + 3] * cx + inv[m + 4] * cy + inv[m + 5] * cz;
+		double tz = inv[m + 6] * cx + inv[m + 7] * cy + inv[m + 8] * cz;
+		e[t] = tx;
+		e[t + 1] = ty;
+		e[t + 2] = tz;
+		e[t + 3] = cx;
+		e[t + 4] = cy;
+		e[t + 5] = cz;
+		return cx * tx + cy * ty + cz * tz;
+	}
+
+	// Pushes anchor i by k along (dx, dy, dz): moves it if it's on its own,
+	// or turns its body by k times the turn response() left in e at t (and
+	// notes the twist).
+	private void push(int i, int b, double k, double dx, double dy, double dz,
+			double[] e, int t, double[] x, double[] y, double[] z) {
+		if (b < 0) {
+			double w = m_w[i] * k;
+			x[i] += w * dx;
+			y[i] += w * dy;
+			z[i] += w * dz;
+			return;
+		}
+		m_bodies.turn(b, k * e[t], k * e[t + 1], k * e[t + 2]);
+		m_turned[3 * b] += k * e[t + 3];
+		m_turned[3 * b + 1] += k * e[t + 4];
+		m_turned[3 * b + 2] += k * e[t + 5];
+	}
+
+	// Speed of anchor i along (dx, dy, dz): its own, or its body's omega x p.
+	private double speed(int i, int b, double[] x, double[] y, double[] z,
+			double dx, double dy, double dz) {
+		if (b < 0) {
+			return m_vx[i] * dx + m_vy[i] * dy + m_vz[i] * dz;
+		}
+		int k = 3 * b;
+		double ox = m_spin[k], oy = m_spin[k + 1], oz = m_spin[k + 2];
+		double vx = oy * z[i] - oz * y[i];
+		double vy = oz * x[i] - ox * z[i];
+		double vz = ox * y[i] - oy * x[i];
+		return vx * dx + vy * dy + vz * dz;
+	}
+
+	// Works out the total force on every anchor.
+	private void forces() {
+		Arrays.fill(m_fx, 0, m_n, 0);
+		Arrays.fill(m_fy, 0, m_n, 0);
+		Arrays.fill(m_fz, 0, m_n, 0);
+		int size = m_forces.size();
+		for (int i = 0; i < size; i++) {
+			m_forces.get(i).accumulate(m_store, m_fx, m_fy, m_fz);
+		}
+		m_forcesValid = true;
+	}
+
+	// Drops the part of anchor i's velocity that points off the sphere.
+	private void tangent(int i) {
+		double x = m_store.x(i);
+		double y = m_store.y(i);
+		double z = m_store.z(i);
+		double d = m_vx[i] * x + m_vy[i] * y + m_vz[i] * z;
+		m_vx[i] -= d * x;
+		m_vy[i] -= d * y;
+		m_vz[i] -= d * z;
+	}
+
+	// Catches up with anchors and rods added (or removed) since we last
+	// looked, and with any changes in mass.
+	private void sync() {
+		int n = m_store.size();
+		if (n > m_vx.length) {
+			int cap = Math.max(n, m_vx.length * 2);
+			m_vx = Arrays.copyOf(m_vx, cap);
+			m_vy = Arrays.copyOf(m_vy, cap);
+			m_vz = Arrays.copyOf(m_vz, cap);
+			m_fx = Arrays.copyOf(m_fx, cap);
+			m_fy = Arrays.copyOf(m_fy, cap);
+			m_fz = Arrays.copyOf(m_fz, cap);
+			m_w = Arrays.copyOf(m_w, cap);
+			m_sx = new double[cap];
+			m_sy = new double[cap];
+			m_sz = new double[cap];
+			m_qx = Arrays.copyOf(m_qx, cap);
+			m_qy = Arrays.copyOf(m_qy, cap);
+			m_qz = Arrays.copyOf(m_qz, cap);
+		}
+		if (n != m_n) {
+			m_n = n;
+			m_forcesValid = false;
+		}
+		double[] mass = m_store.masses();
+		for (int i = 0; i < n; i++) {
+			m_w[i] = (mass[i] > 0) ? 1.0 / mass[i] : 1.0;
+		}
+
+		RigidBodies bodies = m_bodies;
+		if (bodies != null) {
+			if (bodies.update()) {
+				m_spinValid = false;
+				m_graphVersion = -1;
+			}
+			int cap = 3 * bodies.count();
+			if (cap > m_spin.length) {
+				m_momentum = new double[cap];
+				m_spin = new double[cap];
+				m_turned = new double[cap];
+				m_inverse = new double[3 * cap];
+			}
+		}
+
+		RodGraph g = m_store.graph();
+		if (g.version() == m_graphVersion) {
+			return;
+		}
+		int ids = g.rodCount();
+		if (ids > m_rest.length) {
+			m_rest = Arrays.copyOf(m_rest, Math.max(ids, m_rest.length * 2));
+			m_restRod = Arrays.copyOf(m_restRod, m_rest.length);
+		}
+		if (g.size() > m_head.length) {
+			int cap = Math.max(g.size(), m_head.length * 2);
+			m_head = new int[cap];
+			m_tail = new int[cap];
+			m_chord = new double[cap];
+		}
+		m_rods = 0;
+		for (int id = 0; id < ids; id++) {
+			Rod r = g.rod(id);
+			if (r == null) {
+				continue;
+			}
+			int a = r.head().id();
+			int b = r.tail().id();
+			// A rod we haven't seen before keeps whatever length it has now.
+			if (m_restRod[id] != r) {
+				m_rest[id] = Geodesic.distance(m_store.x(a), m_store.y(a), m_store.z(a),
+						m_store.x(b), m_store.y(b), m_store.z(b));
+				m_restRod[id] = r;
+			}
+			// Rods inside a body can look after themselves.
+			if (bodies != null && bodies.body(a) >= 0 && bodies.body(a) == bodies.body(b)) {
+				continue;
+			}
+			m_head[m_rods] = a;
+			m_tail[m_rods] = b;
+			m_chord[m_rods] = 2.0 * Math.sin(0.5 * m_rest[id]);
+			m_rods++;
+		}
+		m_solver.prepare(m_rods, m_head, m_tail);
+		m_graphVersion = g.version();
+	}
+}
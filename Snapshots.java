@@ -0,0 +1,161 @@
+package blackhole;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands the state of a simulation, as of its last step, to any number of
+ * other threads, without anyone waiting on anyone.
+ *
+ * After each step the simulation thread calls publish(), which copies the
+ * store into a Scene that nobody else can see yet and then makes it the
+ * latest with one atomic swap. Readers call acquire() to get the latest
+ * Snapshot, read it for as long as they like, and close() it. A snapshot
+ * never changes while anyone has it, so whatever a reader sees all comes
+ * from the same step, and nothing has to lock the store.
+ *
+ * Snapshots are counted: the latest one counts one for being the latest,
+ * and one for each reader holding it. Once it drops to nothing (it's been
+ * replaced and every reader has let go) it goes on a free list for
+ * publish() to fill again, so a steady run allocates nothing. A reader that
+ * gets hold of a snapshot just as it's being let go sees a count of zero and
+ * goes back for the new latest one; a snapshot only counts again once it's
+ * been filled, so no reader can ever get one part way through.
+ *
+ * Only one thread may publish.
+ *
+ * @author Rory
+ *
+ */
+public class Snapshots {
+
+	// The latest snapshot (null until the first publish()), and ones free
+	// to fill.
+	private final AtomicReference<Snapshot> m_latest;
+	private final ConcurrentLinkedQueue<Snapshot> m_free;
+
+	// Snapshots published, and made, so far.
+	private long m_epoch;
+	private final AtomicInteger m_made;
+
+	/**
+	 * Constructors
+	 */
+
+	public Snapshots() {
+		m_latest = new AtomicReference<Snapshot>();
+		m_free = new ConcurrentLinkedQueue<Snapshot>();
+		m_made = new AtomicInteger();
+	}
+
+	/**
+	 * Accessors
+	 */
+
+	// Number of snapshots that have had to be made (rather than reused).
+	public int made() {
+		return m_made.get();
+	}
+
+	// The latest snapshot, which the caller has to close() when done with
+	// it, or null if nothing has been published yet.
+	public Snapshot acquire() {
+		while (true) {
+			Snapshot s = m_latest.get();
+			if (s == null) {
+				return null;
+			}
+			if (s.pin()) {
+				return s;
+			}
+			// Let go of between get() and pin(): there's a newer one.
+		}
+	}
+
+	/**
+	 * Mutators
+	 */
+
+	// Publishes the simulation as it is now.
+	public void publish(Simulation sim) {
+		publish(sim.store(), sim.steps(), sim.time());
+	}
+
+	// Publishes the store as it is now, as of the given step and time.
+	public void publish(AnchorStore store, long step, double time) {
+		Snapshot s = m_free.poll();
+		if (s == null) {
+			s = new Snapshot(this);
+			m_made.incrementAndGet();
+		}
+		s.m_scene.capture(store);
+		s.m_step = step;
+		s.m_time = time;
+		s.m_epoch = ++m_epoch;
+		s.m_refs.set(1);
+		Snapshot old = m_latest.getAndSet(s);
+		if (old != null) {
+			old.close();
+		}
+	}
+
+	/**
+	 * One published state. Don't hang on to its scene after close().
+	 */
+	public static final class Snapshot implements AutoCloseable {
+
+		private final Snapshots m_owner;
+		private final Scene m_scene;
+		private long m_step;
+		private double m_time;
+		private long m_epoch;
+
+		// Holders: the publisher while it's the latest, plus each reader.
+		private final AtomicInteger m_refs;
+
+		private Snapshot(Snapshots owner) {
+			m_owner = owner;
+			m_scene = new Scene();
+			m_refs = new AtomicInteger();
+		}
+
+		public Scene scene() {
+			return m_scene;
+		}
+
+		// Simulation step and time it was taken at.
+		public long step() {
+			return m_step;
+		}
+
+		public double time() {
+			return m_time;
+		}
+
+		// Which publication this was (1 for the first).
+		public long epoch() {
+			return m_epoch;
+		}
+
+		// Lets go of it.
+		public void close() {
+			if (m_refs.decrementAndGet() == 0) {
+				m_owner.m_free.add(this);
+			}
+		}
+
+		// Holds on to it, unless it's already been let go of.
+		private boolean pin() {
+			while (true) {
+				int r = m_refs.get();
+				if (r <= 0) {
+					return false;
+				}
+				if (m_refs.compareAndSet(r, r + 1)) {
+					return true;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,811 @@
+package blackhole;
+
+import java.util.Arrays;
+
+/**
+ * Finds the anchors of an AnchorStore near a point without looking at all of
+ * them.
+ *
+ * The sphere is split up the same way as a cube: push each point out from
+ * the centre onto whichever face of the surrounding cube it hits, and split
+ * each face into a quadtree of cells. Cell edges are great circles (they're
+ * straight lines on the cube face), and we space them closer together
+ * towards the middle of the face, so cells near the corners of a face
+ * aren't much smaller than those in the middle. A cell at level l gets a cell id made of
+ * its face and the bits of its position on the face, interleaved, so the id
+ * of a cell's parent is just the id shifted right two bits, and cells that
+ * are close together tend to have close ids.
+ *
+ * The index keeps just enough of the quadtree that no leaf holds more than
+ * a few anchors (down to a fixed finest level), with how many anchors each
+ * node holds and a small cap around each. Queries walk down from the faces,
+ * skipping nodes whose caps miss the query, and taking whole nodes whose
+ * caps lie inside it. The index listens to the store, so anchors added or
+ * moved (by translate(), moveTo() or a Simulation) are filed again straight
+ * away, and only if they've left their leaf.
+ *
+ * Queries share working space, so the index isn't safe to use from more than
+ * one thread at once.
+ *
+ * @author Rory
+ *
+ */
+public class SphereIndex {
+
+	// Level used by the default constructor: cells about 2.4e-5 radians
+	// across.
+	private static final int DEFAULT_LEVEL = 16;
+
+	// Nodes holding more anchors than this get split, and split nodes left
+	// with half as many get gathered back up.
+	private static final int LEAF_SIZE = 8;
+
+	// Deepest level a cell id has room for.
+	public static final int MAX_LEVEL = 30;
+
+	// Each face of the cube as its outward direction and two directions
+	// across it, in that order.
+	private static final double[][] FACES = {
+		{ 1, 0, 0,   0, 1, 0,   0, 0, 1 },
+		{ 0, 1, 0,   0, 0, 1,   1, 0, 0 },
+		{ 0, 0, 1,   1, 0, 0,   0, 1, 0 },
+		{ -1, 0, 0,  0, 0, 1,   0, 1, 0 },
+		{ 0, -1, 0,  1, 0, 0,   0, 0, 1 },
+		{ 0, 0, -1,  0, 1, 0,   1, 0, 0 },
+	};
+
+	// The store we index, and the listener we've given it.
+	private final AnchorStore m_store;
+	private final Tracker m_tracker;
+
+	// Level of the smallest cells.
+	private final int m_level;
+
+	// For each anchor: the face and position on it of its cell (at level
+	// m_level), the node it's filed in, and its neighbours in that node's
+	// list.
+	private int[] m_face;
+	private int[] m_i;
+	private int[] m_j;
+	private int[] m_leaf;
+	private int[] m_next;
+	private int[] m_prev;
+
+	// The quadtree. Nodes 0 to 5 are the faces. Each node is a cell, at
+	// level m_depth and position (m_nodeI, m_nodeJ) on face m_nodeFace. A
+	// node has a parent and a count of the anchors under it, and is either
+	// split, with up to four children (m_child[4 * node] up to
+	// m_child[4 * node + 3], or -1), or a leaf, with a list of anchors
+	// starting at m_first (or -1). Each cell lies in a cap around its centre
+	// (m_cx, m_cy, m_cz) with angular radius m_radius. Unused nodes are
+	// chained through m_parent from m_free.
+	private int m_nodes;
+	private int[] m_child;
+	private int[] m_parent;
+	private int[] m_count;
+	private int[] m_first;
+	private boolean[] m_split;
+	private int[] m_depth;
+	private int[] m_nodeFace;
+	private int[] m_nodeI;
+	private int[] m_nodeJ;
+	private double[] m_cx;
+	private double[] m_cy;
+	private double[] m_cz;
+	private double[] m_radius;
+	private double[] m_cos;
+	private double[] m_sin;
+	private int m_free;
+
+	// Where the last call to locate() put the anchor: its face, and its
+	// position on the face.
+	private final int[] m_fij;
+
+	// Working space for queries: the cells still to look at, the nearest
+	// first queue (keys, and a node, or -1 - id for an anchor), and the
+	// anchors found.
+	private int[] m_stack;
+	private double[] m_heapKey;
+	private int[] m_heapItem;
+	private int m_heapSize;
+	private int[] m_result;
+
+	/**
+	 * Constructors
+	 */
+
+	// Default constructor: indexes the given store, down to cells about
+	// 2.4e-5 radians across.
+	public SphereIndex(AnchorStore store) {
+		this(store, DEFAULT_LEVEL);
+	}
+
+	// Indexes the given store, down to cells at the given level (0 to
+	// MAX_LEVEL). Nodes only split down to that level, so it's the finest
+	// the index will tell crowded anchors apart.
+	public SphereIndex(AnchorStore store, int level) {
+		if (level < 0 || level > MAX_LEVEL) {
+			throw new IllegalArgumentException("Level " + level + " is outside 0 to " + MAX_LEVEL);
+		}
+		m_store = store;
+		m_level = level;
+		int n = Math.max(16, store.size());
+		m_face = new int[n];
+		m_i = new int[n];
+		m_j = new int[n];
+		m_leaf = new int[n];
+		m_next = new int[n];
+		m_prev = new int[n];
+		m_nodes = 0;
+		m_free = -1;
+		int nodes = 64;
+		m_child = new int[4 * nodes];
+		m_parent = new int[nodes];
+		m_count = new int[nodes];
+		m_first = new int[nodes];
+		m_split = new boolean[nodes];
+		m_depth = new int[nodes];
+		m_nodeFace = new int[nodes];
+		m_nodeI = new int[nodes];
+		m_nodeJ = new int[nodes];
+		m_cx = new double[nodes];
+		m_cy = new double[nodes];
+		m_cz = new double[nodes];
+		m_radius = new double[nodes];
+		m_cos = new double[nodes];
+		m_sin = new double[nodes];
+		m_fij = new int[3];
+		m_stack = new int[64];
+		m_heapKey = new double[64];
+		m_heapItem = new int[64];
+		m_result = new int[64];
+		for (int f = 0; f < FACES.length; f++) {
+			node(-1, f, 0, 0, 0);
+		}
+		for (int id = 0; id < store.size(); id++) {
+			insert(id);
+		}
+		m_tracker = new Tracker();
+		store.addListener(m_tracker);
+	}
+
+	/**
+	 * Accessors
+	 */
+
+	public AnchorStore store() {
+		return m_store;
+	}
+
+	// Level of the smallest cells.
+	public int level() {
+		return m_level;
+	}
+
+	// Cell id (at level()) of the given anchor.
+	public long cell(int id) {
+		if (id < 0 || id >= m_store.size()) {
+			throw new IndexOutOfBoundsException("No anchor with id " + id);
+		}
+		m_store.settle();
+		return id(m_face[id], m_i[id], m_j[id], m_level);
+	}
+
+	// Number of nodes in the quadtree.
+	public int cells() {
+		int live = m_nodes;
+		for (int k = m_free; k >= 0; k = m_parent[k]) {
+			live--;
+		}
+		return live;
+	}
+
+	// Finds the anchors within angle r of p, in no particular order.
+	public int[] within(Point p, double r) {
+		int found = search(p.x(), p.y(), p.z(), r);
+		return Arrays.copyOf(m_result, found);
+	}
+
+	// Finds the anchors within angle r of the unit vector (x, y, z), puts as
+	// many as fit into out, and returns how many there were.
+	public int within(double x, double y, double z, double r, int[] out) {
+		int found = search(x, y, z, r);
+		System.arraycopy(m_result, 0, out, 0, Math.min(found, out.length));
+		return found;
+	}
+
+	// Finds the k anchors nearest p (or all of them, if there are fewer),
+	// nearest first.
+	public int[] nearest(Point p, int k) {
+		int found = closest(p.x(), p.y(), p.z(), k);
+		return Arrays.copyOf(m_result, found);
+	}
+
+	// Finds the k anchors nearest the unit vector (x, y, z), nearest first,
+	// puts as many as fit into out, and returns how many were found.
+	public int nearest(double x, double y, double z, int k, int[] out) {
+		int found = closest(x, y, z, k);
+		System.arraycopy(m_result, 0, out, 0, Math.min(found, out.length));
+		return found;
+	}
+
+	/**
+	 * Mutators
+	 */
+
+	// Stops following the store. The index is out of date from then on.
+	public void detach() {
+		m_store.removeListener(m_tracker);
+	}
+
+	/**
+	 * Static helpers.
+	 */
+
+	// Returns the id of the cell at the given level holding the point in the
+	// direction (x, y, z).
+	public static long cellId(double x, double y, double z, int level) {
+		return cellId(x, y, z, level, new int[3]);
+	}
+
+	// Same, with somewhere to work so that lots of calls don't make garbage.
+	static long cellId(double x, double y, double z, int level, int[] fij) {
+		locate(x, y, z, level, fij);
+		return id(fij[0], fij[1], fij[2], level);
+	}
+
+	public static long cellId(Point p, int level) {
+		return cellId(p.x(), p.y(), p.z(), level);
+	}
+
+	// Returns the id of the cell one level up that holds the given cell.
+	public static long parent(long cell) {
+		return cell >>> 2;
+	}
+
+	// Returns the cube face (0 to 5) of a cell at the given level.
+	public static int face(long cell, int level) {
+		return (int) (cell >>> (2 * level));
+	}
+
+	/**
+	 * Private methods.
+	 */
+
+	// Files anchor id in its cell.
+	private void insert(int id) {
+		if (id >= m_face.length) {
+			int n = Math.max(id + 1, m_face.length * 2);
+			m_face = Arrays.copyOf(m_face, n);
+			m_i = Arrays.copyOf(m_i, n);
+			m_j = Arrays.copyOf(m_j, n);
+			m_leaf = Arrays.copyOf(m_leaf, n);
+			m_next = Arrays.copyOf(m_next, n);
+			m_prev = Arrays.copyOf(m_prev, n);
+		}
+		locate(id);
+		place(id);
+	}
+
+	// Files anchor id again if it's left its node.
+	private void move(int id) {
+		int face = m_face[id];
+		int i = m_i[id];
+		int j = m_j[id];
+		locate(id);
+		if (m_face[id] == face && m_i[id] == i && m_j[id] == j) {
+			return;
+		}
+		int leaf = m_leaf[id];
+		int shift = m_level - m_depth[leaf];
+		if (m_face[id] == m_nodeFace[leaf]
+				&& (m_i[id] >>> shift) == m_nodeI[leaf]
+				&& (m_j[id] >>> shift) == m_nodeJ[leaf]) {
+			return;
+		}
+		remove(id);
+		place(id);
+	}
+
+	// Works out which cell (at level m_level) anchor id is in.
+	private void locate(int id) {
+		locate(m_store.x(id), m_store.y(id), m_store.z(id), m_level, m_fij);
+		m_face[id] = m_fij[0];
+		m_i[id] = m_fij[1];
+		m_j[id] = m_fij[2];
+	}
+
+	// Adds anchor id to the node covering its cell, making nodes down to it
+	// as needed, and splits the node if that makes it too full.
+	private void place(int id) {
+		int node = m_face[id];
+		m_count[node]++;
+		while (m_split[node]) {
+			node = child(node, id);
+			m_count[node]++;
+		}
+		link(node, id);
+		if (m_count[node] > LEAF_SIZE && m_depth[node] < m_level) {
+			split(node);
+		}
+	}
+
+	// Returns the child of the given node that anchor id belongs in, making
+	// it if need be.
+	private int child(int node, int id) {
+		int depth = m_depth[node] + 1;
+		int shift = m_level - depth;
+		int i = m_i[id] >>> shift;
+		int j = m_j[id] >>> shift;
+		int q = (i & 1) | ((j & 1) << 1);
+		int c = m_child[4 * node + q];
+		if (c < 0) {
+			c = node(node, m_face[id], depth, i, j);
+			m_child[4 * node + q] = c;
+		}
+		return c;
+	}
+
+	// Hands the anchors of a leaf down to new children, and splits any of
+	// those that are still too full.
+	private void split(int node) {
+		int id = m_first[node];
+		m_first[node] = -1;
+		m_split[node] = true;
+		while (id >= 0) {
+			int next = m_next[id];
+			int c = child(node, id);
+			m_count[c]++;
+			link(c, id);
+			id = next;
+		}
+		for (int q = 0; q < 4; q++) {
+			int c = m_child[4 * node + q];
+			if (c >= 0 && m_count[c] > LEAF_SIZE && m_depth[c] < m_level) {
+				split(c);
+			}
+		}
+	}
+
+	// Takes anchor id out of its node, drops any nodes left empty, and
+	// gathers the anchors of any node left nearly empty back into it.
+	private void remove(int id) {
+		int node = m_leaf[id];
+		int next = m_next[id];
+		int prev = m_prev[id];
+		if (prev >= 0) {
+			m_next[prev] = next;
+		}
+		else {
+			m_first[node] = next;
+		}
+		if (next >= 0) {
+			m_prev[next] = prev;
+		}
+		int merge = -1;
+		while (node >= 0) {
+			int parent = m_parent[node];
+			int count = --m_count[node];
+			if (count == 0 && parent >= 0) {
+				unhook(node);
+				free(node);
+			}
+			else if (m_split[node] && count <= LEAF_SIZE / 2) {
+				merge = node;
+			}
+			node = parent;
+		}
+		if (merge >= 0) {
+			m_first[merge] = gather(merge, -1);
+			m_split[merge] = false;
+			for (int id2 = m_first[merge]; id2 >= 0; id2 = m_next[id2]) {
+				m_leaf[id2] = merge;
+			}
+		}
+	}
+
+	// Frees every node under the given one, and returns the list of their
+	// anchors put in front of the given list.
+	private int gather(int node, int list) {
+		for (int q = 0; q < 4; q++) {
+			int c = m_child[4 * node + q];
+			if (c < 0) {
+				continue;
+			}
+			m_child[4 * node + q] = -1;
+			if (m_split[c]) {
+				list = gather(c, list);
+			}
+			else {
+				int id = m_first[c];
+				while (id >= 0) {
+					int next = m_next[id];
+					m_next[id] = list;
+					m_prev[id] = -1;
+					if (list >= 0) {
+						m_prev[list] = id;
+					}
+					list = id;
+					id = next;
+				}
+			}
+			free(c);
+		}
+		return list;
+	}
+
+	// Puts anchor id at the front of a leaf's list.
+	private void link(int node, int id) {
+		int first = m_first[node];
+		m_next[id] = first;
+		m_prev[id] = -1;
+		if (first >= 0) {
+			m_prev[first] = id;
+		}
+		m_first[node] = id;
+		m_leaf[id] = node;
+	}
+
+	// Takes a node out of its parent's children.
+	private void unhook(int node) {
+		int parent = m_parent[node];
+		for (int q = 0; q < 4; q++) {
+			if (m_child[4 * parent + q] == node) {
+				m_child[4 * parent + q] = -1;
+			}
+		}
+	}
+
+	// Puts a node on the free list.
+	private void free(int node) {
+		m_parent[node] = m_free;
+		m_free = node;
+	}
+
+	// Makes a node for the cell at (i, j) on the given face and level, under
+	// the given parent, and returns it.
+	private int node(int parent, int face, int level, int i, int j) {
+		int node;
+		if (m_free >= 0) {
+			node = m_free;
+			m_free = m_parent[node];
+		}
+		else {
+			if (m_nodes == m_parent.length) {
+				grow();
+			}
+			node = m_nodes++;
+		}
+		m_parent[node] = parent;
+		m_count[node] = 0;
+		m_first[node] = -1;
+		m_split[node] = false;
+		m_depth[node] = level;
+		m_nodeFace[node] = face;
+		m_nodeI[node] = i;
+		m_nodeJ[node] = j;
+		Arrays.fill(m_child, 4 * node, 4 * node + 4, -1);
+
+		// The centre, and the cap out to the farthest corner, which takes in
+		// the whole cell since its sides are great circles.
+		double size = 1 << level;
+		double s0 = 2.0 * i / size - 1;
+		double s1 = 2.0 * (i + 1) / size - 1;
+		double t0 = 2.0 * j / size - 1;
+		double t1 = 2.0 * (j + 1) / size - 1;
+		double[] c = unit(face, 0.5 * (s0 + s1), 0.5 * (t0 + t1));
+		double least = 1;
+		for (int k = 0; k < 4; k++) {
+			double[] corner = unit(face, (k & 1) == 0 ? s0 : s1, (k & 2) == 0 ? t0 : t1);
+			least = Math.min(least, c[0] * corner[0] + c[1] * corner[1] + c[2] * corner[2]);
+		}
+		double radius = Math.acos(Math.max(-1, Math.min(1, least))) + 1.0e-12;
+		m_cx[node] = c[0];
+		m_cy[node] = c[1];
+		m_cz[node] = c[2];
+		m_radius[node] = radius;
+		m_cos[node] = Math.cos(radius);
+		m_sin[node] = Math.sin(radius);
+		return node;
+	}
+
+	// Finds the anchors within angle r of (x, y, z), into m_result.
+	private int search(double x, double y, double z, double r) {
+		m_store.settle();
+		int found = 0;
+		if (r >= Math.PI) {
+			int n = m_store.size();
+			for (int id = 0; id < n; id++) {
+				found = add(found, id);
+			}
+			return found;
+		}
+		if (r < 0) {
+			return 0;
+		}
+		double cr = Math.cos(r);
+		double sr = Math.sin(r);
+		double half = Math.sin(0.5 * r);
+		double chord2 = 4 * half * half;
+		double[] xs = m_store.xs();
+		double[] ys = m_store.ys();
+		double[] zs = m_store.zs();
+
+		int sp = 0;
+		for (int f = 0; f < FACES.length; f++) {
+			if (m_count[f] > 0) {
+				m_stack[sp++] = f;
+			}
+		}
+		while (sp > 0) {
+			int node = m_stack[--sp];
+			double d = x * m_cx[node] + y * m_cy[node] + z * m_cz[node];
+			double rho = m_radius[node];
+			// Skip it if its cap misses ours.
+			if (r + rho < Math.PI && d < cr * m_cos[node] - sr * m_sin[node]) {
+				continue;
+			}
+			// Take all of it if its cap is inside ours.
+			if (r >= rho && d >= cr * m_cos[node] + sr * m_sin[node]) {
+				found = all(node, found);
+				continue;
+			}
+			if (! m_split[node]) {
+				for (int id = m_first[node]; id >= 0; id = m_next[id]) {
+					double dx = xs[id] - x;
+					double dy = ys[id] - y;
+					double dz = zs[id] - z;
+					if (dx*dx + dy*dy + dz*dz <= chord2) {
+						found = add(found, id);
+					}
+				}
+				continue;
+			}
+			if (sp + 4 > m_stack.length) {
+				m_stack = Arrays.copyOf(m_stack, m_stack.length * 2);
+			}
+			for (int q = 0; q < 4; q++) {
+				int c = m_child[4 * node + q];
+				if (c >= 0) {
+					m_stack[sp++] = c;
+				}
+			}
+		}
+		return found;
+	}
+
+	// Adds every anchor under the given node to m_result.
+	private int all(int node, int found) {
+		if (! m_split[node]) {
+			for (int id = m_first[node]; id >= 0; id = m_next[id]) {
+				found = add(found, id);
+			}
+			return found;
+		}
+		for (int q = 0; q < 4; q++) {
+			int c = m_child[4 * node + q];
+			if (c >= 0) {
+				found = all(c, found);
+			}
+		}
+		return found;
+	}
+
+	// Finds the k anchors nearest (x, y, z), nearest first, into m_result.
+	// Cells and anchors go into one queue, cells by the nearest any of
+	// their anchors could be, so an anchor that comes out of the queue is
+	// nearer than anything still in it.
+	private int closest(double x, double y, double z, int k) {
+		m_store.settle();
+		int found = 0;
+		m_heapSize = 0;
+		for (int f = 0; f < FACES.length; f++) {
+			if (m_count[f] > 0) {
+				push(bound(f, x, y, z), f);
+			}
+		}
+		double[] xs = m_store.xs();
+		double[] ys = m_store.ys();
+		double[] zs = m_store.zs();
+		while (found < k && m_heapSize > 0) {
+			int item = pop();
+			if (item < 0) {
+				found = add(found, -1 - item);
+			}
+			else if (! m_split[item]) {
+				for (int id = m_first[item]; id >= 0; id = m_next[id]) {
+					double dx = xs[id] - x;
+					double dy = ys[id] - y;
+					double dz = zs[id] - z;
+					push(dx*dx + dy*dy + dz*dz, -1 - id);
+				}
+			}
+			else {
+				for (int q = 0; q < 4; q++) {
+					int c = m_child[4 * item + q];
+					if (c >= 0) {
+						push(bound(c, x, y, z), c);
+					}
+				}
+			}
+		}
+		return found;
+	}
+
+	// The least squared chord from (x, y, z) to anything in the node's cap:
+	// if the centre is angle a away and the cap's radius is b, that's the
+	// chord across a - b, which we can get from cos(a - b) without any trig.
+	// Shaved a little so rounding never puts it past the true distance.
+	private double bound(int node, double x, double y, double z) {
+		double d = x * m_cx[node] + y * m_cy[node] + z * m_cz[node];
+		if (d >= m_cos[node]) {
+			return 0;
+		}
+		double s = Math.sqrt(Math.max(0, 1 - d * d));
+		double c = d * m_cos[node] + s * m_sin[node];
+		return Math.max(0, 2 - 2 * c - 1.0e-15);
+	}
+
+	// Appends an anchor to m_result, and returns the new count.
+	private int add(int found, int id) {
+		if (found == m_result.length) {
+			m_result = Arrays.copyOf(m_result, m_result.length * 2);
+		}
+		m_result[found] = id;
+		return found + 1;
+	}
+
+	// Adds an item to the queue.
+	private void push(double key, int item) {
+		if (m_heapSize == m_heapKey.length) {
+			m_heapKey = Arrays.copyOf(m_heapKey, m_heapSize * 2);
+			m_heapItem = Arrays.copyOf(m_heapItem, m_heapSize * 2);
+		}
+		int k = m_heapSize++;
+		while (k > 0) {
+			int up = (k - 1) >>> 1;
+			if (m_heapKey[up] <= key) {
+				break;
+			}
+			m_heapKey[k] = m_heapKey[up];
+			m_heapItem[k] = m_heapItem[up];
+			k = up;
+		}
+		m_heapKey[k] = key;
+		m_heapItem[k] = item;
+	}
+
+	// Takes the item with the smallest key off the queue.
+	private int pop() {
+		int top = m_heapItem[0];
+		int n = --m_heapSize;
+		double key = m_heapKey[n];
+		int item = m_heapItem[n];
+		int k = 0;
+		while (2 * k + 1 < n) {
+			int c = 2 * k + 1;
+			if (c + 1 < n && m_heapKey[c + 1] < m_heapKey[c]) {
+				c++;
+			}
+			if (key <= m_heapKey[c]) {
+				break;
+			}
+			m_heapKey[k] = m_heapKey[c];
+			m_heapItem[k] = m_heapItem[c];
+			k = c;
+		}
+		m_heapKey[k] = key;
+		m_heapItem[k] = item;
+		return top;
+	}
+
+	// Makes room for more nodes.
+	private void grow() {
+		int n = m_parent.length * 2;
+		m_child = Arrays.copyOf(m_child, 4 * n);
+		m_parent = Arrays.copyOf(m_parent, n);
+		m_count = Arrays.copyOf(m_count, n);
+		m_first = Arrays.copyOf(m_first, n);
+		m_split = Arrays.copyOf(m_split, n);
+		m_depth = Arrays.copyOf(m_depth, n);
+		m_nodeFace = Arrays.copyOf(m_nodeFace, n);
+		m_nodeI = Arrays.copyOf(m_nodeI, n);
+		m_nodeJ = Arrays.copyOf(m_nodeJ, n);
+		m_cx = Arrays.copyOf(m_cx, n);
+		m_cy = Arrays.copyOf(m_cy, n);
+		m_cz = Arrays.copyOf(m_cz, n);
+		m_radius = Arrays.copyOf(m_radius, n);
+		m_cos = Arrays.copyOf(m_cos, n);
+		m_sin = Arrays.copyOf(m_sin, n);
+	}
+
+	// Works out the face of the cube the direction (x, y, z) hits, and the
+	// cell at the given level it hits it in, into fij.
+	private static void locate(double x, double y, double z, int level, int[] fij) {
+		double ax = Math.abs(x);
+		double ay = Math.abs(y);
+		double az = Math.abs(z);
+		int face;
+		if (ax >= ay && ax >= az) {
+			face = (x >= 0) ? 0 : 3;
+		}
+		else if (ay >= az) {
+			face = (y >= 0) ? 1 : 4;
+		}
+		else {
+			face = (z >= 0) ? 2 : 5;
+		}
+		if (ax == 0 && ay == 0 && az == 0) {
+			// Same as Point: the origin is the north pole.
+			face = 2;
+			z = 1;
+		}
+		double[] f = FACES[face];
+		double n = f[0] * x + f[1] * y + f[2] * z;
+		double u = (f[3] * x + f[4] * y + f[5] * z) / n;
+		double v = (f[6] * x + f[7] * y + f[8] * z) / n;
+		int size = 1 << level;
+		fij[0] = face;
+		fij[1] = cell(u, size);
+		fij[2] = cell(v, size);
+	}
+
+	// Which of size cells across a face the position u on it falls in. A
+	// square root stretches the middle of the face and squeezes the edges,
+	// which evens out cell sizes nearly as well as spacing them by angle
+	// would, without the arctangent.
+	private static int cell(double u, int size) {
+		double s = (u >= 0) ? 0.5 * Math.sqrt(1 + 3 * u) : 1 - 0.5 * Math.sqrt(1 - 3 * u);
+		int i = (int) Math.floor(s * size);
+		return Math.max(0, Math.min(size - 1, i));
+	}
+
+	// The position on a face that cell() puts at s (from -1 to 1 across the
+	// face).
+	private static double uncell(double s) {
+		double t = 0.5 * (s + 1);
+		return (t >= 0.5) ? (4 * t * t - 1) / 3 : (1 - 4 * (1 - t) * (1 - t)) / 3;
+	}
+
+	// The unit vector at position (s, t) on the given face, in the spacing
+	// used by cell().
+	private static double[] unit(int face, double s, double t) {
+		double u = uncell(s);
+		double v = uncell(t);
+		double[] f = FACES[face];
+		double x = f[0] + u * f[3] + v * f[6];
+		double y = f[1] + u * f[4] + v * f[7];
+		double z = f[2] + u * f[5] + v * f[8];
+		double len = Math.sqrt(x*x + y*y + z*z);
+		return new double[] { x / len, y / len, z / len };
+	}
+
+	// The id of the cell at (i, j) on the given face and level.
+	private static long id(int face, int i, int j, int level) {
+		return ((long) face << (2 * level)) | spread(i) | (spread(j) << 1);
+	}
+
+	// Spreads the bits of i out to every other bit.
+	private static long spread(int i) {
+		long b = i & 0x7fffffffL;
+		b = (b | (b << 16)) & 0x0000ffff0000ffffL;
+		b = (b | (b << 8)) & 0x00ff00ff00ff00ffL;
+		b = (b | (b << 4)) & 0x0f0f0f0f0f0f0f0fL;
+		b = (b | (b << 2)) & 0x3333333333333333L;
+		b = (b | (b << 1)) & 0x5555555555555555L;
+		return b;
+	}
+
+	// Keeps the index up to date as the store changes.
+	private final class Tracker implements AnchorStore.Listener {
+		@Override
+		public void added(int id) {
+			insert(id);
+		}
+
+		@Override
+		public void moved(int id) {
+			move(id);
+		}
+	}
+}
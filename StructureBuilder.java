@@ -0,0 +1,160 @@
+package blackhole;
+
+import java.util.Arrays;
+
+/**
+ * Builds big structures quickly.
+ *
+ * Building a structure through the Rod constructors means working out the
+ * extensibility of the structure after every single rod. Here we just write
+ * down the anchors and which anchors each rod joins, and wait until build()
+ * to create the rods, lay them out as the store's RodGraph and work out
+ * every rod's extensibility in one linear pass.
+ *
+ * Usage:
+ *     StructureBuilder b = new StructureBuilder(anchors, rods);
+ *     int n = b.anchor(0, 0, 1);
+ *     int s = b.anchor(Math.PI, 0, 1);
+ *     b.rod(n, s);
+ *     AnchorStore store = b.build();
+ *
+ * Anchor ids in the store are the ids anchor() handed out, and rod ids (see
+ * RodGraph.rod()) are the ids rod() handed out.
+ *
+ * @author Rory
+ *
+ */
+public class StructureBuilder {
+
+	// The store we are filling in. Null once build() has been called.
+	private AnchorStore m_store;
+
+	// The anchor ids at either end of each rod.
+	private int[] m_head;
+	private int[] m_tail;
+	private int m_rods;
+
+	/**
+	 * Constructors
+	 */
+
+	// Default constructor: starts out small and grows as needed.
+	public StructureBuilder() {
+		this(16, 16);
+	}
+
+	// Creates a builder with room for the given number of anchors and rods.
+	public StructureBuilder(int anchors, int rods) {
+		m_store = new AnchorStore(anchors);
+		m_head = new int[Math.max(rods, 1)];
+		m_tail = new int[Math.max(rods, 1)];
+		m_rods = 0;
+	}
+
+	/**
+	 * Accessors
+	 */
+
+	// Number of anchors added so far.
+	public int anchorCount() {
+		return store().size();
+	}
+
+	// Number of rods added so far.
+	public int rodCount() {
+		return m_rods;
+	}
+
+	/**
+	 * Mutators
+	 */
+
+	// Adds an anchor at the given spherical coordinates and returns its id.
+	public int anchor(double theta, double phi, double mass) {
+		return store().add(theta, phi, mass);
+	}
+
+	// Adds an anchor at the given point and returns its id.
+	public int anchor(Point loc, double mass) {
+		return store().add(loc, mass);
+	}
+
+	// Adds a rod between the anchors with the given ids and returns its id.
+	public int rod(int head, int tail) {
+		int n = store().size();
+		if (head < 0 || head >= n || tail < 0 || tail >= n) {
+			throw new IndexOutOfBoundsException("No anchor with id " + (head < 0 || head >= n ? head : tail));
+		}
+		if (m_rods == m_head.length) {
+			m_head = Arrays.copyOf(m_head, m_rods * 2);
+			m_tail = Arrays.copyOf(m_tail, m_rods * 2);
+		}
+		m_head[m_rods] = head;
+		m_tail[m_rods] = tail;
+		return m_rods++;
+	}
+
+	// Creates the rods, works out which ones are extensible, and hands back
+	// the finished store. The builder can't be used after this.
+	public AnchorStore build() {
+		return build(null);
+	}
+
+	// Same as build(), but takes which rods are extensible (by rod id) from
+	// the given array instead of working it out, if it isn't null. Only for
+	// flags we know are right, e.g. ones saved along with the structure.
+	AnchorStore build(boolean[] extensible) {
+		AnchorStore store = store();
+		m_store = null;
+		int n = store.size();
+		int e = m_rods;
+
+		// Lay the rods out by anchor, which is just what RodGraph wants.
+		int[] off = new int[n + 1];
+		for (int i = 0; i < e; i++) {
+			off[m_head[i] + 1]++;
+			off[m_tail[i] + 1]++;
+		}
+		for (int v = 0; v < n; v++) {
+			off[v + 1] += off[v];
+		}
+		int[] fill = Arrays.copyOf(off, n);
+		int[] adj = new int[2 * e];
+		int[] far = new int[2 * e];
+		for (int i = 0; i < e; i++) {
+			adj[fill[m_head[i]]] = i;
+			far[fill[m_head[i]]++] = m_tail[i];
+			adj[fill[m_tail[i]]] = i;
+			far[fill[m_tail[i]]++] = m_head[i];
+		}
+
+		if (extensible == null) {
+			extensible = new boolean[e];
+			ExtensibilityIndex.bridges(n, off, adj, far, extensible);
+		}
+		else if (extensible.length < e) {
+			throw new IllegalArgumentException("Extensibility given for " + extensible.length + " of " + e + " rods");
+		}
+
+		Rod[] rods = new Rod[e];
+		for (int i = 0; i < e; i++) {
+			rods[i] = new Rod(store.anchor(m_head[i]), store.anchor(m_tail[i]), extensible[i]);
+		}
+
+		store.graph().load(rods, e, n, off, adj, far);
+		store.connectivity().seed(m_head, m_tail, extensible, e, n);
+		return store;
+	}
+
+	/**
+	 * Private methods.
+	 */
+
+	// Returns the store, making sure build() hasn't been called yet.
+	private AnchorStore store() {
+		if (m_store == null) {
+			throw new IllegalStateException("Structure has already been built");
+		}
+		return m_store;
+	}
+}
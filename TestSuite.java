@@ -1,5 +1,7 @@
 package blackhole;
 
+import java.util.ArrayList;
+
 /**
  * Class for testing the project.
  * @author Rory
@@ -86,6 +88,30 @@ public class TestSuite {
 	public void testAll() {
 		pointTests();
 		anchorTests();
+		storeTests();
+		rodTests();
+		connectivityTests();
+		builderTests();
+		graphTests();
+		simulationTests();
+		solverTests();
+		gravityTests();
+		indexTests();
+		crossingTests();
+		geodesicTests();
+		rotationTests();
+		rigidTests();
+		massTests();
+		renderTests();
+		arcTests();
+		clusterTests();
+		exportTests();
+		sceneFileTests();
+		trajectoryTests();
+		checkpointTests();
+		snapshotTests();
+		benchmarkTests();
+		generatorTests();
 		
 		if (m_failedtests > 0) {
 			System.out.println(m_failedtests + " of " + m_tests + " tests failed.");
@@ -157,6 +183,28 @@ public class TestSuite {
 		p11.rotate(Math.PI/4.0, - Math.PI / 4.0);
 		test(feq(p11.theta(), 3.0 * Math.PI / 4.0), "Expected p11.theta() = 3pi/4\nActual: p11.theta() = " + p11.theta());
 		test(feq(p11.phi(), Math.PI), "Expected: p11.phi() = pi\nActual: p11.phi() = " + p11.phi());		
+		
+		// Rectangular constructor in the quadrants away from the axes.
+		Point p12 = new Point(-1, 1, 0);
+		test(feq(p12.phi(), 3.0 * Math.PI / 4.0), "Expected: p12.phi() = 3pi/4\nActual: p12.phi() = " + p12.phi());
+		test(feq(p12.x(), -Math.sqrt(0.5)), "Expected: p12.x() = -sqrt(1/2)\nActual: p12.x() = " + p12.x());
+		Point p13 = new Point(1, -1, 0);
+		test(feq(p13.phi(), 7.0 * Math.PI / 4.0), "Expected: p13.phi() = 7pi/4\nActual: p13.phi() = " + p13.phi());
+		
+		// Validation of angles way out of range (should not take forever).
+		Point p14 = new Point(Math.PI * 1.5 + 2000.0 * Math.PI, Math.PI * 0.5 - 4000.0 * Math.PI);
+		test(feq(p14.theta(), Math.PI / 2.0), "Expected: p14.theta() = pi/2\nActual: p14.theta() = " + p14.theta());
+		test(feq(p14.phi(), 3.0 * Math.PI / 2.0), "Expected: p14.phi() = 3pi/2\nActual: p14.phi() = " + p14.phi());
+		test(feq(p14.y(), -1), "Expected: p14.y() = -1\nActual: p14.y() = " + p14.y());
+		Point p15 = new Point(-Math.PI / 4.0, 0);
+		test(feq(p15.theta(), Math.PI / 4.0), "Expected: p15.theta() = pi/4\nActual: p15.theta() = " + p15.theta());
+		test(feq(p15.phi(), Math.PI), "Expected: p15.phi() = pi\nActual: p15.phi() = " + p15.phi());
+		
+		// Cached rectangular coordinates follow rotation.
+		Point p16 = new Point();
+		p16.rotate(Math.PI / 2.0, Math.PI);
+		test(feq(p16.x(), -1), "Expected: p16.x() = -1\nActual: p16.x() = " + p16.x());
+		test(feq(p16.z(), 0), "Expected: p16.z() = 0\nActual: p16.z() = " + p16.z());
 	}
 	
 	public void anchorTests() {
@@ -166,4 +214,2143 @@ public class TestSuite {
 		test(feq(a1.theta(), 0), "Expected: a1.theta() = 0\nActual: a1.theta() = " + a1.theta());
 		test(feq(a1.phi(), 0), "Expected: a1.phi() = 0\nActual: a1.phi() = " + a1.phi());
 	}
+	
+	public void storeTests() {
+		AnchorStore s = new AnchorStore(2);
+		int n = s.add(0, 0, 1.0);
+		int e = s.add(Math.PI / 2.0, 0, 2.0);
+		int w = s.add(Math.PI * 1.5, Math.PI * 3.5, -1.0); // Grows the store
+		test(s.size() == 3, "Expected: s.size() = 3\nActual: s.size() = " + s.size());
+		test(feq(s.z(n), 1), "Expected: s.z(n) = 1\nActual: s.z(n) = " + s.z(n));
+		test(feq(s.x(e), 1), "Expected: s.x(e) = 1\nActual: s.x(e) = " + s.x(e));
+		test(feq(s.phi(w), Math.PI / 2.0), "Expected: s.phi(w) = pi/2\nActual: s.phi(w) = " + s.phi(w));
+		test(feq(s.y(w), 1), "Expected: s.y(w) = 1\nActual: s.y(w) = " + s.y(w));
+		
+		// Views should be unique per id and go through to the store.
+		Anchor a = s.anchor(e);
+		test(a == s.anchor(e), "Expected: one view per anchor id");
+		test(a.id() == e, "Expected: a.id() = " + e + "\nActual: a.id() = " + a.id());
+		test(feq(a.mass(), 2.0), "Expected: a.mass() = 2\nActual: a.mass() = " + a.mass());
+		a.translate(0, Math.PI / 2.0);
+		test(feq(s.y(e), 1), "Expected: s.y(e) = 1\nActual: s.y(e) = " + s.y(e));
+		test(feq(a.loc().phi(), Math.PI / 2.0), "Expected: a.loc().phi() = pi/2\nActual: a.loc().phi() = " + a.loc().phi());
+		a.resize(-3.0);
+		test(feq(s.mass(e), -3.0), "Expected: s.mass(e) = -3\nActual: s.mass(e) = " + s.mass(e));
+		
+		// Copying a view gives a free-standing anchor.
+		Anchor c = new Anchor(a);
+		test(c.store() == null && c.id() == -1, "Expected: copy of a view is free-standing");
+		test(feq(c.y(), 1), "Expected: c.y() = 1\nActual: c.y() = " + c.y());
+
+		// Ids past the end are refused, even though the arrays have room.
+		boolean refused = false;
+		try {
+			s.x(s.size());
+		}
+		catch (IndexOutOfBoundsException ex) {
+			refused = true;
+		}
+		test(refused, "Expected: s.x(size()) throws");
+	}
+	
+	public void rodTests() {
+		// A chain a - b - c: both rods can be extended.
+		Anchor a = new Anchor(Math.PI / 4.0, 0, 1);
+		Anchor b = new Anchor(Math.PI / 4.0, Math.PI / 2.0, 1);
+		Anchor c = new Anchor(Math.PI / 4.0, Math.PI, 1);
+		Rod ab = new Rod(a, b);
+		Rod bc = new Rod(b, c);
+		test(ab.isExtensible(), "Expected: ab.isExtensible() on a chain");
+		test(bc.isExtensible(), "Expected: bc.isExtensible() on a chain");
+		
+		// Closing the triangle means none of them can.
+		Rod ca = new Rod(c, a);
+		test(! ca.extensible(), "Expected: ! ca.extensible() in a triangle");
+		test(! ab.isExtensible(), "Expected: ! ab.isExtensible() in a triangle");
+		// ...but ab still has its stale flag until something recomputes it.
+		test(ab.extensible(), "Expected: ab.extensible() still stored as true");
+		ExtensibilityIndex idx = ExtensibilityIndex.forStructure(a);
+		test(idx.size() == 3, "Expected: idx.size() = 3\nActual: idx.size() = " + idx.size());
+		test(idx.count() == 0, "Expected: idx.count() = 0\nActual: idx.count() = " + idx.count());
+		idx.apply();
+		test(! ab.extensible(), "Expected: ! ab.extensible() after apply()");
+		
+		// A tail hanging off the triangle is extensible, and a second rod
+		// between the same two anchors is not.
+		Anchor d = new Anchor(Math.PI / 2.0, 0, 1);
+		Rod ad = new Rod(a, d);
+		Anchor e = new Anchor(Math.PI / 2.0, Math.PI, 1);
+		Rod de = new Rod(d, e);
+		Rod de2 = new Rod(d, e);
+		idx = ExtensibilityIndex.forStructure(e);
+		idx.apply();
+		test(ad.extensible(), "Expected: ad.extensible() hanging off a triangle");
+		test(! de.extensible() && ! de2.extensible(), "Expected: doubled rods are not extensible");
+		test(idx.count() == 1, "Expected: idx.count() = 1\nActual: idx.count() = " + idx.count());
+		
+		// A long chain shouldn't blow the stack.
+		int n = 20000;
+		ArrayList<Rod> chain = new ArrayList<Rod>();
+		Anchor prev = new Anchor();
+		for (int i = 0; i < n; i++) {
+			Anchor next = new Anchor();
+			chain.add(new Rod(prev, next));
+			prev = next;
+		}
+		test(chain.get(0).isExtensible(), "Expected: first rod of a long chain is extensible");
+		idx = new ExtensibilityIndex(chain);
+		test(idx.count() == n, "Expected: idx.count() = " + n + "\nActual: idx.count() = " + idx.count());
+	}
+	
+	public void connectivityTests() {
+		// Same triangle as rodTests(), but in a store, so flags stay fresh.
+		AnchorStore s = new AnchorStore();
+		Anchor a = s.anchor(s.add(Math.PI / 4.0, 0, 1));
+		Anchor b = s.anchor(s.add(Math.PI / 4.0, Math.PI / 2.0, 1));
+		Anchor c = s.anchor(s.add(Math.PI / 4.0, Math.PI, 1));
+		Rod ab = new Rod(a, b);
+		Rod bc = new Rod(b, c);
+		test(ab.id() >= 0 && bc.id() >= 0, "Expected: rods in a store get ids");
+		test(ab.extensible() && bc.extensible(), "Expected: chain rods are extensible");
+		Rod ca = new Rod(c, a);
+		test(! ab.extensible() && ! bc.extensible() && ! ca.extensible(), "Expected: triangle rods are not extensible");
+		test(s.connectivity().extensibleCount() == 0, "Expected: no extensible rods in a triangle\nActual: " + s.connectivity().extensibleCount());
+		test(s.connectivity().braced(a.id(), c.id()), "Expected: a and c braced");
+		
+		// A tail grown off the head goes into the same store.
+		Rod cd = new Rod(c, 0.1, 0.1, 1);
+		test(cd.tail().store() == s, "Expected: new tail anchor in the same store");
+		test(cd.extensible(), "Expected: cd.extensible()");
+		test(! s.connectivity().braced(c.id(), cd.tail().id()), "Expected: c and d not braced");
+		
+		// Taking a rod out of the triangle frees the other two.
+		c.remove(ca);
+		a.remove(ca);
+		test(ca.id() == -1, "Expected: removed rod loses its id");
+		test(ab.extensible() && bc.extensible(), "Expected: chain rods are extensible again");
+		test(s.connectivity().extensibleCount() == 3, "Expected: 3 extensible rods\nActual: " + s.connectivity().extensibleCount());
+		
+		// Taking out a bridge splits the structure.
+		b.remove(bc);
+		c.remove(bc);
+		test(! s.connectivity().connected(a.id(), c.id()), "Expected: a and c no longer connected");
+		test(ab.extensible() && cd.extensible(), "Expected: remaining rods still extensible");
+		
+		// Random edits should always agree with a from-scratch analysis.
+		java.util.Random rand = new java.util.Random(42);
+		AnchorStore t = new AnchorStore();
+		int n = 60;
+		for (int i = 0; i < n; i++) {
+			t.add(rand.nextDouble() * Math.PI, rand.nextDouble() * 2.0 * Math.PI, 1);
+		}
+		ArrayList<Rod> rods = new ArrayList<Rod>();
+		boolean agree = true;
+		for (int step = 0; step < 400; step++) {
+			if (rods.size() > 0 && rand.nextInt(3) == 0) {
+				Rod r = rods.remove(rand.nextInt(rods.size()));
+				r.head().remove(r);
+				r.tail().remove(r);
+			}
+			else {
+				rods.add(new Rod(t.anchor(rand.nextInt(n)), t.anchor(rand.nextInt(n))));
+			}
+			boolean[] flags = new boolean[rods.size()];
+			for (int i = 0; i < rods.size(); i++) {
+				flags[i] = rods.get(i).extensible();
+			}
+			ExtensibilityIndex idx = new ExtensibilityIndex(rods);
+			for (int i = 0; i < rods.size(); i++) {
+				agree &= (flags[i] == idx.extensible(i));
+			}
+			agree &= (idx.count() == t.connectivity().extensibleCount());
+		}
+		test(agree, "Expected: incremental extensibility matches ExtensibilityIndex");
+
+		// Same again on a built store (which the tracker loads in one go),
+		// checking which anchors are joined and braced against the rods as
+		// well, since taking rods out splits pieces and blobs rather than
+		// building them again.
+		StructureBuilder sb = new StructureBuilder();
+		for (int i = 0; i < n; i++) {
+			sb.anchor(rand.nextDouble() * Math.PI, rand.nextDouble() * 2.0 * Math.PI, 1);
+		}
+		for (int i = 0; i < n; i++) {
+			sb.rod(rand.nextInt(n), rand.nextInt(n));
+		}
+		AnchorStore u = sb.build();
+		rods.clear();
+		for (int id = 0; id < u.graph().rodCount(); id++) {
+			rods.add(u.graph().rod(id));
+		}
+		agree = true;
+		for (int step = 0; step < 400; step++) {
+			if (rods.size() > 0 && rand.nextInt(2) == 0) {
+				Rod r = rods.remove(rand.nextInt(rods.size()));
+				r.head().remove(r);
+				r.tail().remove(r);
+			}
+			else {
+				rods.add(new Rod(u.anchor(rand.nextInt(n)), u.anchor(rand.nextInt(n))));
+			}
+			ExtensibilityIndex idx = new ExtensibilityIndex(rods);
+			int[] piece = new int[n];
+			int[] blob = new int[n];
+			for (int v = 0; v < n; v++) {
+				piece[v] = v;
+				blob[v] = v;
+			}
+			for (int i = 0; i < rods.size(); i++) {
+				int h = rods.get(i).head().id();
+				int w = rods.get(i).tail().id();
+				agree &= (rods.get(i).extensible() == idx.extensible(i));
+				piece[root(piece, h)] = root(piece, w);
+				if (! idx.extensible(i)) {
+					blob[root(blob, h)] = root(blob, w);
+				}
+			}
+			for (int v = 0; v < n; v++) {
+				int w = (v * 7 + step) % n;
+				agree &= u.connectivity().connected(v, w) == (root(piece, v) == root(piece, w));
+				agree &= u.connectivity().braced(v, w) == (root(blob, v) == root(blob, w));
+			}
+		}
+		test(agree, "Expected: pieces and blobs kept up to date as rods come and go");
+	}
+
+	// Union-find root of v, for checking against.
+	private int root(int[] parent, int v) {
+		while (parent[v] != v) {
+			v = parent[v];
+		}
+		return v;
+	}
+	
+	public void builderTests() {
+		// Two triangles joined by a rod, plus a loose rod on its own.
+		StructureBuilder b = new StructureBuilder(8, 8);
+		int[] ids = new int[8];
+		for (int i = 0; i < 8; i++) {
+			ids[i] = b.anchor(Math.PI / 2.0, i * Math.PI / 4.0, 1);
+		}
+		b.rod(0, 1);
+		b.rod(1, 2);
+		b.rod(2, 0);
+		int bridge = b.rod(2, 3);
+		b.rod(3, 4);
+		b.rod(4, 5);
+		b.rod(5, 3);
+		int loose = b.rod(6, 7);
+		AnchorStore s = b.build();
+		Connectivity c = s.connectivity();
+		RodGraph g = s.graph();
+		test(s.size() == 8, "Expected: s.size() = 8\nActual: s.size() = " + s.size());
+		test(g.rodCount() == 8, "Expected: g.rodCount() = 8\nActual: g.rodCount() = " + g.rodCount());
+		test(g.rod(bridge).extensible() && g.rod(loose).extensible(), "Expected: bridge and loose rods extensible");
+		test(! g.rod(0).extensible(), "Expected: triangle rods not extensible");
+		test(c.extensibleCount() == 2, "Expected: 2 extensible rods\nActual: " + c.extensibleCount());
+		test(s.anchor(2).rods().size() == 3, "Expected: anchor 2 has 3 rods\nActual: " + s.anchor(2).rods().size());
+		test(c.connected(0, 5) && ! c.connected(0, 6), "Expected: builder connectivity");
+		test(c.braced(3, 5) && ! c.braced(2, 3), "Expected: builder blobs");
+		
+		// The tracker should carry on correctly from where build() left it.
+		Rod r = new Rod(s.anchor(1), s.anchor(4));
+		test(! r.extensible() && ! g.rod(bridge).extensible(), "Expected: bracing the bridge");
+		Rod r2 = new Rod(s.anchor(7), s.anchor(0));
+		test(r2.extensible() && c.connected(6, 3), "Expected: joining the loose rod on");
+		Rod br = g.rod(bridge);
+		test(s.anchor(3).remove(br), "Expected: removing the bridge from anchor 3");
+		test(! s.anchor(2).remove(br), "Expected: bridge already gone from anchor 2");
+		test(r.extensible(), "Expected: r extensible once the bridge is gone");
+		
+		// Random structures should match a from-scratch analysis.
+		java.util.Random rand = new java.util.Random(7);
+		b = new StructureBuilder();
+		int n = 500;
+		for (int i = 0; i < n; i++) {
+			b.anchor(rand.nextDouble() * Math.PI, rand.nextDouble() * 2.0 * Math.PI, 1);
+		}
+		for (int i = 0; i < 550; i++) {
+			b.rod(rand.nextInt(n), rand.nextInt(n));
+		}
+		s = b.build();
+		c = s.connectivity();
+		g = s.graph();
+		ArrayList<Rod> rods = new ArrayList<Rod>();
+		for (int i = 0; i < g.rodCount(); i++) {
+			rods.add(g.rod(i));
+		}
+		boolean agree = true;
+		for (int step = 0; step < 100; step++) {
+			ExtensibilityIndex idx = new ExtensibilityIndex(rods);
+			for (int i = 0; i < rods.size(); i++) {
+				agree &= (rods.get(i).extensible() == idx.extensible(i));
+			}
+			agree &= (idx.count() == c.extensibleCount());
+			if (step % 2 == 0) {
+				rods.add(new Rod(s.anchor(rand.nextInt(n)), s.anchor(rand.nextInt(n))));
+			}
+			else {
+				Rod x = rods.remove(rand.nextInt(rods.size()));
+				x.head().remove(x);
+				x.tail().remove(x);
+			}
+		}
+		test(agree, "Expected: built structure matches ExtensibilityIndex");
+	}
+	
+	public void graphTests() {
+		AnchorStore s = new AnchorStore();
+		for (int i = 0; i < 4; i++) {
+			s.add(Math.PI / 2.0, i * Math.PI / 2.0, 1);
+		}
+		RodGraph g = s.graph();
+		Rod r01 = new Rod(s.anchor(0), s.anchor(1));
+		Rod r12 = new Rod(s.anchor(1), s.anchor(2));
+		Rod r23 = new Rod(s.anchor(2), s.anchor(3));
+		Rod r30 = new Rod(s.anchor(3), s.anchor(0));
+		test(g.size() == 4, "Expected: g.size() = 4\nActual: g.size() = " + g.size());
+		test(g.degree(1) == 2, "Expected: g.degree(1) = 2\nActual: g.degree(1) = " + g.degree(1));
+		test(s.anchor(1).rods().size() == 2, "Expected: anchor 1 lists 2 rods");
+		test(g.joined(0, 2, r12.id()) && g.joined(1, 2, r12.id()), "Expected: a ring stays joined without one rod");
+		test(g.dirty(), "Expected: graph has uncompacted edits");
+		
+		// Compaction keeps everything and lays it out flat.
+		g.compact();
+		test(! g.dirty(), "Expected: graph clean after compact()");
+		int[] off = g.offsets();
+		test(off[1] - off[0] == 2 && off[4] == 8, "Expected: two rods per anchor in the compacted arrays");
+		
+		// Removed ids come back only after a compaction.
+		int id = r23.id();
+		s.anchor(2).remove(r23);
+		test(g.rod(id) == null && s.anchor(3).rods().size() == 1, "Expected: r23 gone from both ends");
+		test(g.joined(2, 3, -1), "Expected: 2 and 3 still joined the long way round");
+		Rod r13 = new Rod(s.anchor(1), s.anchor(3));
+		test(r13.id() != id, "Expected: dead id not reused before compaction");
+		g.compact();
+		Rod r02 = new Rod(s.anchor(0), s.anchor(2));
+		test(r02.id() == id, "Expected: dead id reused after compaction\nActual: " + r02.id());
+		
+		// A store-wide analysis straight off the graph agrees with the tracker.
+		ExtensibilityIndex idx = new ExtensibilityIndex(s);
+		test(idx.count() == s.connectivity().extensibleCount(), "Expected: idx.count() = " + s.connectivity().extensibleCount() + "\nActual: idx.count() = " + idx.count());
+		test(idx.rod(r01.id()) == r01 && ! idx.extensible(r01.id()), "Expected: r01 not extensible");
+		
+		// Rods out to anchors that aren't in the store stay on the anchor.
+		Anchor free = new Anchor();
+		Rod out = new Rod(s.anchor(0), free);
+		test(out.id() == -1 && s.anchor(0).rods().contains(out), "Expected: foreign rod kept on the anchor");
+		test(out.extensible(), "Expected: foreign rod extensible");
+		test(s.anchor(0).remove(out) && ! s.anchor(0).rods().contains(out), "Expected: foreign rod removed");
+	}
+	
+	public void simulationTests() {
+		// A lone anchor on the equator heading east should go a quarter of the
+		// way round in pi/2 time units.
+		AnchorStore s = new AnchorStore();
+		int a = s.add(Math.PI / 2.0, 0, 1);
+		Simulation sim = new Simulation(s, Math.PI / 2000.0);
+		sim.setVelocity(a, 0, 1, 0);
+		sim.run(1000);
+		test(feq(s.phi(a), Math.PI / 2.0), "Expected: s.phi(a) = pi/2\nActual: s.phi(a) = " + s.phi(a));
+		test(feq(s.theta(a), Math.PI / 2.0), "Expected: s.theta(a) = pi/2\nActual: s.theta(a) = " + s.theta(a));
+		test(feq(sim.vy(a), 0) && feq(sim.vx(a), -1), "Expected: velocity carried round to (-1, 0, 0)");
+		
+		// A triangle knocked about at random should keep its shape, stay on
+		// the sphere and keep its energy.
+		s = new AnchorStore();
+		int p = s.add(Math.PI / 3.0, 0, 1);
+		int q = s.add(Math.PI / 3.0, 2.0 * Math.PI / 3.0, 2);
+		int r = s.add(Math.PI / 3.0, 4.0 * Math.PI / 3.0, 3);
+		Rod pq = new Rod(s.anchor(p), s.anchor(q));
+		Rod qr = new Rod(s.anchor(q), s.anchor(r));
+		Rod rp = new Rod(s.anchor(r), s.anchor(p));
+		sim = new Simulation(s, 0.001);
+		// Solve the rods tightly, or the leftover error bleeds off energy.
+		sim.solver().setIterations(16);
+		java.util.Random rand = new java.util.Random(3);
+		for (int i = 0; i < 3; i++) {
+			sim.setVelocity(i, rand.nextGaussian(), rand.nextGaussian(), rand.nextGaussian());
+		}
+		double arc = sim.restLength(pq);
+		sim.run(1);
+		double e0 = sim.kineticEnergy();
+		sim.run(5000);
+		double e1 = sim.kineticEnergy();
+		double d = s.x(p) * s.x(q) + s.y(p) * s.y(q) + s.z(p) * s.z(q);
+		test(Math.abs(Math.acos(d) - arc) < 1.0e-6, "Expected: pq arc length kept\nActual: off by " + (Math.acos(d) - arc));
+		double radius = Math.sqrt(s.x(r) * s.x(r) + s.y(r) * s.y(r) + s.z(r) * s.z(r));
+		test(feq(radius, 1), "Expected: anchors stay on the sphere\nActual: radius = " + radius);
+		test(Math.abs(e1 - e0) < 0.01 * e0, "Expected: energy kept to 1%\nActual: " + e0 + " -> " + e1);
+		test(sim.steps() == 5001, "Expected: sim.steps() = 5001\nActual: sim.steps() = " + sim.steps());
+
+		// So should a few hundred anchors' worth of short rods, twisting about
+		// at the default settings. Projecting along the rods as they turn
+		// (rather than as they were) loses about half the energy here.
+		AnchorStore tree = Generator.shape("tree", 400);
+		Simulation twist = new Simulation(tree, 0.001);
+		rand = new java.util.Random(7);
+		for (int i = 0; i < tree.size(); i++) {
+			twist.setVelocity(i, 0.03 * rand.nextGaussian(), 0.03 * rand.nextGaussian(), 0.03 * rand.nextGaussian());
+		}
+		twist.run(3);
+		e0 = twist.kineticEnergy();
+		double drift = 0;
+		for (int k = 0; k < 2000; k++) {
+			twist.step();
+			drift = Math.max(drift, Math.abs(twist.kineticEnergy() - e0) / e0);
+		}
+		test(drift < 0.02, "Expected: energy of a twisting tree kept to 2% at the default settings\nActual: off by " + drift);
+
+		// Lengthening a rod takes effect from the next step.
+		sim.setRestLength(qr, arc * 0.5);
+		sim.run(200);
+		d = s.x(q) * s.x(r) + s.y(q) * s.y(r) + s.z(q) * s.z(r);
+		test(Math.abs(Math.acos(d) - arc * 0.5) < 1.0e-3, "Expected: qr pulled in to half length\nActual: " + Math.acos(d));
+		test(rp.id() >= 0, "Expected: rods untouched by the simulation");
+	}
+	
+	public void solverTests() {
+		// A grid of rods (every anchor has up to four), knocked out of shape,
+		// on two threads with tiny chunks so the colours really are split up.
+		StructureBuilder b = new StructureBuilder();
+		int side = 12;
+		java.util.Random rand = new java.util.Random(8);
+		for (int i = 0; i < side * side; i++) {
+			double theta = 1.2 + 0.05 * (i / side) + 0.01 * rand.nextGaussian();
+			double phi = 0.05 * (i % side) + 0.01 * rand.nextGaussian();
+			b.anchor(theta, phi, 1 + rand.nextInt(3));
+		}
+		for (int i = 0; i < side; i++) {
+			for (int j = 0; j < side; j++) {
+				if (j + 1 < side) b.rod(i * side + j, i * side + j + 1);
+				if (i + 1 < side) b.rod(i * side + j, (i + 1) * side + j);
+			}
+		}
+		AnchorStore s = b.build();
+		RodGraph g = s.graph();
+		int n = g.rodCount();
+		int[] head = new int[n];
+		int[] tail = new int[n];
+		double[] chord = new double[n];
+		for (int i = 0; i < n; i++) {
+			head[i] = g.rod(i).head().id();
+			tail[i] = g.rod(i).tail().id();
+			chord[i] = 0.05;
+		}
+		int m = s.size();
+		double[] w = new double[m];
+		for (int i = 0; i < m; i++) {
+			w[i] = 1.0 / s.mass(i);
+		}
+		
+		java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(2);
+		ParallelConstraintSolver par = new ParallelConstraintSolver(pool);
+		par.setGrain(3);
+		par.prepare(n, head, tail);
+		test(par.colors() >= 4 && par.colors() <= 7, "Expected: 4 to 7 colours for a grid\nActual: " + par.colors());
+		boolean clash = false;
+		for (int i = 0; i < n; i++) {
+			for (int j = i + 1; j < n; j++) {
+				boolean shared = head[i] == head[j] || head[i] == tail[j] || tail[i] == head[j] || tail[i] == tail[j];
+				clash |= shared && par.color(i) == par.color(j);
+			}
+		}
+		test(! clash, "Expected: no two rods of a colour share an anchor");
+		
+		// Both solvers should pull every rod to length.
+		ConstraintSolver seq = new ConstraintSolver();
+		seq.setIterations(2000);
+		seq.setTolerance(1.0e-12);
+		par.setIterations(2000);
+		par.setTolerance(1.0e-12);
+		double[] x1 = java.util.Arrays.copyOf(s.xs(), m);
+		double[] y1 = java.util.Arrays.copyOf(s.ys(), m);
+		double[] z1 = java.util.Arrays.copyOf(s.zs(), m);
+		double[] x2 = x1.clone();
+		double[] y2 = y1.clone();
+		double[] z2 = z1.clone();
+		seq.positions(n, head, tail, chord, w, m, x1, y1, z1);
+		par.positions(n, head, tail, chord, w, m, x2, y2, z2);
+		test(seq.error() < 1.0e-9 && par.error() < 1.0e-9, "Expected: both solvers converge\nActual: " + seq.error() + ", " + par.error());
+		double worst = 0;
+		for (int i = 0; i < n; i++) {
+			int h = head[i];
+			int t = tail[i];
+			double dx = x2[t] - x2[h];
+			double dy = y2[t] - y2[h];
+			double dz = z2[t] - z2[h];
+			worst = Math.max(worst, Math.abs(Math.sqrt(dx*dx + dy*dy + dz*dz) - chord[i]));
+		}
+		test(worst < 1.0e-6, "Expected: parallel solve keeps every rod to length\nActual: off by " + worst);
+		double r = Math.sqrt(x2[7] * x2[7] + y2[7] * y2[7] + z2[7] * z2[7]);
+		test(feq(r, 1), "Expected: anchors stay on the sphere\nActual: radius = " + r);
+		
+		// Same answer however many threads run it.
+		ParallelConstraintSolver one = new ParallelConstraintSolver(new java.util.concurrent.ForkJoinPool(1));
+		one.setGrain(3);
+		one.setIterations(3);
+		par.setIterations(3);
+		double[] x3 = java.util.Arrays.copyOf(s.xs(), m);
+		double[] y3 = java.util.Arrays.copyOf(s.ys(), m);
+		double[] z3 = java.util.Arrays.copyOf(s.zs(), m);
+		double[] x4 = x3.clone();
+		double[] y4 = y3.clone();
+		double[] z4 = z3.clone();
+		one.positions(n, head, tail, chord, w, m, x3, y3, z3);
+		par.positions(n, head, tail, chord, w, m, x4, y4, z4);
+		test(java.util.Arrays.equals(x3, x4) && java.util.Arrays.equals(z3, z4), "Expected: one thread and two agree exactly");
+
+		// Given where they started, anchors are only moved along the rods and
+		// radii they started with: here, in the plane of the old rod and the
+		// old radius at each end. Both solvers do the same.
+		double[] x0 = { 0.6, 0.8, 0 };
+		double[] y0 = { 0, 0, 0.6 };
+		double[] z0 = { 0.8, 0.6, 0.8 };
+		double[] xs = { 0.62, 0.79, 0 };
+		double[] ys = { 0.03, -0.04, 0.6 };
+		double[] zs = { 0.78, 0.61, 0.8 };
+		double[] xa = xs.clone();
+		double[] ya = ys.clone();
+		double[] za = zs.clone();
+		double[] xb = xs.clone();
+		double[] yb = ys.clone();
+		double[] zb = zs.clone();
+		int[] ends = { 0, 1 };
+		double[] short1 = { 0.2 };
+		double[] w3 = { 1, 0.5, 1 };
+		seq.positions(1, new int[] { 0 }, new int[] { 1 }, short1, w3, 2, x0, y0, z0, xa, ya, za);
+		one.setIterations(2000);
+		one.positions(1, new int[] { 0 }, new int[] { 1 }, short1, w3, 2, x0, y0, z0, xb, yb, zb);
+		double dx = xa[1] - xa[0];
+		double dy = ya[1] - ya[0];
+		double dz = za[1] - za[0];
+		double off = Math.abs(Math.sqrt(dx*dx + dy*dy + dz*dz) - 0.2);
+		for (int e : ends) {
+			// Normal to the plane of the old rod and this end's old radius.
+			double sx = x0[1] - x0[0];
+			double sy = y0[1] - y0[0];
+			double sz = z0[1] - z0[0];
+			double nx = sy * z0[e] - sz * y0[e];
+			double ny = sz * x0[e] - sx * z0[e];
+			double nz = sx * y0[e] - sy * x0[e];
+			off = Math.max(off, Math.abs((xa[e] - xs[e]) * nx + (ya[e] - ys[e]) * ny + (za[e] - zs[e]) * nz));
+			off = Math.max(off, Math.abs(xa[e] * xa[e] + ya[e] * ya[e] + za[e] * za[e] - 1));
+		}
+		test(off < 1.0e-9, "Expected: SHAKE moves ends along the old rod and radii only\nActual: off by " + off);
+		test(feq(xa[0], xb[0]) && feq(za[1], zb[1]) && xa[2] == 0, "Expected: parallel SHAKE agrees, and leaves other anchors alone");
+		pool.shutdown();
+		
+		// And it drops straight into a simulation.
+		Simulation sim = new Simulation(s, 0.001);
+		sim.setSolver(new ParallelConstraintSolver());
+		for (int i = 0; i < m; i++) {
+			sim.setVelocity(i, rand.nextGaussian(), rand.nextGaussian(), rand.nextGaussian());
+		}
+		Rod rod = g.rod(5);
+		double arc = sim.restLength(rod);
+		sim.solver().setIterations(32);
+		sim.run(50);
+		Anchor h = rod.head();
+		Anchor t = rod.tail();
+		double d = s.x(h.id()) * s.x(t.id()) + s.y(h.id()) * s.y(t.id()) + s.z(h.id()) * s.z(t.id());
+		test(Math.abs(Math.acos(d) - arc) < 1.0e-4, "Expected: rod length kept in a parallel simulation\nActual: off by " + (Math.acos(d) - arc));
+	}
+	
+	public void gravityTests() {
+		// Two anchors a quarter turn apart on the equator pull together.
+		AnchorStore s = new AnchorStore();
+		s.add(Math.PI / 2.0, 0, 2);
+		s.add(Math.PI / 2.0, Math.PI / 2.0, 3);
+		Gravity g = new Gravity();
+		g.setSoftening(0);
+		double[] fx = new double[2];
+		double[] fy = new double[2];
+		double[] fz = new double[2];
+		g.accumulate(s, fx, fy, fz);
+		// Chord of sqrt(2), so a pull of 6 / 2 along (-1, 1, 0) / sqrt(2).
+		double f = 3.0 / Math.sqrt(2.0);
+		test(feq(fx[0], -f) && feq(fy[0], f) && feq(fz[0], 0), "Expected: (" + -f + ", " + f + ", 0)\nActual: (" + fx[0] + ", " + fy[0] + ", " + fz[0] + ")");
+		test(feq(fx[1], f) && feq(fy[1], -f), "Expected: equal and opposite pull");
+		
+		// Opposite masses push apart, and negative masses pull together.
+		s.resize(1, -3);
+		fx = new double[2];
+		fy = new double[2];
+		fz = new double[2];
+		g.accumulate(s, fx, fy, fz);
+		test(fx[0] > 0 && fy[0] < 0, "Expected: opposite masses repel");
+		s.resize(0, -2);
+		fx = new double[2];
+		fy = new double[2];
+		fz = new double[2];
+		g.accumulate(s, fx, fy, fz);
+		test(fx[0] < 0 && fy[0] > 0, "Expected: two negative masses attract");
+		s.resize(0, 0);
+		fx = new double[2];
+		fy = new double[2];
+		fz = new double[2];
+		g.accumulate(s, fx, fy, fz);
+		test(fx[0] == 0 && fx[1] == 0 && fy[1] == 0, "Expected: a mass-less anchor neither pulls nor is pulled");
+		
+		// Lots of anchors with mixed masses: the tree with the opening angle
+		// at 0 should match the sum over every pair, and with it at 0.5
+		// should be close.
+		s = new AnchorStore();
+		java.util.Random rand = new java.util.Random(9);
+		int n = 3000;
+		for (int i = 0; i < n; i++) {
+			double theta = Math.acos(2.0 * rand.nextDouble() - 1.0);
+			double mass = (i % 5 == 0) ? -rand.nextDouble() : rand.nextDouble();
+			s.add(theta, 2.0 * Math.PI * rand.nextDouble(), mass);
+		}
+		// A tight clump, to make the tree go deep.
+		for (int i = 0; i < 50; i++) {
+			s.add(1.0 + 1.0e-6 * i, 2.0, 1);
+		}
+		n = s.size();
+		double[] ex = new double[n];
+		double[] ey = new double[n];
+		double[] ez = new double[n];
+		g = new Gravity(0.5);
+		g.setOpening(0);
+		g.accumulate(s, ex, ey, ez);
+		test(g.cells() > 20, "Expected: faces split into smaller cells\nActual: " + g.cells() + " cells");
+		double worst = 0;
+		for (int i = 0; i < n; i += 97) {
+			double ax = 0, ay = 0, az = 0;
+			for (int j = 0; j < n; j++) {
+				if (j == i) continue;
+				double dx = s.x(j) - s.x(i);
+				double dy = s.y(j) - s.y(i);
+				double dz = s.z(j) - s.z(i);
+				double d2 = dx*dx + dy*dy + dz*dz + 1.0e-6;
+				double k = 0.5 * s.mass(i) * s.mass(j) / (d2 * Math.sqrt(d2));
+				ax += k * dx;
+				ay += k * dy;
+				az += k * dz;
+			}
+			worst = Math.max(worst, Math.abs(ax - ex[i]) + Math.abs(ay - ey[i]) + Math.abs(az - ez[i]));
+		}
+		test(worst < 1.0e-8, "Expected: opening angle 0 sums every pair\nActual: off by " + worst);
+		double sx = 0, sy = 0, sz = 0;
+		for (int i = 0; i < n; i++) {
+			sx += ex[i];
+			sy += ey[i];
+			sz += ez[i];
+		}
+		test(Math.abs(sx) + Math.abs(sy) + Math.abs(sz) < 1.0e-6, "Expected: forces sum to zero\nActual: (" + sx + ", " + sy + ", " + sz + ")");
+		
+		double[] bx = new double[n];
+		double[] by = new double[n];
+		double[] bz = new double[n];
+		g.setOpening(0.5);
+		g.accumulate(s, bx, by, bz);
+		double err = 0, norm = 0;
+		for (int i = 0; i < n; i++) {
+			double dx = bx[i] - ex[i];
+			double dy = by[i] - ey[i];
+			double dz = bz[i] - ez[i];
+			err += dx*dx + dy*dy + dz*dz;
+			norm += ex[i]*ex[i] + ey[i]*ey[i] + ez[i]*ez[i];
+		}
+		test(Math.sqrt(err / norm) < 0.01, "Expected: opening angle 0.5 within 1%\nActual: " + Math.sqrt(err / norm));
+		
+		// It's a Force, so a simulation can use it.
+		Simulation sim = new Simulation(s, 1.0e-4);
+		sim.addForce(g);
+		sim.run(3);
+		test(sim.kineticEnergy() > 0, "Expected: gravity sets anchors moving");
+	}
+	
+	public void indexTests() {
+		// Cell ids nest: the cell one level up is the parent.
+		Point p = new Point(1.1, 4.0);
+		long leaf = SphereIndex.cellId(p, 12);
+		test(SphereIndex.parent(leaf) == SphereIndex.cellId(p, 11), "Expected: parent(cellId(p, 12)) = cellId(p, 11)");
+		test(SphereIndex.face(leaf, 12) == SphereIndex.cellId(p, 0), "Expected: face(cellId(p, 12)) = cellId(p, 0)");
+		test(SphereIndex.cellId(new Point(0, 0), 5) != SphereIndex.cellId(new Point(Math.PI, 0), 5), "Expected: poles in different cells");
+		
+		AnchorStore s = new AnchorStore();
+		java.util.Random rand = new java.util.Random(10);
+		for (int i = 0; i < 2000; i++) {
+			s.add(Math.acos(2.0 * rand.nextDouble() - 1.0), 2.0 * Math.PI * rand.nextDouble(), 1);
+		}
+		SphereIndex index = new SphereIndex(s, 8);
+		test(index.cells() > 6, "Expected: cells below the faces\nActual: " + index.cells());
+		test(checkIndex(index, rand), "Expected: index queries match a full scan");
+		
+		// Moving anchors (every way there is) and adding more keeps it up to
+		// date.
+		for (int i = 0; i < 500; i++) {
+			s.translate(rand.nextInt(s.size()), rand.nextGaussian() * 0.1, rand.nextGaussian() * 0.1);
+			s.anchor(rand.nextInt(s.size())).translate(rand.nextGaussian(), rand.nextGaussian());
+		}
+		for (int i = 0; i < 100; i++) {
+			s.moveTo(rand.nextInt(s.size()), rand.nextGaussian(), rand.nextGaussian(), rand.nextGaussian());
+			s.add(rand.nextDouble() * Math.PI, rand.nextDouble() * 2.0 * Math.PI, 1);
+		}
+		Simulation sim = new Simulation(s, 0.01);
+		for (int i = 0; i < s.size(); i++) {
+			sim.setVelocity(i, rand.nextGaussian(), rand.nextGaussian(), rand.nextGaussian());
+		}
+		sim.run(20);
+		test(checkIndex(index, rand), "Expected: index queries still match after moves");
+		test(index.cell(7) == SphereIndex.cellId(s.x(7), s.y(7), s.z(7), 8), "Expected: cell(7) follows the anchor");
+		
+		// Everything, and nothing.
+		test(index.within(p, Math.PI).length == s.size(), "Expected: radius pi takes in every anchor");
+		test(index.within(p, -1).length == 0, "Expected: negative radius finds nothing");
+		test(index.nearest(p, s.size() + 5).length == s.size(), "Expected: asking for too many finds them all");
+		index.detach();
+		s.add(p, 1);
+		test(index.nearest(p, 1)[0] != s.size() - 1, "Expected: a detached index stops following the store");
+	}
+	
+	// Checks some radius and nearest neighbour queries against a full scan.
+	private boolean checkIndex(SphereIndex index, java.util.Random rand) {
+		AnchorStore s = index.store();
+		for (int q = 0; q < 40; q++) {
+			Point p = new Point(Math.acos(2.0 * rand.nextDouble() - 1.0), 2.0 * Math.PI * rand.nextDouble());
+			double r = (q % 4 == 0) ? 1.5 : 0.1 * rand.nextDouble();
+			java.util.TreeSet<Integer> expect = new java.util.TreeSet<Integer>();
+			double[] dist = new double[s.size()];
+			Integer[] order = new Integer[s.size()];
+			for (int i = 0; i < s.size(); i++) {
+				double d = p.x() * s.x(i) + p.y() * s.y(i) + p.z() * s.z(i);
+				dist[i] = Math.acos(Math.max(-1, Math.min(1, d)));
+				order[i] = i;
+				if (dist[i] <= r) {
+					expect.add(i);
+				}
+			}
+			java.util.TreeSet<Integer> got = new java.util.TreeSet<Integer>();
+			for (int id : index.within(p, r)) {
+				got.add(id);
+			}
+			if (! got.equals(expect)) {
+				return false;
+			}
+			int k = 1 + rand.nextInt(20);
+			java.util.Arrays.sort(order, (a, b) -> Double.compare(dist[a], dist[b]));
+			int[] near = index.nearest(p, k);
+			if (near.length != k) {
+				return false;
+			}
+			for (int i = 0; i < k; i++) {
+				if (Math.abs(dist[near[i]] - dist[order[i]]) > 1.0e-12) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+	
+	public void crossingTests() {
+		// An X on the equator, crossing at (1, 0, 0).
+		Anchor a = new Anchor(Math.PI / 2.0, -0.1, 1);
+		Anchor b = new Anchor(Math.PI / 2.0, 0.1, 1);
+		Anchor c = new Anchor(Math.PI / 2.0 - 0.1, 0, 1);
+		Anchor d = new Anchor(Math.PI / 2.0 + 0.1, 0, 1);
+		Rod ab = new Rod(a, b);
+		Rod cd = new Rod(c, d);
+		double[] at = new double[3];
+		test(ab.crosses(cd) && cd.crosses(ab), "Expected: crossed rods cross");
+		test(CrossingDetector.crosses(a.loc(), b.loc(), c.loc(), d.loc(), at), "Expected: crossed arcs cross");
+		test(feq(at[0], 1) && feq(at[1], 0) && feq(at[2], 0), "Expected: contact at (1, 0, 0)\nActual: (" + at[0] + ", " + at[1] + ", " + at[2] + ")");
+		
+		// The same great circles also meet round the back, but the arcs don't.
+		Anchor e = new Anchor(Math.PI / 2.0 - 0.1, Math.PI, 1);
+		Anchor f = new Anchor(Math.PI / 2.0 + 0.1, Math.PI, 1);
+		test(! ab.crosses(new Rod(e, f)), "Expected: arcs on opposite sides don't cross");
+		
+		// Rods sharing an anchor only meet there.
+		test(! ab.crosses(new Rod(b, c)), "Expected: rods sharing an anchor don't cross");
+		
+		// Touching, and overlapping along the same great circle, both count.
+		Anchor g = new Anchor(Math.PI / 2.0, 0, 1);
+		test(CrossingDetector.crosses(a.loc(), b.loc(), g.loc(), c.loc(), null), "Expected: a rod ending on another touches it");
+		Anchor h = new Anchor(Math.PI / 2.0, 0.05, 1);
+		Anchor k = new Anchor(Math.PI / 2.0, 0.3, 1);
+		test(CrossingDetector.crosses(a.loc(), b.loc(), h.loc(), k.loc(), null), "Expected: overlapping arcs cross");
+		test(! CrossingDetector.crosses(a.loc(), h.loc(), b.loc(), k.loc(), null), "Expected: arcs end to end on a circle don't cross");
+		
+		// A random tangle of short rods: the detector should find exactly the
+		// pairs a full check does, before and after things move, and after
+		// rods come and go.
+		StructureBuilder sb = new StructureBuilder();
+		java.util.Random rand = new java.util.Random(11);
+		for (int i = 0; i < 600; i++) {
+			double theta = Math.acos(2.0 * rand.nextDouble() - 1.0);
+			double phi = 2.0 * Math.PI * rand.nextDouble();
+			int u = sb.anchor(theta, phi, 1);
+			int v = sb.anchor(theta + 0.2 * rand.nextGaussian(), phi + 0.2 * rand.nextGaussian(), 1);
+			sb.rod(u, v);
+		}
+		// A couple of long ones too.
+		sb.rod(0, 601);
+		sb.rod(3, 900);
+		AnchorStore s = sb.build();
+		CrossingDetector cross = new CrossingDetector(s);
+		int found = cross.update();
+		test(found > 0 && checkCrossings(cross, s), "Expected: detector matches a full check\nActual: " + found + " crossings");
+		test(cross.candidates() < 600 * 600 / 10, "Expected: broad phase culls most pairs\nActual: " + cross.candidates());
+		
+		Simulation sim = new Simulation(s, 0.01);
+		for (int i = 0; i < s.size(); i++) {
+			sim.setVelocity(i, rand.nextGaussian(), rand.nextGaussian(), rand.nextGaussian());
+		}
+		for (int step = 0; step < 5; step++) {
+			sim.run(4);
+			cross.update();
+			test(checkCrossings(cross, s), "Expected: detector matches a full check after step " + step);
+		}
+		s.graph().rod(5).head().remove(s.graph().rod(5));
+		new Rod(s.anchor(10), s.anchor(700));
+		cross.update();
+		test(checkCrossings(cross, s), "Expected: detector matches a full check after rods change");
+		
+		if (cross.count() > 0) {
+			Rod r1 = cross.first(0);
+			Rod r2 = cross.second(0);
+			Point p = cross.contact(0);
+			test(r1.crosses(r2) && r1.id() < r2.id(), "Expected: reported rods cross");
+			test(feq(p.x() * p.x() + p.y() * p.y() + p.z() * p.z(), 1), "Expected: contact on the sphere");
+		}
+	}
+	
+	// Checks a detector's crossings against testing every pair of rods.
+	private boolean checkCrossings(CrossingDetector cross, AnchorStore s) {
+		RodGraph g = s.graph();
+		java.util.HashSet<Long> expect = new java.util.HashSet<Long>();
+		for (int i = 0; i < g.rodCount(); i++) {
+			for (int j = i + 1; j < g.rodCount(); j++) {
+				if (g.rod(i) != null && g.rod(j) != null && g.rod(i).crosses(g.rod(j))) {
+					expect.add(((long) i << 32) | j);
+				}
+			}
+		}
+		java.util.HashSet<Long> got = new java.util.HashSet<Long>();
+		for (int k = 0; k < cross.count(); k++) {
+			got.add(((long) cross.first(k).id() << 32) | cross.second(k).id());
+		}
+		return got.size() == cross.count() && got.equals(expect);
+	}
+	
+	public void geodesicTests() {
+		double[] v = new double[3];
+		
+		// Conversions agree with Point, both ways.
+		Point p = new Point(1.1, 4.0);
+		Geodesic.toCartesian(1.1, 4.0, v, 0);
+		test(feq(v[0], p.x()) && feq(v[1], p.y()) && feq(v[2], p.z()), "Expected: toCartesian matches Point");
+		Geodesic.toPolar(p.x(), p.y(), p.z(), v, 0);
+		test(feq(v[0], 1.1) && feq(v[1], 4.0), "Expected: toPolar = (1.1, 4.0)\nActual: (" + v[0] + ", " + v[1] + ")");
+		
+		// A quarter of the way round the equator, heading east; and straight
+		// north up a meridian.
+		test(feq(Geodesic.distance(1, 0, 0, 0, 1, 0), Math.PI / 2.0), "Expected: distance = pi/2");
+		test(feq(Geodesic.distance(1, 0, 0, 1, 0, 0), 0), "Expected: distance to itself = 0");
+		test(feq(Geodesic.distance(0, 0, 1, 0, 0, -1), Math.PI), "Expected: pole to pole = pi");
+		test(feq(Geodesic.bearing(1, 0, 0, 0, 1, 0), Math.PI / 2.0), "Expected: bearing east = pi/2");
+		test(feq(Geodesic.bearing(1, 0, 0, 0, 0, 1), 0), "Expected: bearing north = 0");
+		test(feq(Geodesic.bearing(1, 0, 0, 0, -1, 0), 3.0 * Math.PI / 2.0), "Expected: bearing west = 3pi/2");
+		
+		// Midpoints match Point's (which uses the kernel), and opposite points
+		// have none.
+		Point q = new Point(0.3, 0.2);
+		Point m = p.midpoint(q);
+		test(Geodesic.midpoint(p.x(), p.y(), p.z(), q.x(), q.y(), q.z(), v, 0), "Expected: a midpoint");
+		test(feq(v[0], m.x()) && feq(v[1], m.y()) && feq(v[2], m.z()), "Expected: midpoint matches Point");
+		test(! Geodesic.midpoint(0, 0, 1, 0, 0, -1, v, 0), "Expected: no midpoint between the poles");
+		
+		// Slerp halfway is the midpoint; a third of the way is a third of the
+		// distance.
+		double[] w = new double[6];
+		Geodesic.slerp(p.x(), p.y(), p.z(), q.x(), q.y(), q.z(), 0.5, w, 0);
+		test(feq(w[0], m.x()) && feq(w[1], m.y()) && feq(w[2], m.z()), "Expected: slerp(0.5) = midpoint");
+		Geodesic.slerp(p.x(), p.y(), p.z(), q.x(), q.y(), q.z(), 1.0 / 3.0, w, 3);
+		double all = Geodesic.distance(p.x(), p.y(), p.z(), q.x(), q.y(), q.z());
+		double third = Geodesic.distance(p.x(), p.y(), p.z(), w[3], w[4], w[5]);
+		test(feq(third, all / 3.0), "Expected: slerp(1/3) is a third of the way\nActual: " + third / all);
+		test(! Geodesic.slerp(1, 0, 0, -1, 0, 0, 0.5, w, 0), "Expected: no slerp between opposite points");
+		
+		// A quarter turn about z takes x to y; the batch version agrees.
+		Geodesic.rotate(0, 0, 1, Math.PI / 2.0, 1, 0, 0, v, 0);
+		test(feq(v[0], 0) && feq(v[1], 1) && feq(v[2], 0), "Expected: x turned about z = y");
+		java.util.Random random = new java.util.Random(12);
+		int n = 100;
+		double[] x = new double[n];
+		double[] y = new double[n];
+		double[] z = new double[n];
+		double[] theta = new double[n];
+		double[] phi = new double[n];
+		for (int i = 0; i < n; i++) {
+			theta[i] = Math.PI * random.nextDouble();
+			phi[i] = 2.0 * Math.PI * random.nextDouble();
+		}
+		Geodesic.toCartesian(n, theta, phi, x, y, z);
+		double[] before = x.clone();
+		double s = Math.sqrt(3.0);
+		Geodesic.rotate(n, 1 / s, 1 / s, 1 / s, 0.7, x, y, z);
+		boolean same = true;
+		for (int i = 0; i < n; i++) {
+			Point r = new Point(theta[i], phi[i]);
+			Geodesic.rotate(1 / s, 1 / s, 1 / s, 0.7, r.x(), r.y(), r.z(), v, 0);
+			same &= feq(v[0], x[i]) && feq(v[1], y[i]) && feq(v[2], z[i]);
+			same &= feq(r.x(), before[i]);
+		}
+		test(same, "Expected: batch rotate matches one at a time");
+		
+		// And back again, through the angles.
+		Geodesic.rotate(n, 1 / s, 1 / s, 1 / s, -0.7, x, y, z);
+		double[] t2 = new double[n];
+		double[] p2 = new double[n];
+		Geodesic.toPolar(n, x, y, z, t2, p2);
+		same = true;
+		for (int i = 0; i < n; i++) {
+			same &= feq(t2[i], theta[i]) && feq(p2[i], phi[i]);
+		}
+		test(same, "Expected: rotating back and converting gives the same angles");
+		
+		// Rod lengths and midpoints in bulk.
+		int[] head = { 0, 2, 4 };
+		int[] tail = { 1, 3, 5 };
+		double[] d = new double[3];
+		Geodesic.distances(3, head, tail, x, y, z, d);
+		double[] mx = new double[3];
+		double[] my = new double[3];
+		double[] mz = new double[3];
+		int opposite = Geodesic.midpoints(3, head, tail, x, y, z, mx, my, mz);
+		same = opposite == 0;
+		for (int i = 0; i < 3; i++) {
+			Point a = new Point(x[head[i]], y[head[i]], z[head[i]]);
+			Point b = new Point(x[tail[i]], y[tail[i]], z[tail[i]]);
+			Point c = a.midpoint(b);
+			same &= feq(d[i], Geodesic.distance(a.x(), a.y(), a.z(), b.x(), b.y(), b.z()));
+			same &= feq(mx[i], c.x()) && feq(my[i], c.y()) && feq(mz[i], c.z());
+		}
+		test(same, "Expected: bulk lengths and midpoints match");
+	}
+	
+	public void rotationTests() {
+		double[] v = new double[3];
+		
+		// A quarter turn about z takes x to y, and two of them make a half.
+		Rotation quarter = Rotation.about(0, 0, 1, Math.PI / 2.0);
+		quarter.apply(1, 0, 0, v, 0);
+		test(feq(v[0], 0) && feq(v[1], 1) && feq(v[2], 0), "Expected: x turned about z = y");
+		Rotation half = quarter.then(quarter);
+		test(feq(half.angle(), Math.PI), "Expected: two quarter turns = pi\nActual: " + half.angle());
+		half.apply(1, 0, 0, v, 0);
+		test(feq(v[0], -1) && feq(v[1], 0), "Expected: x turned half way = -x");
+		test(feq(quarter.then(quarter.inverse()).angle(), 0), "Expected: inverse undoes");
+		
+		// then() applies this rotation first: x about z to y, then y about x
+		// to z.
+		quarter.then(Rotation.about(1, 0, 0, Math.PI / 2.0)).apply(1, 0, 0, v, 0);
+		test(feq(v[0], 0) && feq(v[1], 0) && feq(v[2], 1), "Expected: then() applies in order");
+		
+		// The matrix agrees with the quaternion.
+		Rotation r = Rotation.about(1, 2, 3, 0.8);
+		double[] m = new double[9];
+		r.matrix(m);
+		r.apply(0.6, 0, 0.8, v, 0);
+		test(feq(v[0], m[0] * 0.6 + m[2] * 0.8) && feq(v[1], m[3] * 0.6 + m[5] * 0.8) && feq(v[2], m[6] * 0.6 + m[8] * 0.8), "Expected: matrix matches quaternion");
+		
+		// between() takes one point to the other, even directly across.
+		Point a = new Point(0.4, 1.0);
+		Point b = new Point(2.0, 5.0);
+		Point c = Rotation.between(a, b).apply(a);
+		test(feq(c.x(), b.x()) && feq(c.y(), b.y()) && feq(c.z(), b.z()), "Expected: between(a, b) takes a to b");
+		Point d = new Point(-a.x(), -a.y(), -a.z());
+		c = Rotation.between(a, d).apply(a);
+		test(feq(c.x(), d.x()) && feq(c.y(), d.y()) && feq(c.z(), d.z()), "Expected: between() copes with opposite points");
+		
+		// Rigid, unlike bumping the angles.
+		Point e = new Point(0.3, 0.2);
+		double before = Geodesic.distance(a.x(), a.y(), a.z(), e.x(), e.y(), e.z());
+		a.rotate(r);
+		e.rotate(r);
+		test(feq(Geodesic.distance(a.x(), a.y(), a.z(), e.x(), e.y(), e.z()), before), "Expected: rotated points keep their distance");
+		
+		// Two structures in a store. Spinning one of them (lazily, a step at a
+		// time) keeps every rod the same length and leaves the other alone.
+		StructureBuilder sb = new StructureBuilder();
+		java.util.Random rand = new java.util.Random(13);
+		int n = 30;
+		for (int i = 0; i < 2 * n; i++) {
+			double t = (i < n) ? 0.5 : 2.5;
+			sb.anchor(t + 0.3 * rand.nextDouble(), 2.0 * Math.PI * rand.nextDouble(), 1);
+		}
+		for (int i = 0; i < n - 1; i++) {
+			sb.rod(i, i + 1);
+			sb.rod(i, (i + 7) % n);
+			sb.rod(n + i, n + i + 1);
+		}
+		AnchorStore s = sb.build();
+		RodGraph g = s.graph();
+		double[] lengths = new double[g.size()];
+		for (int id = 0; id < g.size(); id++) {
+			lengths[id] = length(g.rod(id));
+		}
+		double[] others = new double[n];
+		for (int i = 0; i < n; i++) {
+			others[i] = s.z(n + i);
+		}
+		SphereIndex index = new SphereIndex(s, 6);
+		int[] first = s.component(0);
+		test(first.length == n && s.component(5) == first, "Expected: component() finds the structure\nActual: " + first.length);
+		Rotation step = Rotation.about(1, 1, 0, 0.01);
+		Point start = s.loc(3);
+		for (int i = 0; i < 100; i++) {
+			s.rotate(first, step);
+		}
+		Rotation whole = Rotation.about(1, 1, 0, 1.0);
+		Point expect = whole.apply(start);
+		test(feq(s.x(3), expect.x()) && feq(s.y(3), expect.y()) && feq(s.z(3), expect.z()), "Expected: 100 small turns add up to one big one");
+		boolean kept = true;
+		for (int id = 0; id < g.size(); id++) {
+			kept &= feq(length(g.rod(id)), lengths[id]);
+		}
+		test(kept, "Expected: rotating a component keeps every rod's length");
+		kept = true;
+		for (int i = 0; i < n; i++) {
+			kept &= s.z(n + i) == others[i];
+		}
+		test(kept, "Expected: the other component stays put");
+		test(feq(s.theta(3), expect.theta()) && feq(s.phi(3), expect.phi()), "Expected: angles follow a rotation");
+		
+		// The whole store, and an index that has to notice before answering.
+		s.rotate(Rotation.about(0, 0, 1, 2.0));
+		s.rotate(Rotation.about(1, 0, 0, -0.5));
+		test(checkIndex(index, rand), "Expected: index follows rotations");
+		s.rotate(r);
+		int added = s.add(0, 0, 1);
+		test(s.z(added) == 1, "Expected: anchors added after a rotation don't get turned");
+		kept = true;
+		for (int id = 0; id < g.size(); id++) {
+			kept &= feq(length(g.rod(id)), lengths[id]);
+		}
+		test(kept, "Expected: rotating the store keeps every rod's length");
+	}
+	
+	// Great-circle length of a rod.
+	private double length(Rod r) {
+		Anchor a = r.head();
+		Anchor b = r.tail();
+		return Geodesic.distance(a.x(), a.y(), a.z(), b.x(), b.y(), b.z());
+	}
+	
+	public void rigidTests() {
+		// Two triangles joined by a rod, with a lone anchor hanging off one
+		// of them: two bodies, and the hanger moves on its own.
+		AnchorStore s = triangles();
+		RigidBodies bodies = new RigidBodies(s);
+		test(bodies.count() == 2, "Expected: two bodies\nActual: " + bodies.count());
+		test(bodies.body(0) == bodies.body(2) && bodies.body(1) == bodies.body(5) && bodies.body(0) != bodies.body(1), "Expected: a body per triangle");
+		test(bodies.body(6) == -1 && bodies.anchorCount() == 6, "Expected: the hanger moves on its own");
+		test(feq(bodies.mass(bodies.body(0)), 6), "Expected: body mass = 6\nActual: " + bodies.mass(bodies.body(0)));
+		
+		// Turning a body turns its inertia with it.
+		double[] before = new double[9];
+		double[] after = new double[9];
+		int b = bodies.body(0);
+		bodies.inertia(b, before);
+		Rotation r = Rotation.about(0.3, -1, 0.2, 0.9);
+		bodies.turn(b, 0.9 * 0.3 / Math.sqrt(1.13), -0.9 / Math.sqrt(1.13), 0.9 * 0.2 / Math.sqrt(1.13));
+		bodies.inertia(b, after);
+		double[] m = new double[9];
+		r.matrix(m);
+		boolean same = true;
+		for (int row = 0; row < 3; row++) {
+			for (int col = 0; col < 3; col++) {
+				double e = 0;
+				for (int k = 0; k < 3; k++) {
+					for (int l = 0; l < 3; l++) {
+						e += m[3 * row + k] * before[3 * k + l] * m[3 * col + l];
+					}
+				}
+				same &= feq(e, after[3 * row + col]);
+			}
+		}
+		test(same, "Expected: inertia turns with the body");
+		
+		// Placing the anchors puts them where the orientation says.
+		double[] x = s.xs().clone();
+		double[] y = s.ys().clone();
+		double[] z = s.zs().clone();
+		bodies.place(b, x, y, z);
+		double[] v = new double[3];
+		bodies.where(b, 2, v, 0);
+		Point p = bodies.orientation(b).apply(s.loc(2));
+		test(feq(x[2], p.x()) && feq(y[2], p.y()) && feq(z[2], p.z()), "Expected: place() follows the orientation");
+		test(x[2] == v[0] && y[2] == v[1] && z[2] == v[2], "Expected: where() agrees with place()");
+		test(x[1] == s.x(1), "Expected: place() leaves other bodies alone");
+		
+		// Knocked about, the rigid simulation keeps the bodies' shapes
+		// exactly, keeps the rods between them, and keeps energy and angular
+		// momentum. It should also agree with simulating every anchor, since
+		// triangles really are rigid.
+		Simulation rigid = new Simulation(s, 0.001);
+		rigid.setRigid(true);
+		AnchorStore t = triangles();
+		Simulation loose = new Simulation(t, 0.001);
+		rigid.solver().setIterations(16);
+		loose.solver().setIterations(16);
+		// Start at rest, with a push on the hanger and a spin on one of the
+		// triangles.
+		Simulation.Force push = (store, fx, fy, fz) -> {
+			fx[6] += -store.y(6);
+			fy[6] += store.x(6);
+			fz[3] += 1;
+		};
+		rigid.addForce(push);
+		loose.addForce(push);
+		double[] lengths = new double[s.graph().size()];
+		for (int id = 0; id < lengths.length; id++) {
+			lengths[id] = length(s.graph().rod(id));
+		}
+		rigid.run(500);
+		loose.run(500);
+		rigid.removeForce(push);
+		loose.removeForce(push);
+		double e0 = rigid.kineticEnergy();
+		double[] l0 = angularMomentum(rigid);
+		rigid.run(2000);
+		loose.run(2000);
+		boolean kept = true;
+		for (int id = 0; id < lengths.length; id++) {
+			kept &= Math.abs(length(s.graph().rod(id)) - lengths[id]) < 1.0e-6;
+		}
+		test(kept, "Expected: rigid simulation keeps every rod's length");
+		double e1 = rigid.kineticEnergy();
+		test(Math.abs(e1 - e0) < 0.01 * e0, "Expected: rigid energy kept to 1%\nActual: " + e0 + " -> " + e1);
+		double[] l1 = angularMomentum(rigid);
+		test(Math.abs(l1[0] - l0[0]) + Math.abs(l1[1] - l0[1]) + Math.abs(l1[2] - l0[2]) < 1.0e-3, "Expected: angular momentum kept");
+		double apart = 0;
+		for (int i = 0; i < s.size(); i++) {
+			apart = Math.max(apart, Geodesic.distance(s.x(i), s.y(i), s.z(i), t.x(i), t.y(i), t.z(i)));
+		}
+		test(apart < 1.0e-3, "Expected: rigid and anchor-by-anchor agree\nActual: apart by " + apart);
+		
+		// Taking the bridge out leaves the bodies alone but they're still
+		// bodies; bracing the hanger makes it part of one.
+		s.anchor(0).remove(s.graph().rod(6));
+		new Rod(s.anchor(6), s.anchor(2));
+		rigid.run(10);
+		test(rigid.bodies().count() == 2 && rigid.bodies().body(6) == rigid.bodies().body(0), "Expected: braced hanger joins the body");
+		test(rigid.bodies().size(rigid.bodies().body(0)) == 4, "Expected: body of four\nActual: " + rigid.bodies().size(rigid.bodies().body(0)));
+	}
+	
+	public void renderTests() {
+		// The unturned camera looks down on the north pole, with x to the
+		// right and y up the screen.
+		Camera cam = new Camera();
+		double[] p = new double[3];
+		cam.project(0, 0, 1, 600, 400, p, 0);
+		test(feq(p[0], 300) && feq(p[1], 200) && feq(p[2], 1), "Expected: north pole in the middle, facing us");
+		cam.project(1, 0, 0, 600, 400, p, 0);
+		test(feq(p[0], 400) && feq(p[1], 200) && feq(p[2], 0), "Expected: x-axis on the right edge of the sphere");
+		cam.project(0, 1, 0, 600, 400, p, 0);
+		test(feq(p[1], 100), "Expected: y-axis up the screen");
+		Point q = new Point(1.2, 2.0);
+		Camera.facing(q, 2.0).project(q.x(), q.y(), q.z(), 600, 400, p, 0);
+		test(feq(p[0], 300) && feq(p[1], 200) && feq(p[2], 1), "Expected: facing() puts the point in the middle");
+		
+		// A rod from the north pole down the x side, drawn off screen.
+		AnchorStore s = new AnchorStore();
+		s.add(0, 0, 1);
+		s.add(1.0, 0, 1);
+		new Rod(s.anchor(0), s.anchor(1));
+		Scene scene = new Scene();
+		scene.capture(s);
+		test(scene.anchorCount() == 2 && scene.rodCount() == 1 && scene.head(0) == 0, "Expected: scene copies the store");
+		java.awt.image.BufferedImage image = new java.awt.image.BufferedImage(200, 200, java.awt.image.BufferedImage.TYPE_INT_RGB);
+		java.awt.Graphics2D g = image.createGraphics();
+		new Renderer().draw(scene, cam, g, 200, 200);
+		g.dispose();
+		test((image.getRGB(100, 100) & 0xffffff) == 0xffffff, "Expected: anchor drawn at the pole");
+		test((image.getRGB(5, 5) & 0xffffff) == 0, "Expected: black background");
+		int rx = (int) Math.round(100 + 50 * Math.sin(0.5));
+		test((image.getRGB(rx, 100) & 0xffffff) != (java.awt.Color.DARK_GRAY.getRGB() & 0xffffff), "Expected: rod drawn over the sphere");
+		
+		// The loop draws on its own thread, and hands over the frame once
+		// it has drawn what we captured.
+		RenderLoop loop = new RenderLoop(200);
+		loop.setSize(200, 200);
+		loop.start();
+		loop.capture(s);
+		java.awt.image.BufferedImage shown = new java.awt.image.BufferedImage(200, 200, java.awt.image.BufferedImage.TYPE_INT_RGB);
+		long until = System.currentTimeMillis() + 5000;
+		boolean matched = false;
+		while (! matched && System.currentTimeMillis() < until) {
+			g = shown.createGraphics();
+			matched = loop.show(g) && shown.getRGB(100, 100) == image.getRGB(100, 100) && shown.getRGB(rx, 100) == image.getRGB(rx, 100);
+			g.dispose();
+			Thread.yield();
+		}
+		loop.stop();
+		test(matched, "Expected: loop shows the captured scene");
+		test(loop.frames() > 0 && ! loop.running(), "Expected: loop drew and stopped");
+
+		// A display given a simulation runs it and draws what it captures:
+		// the pole anchor ends up in the blitted frame.
+		Display display = new Display(new RenderLoop(200), new Simulation(s, 0.001));
+		display.loop().setSize(200, 200);
+		display.start();
+		until = System.currentTimeMillis() + 5000;
+		matched = false;
+		while (! matched && System.currentTimeMillis() < until) {
+			g = shown.createGraphics();
+			g.setColor(java.awt.Color.BLACK);
+			g.fillRect(0, 0, 200, 200);
+			matched = display.loop().show(g) && (shown.getRGB(100, 100) & 0xffffff) == 0xffffff
+					&& display.simulation().steps() > 0;
+			g.dispose();
+			Thread.yield();
+		}
+		display.stop();
+		test(matched, "Expected: display shows its simulation");
+		test(! display.loop().running(), "Expected: display stopped");
+	}
+	
+	public void arcTests() {
+		// A short rod and a long one (most of the way round the equator,
+		// seen from above, so it's nearly a whole circle on screen).
+		AnchorStore s = new AnchorStore();
+		s.add(0.5, 0.0, 1);
+		s.add(0.5, 0.01, 1);
+		s.add(Math.PI / 2.0, 0, 1);
+		s.add(Math.PI / 2.0, 3.0, 1);
+		new Rod(s.anchor(0), s.anchor(1));
+		new Rod(s.anchor(2), s.anchor(3));
+		Scene scene = new Scene();
+		scene.capture(s);
+		Camera cam = new Camera();
+		ArcCache arcs = new ArcCache();
+		arcs.view(cam, 800, 800);
+		int shortId = arcs.arc(scene, 0);
+		int longId = arcs.arc(scene, 1);
+		int few = arcs.count(shortId);
+		int many = arcs.count(longId);
+		test(few <= 3 && many > 10, "Expected: long arcs get more pieces\nActual: " + few + ", " + many);
+		
+		// Every point of the true arc is within half a pixel of the line.
+		float[] line = arcs.points(longId);
+		double worst = 0;
+		double[] p = new double[3];
+		for (int i = 0; i <= 1000; i++) {
+			Geodesic.slerp(s.x(2), s.y(2), s.z(2), s.x(3), s.y(3), s.z(3), i / 1000.0, p, 0);
+			cam.project(p[0], p[1], p[2], 800, 800, p, 0);
+			double best = Double.MAX_VALUE;
+			for (int j = 0; j + 1 < many; j++) {
+				best = Math.min(best, segment(p[0], p[1], line[2 * j], line[2 * j + 1], line[2 * j + 2], line[2 * j + 3]));
+			}
+			worst = Math.max(worst, best);
+		}
+		test(worst < 0.5 + 1.0e-3, "Expected: polyline within tolerance\nActual: " + worst);
+		
+		// Asking again, or after moves too small to see, costs nothing.
+		long work = arcs.work();
+		arcs.arc(scene, 1);
+		s.anchor(3).translate(0, 1.0e-4);
+		scene.capture(s);
+		arcs.arc(scene, 1);
+		arcs.view(cam.turn(Rotation.about(1, 0, 0, 1.0e-4)), 800, 800);
+		arcs.arc(scene, 1);
+		test(arcs.work() == work, "Expected: nothing worked out again");
+		
+		// Further moves (of the rod, or of the camera) redo it.
+		s.anchor(3).translate(0, 0.05);
+		scene.capture(s);
+		arcs.arc(scene, 1);
+		test(arcs.work() == work + 1, "Expected: moved rod worked out again");
+		arcs.view(cam.turn(Rotation.about(1, 0, 0, 0.1)), 800, 800);
+		arcs.arc(scene, 0);
+		arcs.arc(scene, 1);
+		test(arcs.work() == work + 3, "Expected: turned camera redoes everything");
+
+		// Turning the camera and moving an end a little at a time, the line
+		// drawn never gets further than the tolerance plus the slack from
+		// the real arc, even though the two sorts of moves build up together.
+		s.add(0.4, 1.0, 1);
+		s.add(0.9, 2.5, 1);
+		new Rod(s.anchor(4), s.anchor(5));
+		ArcCache drift = new ArcCache();
+		double r = cam.radius(800, 800);
+		double step = 0.2 / r;
+		long before = drift.work();
+		worst = 0;
+		double lag = 0;
+		for (int f = 0; f < 40; f++) {
+			Camera turned = cam.turn(Rotation.about(1, 0, 0, f * step));
+			s.anchor(5).translate(0, step / Math.sin(0.9));
+			scene.capture(s);
+			drift.view(turned, 800, 800);
+			int id = drift.arc(scene, 2);
+			line = drift.points(id);
+			for (int i = 0; i <= 200; i++) {
+				Geodesic.slerp(s.x(4), s.y(4), s.z(4), s.x(5), s.y(5), s.z(5), i / 200.0, p, 0);
+				turned.project(p[0], p[1], p[2], 800, 800, p, 0);
+				double best = Double.MAX_VALUE;
+				for (int j = 0; j + 1 < drift.count(id); j++) {
+					best = Math.min(best, segment(p[0], p[1], line[2 * j], line[2 * j + 1], line[2 * j + 2], line[2 * j + 3]));
+				}
+				worst = Math.max(worst, best);
+			}
+			// The ends of the line are exactly where the ends were.
+			int last = 2 * drift.count(id) - 2;
+			turned.project(s.x(5), s.y(5), s.z(5), 800, 800, p, 0);
+			lag = Math.max(lag, Math.hypot(line[last] - p[0], line[last + 1] - p[1]));
+		}
+		test(drift.work() - before < 40, "Expected: small moves left to build up");
+		test(lag < 0.5 + 1.0e-3, "Expected: ends lag by no more than the slack\nActual: " + lag);
+		test(worst < 1.0 + 1.0e-3, "Expected: drawing lags by no more than tolerance and slack\nActual: " + worst);
+	}
+	
+	// Distance from (px, py) to the segment from a to b.
+	private double segment(double px, double py, double ax, double ay, double bx, double by) {
+		double dx = bx - ax;
+		double dy = by - ay;
+		double len = dx*dx + dy*dy;
+		double t = (len == 0) ? 0 : Math.max(0, Math.min(1, ((px - ax) * dx + (py - ay) * dy) / len));
+		double x = ax + t * dx - px;
+		double y = ay + t * dy - py;
+		return Math.sqrt(x*x + y*y);
+	}
+	
+	public void clusterTests() {
+		// Random anchors (with rods between neighbours), grouped up.
+		java.util.Random rand = new java.util.Random(18);
+		StructureBuilder sb = new StructureBuilder();
+		int n = 2000;
+		for (int i = 0; i < n; i++) {
+			sb.anchor(Math.acos(2.0 * rand.nextDouble() - 1.0), 2.0 * Math.PI * rand.nextDouble(), 1);
+		}
+		for (int i = 0; i + 1 < n; i++) {
+			sb.rod(i, i + 1 + rand.nextInt(Math.min(3, n - i - 1)));
+		}
+		AnchorStore built = sb.build();
+		Scene scene = new Scene();
+		scene.capture(built);
+		Clusters c = new Clusters(scene);
+		
+		// Every anchor is in one patch with no children, each patch's
+		// anchors are split among its children, every anchor is inside its
+		// patches' caps, and every rod is filed once.
+		boolean levels = true;
+		boolean caps = true;
+		int leaves = 0;
+		for (int p = 0; p < c.count(); p++) {
+			for (int k = c.first(p); k < c.first(p) + c.size(p); k++) {
+				int i = c.order(k);
+				caps &= c.x(p) * scene.x(i) + c.y(p) * scene.y(i) + c.z(p) * scene.z(i) >= c.capCos(p) - 1.0e-9;
+			}
+			if (c.childStart(p) == c.childEnd(p)) {
+				leaves += c.size(p);
+				continue;
+			}
+			int below = 0;
+			for (int q = c.childStart(p); q < c.childEnd(p); q++) {
+				below += c.size(q);
+				levels &= c.first(q) >= c.first(p) && c.first(q) + c.size(q) <= c.first(p) + c.size(p);
+			}
+			levels &= (below == c.size(p));
+		}
+		levels &= (leaves == n) && c.count() < 3 * n;
+		test(levels, "Expected: anchors split among the patches\nActual: " + leaves + ", " + c.count());
+		test(caps, "Expected: anchors inside their patches' caps");
+		boolean[] filed = new boolean[scene.rodCount()];
+		int count = 0;
+		for (int p = 0; p < c.count(); p++) {
+			for (int k = c.rodStart(p); k < c.rodEnd(p); k++) {
+				count += filed[c.rod(k)] ? 0 : 1;
+				filed[c.rod(k)] = true;
+			}
+		}
+		test(count == scene.rodCount() && c.rodEnd(c.count() - 1) == count, "Expected: every rod filed once");
+
+		// Turning everything a little, the patches can be refitted rather
+		// than built again, and still hold their anchors and rods.
+		built.rotate(Rotation.about(0.3, 0.4, 0.5, 0.02));
+		scene.capture(built);
+		test(c.refit(scene), "Expected: patches refitted after a small turn");
+		caps = true;
+		boolean reach = true;
+		for (int p = 0; p < c.count(); p++) {
+			for (int k = c.first(p); k < c.first(p) + c.size(p); k++) {
+				int i = c.order(k);
+				caps &= c.x(p) * scene.x(i) + c.y(p) * scene.y(i) + c.z(p) * scene.z(i) >= c.capCos(p) - 1.0e-9;
+			}
+			for (int k = c.rodStart(p); k < c.rodEnd(p); k++) {
+				int a = scene.head(c.rod(k));
+				int b = scene.tail(c.rod(k));
+				reach &= c.reach(p) >= Geodesic.distance(scene.x(a), scene.y(a), scene.z(a), scene.x(b), scene.y(b), scene.z(b)) - 1.0e-12;
+			}
+		}
+		test(caps && reach, "Expected: refitted caps hold their anchors and rods");
+
+		// But not once half the anchors have gone somewhere else, or there's
+		// a new rod.
+		int[] half = new int[n / 2];
+		for (int i = 0; i < half.length; i++) {
+			half[i] = 2 * i;
+		}
+		built.rotate(half, Rotation.about(1, 0, 0, 1.0));
+		scene.capture(built);
+		test(! c.refit(scene), "Expected: patches too loose to refit once anchors scatter");
+		Clusters fresh = new Clusters(scene);
+		test(fresh.refit(scene), "Expected: a fresh tree refits as it is");
+		new Rod(built.anchor(0), built.anchor(n - 1));
+		scene.capture(built);
+		test(! fresh.refit(scene), "Expected: no refitting onto different rods");
+		
+		// An anchor round the back isn't drawn.
+		AnchorStore s = new AnchorStore();
+		s.add(Math.PI, 0, 1);
+		Scene back = new Scene();
+		back.capture(s);
+		java.awt.image.BufferedImage image = new java.awt.image.BufferedImage(100, 100, java.awt.image.BufferedImage.TYPE_INT_RGB);
+		java.awt.Graphics2D g = image.createGraphics();
+		Renderer r = new Renderer();
+		r.draw(back, new Camera(), g, 100, 100);
+		test(r.dots() == 0 && image.getRGB(50, 50) == java.awt.Color.DARK_GRAY.getRGB(), "Expected: south pole hidden from above");
+		r.draw(back, new Camera().turn(Rotation.about(1, 0, 0, Math.PI)), g, 100, 100);
+		test(r.dots() == 1 && (image.getRGB(50, 50) & 0xffffff) == 0xffffff, "Expected: south pole seen from below");
+		
+		// Only the near side is looked at, and on a small screen the number
+		// of dots depends on the pixels, not the anchors: four times as many
+		// anchors don't make for many more.
+		r.draw(scene, new Camera(), g, 100, 100);
+		int full = r.dots();
+		test(full > 0 && full < n / 2 + n / 10, "Expected: far side culled\nActual: " + full);
+		r.draw(scene, new Camera(), g, 8, 8);
+		int few = r.dots();
+		AnchorStore more = new AnchorStore();
+		for (int i = 0; i < 4 * n; i++) {
+			more.add(Math.acos(2.0 * rand.nextDouble() - 1.0), 2.0 * Math.PI * rand.nextDouble(), 1);
+		}
+		Scene crowd = new Scene();
+		crowd.capture(more);
+		r.draw(crowd, new Camera(), g, 8, 8);
+		test(few < n / 4 && r.dots() < few + few / 2, "Expected: dots don't grow with anchors\nActual: " + few + ", " + r.dots());
+
+		// Frames of a scene that's only moving a little don't build the
+		// grouping again.
+		Renderer moving = new Renderer();
+		for (int f = 0; f < 5; f++) {
+			more.rotate(Rotation.about(0, 1, 0, 0.01));
+			crowd.capture(more);
+			moving.draw(crowd, new Camera(), g, 100, 100);
+		}
+		test(moving.builds() == 1 && moving.dots() > 0, "Expected: one build for a turning scene\nActual: " + moving.builds());
+
+		// Nor do they when each frame comes in a different scene, the way
+		// RenderLoop hands them over (it takes turns with three), as long as
+		// the anchors and rods are the same. A new rod means a new build.
+		Renderer turns = new Renderer();
+		Scene[] scenes = { new Scene(), new Scene(), new Scene() };
+		for (int f = 0; f < 12; f++) {
+			more.rotate(Rotation.about(0, 1, 0, 0.01));
+			scenes[f % 3].capture(more);
+			turns.draw(scenes[f % 3], new Camera(), g, 100, 100);
+		}
+		test(turns.builds() == 1, "Expected: one build across scenes taking turns\nActual: " + turns.builds());
+		new Rod(more.anchor(0), more.anchor(1));
+		scenes[0].capture(more);
+		turns.draw(scenes[0], new Camera(), g, 100, 100);
+		scenes[1].capture(more);
+		turns.draw(scenes[1], new Camera(), g, 100, 100);
+		test(turns.builds() == 2, "Expected: one more build for a new rod\nActual: " + turns.builds());
+		g.dispose();
+	}
+	
+	public void exportTests() {
+		// A few frames of a rod falling over, written out by two encoders
+		// into a fresh directory.
+		AnchorStore s = new AnchorStore();
+		s.add(0, 0, 1);
+		s.add(0.5, 0, 1);
+		new Rod(s.anchor(0), s.anchor(1));
+		Simulation sim = new Simulation(s, 0.01);
+		sim.setVelocity(1, 0, 1, 0);
+		java.io.File dir = new java.io.File(System.getProperty("java.io.tmpdir"), "blackhole-export-" + System.nanoTime());
+		FrameExporter out = new FrameExporter(dir, 120, 80, 2);
+		try {
+			out.record(sim, 7, 3);
+		}
+		catch (java.io.IOException e) {
+			test(false, "Expected: frames written\nActual: " + e);
+		}
+		test(out.submitted() == 7 && out.written() == 7 && sim.steps() == 18, "Expected: 7 frames, 3 steps apart\nActual: " + out.written() + ", " + sim.steps());
+		
+		// Each file is a whole frame of the right size, with the anchor at
+		// the pole in the middle.
+		boolean whole = true;
+		for (int k = 0; k < 7; k++) {
+			java.io.File f = out.file(k);
+			try {
+				java.awt.image.BufferedImage image = javax.imageio.ImageIO.read(f);
+				whole &= image != null && image.getWidth() == 120 && image.getHeight() == 80
+						&& (image.getRGB(60, 40) & 0xffffff) == 0xffffff;
+			}
+			catch (java.io.IOException e) {
+				whole = false;
+			}
+			f.delete();
+		}
+		dir.delete();
+		test(whole, "Expected: every frame readable, right size, anchor in the middle");
+		
+		// Nothing more can go in once it's finished.
+		boolean refused = false;
+		try {
+			out.submit(s);
+		}
+		catch (IllegalStateException e) {
+			refused = true;
+		}
+		catch (java.io.IOException e) {
+		}
+		test(refused, "Expected: finished exporter refuses frames");
+
+		// A frame that can't be drawn (there's no camera) is reported from
+		// submit() and finish(), and nothing waits forever on the renderer.
+		out = new FrameExporter(dir, 120, 80, 1);
+		out.setCamera(null);
+		int thrown = 0;
+		for (int k = 0; k < 10; k++) {
+			try {
+				out.submit(s);
+			}
+			catch (java.io.IOException e) {
+				thrown++;
+			}
+		}
+		try {
+			out.finish();
+		}
+		catch (java.io.IOException e) {
+			thrown++;
+			test(e.getCause() instanceof NullPointerException, "Expected: the drawing failure as the cause\nActual: " + e.getCause());
+		}
+		test(thrown > 1 && out.written() == 0, "Expected: failure thrown from submit() and finish()\nActual: " + thrown + " thrown, " + out.written() + " written");
+		dir.delete();
+
+		// What to export can be made up, or come from a scene file or a
+		// checkpoint.
+		java.io.File f = new java.io.File(System.getProperty("java.io.tmpdir"), "blackhole-input-" + System.nanoTime());
+		try {
+			Simulation made = BlackHole.open("ring:40");
+			test(made.store().size() == 40 && made.store().graph().size() == 40, "Expected: ring of 40 made up");
+			SceneFile.write(s, f);
+			test(BlackHole.open(f.getPath()).store().graph().size() == 1, "Expected: scene file opened");
+			Checkpointer cp = new Checkpointer();
+			cp.save(sim, f);
+			cp.close();
+			Simulation back = BlackHole.open(f.getPath());
+			test(back.steps() == sim.steps() && back.store().size() == 2, "Expected: checkpoint opened");
+		}
+		catch (java.io.IOException e) {
+			test(false, "Expected: inputs opened\nActual: " + e);
+		}
+		f.delete();
+		refused = false;
+		try {
+			BlackHole.open("nothing-like-an-input");
+		}
+		catch (java.io.IOException e) {
+			refused = true;
+		}
+		test(refused, "Expected: unknown input refused");
+	}
+	
+	public void sceneFileTests() {
+		// A triangle with a tail, and a rod taken out so the ids have a gap.
+		AnchorStore s = new AnchorStore();
+		for (int i = 0; i < 5; i++) {
+			s.add(0.3 + 0.2 * i, 0.1 * i, 1 + i);
+		}
+		new Rod(s.anchor(0), s.anchor(1));
+		Rod gone = new Rod(s.anchor(1), s.anchor(4));
+		new Rod(s.anchor(1), s.anchor(2));
+		new Rod(s.anchor(2), s.anchor(0));
+		new Rod(s.anchor(2), s.anchor(3));
+		s.anchor(1).remove(gone);
+		java.io.File f = new java.io.File(System.getProperty("java.io.tmpdir"), "blackhole-scene-" + System.nanoTime());
+		try {
+			SceneFile.write(s, f);
+			try (SceneFile in = new SceneFile(f)) {
+				test(in.version() == SceneFile.VERSION && in.anchorCount() == 5 && in.rodCount() == 4, "Expected: 5 anchors and 4 rods\nActual: " + in.anchorCount() + ", " + in.rodCount());
+				test(in.theta(3) == s.theta(3) && in.phi(4) == s.phi(4) && in.mass(2) == 3, "Expected: anchors read back exactly");
+				test(in.head(1) == 1 && in.tail(1) == 2 && ! in.extensible(1) && in.extensible(3), "Expected: rods read back without the gap");
+				
+				// Loading gives the same structure, extensibility and all.
+				AnchorStore t = in.load();
+				boolean same = t.size() == 5 && t.graph().size() == 4;
+				for (int i = 0; same && i < 5; i++) {
+					same = t.theta(i) == s.theta(i) && t.phi(i) == s.phi(i) && t.mass(i) == s.mass(i);
+				}
+				for (int k = 0; same && k < 4; k++) {
+					Rod r = t.graph().rod(k);
+					same = r.head().id() == in.head(k) && r.tail().id() == in.tail(k) && r.extensible() == r.isExtensible();
+				}
+				test(same, "Expected: loaded store matches");
+				test(t.connectivity().connected(3, 0) && ! t.connectivity().braced(3, 0) && t.connectivity().braced(1, 0) && t.component(3).length == 4, "Expected: loaded connectivity");
+			}
+
+			// Once it's closed, reading a record says so.
+			SceneFile closed = new SceneFile(f);
+			closed.close();
+			boolean refused = false;
+			try {
+				closed.theta(0);
+			}
+			catch (IllegalStateException e) {
+				refused = true;
+			}
+			test(refused, "Expected: closed scene file refuses reads");
+
+			// Anything that isn't a whole scene file is turned away.
+			try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(f, "rw")) {
+				raf.setLength(raf.length() - 1);
+			}
+			refused = false;
+			try {
+				new SceneFile(f).close();
+			}
+			catch (java.io.IOException e) {
+				refused = true;
+			}
+			test(refused, "Expected: short file refused");
+		}
+		catch (java.io.IOException e) {
+			test(false, "Expected: scene saved and read\nActual: " + e);
+		}
+		f.delete();
+	}
+	
+	public void trajectoryTests() {
+		// A spinning pair, recorded every step, with a key frame every 8
+		// frames and an anchor added half way.
+		AnchorStore s = new AnchorStore();
+		s.add(1.0, 0, 1);
+		s.add(1.2, 0.1, 1);
+		new Rod(s.anchor(0), s.anchor(1));
+		Simulation sim = new Simulation(s, 0.01);
+		sim.setVelocity(0, 0, 0.5, 0);
+		sim.setVelocity(1, 0, 0.5, 0);
+		java.io.File f = new java.io.File(System.getProperty("java.io.tmpdir"), "blackhole-trajectory-" + System.nanoTime());
+		int frames = 40;
+		double[][] theta = new double[frames][];
+		double[][] phi = new double[frames][];
+		try {
+			TrajectoryRecorder rec = new TrajectoryRecorder(f, 1.0e-8, 8);
+			for (int k = 0; k < frames; k++) {
+				if (k == 20) {
+					s.add(2.0, 3.0, 1);
+				}
+				rec.record(sim);
+				theta[k] = java.util.Arrays.copyOf(s.thetas(), s.size());
+				phi[k] = java.util.Arrays.copyOf(s.phis(), s.size());
+				sim.step();
+			}
+			long end = rec.bytes();
+			test(end < 16 + frames * (17 + 3 * 8), "Expected: deltas smaller than raw\nActual: " + end);
+			rec.close();
+			
+			// Any frame, in any order, comes back to within half a quantum.
+			try (Trajectory t = new Trajectory(f)) {
+				test(t.frames() == frames && t.step(13) == 13 && t.find(13) == 13 && t.find(-1) == -1, "Expected: frames indexed by step");
+				test(t.key(13) == 8 && t.key(20) == 20 && t.key(23) == 20 && t.anchorCount(23) == 3, "Expected: key frames every 8, and when anchors are added");
+				double[] a = new double[3];
+				double[] b = new double[3];
+				double worst = 0;
+				int[] order = { 37, 5, 0, 20, 19, 21, 39, 8, 9 };
+				for (int k : order) {
+					int n = t.read(k, a, b);
+					test(n == theta[k].length, "Expected: frame " + k + " has " + theta[k].length + " anchors\nActual: " + n);
+					for (int i = 0; i < n; i++) {
+						worst = Math.max(worst, Math.max(Math.abs(a[i] - theta[k][i]), Math.abs(b[i] - phi[k][i])));
+					}
+				}
+				test(worst <= 0.5e-8 + 1.0e-15, "Expected: replay within half a quantum\nActual: " + worst);
+			}
+			
+			// Without the index (cut off part way through a frame), what's
+			// there can still be read.
+			try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(f, "rw")) {
+				raf.setLength(end - 3);
+			}
+			try (Trajectory t = new Trajectory(f)) {
+				double[] a = new double[3];
+				double[] b = new double[3];
+				test(t.frames() == frames - 1 && t.read(frames - 2, a, b) == 3 && Math.abs(a[2] - theta[frames - 2][2]) < 1.0e-8, "Expected: cut-off file scanned\nActual: " + t.frames());
+			}
+		}
+		catch (java.io.IOException e) {
+			test(false, "Expected: trajectory saved and read\nActual: " + e);
+		}
+		f.delete();
+	}
+	
+	public void checkpointTests() {
+		// A braced triangle with a swinging tail and a bridge taken out,
+		// stepped a while, saved, and stepped some more.
+		AnchorStore s = new AnchorStore();
+		s.add(1.0, 0, 1);
+		s.add(1.2, 0.1, 2);
+		s.add(1.1, 0.3, 1);
+		s.add(1.4, 0.4, 3);
+		s.add(0.5, 2.0, 1);
+		new Rod(s.anchor(0), s.anchor(1));
+		new Rod(s.anchor(1), s.anchor(2));
+		new Rod(s.anchor(2), s.anchor(0));
+		Rod gone = new Rod(s.anchor(2), s.anchor(4));
+		new Rod(s.anchor(2), s.anchor(3));
+		s.anchor(2).remove(gone);
+		Simulation sim = new Simulation(s, 0.01);
+		sim.setVelocity(3, 0.3, -0.2, 0.1);
+		sim.setVelocity(4, 0, 0.5, 0);
+		sim.setRestLength(s.graph().rod(4), 0.25);
+		sim.run(20);
+		java.io.File f = new java.io.File(System.getProperty("java.io.tmpdir"), "blackhole-checkpoint-" + System.nanoTime());
+		Checkpointer cp = new Checkpointer();
+		try {
+			test(cp.save(sim, f), "Expected: checkpoint taken");
+			// Carrying on straight away doesn't touch what was saved.
+			sim.run(30);
+			cp.close();
+			test(cp.saved() == 1 && f.exists() && ! new java.io.File(f.getPath() + ".tmp").exists(), "Expected: checkpoint written in place");
+			
+			// The restored simulation is where the original was, and goes
+			// the same way.
+			Simulation back = Checkpointer.restore(f);
+			AnchorStore t = back.store();
+			test(back.steps() == 20 && feq(back.time(), 0.2) && back.dt() == 0.01 && t.size() == 5 && t.graph().size() == 4, "Expected: steps, time and structure restored");
+			boolean flags = true;
+			for (int k = 0; k < 4; k++) {
+				Rod r = t.graph().rod(k);
+				flags &= r.extensible() == r.isExtensible();
+			}
+			test(flags && t.graph().rod(3).extensible() && feq(back.restLength(t.graph().rod(3)), 0.25), "Expected: extensibility and rest lengths restored");
+			back.run(30);
+			double apart = 0;
+			for (int i = 0; i < 5; i++) {
+				apart = Math.max(apart, Geodesic.distance(s.x(i), s.y(i), s.z(i), t.x(i), t.y(i), t.z(i)));
+				apart = Math.max(apart, Math.abs(sim.vx(i) - back.vx(i)) + Math.abs(sim.vy(i) - back.vy(i)) + Math.abs(sim.vz(i) - back.vz(i)));
+			}
+			test(apart < 1.0e-9, "Expected: restored run matches\nActual: apart by " + apart);
+		}
+		catch (java.io.IOException e) {
+			test(false, "Expected: checkpoint saved and restored\nActual: " + e);
+		}
+		f.delete();
+		
+		// A rigid simulation comes back rigid.
+		sim.setRigid(true);
+		cp = new Checkpointer();
+		try {
+			cp.save(sim, f);
+			cp.close();
+			test(Checkpointer.restore(f).rigid(), "Expected: rigid restored");
+		}
+		catch (java.io.IOException e) {
+			test(false, "Expected: rigid checkpoint\nActual: " + e);
+		}
+		f.delete();
+
+		// A write that fails is thrown from every save() after it, not
+		// passed off as a skip.
+		java.io.File nowhere = new java.io.File(f.getPath() + "-missing", "checkpoint");
+		cp = new Checkpointer();
+		int thrown = 0;
+		try {
+			cp.save(sim, nowhere);
+			try {
+				cp.await();
+			}
+			catch (java.io.IOException e) {
+				thrown++;
+			}
+			for (int k = 0; k < 4; k++) {
+				try {
+					cp.save(sim, nowhere);
+				}
+				catch (java.io.IOException e) {
+					thrown++;
+				}
+			}
+		}
+		catch (java.io.IOException e) {
+			test(false, "Expected: first save handed over\nActual: " + e);
+		}
+		test(thrown == 5 && cp.skipped() == 0, "Expected: failure thrown every time\nActual: " + thrown + " thrown, " + cp.skipped() + " skipped");
+	}
+	
+	public void snapshotTests() {
+		Snapshots snaps = new Snapshots();
+		test(snaps.acquire() == null, "Expected: nothing before the first publish");
+		
+		// Every step, every anchor goes to the same latitude, which depends
+		// on the step. Readers on other threads check that all the anchors
+		// in whatever they get agree with each other and with its step.
+		AnchorStore s = new AnchorStore();
+		int n = 500;
+		for (int i = 0; i < n; i++) {
+			s.add(0.1, 2.0 * Math.PI * i / n, 1);
+		}
+		java.util.concurrent.atomic.AtomicBoolean done = new java.util.concurrent.atomic.AtomicBoolean();
+		java.util.concurrent.atomic.AtomicInteger torn = new java.util.concurrent.atomic.AtomicInteger();
+		java.util.concurrent.atomic.AtomicInteger reads = new java.util.concurrent.atomic.AtomicInteger();
+		Thread[] readers = new Thread[2];
+		for (int r = 0; r < readers.length; r++) {
+			readers[r] = new Thread(() -> {
+				long last = 0;
+				while (! done.get()) {
+					Snapshots.Snapshot snap = snaps.acquire();
+					if (snap == null) {
+						continue;
+					}
+					Scene scene = snap.scene();
+					double z = Math.cos(0.1 + 1.0e-3 * snap.step());
+					boolean same = scene.anchorCount() == n && snap.epoch() >= last;
+					for (int i = 0; same && i < n; i++) {
+						same = Math.abs(scene.z(i) - z) < 1.0e-9;
+					}
+					last = snap.epoch();
+					snap.close();
+					if (! same) {
+						torn.incrementAndGet();
+					}
+					reads.incrementAndGet();
+				}
+			});
+			readers[r].start();
+		}
+		int steps = 3000;
+		for (int k = 1; k <= steps; k++) {
+			for (int i = 0; i < n; i++) {
+				s.moveTo(i, 0.1 + 1.0e-3 * k, 2.0 * Math.PI * i / n);
+			}
+			snaps.publish(s, k, 0.01 * k);
+		}
+		done.set(true);
+		for (Thread t : readers) {
+			try {
+				t.join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		test(torn.get() == 0 && reads.get() > 0, "Expected: no torn reads\nActual: " + torn.get() + " of " + reads.get());
+		test(snaps.made() <= readers.length + 2, "Expected: snapshots reused\nActual: " + snaps.made() + " made");
+		Snapshots.Snapshot last = snaps.acquire();
+		test(last.step() == steps && last.epoch() == steps && feq(last.time(), 0.01 * steps), "Expected: latest is the last published");
+		
+		// A snapshot someone's holding isn't reused under them.
+		snaps.publish(s, steps + 1, 0);
+		snaps.publish(s, steps + 2, 0);
+		test(last.step() == steps, "Expected: held snapshot left alone");
+		last.close();
+	}
+	
+	public void benchmarkTests() {
+		// The shapes have the rods they should, and hang together.
+		AnchorStore chain = Benchmarks.structure("chain", 50, 1);
+		AnchorStore ring = Benchmarks.structure("ring", 50, 1);
+		AnchorStore mesh = Benchmarks.structure("mesh", 49, 1);
+		AnchorStore random = Benchmarks.structure("random", 50, 1);
+		test(chain.graph().size() == 49 && chain.connectivity().extensibleCount() == 49, "Expected: chain of 49 extensible rods");
+		test(ring.graph().size() == 50 && ring.connectivity().extensibleCount() == 0, "Expected: ring of 50 braced rods");
+		test(mesh.graph().size() == 2 * 49 - 7 && mesh.component(0).length == 49, "Expected: 7 by 7 mesh, round and down\nActual: " + mesh.graph().size());
+		test(random.graph().size() > 90 && random.graph().size() <= 100 && random.size() == 50, "Expected: about two random rods (four ends) per anchor\nActual: " + random.graph().size());
+		AnchorStore hubs = Benchmarks.structure("hubs", 1000, 1);
+		int busiest = 0;
+		for (int i = 0; i < hubs.size(); i++) {
+			busiest = Math.max(busiest, hubs.graph().degree(i));
+		}
+		test(hubs.size() == 1000 && busiest >= 20, "Expected: a hub of 20 rods or more\nActual: " + busiest);
+		int[] pools = Benchmarks.poolSizes();
+		test(pools[0] == 1 && pools[pools.length - 1] == Runtime.getRuntime().availableProcessors(), "Expected: solver pools from one thread to every processor\nActual: " + java.util.Arrays.toString(pools));
+		
+		// Measuring gives sensible numbers.
+		Benchmarks b = new Benchmarks(5, 20);
+		Benchmarks.Result r = b.measure("sqrt", i -> Math.sqrt(i));
+		test(r.ops > 0 && r.opsPerSecond > 0 && r.p50 <= r.p90 && r.p90 <= r.p99, "Expected: throughput and ordered percentiles\nActual: " + r);
+
+		// One operation in 40 being slow shows up in the tail rather than
+		// being averaged away.
+		Benchmarks.Result spiky = b.measure("spiky", i -> {
+			if (i % 40 == 0) {
+				long until = System.nanoTime() + 200000;
+				while (System.nanoTime() < until) {
+				}
+			}
+			return i;
+		});
+		test(spiky.p50 < 20000 && spiky.p99 > 100000, "Expected: fast median, slow tail\nActual: " + spiky);
+
+		// Only slowdowns past the threshold count.
+		java.util.Map<String, Double> base = new java.util.HashMap<String, Double>();
+		base.put("sqrt", r.opsPerSecond * 1.05);
+		test(Benchmarks.regressions(base, new ArrayList<Benchmarks.Result>(java.util.Arrays.asList(r)), 0.10).isEmpty(), "Expected: 5% slower is fine");
+		base.put("sqrt", r.opsPerSecond * 1.5);
+		test(Benchmarks.regressions(base, new ArrayList<Benchmarks.Result>(java.util.Arrays.asList(r)), 0.10).size() == 1, "Expected: a third slower regresses");
+	}
+	
+	public void generatorTests() {
+		// A dome has 10 f^2 + 2 anchors and 30 f^2 rods, all about the same
+		// length, and is braced all over.
+		for (int f = 1; f <= 4; f++) {
+			AnchorStore dome = Generator.dome(f);
+			RodGraph g = dome.graph();
+			double shortest = Double.MAX_VALUE;
+			double longest = 0;
+			boolean degrees = true;
+			for (int k = 0; k < g.rodCount(); k++) {
+				Rod r = g.rod(k);
+				double d = Geodesic.distance(r.head().x(), r.head().y(), r.head().z(), r.tail().x(), r.tail().y(), r.tail().z());
+				shortest = Math.min(shortest, d);
+				longest = Math.max(longest, d);
+			}
+			for (int i = 0; i < dome.size(); i++) {
+				degrees &= (g.degree(i) == ((i < 12) ? 5 : 6));
+			}
+			test(dome.size() == 10 * f * f + 2 && g.size() == 30 * f * f, "Expected: dome of frequency " + f + "\nActual: " + dome.size() + ", " + g.size());
+			test(degrees && dome.connectivity().extensibleCount() == 0 && longest < 1.5 * shortest, "Expected: even, braced dome of frequency " + f + "\nActual: " + shortest + " to " + longest);
+		}
+		
+		// Lattices, chains and rings.
+		AnchorStore grid = Generator.lattice(5, 8, false);
+		AnchorStore braced = Generator.lattice(5, 8, true);
+		test(grid.size() == 40 && grid.graph().size() == 40 + 32 && braced.graph().size() == 40 + 32 + 32, "Expected: lattice rods round, down and across");
+		test(Generator.chain(30, false).connectivity().extensibleCount() == 29 && Generator.chain(30, true).connectivity().extensibleCount() == 0, "Expected: chains stretch, rings don't");
+		
+		// A tree hangs together, every rod is a step long and can stretch,
+		// and nothing has too many children.
+		AnchorStore tree = Generator.tree(500, 3, 0.01, 25);
+		boolean steps = true;
+		int most = 0;
+		for (int k = 0; k < tree.graph().rodCount(); k++) {
+			Rod r = tree.graph().rod(k);
+			steps &= Math.abs(Geodesic.distance(r.head().x(), r.head().y(), r.head().z(), r.tail().x(), r.tail().y(), r.tail().z()) - 0.01) < 1.0e-9;
+			steps &= r.head().id() < r.tail().id();
+		}
+		for (int i = 0; i < tree.size(); i++) {
+			most = Math.max(most, tree.graph().degree(i) - ((i == 0) ? 0 : 1));
+		}
+		test(tree.graph().size() == 499 && tree.component(0).length == 500 && tree.connectivity().extensibleCount() == 499, "Expected: tree of 500");
+		test(steps && most <= 3, "Expected: steps of 0.01 and at most 3 children\nActual: " + most);
+		
+		// Random graphs come out the same for the same seed, without loops or
+		// doubled rods, and a power law gives a few anchors far more rods.
+		AnchorStore a = Generator.random(2000, Generator.Degrees.poisson(4), 9);
+		AnchorStore b = Generator.random(2000, Generator.Degrees.poisson(4), 9);
+		boolean same = a.graph().size() == b.graph().size();
+		for (int k = 0; same && k < a.graph().rodCount(); k++) {
+			same = a.graph().rod(k).head().id() == b.graph().rod(k).head().id() && a.graph().rod(k).tail().id() == b.graph().rod(k).tail().id();
+		}
+		test(same && a.theta(1234) == b.theta(1234), "Expected: same seed, same graph");
+		test(Math.abs(a.graph().size() - 4000) < 300, "Expected: mean degree about 4\nActual: " + 2.0 * a.graph().size() / 2000);
+		boolean simple = true;
+		java.util.HashSet<Long> seen = new java.util.HashSet<Long>();
+		for (int k = 0; k < a.graph().rodCount(); k++) {
+			Rod r = a.graph().rod(k);
+			simple &= r.head() != r.tail() && seen.add(((long) r.head().id() << 32) | r.tail().id());
+		}
+		test(simple, "Expected: no loops or doubled rods");
+		AnchorStore hubs = Generator.random(2000, Generator.Degrees.powerLaw(2.5, 1, 200), 9);
+		int top = 0;
+		for (int i = 0; i < hubs.size(); i++) {
+			top = Math.max(top, hubs.graph().degree(i));
+		}
+		test(top > 20 && hubs.graph().size() < 4000, "Expected: a few hubs\nActual: busiest has " + top);
+	}
+	
+	public void massTests() {
+		// Anchors that start out on their own, in a store the cache is
+		// watching, with rods coming and going, anchors moving, turning and
+		// changing weight. Every so often the cache has to agree with adding
+		// the structures up by hand.
+		java.util.Random rand = new java.util.Random(15);
+		AnchorStore s = new AnchorStore();
+		int n = 40;
+		for (int i = 0; i < n / 2; i++) {
+			s.add(rand.nextDouble() * Math.PI, rand.nextDouble() * 2.0 * Math.PI, 1 + rand.nextInt(4));
+		}
+		MassProperties mp = new MassProperties(s);
+		test(mp.count() == n / 2 && feq(mp.mass(3), s.mass(3)), "Expected: every anchor on its own to start with");
+		for (int i = n / 2; i < n; i++) {
+			s.add(rand.nextDouble() * Math.PI, rand.nextDouble() * 2.0 * Math.PI, 1 + rand.nextInt(4));
+		}
+		ArrayList<Rod> rods = new ArrayList<Rod>();
+		boolean agree = true;
+		boolean counted = true;
+		int splits = 0;
+		for (int step = 0; step < 600; step++) {
+			int op = rand.nextInt(6);
+			if (op == 0 && rods.size() > 0) {
+				Rod r = rods.remove(rand.nextInt(rods.size()));
+				int before = mp.count();
+				r.head().remove(r);
+				r.tail().remove(r);
+				splits += mp.count() - before;
+			}
+			else if (op <= 2) {
+				rods.add(new Rod(s.anchor(rand.nextInt(n)), s.anchor(rand.nextInt(n))));
+			}
+			else if (op == 3) {
+				s.anchor(rand.nextInt(n)).resize(rand.nextDouble() * 5.0);
+			}
+			else if (op == 4) {
+				s.anchor(rand.nextInt(n)).translate(0.1 * rand.nextGaussian(), 0.1 * rand.nextGaussian());
+			}
+			else {
+				s.rotate(s.component(rand.nextInt(n)), Rotation.about(rand.nextGaussian(), rand.nextGaussian(), rand.nextGaussian(), 0.3));
+			}
+			if (step % 10 == 0) {
+				agree &= agrees(mp, rand.nextInt(n));
+				// Count each structure at its lowest anchor.
+				int pieces = 0;
+				for (int i = 0; i < n; i++) {
+					int[] ids = s.component(i);
+					int lowest = i;
+					for (int k = 0; k < ids.length; k++) {
+						lowest = Math.min(lowest, ids[k]);
+					}
+					pieces += (lowest == i) ? 1 : 0;
+				}
+				counted &= (pieces == mp.count());
+			}
+		}
+		test(agree, "Expected: cached mass properties match the sums");
+		test(counted, "Expected: cache counts the structures");
+		test(splits > 0, "Expected: some rods coming out split a structure");
+
+		// Cutting the end off a chain moves the one anchor out, and the rest
+		// keep their structure's number. Do it enough times that the cache
+		// has to reuse the slots it leaves behind.
+		AnchorStore chain = new AnchorStore();
+		for (int i = 0; i < 30; i++) {
+			chain.add(1.0 + 0.02 * i, 0.1 * i, 1 + i % 3);
+		}
+		MassProperties cm = new MassProperties(chain);
+		for (int i = 1; i < 30; i++) {
+			new Rod(chain.anchor(i - 1), chain.anchor(i));
+		}
+		boolean kept = true;
+		boolean cut = true;
+		for (int round = 0; round < 200; round++) {
+			int end = (round % 2 == 0) ? 29 : 0;
+			int next = (end == 29) ? 28 : 1;
+			int before = cm.component(15);
+			Rod r = chain.anchor(end).rods().get(0);
+			r.head().remove(r);
+			r.tail().remove(r);
+			kept &= cm.component(15) == before && cm.size(15) == 29 && cm.size(end) == 1;
+			cut &= agrees(cm, 15) && agrees(cm, end);
+			new Rod(chain.anchor(next), chain.anchor(end));
+			chain.anchor(end).translate(0.01, 0.01);
+		}
+		test(kept, "Expected: the larger half keeps its structure");
+		test(cut && cm.count() == 1 && agrees(cm, 0), "Expected: cache agrees after many cuts");
+		cm.detach();
+
+		// Two equal masses on opposite sides of the equator balance out at
+		// the centre, and the structure is twice as hard to turn about the
+		// poles as one of them.
+		AnchorStore t = new AnchorStore();
+		t.add(Math.PI / 2.0, 0, 2);
+		t.add(Math.PI / 2.0, Math.PI, 2);
+		MassProperties two = new MassProperties(t);
+		new Rod(t.anchor(0), t.anchor(1));
+		double[] c = new double[3];
+		double[] inertia = new double[9];
+		test(two.count() == 1 && two.size(0) == 2 && feq(two.mass(1), 4), "Expected: rod joins the two");
+		test(two.centre(0, c, 0) && feq(c[0], 0) && feq(c[1], 0) && feq(c[2], 0), "Expected: centre of mass in the middle");
+		two.inertia(0, inertia);
+		test(feq(inertia[8], 4) && feq(inertia[0], 0) && feq(inertia[4], 4), "Expected: inertia of the pair");
+		t.anchor(0).resize(0);
+		t.anchor(1).resize(0);
+		test(! two.centre(0, c, 0), "Expected: nothing to find the centre of");
+		two.detach();
+	}
+	
+	// Whether the cache agrees with adding up the given anchor's structure.
+	private boolean agrees(MassProperties mp, int id) {
+		AnchorStore s = mp.store();
+		int[] ids = s.component(id);
+		double m = 0;
+		double[] c = new double[3];
+		double[] inertia = new double[9];
+		for (int i = 0; i < ids.length; i++) {
+			int k = ids[i];
+			double w = s.mass(k);
+			double[] p = { s.x(k), s.y(k), s.z(k) };
+			m += w;
+			for (int a = 0; a < 3; a++) {
+				c[a] += w * p[a];
+				for (int b = 0; b < 3; b++) {
+					inertia[3 * a + b] += w * ((a == b ? 1 : 0) - p[a] * p[b]);
+				}
+			}
+		}
+		boolean ok = mp.size(id) == ids.length && feq(mp.mass(id), m);
+		ok &= mp.component(id) == mp.component(ids[ids.length - 1]);
+		double[] cached = new double[9];
+		if (m > 0.1) {
+			ok &= mp.centre(id, cached, 0);
+			for (int a = 0; a < 3; a++) {
+				ok &= Math.abs(cached[a] - c[a] / m) < 1.0e-8;
+			}
+			// About the centre of mass it's the same, less the whole mass
+			// sitting at the centre.
+			mp.centralInertia(id, cached);
+			for (int a = 0; a < 3; a++) {
+				for (int b = 0; b < 3; b++) {
+					double cc = c[0] * c[0] + c[1] * c[1] + c[2] * c[2];
+					double shift = ((a == b) ? cc : 0) - c[a] * c[b];
+					ok &= Math.abs(cached[3 * a + b] - (inertia[3 * a + b] - shift / m)) < 1.0e-8;
+				}
+			}
+		}
+		mp.inertia(id, cached);
+		for (int a = 0; a < 9; a++) {
+			ok &= Math.abs(cached[a] - inertia[a]) < 1.0e-8;
+		}
+		return ok;
+	}
+	
+	// Two triangles joined by a rod, with an anchor hanging off the first.
+	private AnchorStore triangles() {
+		StructureBuilder sb = new StructureBuilder();
+		for (int i = 0; i < 3; i++) {
+			sb.anchor(0.6, 2.0 * Math.PI * i / 3.0, 1 + i);
+			sb.anchor(1.6, 2.0 * Math.PI * i / 3.0 + 0.3, 1);
+		}
+		sb.anchor(1.0, 0.0, 2);
+		for (int i = 0; i < 3; i++) {
+			sb.rod(2 * i, 2 * ((i + 1) % 3));
+			sb.rod(2 * i + 1, 2 * ((i + 1) % 3) + 1);
+		}
+		sb.rod(0, 1);
+		sb.rod(0, 6);
+		return sb.build();
+	}
+	
+	// Total angular momentum (sum of m p x v) of a simulation's anchors.
+	private double[] angularMomentum(Simulation sim) {
+		AnchorStore s = sim.store();
+		double[] l = new double[3];
+		for (int i = 0; i < s.size(); i++) {
+			double m = s.mass(i);
+			l[0] += m * (s.y(i) * sim.vz(i) - s.z(i) * sim.vy(i));
+			l[1] += m * (s.z(i) * sim.vx(i) - s.x(i) * sim.vz(i));
+			l[2] += m * (s.x(i) * sim.vy(i) - s.y(i) * sim.vx(i));
+		}
+		return l;
+	}
 }
@@ -0,0 +1,339 @@
+package blackhole;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Plays back a run saved by a TrajectoryRecorder, a frame at a time, in any
+ * order, without running anything.
+ *
+ * The file (all little-endian) starts with a header:
+ *     magic "BHTJ", version, quantum as a double                (16 bytes)
+ * followed by one record per frame:
+ *     length of the rest, kind, anchor count, step              (17 bytes)
+ *     positions
+ * Positions are theta and phi in whole quanta. A KEY frame has them as ints,
+ * anchor by anchor. A DELTA frame has, for each anchor, how far it is from
+ * its place in the last key frame, as zigzag varints (so anchors that have
+ * barely moved take a byte or two each). Any frame can be rebuilt from its
+ * key frame and itself.
+ *
+ * When the recorder is closed it adds an INDEX record saying where every
+ * frame starts, what step it was taken at and which key frame it goes with,
+ * and then where the index starts and INDEX_MAGIC. If that's missing (the
+ * run was cut off), the index is worked out by skipping through the records,
+ * and any half-written one at the end is ignored.
+ *
+ * Sequential reads only have to read the one record each, as the last key
+ * frame is kept.
+ *
+ * @author Rory
+ *
+ */
+public class Trajectory implements Closeable {
+
+	// Version written and the newest we can read.
+	public static final int VERSION = 1;
+
+	// "BHTJ" and "BHTI", and the kinds of record.
+	static final int MAGIC = 0x4a544842;
+	static final int INDEX_MAGIC = 0x49544842;
+	static final byte KEY = 0;
+	static final byte DELTA = 1;
+	static final byte INDEX = 2;
+
+	// Sizes of the file header, of a record's header, of the bit after the
+	// index, and of an index entry.
+	static final int HEADER = 16;
+	static final int RECORD = 17;
+	static final int TRAILER = 12;
+	static final int ENTRY = 20;
+
+	private final FileChannel m_channel;
+	private final double m_quantum;
+
+	// For each frame: where its record starts, its step and its key frame.
+	private int m_frames;
+	private long[] m_offset;
+	private long[] m_step;
+	private int[] m_key;
+
+	// The key frame we last read (-1 if none), with its positions in quanta.
+	private int m_loaded;
+	private int m_keyCount;
+	private int[] m_keyTheta;
+	private int[] m_keyPhi;
+
+	// Somewhere to read records into.
+	private ByteBuffer m_buf;
+
+	/**
+	 * Constructors
+	 */
+
+	public Trajectory(File file) throws IOException {
+		m_channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			m_buf = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+			read(0, HEADER);
+			if (m_buf.getInt(0) != MAGIC) {
+				throw new IOException(file + " isn't a trajectory file");
+			}
+			int version = m_buf.getInt(4);
+			if (version < 1 || version > VERSION) {
+				throw new IOException(file + " is version " + version + ", can only read up to " + VERSION);
+			}
+			m_quantum = m_buf.getDouble(8);
+			m_loaded = -1;
+			m_keyTheta = new int[0];
+			m_keyPhi = new int[0];
+			if (! index()) {
+				scan();
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			m_channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Accessors
+	 */
+
+	// Size of a quantum, in radians. Positions come back rounded to this.
+	public double quantum() {
+		return m_quantum;
+	}
+
+	public int frames() {
+		return m_frames;
+	}
+
+	// Step frame f was taken at.
+	public long step(int f) {
+		check(f);
+		return m_step[f];
+	}
+
+	// Key frame frame f goes with.
+	public int key(int f) {
+		check(f);
+		return m_key[f];
+	}
+
+	// The last frame taken at or before the given step, or -1 if there isn't
+	// one.
+	public int find(long step) {
+		int f = Arrays.binarySearch(m_step, 0, m_frames, step);
+		return (f >= 0) ? f : -f - 2;
+	}
+
+	// Number of anchors in frame f.
+	public int anchorCount(int f) throws IOException {
+		check(f);
+		read(m_offset[f], RECORD);
+		return m_buf.getInt(5);
+	}
+
+	// Reads frame f's positions into theta and phi (which have to be big
+	// enough) and returns how many anchors there are.
+	public int read(int f, double[] theta, double[] phi) throws IOException {
+		check(f);
+		int k = m_key[f];
+		if (k != m_loaded) {
+			load(k);
+		}
+		int n = m_keyCount;
+		if (theta.length < n || phi.length < n) {
+			throw new IllegalArgumentException("Need room for " + n + " anchors");
+		}
+		double q = m_quantum;
+		if (f == k) {
+			for (int i = 0; i < n; i++) {
+				theta[i] = q * m_keyTheta[i];
+				phi[i] = q * m_keyPhi[i];
+			}
+			return n;
+		}
+		int length = record(f);
+		if (m_buf.getInt(5) != n) {
+			throw new IOException("Frame " + f + " doesn't match its key frame");
+		}
+		int p = RECORD;
+		int end = 4 + length;
+		for (int i = 0; i < n; i++) {
+			// Varints, zigzagged: low seven bits first, top bit set if
+			// there's more.
+			int t = 0;
+			for (int shift = 0; ; shift += 7) {
+				if (p >= end) {
+					throw new EOFException("Frame " + f + " is cut short");
+				}
+				byte b = m_buf.get(p++);
+				t |= (b & 0x7f) << shift;
+				if (b >= 0) {
+					break;
+				}
+			}
+			int u = 0;
+			for (int shift = 0; ; shift += 7) {
+				if (p >= end) {
+					throw new EOFException("Frame " + f + " is cut short");
+				}
+				byte b = m_buf.get(p++);
+				u |= (b & 0x7f) << shift;
+				if (b >= 0) {
+					break;
+				}
+			}
+			theta[i] = q * (m_keyTheta[i] + ((t >>> 1) ^ -(t & 1)));
+			phi[i] = q * (m_keyPhi[i] + ((u >>> 1) ^ -(u & 1)));
+		}
+		return n;
+	}
+
+	// Moves the store's anchors to where they were in frame f. The store has
+	// to have (at least) as many anchors as the frame.
+	public void apply(int f, AnchorStore store, double[] theta, double[] phi) throws IOException {
+		int n = read(f, theta, phi);
+		for (int i = 0; i < n; i++) {
+			store.moveTo(i, theta[i], phi[i]);
+		}
+	}
+
+	/**
+	 * Mutators
+	 */
+
+	public void close() throws IOException {
+		m_channel.close();
+	}
+
+	/**
+	 * Private methods.
+	 */
+
+	// Reads the index from the end of the file, if it's there.
+	private boolean index() throws IOException {
+		long size = m_channel.size();
+		if (size < HEADER + RECORD + TRAILER) {
+			return false;
+		}
+		read(size - TRAILER, TRAILER);
+		long at = m_buf.getLong(0);
+		if (m_buf.getInt(8) != INDEX_MAGIC || at < HEADER || at > size - TRAILER - RECORD) {
+			return false;
+		}
+		int length = recordAt(at);
+		int frames = m_buf.getInt(5);
+		if (m_buf.get(4) != INDEX || frames < 0 || length != RECORD - 4 + (long) ENTRY * frames) {
+			return false;
+		}
+		allocate(frames);
+		for (int f = 0; f < frames; f++) {
+			int p = RECORD + ENTRY * f;
+			m_offset[f] = m_buf.getLong(p);
+			m_step[f] = m_buf.getLong(p + 8);
+			m_key[f] = m_buf.getInt(p + 16);
+		}
+		m_frames = frames;
+		return true;
+	}
+
+	// Works the index out by going through the records one by one.
+	private void scan() throws IOException {
+		long size = m_channel.size();
+		long at = HEADER;
+		int key = -1;
+		allocate(1024);
+		m_frames = 0;
+		while (at + RECORD <= size) {
+			read(at, RECORD);
+			int length = m_buf.getInt(0);
+			byte kind = m_buf.get(4);
+			if (length < RECORD - 4 || at + 4 + length > size || (kind != KEY && kind != DELTA) || (kind == DELTA && key < 0)) {
+				break;
+			}
+			if (m_frames == m_offset.length) {
+				allocate(2 * m_frames);
+			}
+			if (kind == KEY) {
+				key = m_frames;
+			}
+			m_offset[m_frames] = at;
+			m_step[m_frames] = m_buf.getLong(9);
+			m_key[m_frames] = key;
+			m_frames++;
+			at += 4 + length;
+		}
+	}
+
+	// Reads key frame k into m_keyTheta and m_keyPhi.
+	private void load(int k) throws IOException {
+		int length = record(k);
+		int n = m_buf.getInt(5);
+		if (m_buf.get(4) != KEY || n < 0 || length != RECORD - 4 + 8L * n) {
+			throw new IOException("Frame " + k + " isn't a key frame");
+		}
+		if (m_keyTheta.length < n) {
+			m_keyTheta = new int[n];
+			m_keyPhi = new int[n];
+		}
+		for (int i = 0; i < n; i++) {
+			m_keyTheta[i] = m_buf.getInt(RECORD + 8 * i);
+			m_keyPhi[i] = m_buf.getInt(RECORD + 8 * i + 4);
+		}
+		m_keyCount = n;
+		m_loaded = k;
+	}
+
+	// Reads all of frame f's record into m_buf, and returns its length.
+	private int record(int f) throws IOException {
+		return recordAt(m_offset[f]);
+	}
+
+	private int recordAt(long at) throws IOException {
+		read(at, 4);
+		int length = m_buf.getInt(0);
+		if (length < RECORD - 4) {
+			throw new IOException("Bad record at " + at);
+		}
+		read(at, 4 + length);
+		return length;
+	}
+
+	// Reads count bytes from the given place in the file into the start of
+	// m_buf.
+	private void read(long at, int count) throws IOException {
+		if (m_buf.capacity() < count) {
+			m_buf = ByteBuffer.allocate(Math.max(count, 2 * m_buf.capacity())).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		m_buf.clear().limit(count);
+		while (m_buf.hasRemaining()) {
+			if (m_channel.read(m_buf, at + m_buf.position()) < 0) {
+				throw new EOFException("File ends at " + (at + m_buf.position()));
+			}
+		}
+	}
+
+	// Makes room in the index for the given number of frames.
+	private void allocate(int frames) {
+		m_offset = (m_offset == null) ? new long[frames] : Arrays.copyOf(m_offset, frames);
+		m_step = (m_step == null) ? new long[frames] : Arrays.copyOf(m_step, frames);
+		m_key = (m_key == null) ? new int[frames] : Arrays.copyOf(m_key, frames);
+	}
+
+	private void check(int f) {
+		if (f < 0 || f >= m_frames) {
+			throw new IndexOutOfBoundsException("No frame " + f);
+		}
+	}
+}
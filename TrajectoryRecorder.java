@@ -0,0 +1,233 @@
+package blackhole;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Saves where every anchor is, step after step, for playing back later with
+ * a Trajectory (which describes the file).
+ *
+ * Positions are rounded to a quantum (1e-8 radians by default, well under
+ * anything you could see or the solver cares about) and kept as whole
+ * numbers of quanta. Every so many frames there's a key frame with all of
+ * them as they are. Other frames only hold how far each anchor is from where
+ * it was in the key frame, which for anything that isn't going anywhere fast
+ * fits in a couple of bytes. Measuring from the key frame rather than from
+ * the frame before means rounding errors can't build up, and any frame can
+ * be read back from just two records. A new key frame is started early if
+ * the number of anchors changes.
+ *
+ * The file is only ever added to. Frames are put together in a big buffer
+ * and written out when it fills up, so the disk sees a few large writes
+ * rather than one per step. Nothing is written until then, or until flush()
+ * or close().
+ *
+ * @author Rory
+ *
+ */
+public class TrajectoryRecorder implements Closeable {
+
+	// Quantum, in radians, and frames per key frame, by default.
+	private static final double DEFAULT_QUANTUM = 1.0e-8;
+	private static final int DEFAULT_KEY_EVERY = 64;
+
+	// Size of the write buffer to start with.
+	private static final int BATCH = 1 << 20;
+
+	private final FileChannel m_channel;
+	private final double m_quantum;
+	private final int m_keyEvery;
+
+	// Positions (in quanta) in the last key frame, and how many anchors it
+	// had. Which frame that was.
+	private int[] m_keyTheta;
+	private int[] m_keyPhi;
+	private int m_keyCount;
+	private int m_key;
+
+	// Frames so far: where each starts, its step and its key frame.
+	private int m_frames;
+	private long[] m_offset;
+	private long[] m_step;
+	private int[] m_keys;
+
+	// Frames waiting to be written, and where in the file they'll go.
+	private ByteBuffer m_buf;
+	private long m_position;
+
+	/**
+	 * Constructors
+	 */
+
+	// Starts a new file (replacing whatever was there) with the default
+	// quantum and a key frame every 64 frames.
+	public TrajectoryRecorder(File file) throws IOException {
+		this(file, DEFAULT_QUANTUM, DEFAULT_KEY_EVERY);
+	}
+
+	public TrajectoryRecorder(File file, double quantum, int keyEvery) throws IOException {
+		// Phi can go round to 2 pi, which has to fit in an int of quanta.
+		if (! (quantum >= 4.0 * Math.PI / Integer.MAX_VALUE) || keyEvery < 1) {
+			throw new IllegalArgumentException("Bad quantum or key frame spacing: " + quantum + ", " + keyEvery);
+		}
+		m_quantum = quantum;
+		m_keyEvery = keyEvery;
+		m_keyTheta = new int[0];
+		m_keyPhi = new int[0];
+		m_key = -1;
+		m_offset = new long[1024];
+		m_step = new long[1024];
+		m_keys = new int[1024];
+		m_buf = ByteBuffer.allocateDirect(BATCH).order(ByteOrder.LITTLE_ENDIAN);
+		m_channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		m_buf.putInt(Trajectory.MAGIC).putInt(Trajectory.VERSION).putDouble(quantum);
+		m_position = 0;
+	}
+
+	/**
+	 * Accessors
+	 */
+
+	public double quantum() {
+		return m_quantum;
+	}
+
+	// Frames recorded so far.
+	public int frames() {
+		return m_frames;
+	}
+
+	// Bytes recorded so far (written or not).
+	public long bytes() {
+		return m_position + m_buf.position();
+	}
+
+	/**
+	 * Mutators
+	 */
+
+	// Records where the simulation's anchors are now, as of its current step.
+	public void record(Simulation sim) throws IOException {
+		record(sim.store(), sim.steps());
+	}
+
+	// Records where the store's anchors are now, as the given step.
+	public void record(AnchorStore store, long step) throws IOException {
+		if (! m_channel.isOpen()) {
+			throw new IllegalStateException("Recorder is closed");
+		}
+		if (m_frames > 0 && step < m_step[m_frames - 1]) {
+			throw new IllegalArgumentException("Steps have to go forwards: " + step + " after " + m_step[m_frames - 1]);
+		}
+		int n = store.size();
+		boolean key = m_key < 0 || n != m_keyCount || m_frames - m_key >= m_keyEvery;
+
+		// Make sure even the biggest frame fits: an int each for a key
+		// frame, or up to five bytes a varint for a delta.
+		int worst = Trajectory.RECORD + 10 * n;
+		if (m_buf.remaining() < worst) {
+			flush();
+			if (m_buf.capacity() < worst) {
+				m_buf = ByteBuffer.allocateDirect(worst).order(ByteOrder.LITTLE_ENDIAN);
+			}
+		}
+		if (m_frames == m_offset.length) {
+			m_offset = Arrays.copyOf(m_offset, 2 * m_frames);
+			m_step = Arrays.copyOf(m_step, 2 * m_frames);
+			m_keys = Arrays.copyOf(m_keys, 2 * m_frames);
+		}
+		if (key) {
+			m_key = m_frames;
+			m_keyCount = n;
+			if (m_keyTheta.length < n) {
+				m_keyTheta = new int[Math.max(n, 2 * m_keyTheta.length)];
+				m_keyPhi = new int[m_keyTheta.length];
+			}
+		}
+		m_offset[m_frames] = bytes();
+		m_step[m_frames] = step;
+		m_keys[m_frames] = m_key;
+		m_frames++;
+
+		ByteBuffer buf = m_buf;
+		int start = buf.position();
+		buf.putInt(0).put(key ? Trajectory.KEY : Trajectory.DELTA).putInt(n).putLong(step);
+		double[] theta = store.thetas();
+		double[] phi = store.phis();
+		double scale = 1.0 / m_quantum;
+		for (int i = 0; i < n; i++) {
+			int t = (int) Math.round(theta[i] * scale);
+			int p = (int) Math.round(phi[i] * scale);
+			if (key) {
+				m_keyTheta[i] = t;
+				m_keyPhi[i] = p;
+				buf.putInt(t).putInt(p);
+			}
+			else {
+				// Anchors going over the phi = 0 line make a big jump, but
+				// that only costs a few bytes.
+				varint(buf, t - m_keyTheta[i]);
+				varint(buf, p - m_keyPhi[i]);
+			}
+		}
+		buf.putInt(start, buf.position() - start - 4);
+	}
+
+	// Writes out everything recorded so far.
+	public void flush() throws IOException {
+		m_buf.flip();
+		while (m_buf.hasRemaining()) {
+			m_position += m_channel.write(m_buf, m_position);
+		}
+		m_buf.clear();
+	}
+
+	// Writes the index after the last frame, and closes the file.
+	public void close() throws IOException {
+		if (! m_channel.isOpen()) {
+			return;
+		}
+		try {
+			int size = Trajectory.RECORD + Trajectory.ENTRY * m_frames + Trajectory.TRAILER;
+			if (m_buf.remaining() < size) {
+				flush();
+				if (m_buf.capacity() < size) {
+					m_buf = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+				}
+			}
+			long at = bytes();
+			m_buf.putInt(Trajectory.RECORD - 4 + Trajectory.ENTRY * m_frames).put(Trajectory.INDEX)
+					.putInt(m_frames).putLong(0);
+			for (int f = 0; f < m_frames; f++) {
+				m_buf.putLong(m_offset[f]).putLong(m_step[f]).putInt(m_keys[f]);
+			}
+			m_buf.putLong(at).putInt(Trajectory.INDEX_MAGIC);
+			flush();
+		}
+		finally {
+			m_channel.close();
+		}
+	}
+
+	/**
+	 * Private methods.
+	 */
+
+	// Puts v into buf zigzagged (so small negative numbers are small too) as
+	// a varint.
+	private static void varint(ByteBuffer buf, int v) {
+		int z = (v << 1) ^ (v >> 31);
+		while ((z & ~0x7f) != 0) {
+			buf.put((byte) ((z & 0x7f) | 0x80));
+			z >>>= 7;
+		}
+		buf.put((byte) z);
+	}
+}